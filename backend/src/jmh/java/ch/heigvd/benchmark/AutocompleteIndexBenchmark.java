@@ -0,0 +1,109 @@
+package ch.heigvd.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.autocomplete.AutocompleteIndex;
+import ch.heigvd.autocomplete.AutocompleteService;
+import ch.heigvd.entities.Completion;
+
+/**
+ * Measures the lookups of GET /autocomplete on a generated catalog, with the
+ * percentiles of their latency.
+ *
+ * "short" is a prefix of one letter, matched by most of the texts, "word" a
+ * full word, "twoWords" a prefix spanning two words, "accents" a prefix typed
+ * with accents and "missing" a prefix matching nothing. The latency should not
+ * depend on how many texts match.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AutocompleteIndexBenchmark {
+  private static final int WORDS = 5_000;
+  private static final int CREATORS = 4_000;
+
+  @Param({ "100000" })
+  public int size;
+
+  @Param({ "short", "word", "twoWords", "accents", "missing" })
+  public String prefix;
+
+  private AutocompleteIndex index;
+  private String text;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    List<AutocompleteIndex.Entry> entries = new ArrayList<>(size + size / 10 + CREATORS);
+    for (long id = 1; id <= size; id++) {
+      entries.add(entry(title(random), "music", id, random));
+    }
+    for (long id = size + 1; id <= size + size / 10; id++) {
+      entries.add(entry(title(random), "album", id, random));
+    }
+    for (int i = 0; i < CREATORS; i++) {
+      entries.add(entry("Créateur " + i, "creator", null, random));
+    }
+    index = AutocompleteIndex.build(entries, AutocompleteService.MAX_COMPLETIONS);
+
+    text = switch (prefix) {
+      case "short" -> "m";
+      case "word" -> word(42);
+      case "twoWords" -> word(0) + " mo";
+      case "accents" -> "Été";
+      case "missing" -> "introuvable";
+      default -> throw new IllegalArgumentException(prefix);
+    };
+  }
+
+  @Benchmark
+  public List<Completion> complete() {
+    return index.complete(text, AutocompleteService.MAX_COMPLETIONS);
+  }
+
+  /**
+   * @return a completion played a skewed number of times, a few being much
+   *         more listened than the others
+   */
+  private static AutocompleteIndex.Entry entry(String text, String kind, Long id, Random random) {
+    long plays = (long) (Math.pow(random.nextDouble(), 8) * 1_000_000);
+    return new AutocompleteIndex.Entry(new Completion(text, kind, id), plays);
+  }
+
+  /**
+   * @return two to five words, the first words of the vocabulary being much
+   *         more frequent than the last ones
+   */
+  private static String title(Random random) {
+    int length = 2 + random.nextInt(4);
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      double skewed = Math.pow(random.nextDouble(), 4);
+      title.append(i == 0 ? "" : " ").append(word((int) (skewed * WORDS)));
+    }
+    return title.toString();
+  }
+
+  private static String word(int index) {
+    // Some words have accents, as in the French titles
+    return (index % 3 == 0 ? "Été" : "mot") + index;
+  }
+}
@@ -0,0 +1,102 @@
+package ch.heigvd.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.heigvd.entities.Music;
+import io.javalin.json.JavalinJackson;
+
+/**
+ * Measures Javalin's Jackson serialization of music lists, as done by
+ * ctx.json() and by the streaming mode of GET /musics.
+ *
+ * Run with -prof gc to get the allocation rate next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonSerializationBenchmark {
+  @Param({ "10", "1000", "100000" })
+  public int size;
+
+  private final JavalinJackson jsonMapper = new JavalinJackson();
+  private List<Music> musics;
+  private Type type;
+
+  @Setup
+  public void setUp() {
+    musics = new ArrayList<>(size);
+    for (long id = 1; id <= size; id++) {
+      musics.add(new Music(id, "Music title " + id, LocalDate.of(2000, 1, 1).plusDays(id % 10_000),
+          180 + (int) (id % 120), "Pop", "Creator " + (id % 50) + ", Featuring " + (id % 7)));
+    }
+    type = musics.getClass();
+  }
+
+  /**
+   * What ctx.json() does: the list is serialized into a stream read by Jetty.
+   */
+  @Benchmark
+  public long toJsonStream() throws IOException {
+    try (InputStream json = jsonMapper.toJsonStream(musics, type)) {
+      return json.transferTo(OutputStream.nullOutputStream());
+    }
+  }
+
+  /**
+   * Serialization to a String, the upper bound of the memory needed.
+   */
+  @Benchmark
+  public String toJsonString() {
+    return jsonMapper.toJsonString(musics, type);
+  }
+
+  /**
+   * What ctx.writeJsonStream() does: each music is written as it comes.
+   */
+  @Benchmark
+  public void writeJsonStream(Blackhole blackhole) {
+    jsonMapper.writeToOutputStream(musics.stream(), new BlackholeOutputStream(blackhole));
+  }
+
+  private static final class BlackholeOutputStream extends OutputStream {
+    private final Blackhole blackhole;
+
+    private BlackholeOutputStream(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      blackhole.consume(b);
+      blackhole.consume(len);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.Env;
+import ch.heigvd.entities.Music;
+
+/**
+ * Compares the two ways of loading the musics of several playlists, against
+ * the database of JDBC_URL: one query per playlist (N+1 round trips with the
+ * query of the playlists, as the playlist routes did) and a single query for
+ * all of them with cp.idplaylist = ANY(?).
+ *
+ * Both read the same rows, hydrated the same way, so only the number of
+ * round trips differs. The score is in loads per millisecond on one thread,
+ * its inverse is the latency of a load. The roundTrips counter is reported
+ * in the same unit: divided by the score, it gives the round trips of a load.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlaylistMusicsBenchmark {
+  private static final String MUSICS_OF_PLAYLIST_SQL = """
+      SELECT c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
+             STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
+      FROM spotish.chanson_playlist cp
+      JOIN spotish.chanson c          ON cp.idchanson = c.idchanson
+      JOIN spotish.media m            ON m.idmedia = c.idchanson
+      JOIN spotish.createur_media cm  ON cm.idmedia = m.idmedia
+      WHERE cp.idplaylist = ?
+      GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
+      """;
+
+  private static final String MUSICS_OF_PLAYLISTS_SQL = """
+      SELECT cp.idplaylist AS playlistId,
+             c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
+             STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
+      FROM spotish.chanson_playlist cp
+      JOIN spotish.chanson c          ON cp.idchanson = c.idchanson
+      JOIN spotish.media m            ON m.idmedia = c.idchanson
+      JOIN spotish.createur_media cm  ON cm.idmedia = m.idmedia
+      WHERE cp.idplaylist = ANY(?)
+      GROUP BY cp.idplaylist, c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
+      """;
+
+  @Param({ "1", "10", "100" })
+  public int playlists;
+
+  private Connection conn;
+  private List<Long> playlistIds;
+
+  /**
+   * Queries sent to the database, reset by JMH at each iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class RoundTrips {
+    public long roundTrips;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      roundTrips = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() throws SQLException {
+    conn = DriverManager.getConnection(Env.getOrThrow("JDBC_URL"), Env.getOrThrow("POSTGRES_USER_USERNAME"),
+        Env.getOrThrow("POSTGRES_USER_PASSWORD"));
+
+    playlistIds = new ArrayList<>(playlists);
+    try (PreparedStatement ps = conn.prepareStatement(
+        "SELECT idplaylist FROM spotish.chanson_playlist GROUP BY idplaylist ORDER BY idplaylist LIMIT ?")) {
+      ps.setInt(1, playlists);
+      ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        playlistIds.add(rs.getLong(1));
+      }
+    }
+    if (playlistIds.size() < playlists) {
+      throw new IllegalStateException("Only " + playlistIds.size() + " playlists have musics, "
+          + playlists + " are needed: run sql_scripts/init first");
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    conn.close();
+  }
+
+  @Benchmark
+  public Map<Long, List<Music>> perPlaylist(RoundTrips counter) throws SQLException {
+    Map<Long, List<Music>> musicsByPlaylist = new HashMap<>();
+    for (Long playlistId : playlistIds) {
+      try (PreparedStatement ps = conn.prepareStatement(MUSICS_OF_PLAYLIST_SQL)) {
+        ps.setLong(1, playlistId);
+        ResultSet rs = ps.executeQuery();
+        counter.roundTrips++;
+
+        List<Music> musics = new ArrayList<>();
+        while (rs.next()) {
+          musics.add(music(rs));
+        }
+        musicsByPlaylist.put(playlistId, musics);
+      }
+    }
+    return musicsByPlaylist;
+  }
+
+  @Benchmark
+  public Map<Long, List<Music>> setBased(RoundTrips counter) throws SQLException {
+    Map<Long, List<Music>> musicsByPlaylist = new HashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(MUSICS_OF_PLAYLISTS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("bigint", playlistIds.toArray(new Long[0])));
+      ResultSet rs = ps.executeQuery();
+      counter.roundTrips++;
+
+      while (rs.next()) {
+        musicsByPlaylist.computeIfAbsent(rs.getLong("playlistId"), id -> new ArrayList<>()).add(music(rs));
+      }
+    }
+    return musicsByPlaylist;
+  }
+
+  private static Music music(ResultSet rs) throws SQLException {
+    return new Music(
+        rs.getLong("musicId"),
+        rs.getString("title"),
+        rs.getObject("releaseDate", LocalDate.class),
+        rs.getInt("duration"),
+        rs.getString("genre"),
+        rs.getString("creatorNames"));
+  }
+}
@@ -0,0 +1,124 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.Env;
+import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicRepository;
+import ch.heigvd.playlist.PlaylistRepository;
+import ch.heigvd.user.UserRepository;
+
+/**
+ * Measures what preparing the statements on the server saves on the short,
+ * frequent lookups, against the database of JDBC_URL: the existence checks of
+ * the users and playlists and the lookup of a music by the catalog.
+ *
+ * With a prepareThreshold of 0, the driver never prepares on the server: each
+ * execution is parsed, analyzed and planned again. With 1, the statement is
+ * prepared the first time it is executed on the connection, then only bound
+ * and executed, and PostgreSQL switches to its generic plan after five
+ * executions. 5 is the default of the driver.
+ *
+ * The repositories prepare and close a statement per call, as in the backend:
+ * the driver finds the server statement in its cache from the SQL.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreparedStatementBenchmark {
+  private static final int KEYS = 1000;
+
+  @Param({ "0", "1", "5" })
+  public int prepareThreshold;
+
+  private Connection conn;
+  private List<String> usernames;
+  private List<Long> musicIds;
+  private List<Long> playlistIds;
+  private int next;
+
+  private final UserRepository userRepo = new UserRepository();
+  private final MusicRepository musicRepo = new MusicRepository();
+  // exists does not use the catalog
+  private final PlaylistRepository playlistRepo = new PlaylistRepository(null);
+
+  @Setup
+  public void setUp() throws SQLException {
+    Properties props = new Properties();
+    props.setProperty("user", Env.getOrThrow("POSTGRES_USER_USERNAME"));
+    props.setProperty("password", Env.getOrThrow("POSTGRES_USER_PASSWORD"));
+    props.setProperty("prepareThreshold", String.valueOf(prepareThreshold));
+    conn = DriverManager.getConnection(Env.getOrThrow("JDBC_URL"), props);
+
+    usernames = keys("SELECT nomutilisateur FROM spotish.utilisateur LIMIT " + KEYS, String.class);
+    musicIds = keys("SELECT idchanson FROM spotish.chanson LIMIT " + KEYS, Long.class);
+    playlistIds = keys("SELECT idplaylist FROM spotish.playlist LIMIT " + KEYS, Long.class);
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    conn.close();
+  }
+
+  @Benchmark
+  public boolean userExists() throws SQLException {
+    return userRepo.exists(conn, usernames.get(next(usernames.size())));
+  }
+
+  @Benchmark
+  public List<Music> musicById() throws SQLException {
+    return musicRepo.getByIds(conn, List.of(musicIds.get(next(musicIds.size()))));
+  }
+
+  @Benchmark
+  public boolean playlistExists() throws SQLException {
+    return playlistRepo.exists(conn, playlistIds.get(next(playlistIds.size())));
+  }
+
+  /**
+   * @return the next key to look up, so that the lookups are not all served
+   *         by the same page
+   */
+  private int next(int size) {
+    next = next + 1 < size ? next + 1 : 0;
+    return next;
+  }
+
+  private <T> List<T> keys(String sql, Class<T> type) throws SQLException {
+    List<T> keys = new ArrayList<>(KEYS);
+    try (PreparedStatement ps = conn.prepareStatement(sql);
+        ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        keys.add(rs.getObject(1, type));
+      }
+    }
+    if (keys.isEmpty()) {
+      throw new IllegalStateException("The database is empty, run sql_scripts/init first: " + sql);
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,136 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.album.AlbumRepository;
+import ch.heigvd.entities.Album;
+import ch.heigvd.entities.Music;
+import ch.heigvd.entities.Playlist;
+import ch.heigvd.music.MusicCatalogCache;
+import ch.heigvd.music.MusicRepository;
+import ch.heigvd.playlist.PlaylistRepository;
+
+/**
+ * Measures the cost of turning result sets into Music, Playlist and Album
+ * objects in the repositories, with the database replaced by in-memory rows.
+ *
+ * Run with -prof gc to get the allocation rate next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryMappingBenchmark {
+  private static final int MUSICS_PER_PLAYLIST = 20;
+
+  /**
+   * Number of musics returned by the music query, also the number of musics
+   * spread over the playlists.
+   */
+  @Param({ "10", "1000" })
+  public int musicCount;
+
+  private Connection conn;
+  private List<Long> musicIds;
+
+  private MusicCatalogCache musicCatalog;
+  private PlaylistRepository playlistRepo;
+  private AlbumRepository albumRepo;
+  private MusicRepository musicRepo;
+
+  @Setup
+  public void setUp() {
+    StubDatabase db = new StubDatabase();
+
+    StubDatabase.Table musics = new StubDatabase.Table(
+        "musicId", "title", "releaseDate", "duration", "genre", "creatorNames");
+    StubDatabase.Table playlistMusics = new StubDatabase.Table("playlistId", "musicId");
+    StubDatabase.Table albumMusics = new StubDatabase.Table("musicId");
+    musicIds = new ArrayList<>(musicCount);
+
+    for (long id = 1; id <= musicCount; id++) {
+      musics.row(id, "Music title " + id, LocalDate.of(2000, 1, 1).plusDays(id), 180 + (int) (id % 120), "Pop",
+          "Creator " + (id % 50) + ", Featuring " + (id % 7));
+      playlistMusics.row((id - 1) / MUSICS_PER_PLAYLIST + 1, id);
+      if (id <= MUSICS_PER_PLAYLIST) {
+        albumMusics.row(id);
+      }
+      musicIds.add(id);
+    }
+
+    StubDatabase.Table playlists = new StubDatabase.Table("playlistId", "name", "description", "creatorName");
+    for (long id = 1; id <= (musicCount + MUSICS_PER_PLAYLIST - 1) / MUSICS_PER_PLAYLIST; id++) {
+      playlists.row(id, "Playlist " + id, "Benchmark playlist", "bench.user");
+    }
+
+    StubDatabase.Table album = new StubDatabase.Table("albumId", "title", "releaseDate", "creatorName")
+        .row(1L, "Benchmark album", LocalDate.of(2020, 1, 1), "Creator 1");
+
+    db.when("WHERE cd.idchanson = ANY", musics);
+    db.when("FROM spotish.chanson_playlist cp", playlistMusics);
+    db.when("FROM spotish.playlist p", playlists);
+    db.when("FROM spotish.album_chanson ac", albumMusics);
+    db.when("FROM spotish.album a", album);
+
+    conn = db.connection();
+
+    musicRepo = new MusicRepository();
+    // Misses are always loaded with the connection given by the repositories,
+    // so no DataSource is needed
+    musicCatalog = new MusicCatalogCache(null, musicRepo);
+    playlistRepo = new PlaylistRepository(musicCatalog);
+    albumRepo = new AlbumRepository(musicCatalog);
+  }
+
+  /**
+   * Mapping of the 4-table music query, what every catalog miss costs.
+   */
+  @Benchmark
+  public List<Music> musicsByIds() throws SQLException {
+    return musicRepo.getByIds(conn, musicIds);
+  }
+
+  /**
+   * Playlists of a user when their musics are all in the catalog cache.
+   */
+  @Benchmark
+  public List<Playlist> userPlaylistsWarmCatalog() throws SQLException {
+    return playlistRepo.getUserPlaylists(conn, "bench.user");
+  }
+
+  /**
+   * Playlists of a user when none of their musics are in the catalog cache.
+   */
+  @Benchmark
+  public List<Playlist> userPlaylistsColdCatalog() throws SQLException {
+    musicCatalog.invalidateAll();
+    return playlistRepo.getUserPlaylists(conn, "bench.user");
+  }
+
+  /**
+   * An album and its musics, with a warm catalog cache.
+   */
+  @Benchmark
+  public Album album() throws SQLException {
+    return albumRepo.getAlbum(conn, 1L);
+  }
+}
@@ -0,0 +1,108 @@
+package ch.heigvd.benchmark;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.entities.Album;
+import ch.heigvd.entities.Creator;
+import ch.heigvd.entities.Music;
+import ch.heigvd.entities.SearchResult;
+import ch.heigvd.search.SearchIndex;
+
+/**
+ * Measures the searches of GET /search on a generated catalog, with the
+ * percentiles of their latency.
+ *
+ * The words of the titles follow a skewed distribution, like in a real
+ * catalog: "frequent" is a word found in a large share of the titles, the
+ * worst case, "rare" a full title and "accents" a word searched without the
+ * accents it is indexed with.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+  private static final int WORDS = 5_000;
+  private static final int CREATORS = 4_000;
+  private static final int LIMIT = 10;
+
+  @Param({ "100000" })
+  public int size;
+
+  @Param({ "frequent", "rare", "twoWords", "accents", "missing" })
+  public String query;
+
+  private final SearchIndex index = new SearchIndex();
+  private String text;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    List<Music> musics = new ArrayList<>(size);
+    for (long id = 1; id <= size; id++) {
+      musics.add(new Music(id, title(random), LocalDate.of(2000, 1, 1), 200, "Pop",
+          "Créateur " + random.nextInt(CREATORS)));
+    }
+    List<Album> albums = new ArrayList<>(size / 10);
+    for (long id = size + 1; id <= size + size / 10; id++) {
+      albums.add(new Album(id, title(random), LocalDate.of(2000, 1, 1), "Créateur " + random.nextInt(CREATORS),
+          null));
+    }
+    List<Creator> creators = new ArrayList<>(CREATORS);
+    for (int i = 0; i < CREATORS; i++) {
+      creators.add(new Creator("Créateur " + i, null, null));
+    }
+    index.replaceAll(musics, albums, creators);
+
+    text = switch (query) {
+      case "frequent" -> word(0);
+      case "rare" -> musics.get(size / 2).title();
+      case "twoWords" -> word(0) + " " + word(1);
+      case "accents" -> SearchIndex.fold(word(3));
+      case "missing" -> "introuvable";
+      default -> throw new IllegalArgumentException(query);
+    };
+  }
+
+  @Benchmark
+  public SearchResult search() {
+    return index.search(text, LIMIT);
+  }
+
+  /**
+   * @return two to five words, the first words of the vocabulary being much
+   *         more frequent than the last ones
+   */
+  private static String title(Random random) {
+    int length = 2 + random.nextInt(4);
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      double skewed = Math.pow(random.nextDouble(), 4);
+      title.append(i == 0 ? "" : " ").append(word((int) (skewed * WORDS)));
+    }
+    return title.toString();
+  }
+
+  private static String word(int index) {
+    // Some words have accents, as in the French titles
+    return (index % 3 == 0 ? "Été" : "mot") + index;
+  }
+}
@@ -0,0 +1,80 @@
+package ch.heigvd.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.similar.CooccurrenceGroups;
+import ch.heigvd.similar.SimilarIndex;
+import ch.heigvd.similar.SimilarService;
+
+/**
+ * Measures the computation of the similar musics from generated playlists and
+ * listening sessions, once the groups are read, on pools of 1 thread and of
+ * all the processors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimilarIndexBenchmark {
+  private static final int MUSICS = 80_000;
+  private static final int PLAYLISTS = 20_000;
+  private static final int SESSIONS = 300_000;
+
+  @Param({ "1", "0" })
+  public int parallelism;
+
+  private CooccurrenceGroups groups;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    groups = new CooccurrenceGroups(50);
+    for (int i = 0; i < PLAYLISTS; i++) {
+      group(random, 5 + random.nextInt(35));
+    }
+    for (int i = 0; i < SESSIONS; i++) {
+      group(random, 1 + random.nextInt(25));
+    }
+    // 0 for all the processors
+    pool = new ForkJoinPool(parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public SimilarIndex build() {
+    return SimilarIndex.build(groups, SimilarService.MAX_SIMILAR, 2, pool);
+  }
+
+  /**
+   * Adds a group of musics, the first musics of the catalog being much more
+   * listened than the last ones.
+   */
+  private void group(Random random, int size) {
+    for (int i = 0; i < size; i++) {
+      groups.add(1 + (long) (Math.pow(random.nextDouble(), 3) * MUSICS));
+    }
+    groups.endGroup();
+  }
+}
@@ -0,0 +1,65 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Array parameter of a StubDatabase, whose elements are ignored.
+ */
+final class StubArray implements Array {
+  @Override
+  public void free() throws SQLException {
+  }
+
+  @Override
+  public Object getArray() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Object getArray(Map<String, Class<?>> arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Object getArray(long arg0, int arg1, Map<String, Class<?>> arg2) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Object getArray(long arg0, int arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public int getBaseType() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public String getBaseTypeName() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public ResultSet getResultSet() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public ResultSet getResultSet(Map<String, Class<?>> arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public ResultSet getResultSet(long arg0, int arg1, Map<String, Class<?>> arg2) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public ResultSet getResultSet(long arg0, int arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+}
@@ -0,0 +1,286 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Connection of a StubDatabase: prepared statements answer with the rows
+ * registered for their SQL. The other methods doing something throw, those
+ * returning nothing are ignored.
+ */
+final class StubConnection implements Connection {
+  private final StubDatabase db;
+
+  StubConnection(StubDatabase db) {
+    this.db = db;
+  }
+
+  @Override
+  public void abort(Executor arg0) throws SQLException {
+  }
+
+  @Override
+  public void clearWarnings() throws SQLException {
+  }
+
+  @Override
+  public void close() throws SQLException {
+  }
+
+  @Override
+  public void commit() throws SQLException {
+  }
+
+  @Override
+  public Array createArrayOf(String arg0, Object[] arg1) throws SQLException {
+    return new StubArray();
+  }
+
+  @Override
+  public Blob createBlob() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Clob createClob() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public NClob createNClob() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public SQLXML createSQLXML() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Statement createStatement() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Statement createStatement(int arg0, int arg1, int arg2) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Statement createStatement(int arg0, int arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Struct createStruct(String arg0, Object[] arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public boolean getAutoCommit() throws SQLException {
+    return true;
+  }
+
+  @Override
+  public String getCatalog() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Properties getClientInfo() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public String getClientInfo(String arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public int getHoldability() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public DatabaseMetaData getMetaData() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public int getNetworkTimeout() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public String getSchema() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public int getTransactionIsolation() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Map<String, Class<?>> getTypeMap() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public SQLWarning getWarnings() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return false;
+  }
+
+  @Override
+  public boolean isReadOnly() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public boolean isValid(int arg0) throws SQLException {
+    return true;
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public String nativeSQL(String arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public CallableStatement prepareCall(String arg0, int arg1, int arg2, int arg3) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public CallableStatement prepareCall(String arg0, int arg1, int arg2) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public CallableStatement prepareCall(String arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String arg0, int[] arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String arg0, String[] arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String arg0, int arg1, int arg2, int arg3) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String arg0, int arg1, int arg2) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String arg0, int arg1) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql) throws SQLException {
+    return new StubPreparedStatement(db.tableFor(sql));
+  }
+
+  @Override
+  public void releaseSavepoint(Savepoint arg0) throws SQLException {
+  }
+
+  @Override
+  public void rollback() throws SQLException {
+  }
+
+  @Override
+  public void rollback(Savepoint arg0) throws SQLException {
+  }
+
+  @Override
+  public void setAutoCommit(boolean arg0) throws SQLException {
+  }
+
+  @Override
+  public void setCatalog(String arg0) throws SQLException {
+  }
+
+  @Override
+  public void setClientInfo(String arg0, String arg1) throws SQLClientInfoException {
+  }
+
+  @Override
+  public void setClientInfo(Properties arg0) throws SQLClientInfoException {
+  }
+
+  @Override
+  public void setHoldability(int arg0) throws SQLException {
+  }
+
+  @Override
+  public void setNetworkTimeout(Executor arg0, int arg1) throws SQLException {
+  }
+
+  @Override
+  public void setReadOnly(boolean arg0) throws SQLException {
+  }
+
+  @Override
+  public Savepoint setSavepoint() throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public Savepoint setSavepoint(String arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+
+  @Override
+  public void setSchema(String arg0) throws SQLException {
+  }
+
+  @Override
+  public void setTransactionIsolation(int arg0) throws SQLException {
+  }
+
+  @Override
+  public void setTypeMap(Map<String, Class<?>> arg0) throws SQLException {
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> arg0) throws SQLException {
+    throw StubDatabase.notStubbed();
+  }
+}
@@ -0,0 +1,90 @@
+package ch.heigvd.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the database, used to benchmark the repositories
+ * without any network or PostgreSQL in the measurement.
+ *
+ * Each canned result is registered with a fragment of the SQL it answers. The
+ * returned JDBC objects are plain stub classes implementing only what the
+ * repositories use; like pgjdbc, column labels are looked up
+ * case-insensitively through a hash map.
+ */
+final class StubDatabase {
+  private final Map<String, Table> tables = new LinkedHashMap<>();
+
+  /**
+   * Registers the rows returned by every query containing the given fragment.
+   *
+   * @param sqlFragment a piece of SQL identifying the query
+   * @param table       the rows to return
+   */
+  void when(String sqlFragment, Table table) {
+    tables.put(sqlFragment, table);
+  }
+
+  /**
+   * @return a connection answering queries with the registered rows
+   */
+  Connection connection() {
+    return new StubConnection(this);
+  }
+
+  /**
+   * @return the rows registered for the first fragment found in the query
+   */
+  Table tableFor(String sql) {
+    return tables.entrySet().stream()
+        .filter(entry -> sql.contains(entry.getKey()))
+        .map(Map.Entry::getValue)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException("No stub registered for query:\n" + sql));
+  }
+
+  /**
+   * @return the exception thrown by the JDBC methods the repositories do not
+   *         use
+   */
+  static SQLFeatureNotSupportedException notStubbed() {
+    return new SQLFeatureNotSupportedException("Not stubbed");
+  }
+
+  /**
+   * Rows of a canned query result.
+   */
+  static final class Table {
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<Object[]> rows = new ArrayList<>();
+
+    Table(String... columnLabels) {
+      for (int i = 0; i < columnLabels.length; i++) {
+        columns.put(columnLabels[i].toLowerCase(Locale.ROOT), i);
+      }
+    }
+
+    Table row(Object... values) {
+      rows.add(values);
+      return this;
+    }
+
+    int size() {
+      return rows.size();
+    }
+
+    Object value(int row, String columnLabel) {
+      Integer index = columns.get(columnLabel.toLowerCase(Locale.ROOT));
+      if (index == null) {
+        throw new IllegalArgumentException("Unknown column " + columnLabel);
+      }
+      return rows.get(row)[index];
+    }
+  }
+}
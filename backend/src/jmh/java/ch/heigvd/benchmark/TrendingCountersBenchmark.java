@@ -0,0 +1,40 @@
+package ch.heigvd.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.heigvd.chart.TrendingCounters;
+
+/**
+ * Measures the increment of the trending counters done for each listen, by
+ * several threads at once, most of the listens going to a few popular musics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class TrendingCountersBenchmark {
+  private static final int MUSICS = 80_000;
+
+  private final TrendingCounters counters = new TrendingCounters();
+
+  @Benchmark
+  public void record() {
+    double skewed = Math.pow(ThreadLocalRandom.current().nextDouble(), 4);
+    counters.record(1 + (long) (skewed * MUSICS));
+  }
+}
@@ -1,32 +1,74 @@
 package ch.heigvd;
 
-import javax.sql.DataSource;
-
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
-import io.javalin.http.NotFoundResponse;
 import io.javalin.http.UnauthorizedResponse;
+import io.javalin.util.ConcurrencyUtil;
 
 import io.javalin.security.RouteRole;
+import ch.heigvd.admin.AdminController;
+import ch.heigvd.admin.MetricsController;
 import ch.heigvd.album.AlbumController;
 import ch.heigvd.album.AlbumRepository;
 import ch.heigvd.album.AlbumService;
 import ch.heigvd.artist.ArtistRepository;
 import ch.heigvd.auth.AuthController;
+import ch.heigvd.autocomplete.AutocompleteController;
+import ch.heigvd.autocomplete.AutocompleteRepository;
+import ch.heigvd.autocomplete.AutocompleteService;
+import ch.heigvd.cache.ConditionalRequests;
+import ch.heigvd.cache.ResourceVersions;
+import ch.heigvd.chart.ChartController;
+import ch.heigvd.chart.ChartRepository;
+import ch.heigvd.chart.ChartService;
+import ch.heigvd.chart.TrendingCounters;
+import ch.heigvd.concurrency.PinningMonitor;
+import ch.heigvd.concurrency.RequestLimiter;
 import ch.heigvd.creator.CreatorController;
 import ch.heigvd.creator.CreatorRepository;
 import ch.heigvd.creator.CreatorService;
 import ch.heigvd.group.GroupRepository;
+import ch.heigvd.listen.ListenRepository;
+import ch.heigvd.listen.ListenWriter;
+import ch.heigvd.metrics.HttpMetrics;
+import ch.heigvd.metrics.QueryMetrics;
+import ch.heigvd.metrics.SlowQueryLog;
+import ch.heigvd.metrics.TimedDataSource;
+import ch.heigvd.music.LastListenedCache;
+import ch.heigvd.music.MostListenedCache;
+import ch.heigvd.music.MusicCatalogCache;
 import ch.heigvd.music.MusicController;
 import ch.heigvd.music.MusicRepository;
 import ch.heigvd.music.MusicService;
 import ch.heigvd.playlist.PlaylistController;
 import ch.heigvd.playlist.PlaylistRepository;
 import ch.heigvd.playlist.PlaylistService;
+import ch.heigvd.pool.AdaptivePoolSizer;
+import ch.heigvd.pool.PoolMetrics;
+import ch.heigvd.pool.ReadRouter;
+import ch.heigvd.search.CatalogIndexer;
+import ch.heigvd.search.SearchController;
+import ch.heigvd.search.SearchIndex;
+import ch.heigvd.search.SearchRepository;
+import ch.heigvd.search.SearchService;
+import ch.heigvd.similar.SimilarController;
+import ch.heigvd.similar.SimilarRepository;
+import ch.heigvd.similar.SimilarService;
+import ch.heigvd.stats.ListeningStatsAggregator;
+import ch.heigvd.stats.StatsController;
+import ch.heigvd.stats.StatsRepository;
+import ch.heigvd.stats.StatsService;
 import ch.heigvd.user.*;
 
 // Acess roles
@@ -39,11 +81,32 @@ enum Role implements RouteRole {
 public class App {
   public static final int PORT = 8080;
 
+  private static final Logger LOG = LoggerFactory.getLogger(App.class);
+  // Size of Jetty's thread pool, Javalin's default
+  private static final int JETTY_MIN_THREADS = 8;
+  private static final int JETTY_MAX_THREADS = 250;
+  // Threads of Jetty's pool taken by its acceptors and selectors
+  private static final int JETTY_RESERVED_THREADS = 10;
+
   public static void main(String[] args) {
+    // Virtual threads need Java 21, older runtimes keep Jetty's thread pool
+    boolean virtualThreads = Env.getBoolean("SPOTISH_VIRTUAL_THREADS", false);
+    if (virtualThreads && !ConcurrencyUtil.isLoomAvailable()) {
+      LOG.warn("SPOTISH_VIRTUAL_THREADS is set but Java {} has no virtual threads, using platform threads",
+          Runtime.version().feature());
+      virtualThreads = false;
+    }
+    boolean useVirtualThreads = virtualThreads;
+
     Javalin app = Javalin.create(
             config -> {
               // This will alow us to parse the LocalDateTime
               config.validation.register(LocalDateTime.class, LocalDateTime::parse);
+              // Run the handlers on virtual threads, so that a request waiting
+              // on the database does not hold an OS thread
+              config.useVirtualThreads = useVirtualThreads;
+              config.jetty.threadPool = ConcurrencyUtil.jettyThreadPool("JettyServerThreadPool",
+                  JETTY_MIN_THREADS, JETTY_MAX_THREADS, useVirtualThreads);
             }
     );
 
@@ -56,35 +119,112 @@ public class App {
     });
 
     // Init a new DataSource pool using HikariCP
-    DataSource ds = Db.createDataSource();
+    PoolMetrics poolMetrics = new PoolMetrics();
+    HikariDataSource ds = Db.createDataSource(poolMetrics);
+
+    // Optionally resize the pool from the waits for a connection and the CPU
+    // load of the database, between its configured size and an upper bound
+    AdaptivePoolSizer poolSizer = null;
+    if (Env.getBoolean("SPOTISH_DB_ADAPTIVE_POOL", false)) {
+      poolSizer = new AdaptivePoolSizer(ds, poolMetrics, ds.getMaximumPoolSize(),
+          Env.getInt("SPOTISH_DB_ADAPTIVE_MAX_POOL_SIZE", 4 * ds.getMaximumPoolSize()),
+          Env.getInt("SPOTISH_DB_CPUS", 4));
+      poolSizer.start();
+    }
 
-    // This will serve as our cache
-    //
-    // The key is to identify the user(s)
-    // The value is the last modification time of the user(s)
-    ConcurrentHashMap<String, LocalDateTime> usersCache = new ConcurrentHashMap<>();
+    // Bring the schema up to date before serving any request
+    Migrations.migrate(ds);
+
+    // Every query of the application is timed, by repository method, and the
+    // slow ones are captured, some with their plan
+    QueryMetrics queryMetrics = new QueryMetrics();
+    SlowQueryLog slowQueryLog = new SlowQueryLog(
+        Duration.ofMillis(Env.getInt("SPOTISH_SLOW_QUERY_MS", 500)),
+        Env.getDouble("SPOTISH_SLOW_QUERY_EXPLAIN_RATE", 0),
+        Env.getInt("SPOTISH_SLOW_QUERY_LOG_SIZE", 100));
+    DataSource db = new TimedDataSource(ds, queryMetrics, slowQueryLog);
+
+    // Optional read replica: read-only queries go to it while it is up to
+    // date, writes and reads of what was just written stay on the primary
+    PoolMetrics replicaPoolMetrics = new PoolMetrics();
+    HikariDataSource replicaDs = Db.createReplicaDataSource(replicaPoolMetrics);
+    ReadRouter readRouter = new ReadRouter(db, replicaDs == null ? null : new TimedDataSource(replicaDs, queryMetrics, slowQueryLog),
+        Duration.ofMillis(Env.getInt("SPOTISH_REPLICA_MAX_LAG_MS", 1_000)),
+        Duration.ofMillis(Env.getInt("SPOTISH_REPLICA_STICKY_MS", 5_000)));
+    readRouter.start();
+
+    // Backpressure: only a few times more requests than connections are
+    // handled at once, the others wait in a bounded queue and are rejected
+    // with a 503 when it is full or they waited too long
+    int maxConcurrentRequests = Env.getInt("SPOTISH_MAX_CONCURRENT_REQUESTS", 4 * ds.getMaximumPoolSize());
+    int maxQueuedRequests;
+    if (virtualThreads) {
+      maxQueuedRequests = Env.getInt("SPOTISH_MAX_QUEUED_REQUESTS", 1_000);
+    } else {
+      // A waiting request parks a thread of Jetty's pool, so no more can wait
+      // than there are threads left once the permits are taken
+      int idleThreads = Math.max(0, JETTY_MAX_THREADS - JETTY_RESERVED_THREADS - maxConcurrentRequests);
+      maxQueuedRequests = Env.getInt("SPOTISH_MAX_QUEUED_REQUESTS", idleThreads);
+      if (maxQueuedRequests > idleThreads) {
+        LOG.warn("SPOTISH_MAX_QUEUED_REQUESTS is {} but only {} threads can wait without virtual threads, using {}",
+            maxQueuedRequests, idleThreads, idleThreads);
+        maxQueuedRequests = idleThreads;
+      }
+    }
+    RequestLimiter requestLimiter = new RequestLimiter(maxConcurrentRequests, maxQueuedRequests,
+        Duration.ofMillis(Env.getInt("SPOTISH_QUEUE_TIMEOUT_MS", 5_000)));
+
+    // Reports the virtual threads blocked while pinned to their carrier
+    PinningMonitor pinningMonitor = null;
+    if (virtualThreads) {
+      pinningMonitor = new PinningMonitor();
+      pinningMonitor.start();
+    }
+
+    // Versions of the resources, bumped by the services when they modify them,
+    // from which the ETags of the responses are built
+    ResourceVersions versions = new ResourceVersions();
+    ConditionalRequests conditionalRequests = new ConditionalRequests(versions);
 
     // User related ressources
     UserRepository userRepository = new UserRepository();
-    UserService userService = new UserService(ds, userRepository);
+    UserService userService = new UserService(db, versions, userRepository);
     UserController userController = new UserController(userService);
 
     // Auth related ressources
     AuthController authController = new AuthController(userService);
 
+    // Listen related ressources
+    // Listens are buffered in memory and written in batches by a background thread
+    ListenRepository listenRepository = new ListenRepository();
+    ListenWriter listenWriter = new ListenWriter(db, listenRepository);
+
     // Music related ressources
     MusicRepository musicRepository = new MusicRepository();
-    MusicService musicService = new MusicService(ds, musicRepository);
+    // Shared by every repository returning musics
+    MusicCatalogCache musicCatalog = new MusicCatalogCache(readRouter.reads(), musicRepository);
+    LastListenedCache lastListenedCache = new LastListenedCache();
+    MostListenedCache mostListenedCache = new MostListenedCache();
+    // Incremented by the listens, read by the trending charts
+    TrendingCounters trendingCounters = new TrendingCounters();
+    MusicService musicService = new MusicService(db, readRouter, versions, musicRepository, musicCatalog, listenWriter,
+        lastListenedCache, mostListenedCache, trendingCounters);
+    // The listens the database refuses are taken back from the memory, and
+    // the counters of a user are kept until their listens are written
+    listenWriter.onRejected(musicService::unrecordListens);
+    listenWriter.onWritten(mostListenedCache::written);
+    listenWriter.start();
     MusicController musicController = new MusicController(musicService);
 
     // Playlist related ressources
-    PlaylistRepository playlistRepository = new PlaylistRepository();
-    PlaylistService playlistService = new PlaylistService(ds, playlistRepository, userRepository, musicRepository);
-    PlaylistController playlistController = new PlaylistController(playlistService, usersCache);
+    PlaylistRepository playlistRepository = new PlaylistRepository(musicCatalog);
+    PlaylistService playlistService = new PlaylistService(db, readRouter, versions, playlistRepository,
+        userRepository);
+    PlaylistController playlistController = new PlaylistController(playlistService);
 
     // Album related ressources
-    AlbumRepository albumRepository = new AlbumRepository();
-    AlbumService albumService = new AlbumService(ds, albumRepository);
+    AlbumRepository albumRepository = new AlbumRepository(musicCatalog);
+    AlbumService albumService = new AlbumService(readRouter.reads(), albumRepository);
     AlbumController albumController = new AlbumController(albumService);
 
     // Artist related ressources
@@ -94,10 +234,71 @@ public class App {
     GroupRepository groupRepository = new GroupRepository();
 
     // Creator related ressources
-    CreatorRepository creatorRepository = new CreatorRepository();
-    CreatorService creatorService = new CreatorService(ds, creatorRepository, artistRepository, groupRepository);
+    CreatorRepository creatorRepository = new CreatorRepository(musicCatalog);
+    CreatorService creatorService = new CreatorService(readRouter.reads(), creatorRepository, artistRepository,
+        groupRepository);
     CreatorController creatorController = new CreatorController(creatorService);
 
+    // Search related ressources
+    // The index is built from the primary before serving any request, then
+    // follows the changes of the catalog notified by the database
+    SearchIndex searchIndex = new SearchIndex();
+    CatalogIndexer catalogIndexer = new CatalogIndexer(db, Db.createUnpooledDataSource(), searchIndex,
+        new SearchRepository(), musicRepository, musicCatalog, versions, readRouter);
+    catalogIndexer.start();
+    SearchService searchService = new SearchService(searchIndex);
+    SearchController searchController = new SearchController(searchService);
+
+    // Stats related ressources
+    // The listens queued by the database are added to the rollups in the
+    // background, the requests only read the rollups
+    StatsRepository statsRepository = new StatsRepository();
+    ListeningStatsAggregator statsAggregator = new ListeningStatsAggregator(db, statsRepository);
+    statsAggregator.start();
+    StatsService statsService = new StatsService(readRouter.reads(), statsRepository);
+    StatsController statsController = new StatsController(statsService);
+
+    // Autocomplete related ressources
+    // The trie is built before serving any request, then again in the
+    // background to follow the catalog and the play counts of the per-music
+    // rollup of the listening statistics
+    AutocompleteService autocompleteService = new AutocompleteService(readRouter.reads(), versions,
+        new AutocompleteRepository(), statsAggregator,
+        Duration.ofSeconds(Env.getInt("SPOTISH_AUTOCOMPLETE_REFRESH_S", 600)));
+    autocompleteService.start();
+    AutocompleteController autocompleteController = new AutocompleteController(autocompleteService);
+
+    // Similar musics related ressources
+    // Computed in the background from the playlists and the listens, the
+    // route answers 503 until the first build is done
+    SimilarService similarService = new SimilarService(readRouter.reads(), musicCatalog, new SimilarRepository(),
+        Duration.ofSeconds(Env.getInt("SPOTISH_SIMILAR_REFRESH_S", 3600)));
+    similarService.start();
+    SimilarController similarController = new SimilarController(similarService);
+
+    // Chart related ressources
+    // The counters are loaded with the plays of the last week before serving
+    // any request, then only follow the listens
+    ChartService chartService = new ChartService(db, versions, musicCatalog, new ChartRepository(),
+        trendingCounters);
+    chartService.start();
+    ChartController chartController = new ChartController(chartService);
+
+    // Requests, status codes and latencies of each route, including the time
+    // spent waiting for admission
+    HttpMetrics httpMetrics = new HttpMetrics();
+    app.before(httpMetrics::start);
+
+    // Admission control, before anything else. The admin routes and the
+    // metrics bypass it so that an overloaded server can still be inspected.
+    app.before(ctx -> {
+      if (!ctx.path().startsWith("/admin/") && !ctx.path().equals("/metrics")) {
+        requestLimiter.acquire(ctx);
+      }
+    });
+    app.after(requestLimiter::release);
+    app.after(httpMetrics::record);
+
     // Access management
     // We check the required roles before accessing every routes
     app.beforeMatched(ctx -> {
@@ -108,6 +309,11 @@ public class App {
       }
     });
 
+    // Conditional GETs, once the user is known. A client that has the current
+    // version of a response gets a 304 without the handler running.
+    app.beforeMatched(conditionalRequests::handle);
+    app.after(conditionalRequests::clearOnError);
+
     // Register routes
 
     // User related routes (endpoints)
@@ -127,7 +333,10 @@ public class App {
     // parameter. Otherwise any second part of the url (ex:'last-listened') would be
     // interpreted as a parameter
     app.get("/musics/{idMedia}", musicController::getOne, Role.OPEN, Role.LOGGED_IN);
+    app.get("/musics/{idMedia}/similar", similarController::getSimilar, Role.OPEN, Role.LOGGED_IN);
     app.post("/musics/liked/{idMedia}", musicController::likeMusic, Role.LOGGED_IN);
+    app.post("/musics/listen", musicController::listenMusics, Role.LOGGED_IN);
+    app.post("/musics/{idMedia}/listen", musicController::listenMusic, Role.LOGGED_IN);
 
     // Playlist related routes
     app.get("/playlists/user/{creatorName}", playlistController::getUserPlaylists, Role.OPEN, Role.LOGGED_IN);
@@ -145,6 +354,88 @@ public class App {
     // Creator related routes
     app.get("/creators/{creatorName}", creatorController::getCreator, Role.OPEN, Role.LOGGED_IN);
 
+    // Search related routes
+    app.get("/search", searchController::search, Role.OPEN, Role.LOGGED_IN);
+
+    // Autocomplete related routes
+    app.get("/autocomplete", autocompleteController::complete, Role.OPEN, Role.LOGGED_IN);
+
+    // Chart related routes
+    app.get("/charts/trending", chartController::getTrending, Role.OPEN, Role.LOGGED_IN);
+
+    // Stats related routes
+    app.get("/stats/wrapped", statsController::getWrapped, Role.LOGGED_IN);
+
+    // Resources of the versioned routes. The catalog is only written by the
+    // import scripts, its version changes when the database notifies it: its
+    // responses keep the expiration set by the handlers.
+    conditionalRequests.register("/utilisateurs", ConditionalRequests.REVALIDATE,
+        ctx -> new String[] { ResourceVersions.USERS });
+    conditionalRequests.register("/utilisateurs/{nomUtilisateur}", ConditionalRequests.REVALIDATE,
+        ctx -> new String[] { ResourceVersions.userKey(ctx.pathParam("nomUtilisateur")) });
+    conditionalRequests.register("/musics", null, ctx -> new String[] { ResourceVersions.CATALOG });
+    conditionalRequests.register("/musics/{idMedia}", null, ctx -> new String[] { ResourceVersions.CATALOG });
+    conditionalRequests.register("/albums/{idMedia}", null, ctx -> new String[] { ResourceVersions.CATALOG });
+    conditionalRequests.register("/creators/{creatorName}", null, ctx -> new String[] { ResourceVersions.CATALOG });
+    conditionalRequests.register("/search", null, ctx -> new String[] { ResourceVersions.CATALOG });
+    conditionalRequests.register("/musics/most-listened", ConditionalRequests.PRIVATE_REVALIDATE,
+        ctx -> new String[] { ResourceVersions.listensKey(ctx.cookie("userNameCookie")),
+            ResourceVersions.CATALOG });
+    conditionalRequests.register("/musics/liked", ConditionalRequests.PRIVATE_REVALIDATE,
+        ctx -> new String[] { ResourceVersions.likedMusicsKey(ctx.cookie("userNameCookie")),
+            ResourceVersions.CATALOG });
+    conditionalRequests.register("/playlists/{playlistId}", ConditionalRequests.REVALIDATE,
+        ctx -> new String[] { ResourceVersions.playlistKey(ctx.pathParamAsClass("playlistId", Long.class).get()),
+            ResourceVersions.CATALOG });
+    conditionalRequests.register("/playlists/user/{creatorName}", ConditionalRequests.REVALIDATE,
+        ctx -> new String[] { ResourceVersions.userPlaylistsKey(ctx.pathParam("creatorName")),
+            ResourceVersions.CATALOG });
+    conditionalRequests.register("/playlists/followed", ConditionalRequests.PRIVATE_REVALIDATE,
+        ctx -> new String[] { ResourceVersions.followedPlaylistsKey(ctx.cookie("userNameCookie")),
+            ResourceVersions.ALL_PLAYLISTS, ResourceVersions.CATALOG });
+
+    // Admin related routes, only available when an admin token is configured
+    String adminToken = Env.get("SPOTISH_ADMIN_TOKEN", null);
+    if (adminToken != null) {
+      AdminController adminController = new AdminController(adminToken, virtualThreads, requestLimiter,
+          pinningMonitor, poolMetrics, poolSizer, readRouter, replicaDs == null ? null : replicaPoolMetrics,
+          slowQueryLog, statsAggregator);
+
+      app.before("/admin/*", adminController::authenticate);
+      app.get("/admin/concurrency", adminController::getConcurrency, Role.OPEN, Role.LOGGED_IN);
+      app.get("/admin/pool", adminController::getPool, Role.OPEN, Role.LOGGED_IN);
+      app.get("/admin/replica", adminController::getReplica, Role.OPEN, Role.LOGGED_IN);
+      app.get("/admin/slow-queries", adminController::getSlowQueries, Role.OPEN, Role.LOGGED_IN);
+      app.get("/admin/listening-stats", adminController::getListeningStats, Role.OPEN, Role.LOGGED_IN);
+
+      // Scraped by Prometheus, with the admin token as bearer token
+      MetricsController metricsController = new MetricsController(httpMetrics, queryMetrics, requestLimiter,
+          poolMetrics, replicaDs == null ? null : replicaPoolMetrics);
+      app.before("/metrics", adminController::authenticate);
+      app.get("/metrics", metricsController::getMetrics, Role.OPEN, Role.LOGGED_IN);
+    }
+
+    // Stop taking requests first, then flush the listens that are still queued
+    PinningMonitor monitor = pinningMonitor;
+    AdaptivePoolSizer sizer = poolSizer;
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      app.stop();
+      listenWriter.close();
+      catalogIndexer.close();
+      autocompleteService.close();
+      similarService.close();
+      chartService.close();
+      statsAggregator.close();
+      if (monitor != null) {
+        monitor.close();
+      }
+      if (sizer != null) {
+        sizer.close();
+      }
+      readRouter.close();
+      slowQueryLog.close();
+    }));
+
     app.start(PORT);
   }
 
@@ -163,12 +454,8 @@ public class App {
       return Role.OPEN;
     }
 
-    try {
-      userService.getUser(username);
-      return Role.LOGGED_IN;
-    } catch (NotFoundResponse e) {
-      // Means the user doesn't exist => the user is not LOGGED_IN
-      return Role.OPEN;
-    }
+    // Cached, so that most requests do not need a query to be authenticated. If
+    // the user doesn't exist => the user is not LOGGED_IN
+    return userService.isKnownUser(username) ? Role.LOGGED_IN : Role.OPEN;
   }
 }
@@ -2,38 +2,106 @@ package ch.heigvd;
 
 import javax.sql.DataSource;
 
+import org.postgresql.ds.PGSimpleDataSource;
+
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+import ch.heigvd.pool.PoolMetrics;
+
 public final class Db {
 
   private Db() {
   } // This class should not be instanciated
 
-  public static DataSource createDataSource() {
-    HikariConfig config = new HikariConfig();
+  /**
+   * Creates the connection pool of the primary database. Besides the
+   * connection settings, the size and the timeouts of the pool can be set
+   * through environment variables.
+   *
+   * @param metrics where the pool records its metrics
+   * @return the connection pool
+   */
+  public static HikariDataSource createDataSource(PoolMetrics metrics) {
+    HikariConfig config = createConfig(metrics);
+    config.setPoolName("primary");
+    config.setJdbcUrl(Env.getOrThrow("JDBC_URL"));
+
+    return new HikariDataSource(config);
+  }
 
-    String jdbcUrl = getEnvOrThrow("JDBC_URL");
-    String username = getEnvOrThrow("POSTGRES_USER_USERNAME");
-    String password = getEnvOrThrow("POSTGRES_USER_PASSWORD");
+  /**
+   * Creates the connection pool of the read replica, configured like the
+   * pool of the primary. The replica uses the credentials of the primary
+   * unless JDBC_REPLICA_USERNAME and JDBC_REPLICA_PASSWORD are set.
+   *
+   * @param metrics where the pool records its metrics
+   * @return the connection pool, or null if JDBC_REPLICA_URL is not set
+   */
+  public static HikariDataSource createReplicaDataSource(PoolMetrics metrics) {
+    String jdbcUrl = Env.get("JDBC_REPLICA_URL", null);
+    if (jdbcUrl == null) {
+      return null;
+    }
 
+    HikariConfig config = createConfig(metrics);
+    config.setPoolName("replica");
     config.setJdbcUrl(jdbcUrl);
+    config.setUsername(Env.get("JDBC_REPLICA_USERNAME", config.getUsername()));
+    config.setPassword(Env.get("JDBC_REPLICA_PASSWORD", config.getPassword()));
+    config.setReadOnly(true);
+    // Fail fast when the replica is down, the lag checker then sends the reads
+    // to the primary
+    config.setConnectionTimeout(Env.getInt("SPOTISH_DB_REPLICA_CONNECTION_TIMEOUT_MS", 2_000));
+    // The backend must start even if the replica is down, the reads then go
+    // to the primary
+    config.setInitializationFailTimeout(-1);
+
+    return new HikariDataSource(config);
+  }
+
+  /**
+   * Creates a data source of the primary database whose connections are not
+   * pooled, for the sessions held as long as the backend runs, e.g. to listen
+   * to notifications.
+   *
+   * @return the data source
+   */
+  public static DataSource createUnpooledDataSource() {
+    PGSimpleDataSource ds = new PGSimpleDataSource();
+    ds.setURL(Env.getOrThrow("JDBC_URL"));
+    ds.setUser(Env.getOrThrow("POSTGRES_USER_USERNAME"));
+    ds.setPassword(Env.getOrThrow("POSTGRES_USER_PASSWORD"));
+
+    return ds;
+  }
+
+  private static HikariConfig createConfig(PoolMetrics metrics) {
+    HikariConfig config = new HikariConfig();
+
+    String username = Env.getOrThrow("POSTGRES_USER_USERNAME");
+    String password = Env.getOrThrow("POSTGRES_USER_PASSWORD");
+
     config.setUsername(username);
     config.setPassword(password);
 
-    config.setMaximumPoolSize(10);
-    config.setMinimumIdle(2);
-    config.setConnectionTimeout(10_000);
+    config.setMaximumPoolSize(Env.getInt("SPOTISH_DB_MAX_POOL_SIZE", 10));
+    config.setMinimumIdle(Env.getInt("SPOTISH_DB_MIN_IDLE", 2));
+    config.setConnectionTimeout(Env.getInt("SPOTISH_DB_CONNECTION_TIMEOUT_MS", 10_000));
+    config.setIdleTimeout(Env.getInt("SPOTISH_DB_IDLE_TIMEOUT_MS", 600_000));
+    config.setMaxLifetime(Env.getInt("SPOTISH_DB_MAX_LIFETIME_MS", 1_800_000));
+    config.setMetricsTrackerFactory(metrics);
 
-    return new HikariDataSource(config);
-  }
+    // The driver keeps, per connection, the statements it prepared on the
+    // server, by SQL. Once prepared, a query is only bound and executed: it is
+    // neither parsed nor analyzed again, and PostgreSQL stops planning it when
+    // its generic plan is as good as the custom ones. The repositories always
+    // prepare the same SQL constants, so they all fit in the cache.
+    config.addDataSourceProperty("prepareThreshold", Env.getInt("SPOTISH_DB_PREPARE_THRESHOLD", 1));
+    config.addDataSourceProperty("preparedStatementCacheQueries",
+        Env.getInt("SPOTISH_DB_STATEMENT_CACHE_SIZE", 256));
+    config.addDataSourceProperty("preparedStatementCacheSizeMiB", 5);
 
-  private static String getEnvOrThrow(String name) {
-    String value = System.getenv(name);
-    if (value == null || value.isBlank()) {
-      throw new IllegalStateException(
-          "Missing required environment variable: " + name);
-    }
-    return value;
+    return config;
   }
 }
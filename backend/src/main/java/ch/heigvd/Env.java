@@ -0,0 +1,97 @@
+package ch.heigvd;
+
+/**
+ * Reads the configuration of the backend from environment variables.
+ */
+public final class Env {
+
+  private Env() {
+  } // This class should not be instanciated
+
+  /**
+   * @param name the name of the environment variable
+   * @return the value of the variable
+   * @throws IllegalStateException if the variable is not set
+   */
+  public static String getOrThrow(String name) {
+    String value = get(name, null);
+    if (value == null) {
+      throw new IllegalStateException(
+          "Missing required environment variable: " + name);
+    }
+    return value;
+  }
+
+  /**
+   * @param name         the name of the environment variable
+   * @param defaultValue the value used if the variable is not set
+   * @return the value of the variable, or the default value
+   */
+  public static String get(String name, String defaultValue) {
+    String value = System.getenv(name);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * @param name         the name of the environment variable
+   * @param defaultValue the value used if the variable is not set
+   * @return the value of the variable, or the default value
+   * @throws IllegalStateException if the variable is not an integer
+   */
+  public static int getInt(String name, int defaultValue) {
+    String value = get(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(
+          "Environment variable " + name + " must be an integer, got \"" + value + "\"");
+    }
+  }
+
+  /**
+   * @param name         the name of the environment variable
+   * @param defaultValue the value used if the variable is not set
+   * @return the value of the variable, or the default value
+   * @throws IllegalStateException if the variable is not a number
+   */
+  public static double getDouble(String name, double defaultValue) {
+    String value = get(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException(
+          "Environment variable " + name + " must be a number, got \"" + value + "\"");
+    }
+  }
+
+  /**
+   * @param name         the name of the environment variable
+   * @param defaultValue the value used if the variable is not set
+   * @return true if the variable is "true", false if it is "false", or the
+   *         default value
+   * @throws IllegalStateException if the variable is neither true nor false
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = get(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    if (value.equalsIgnoreCase("true")) {
+      return true;
+    }
+    if (value.equalsIgnoreCase("false")) {
+      return false;
+    }
+    throw new IllegalStateException(
+        "Environment variable " + name + " must be true or false, got \"" + value + "\"");
+  }
+}
@@ -0,0 +1,277 @@
+package ch.heigvd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Versioned schema migrations, applied at startup.
+ *
+ * The schema itself is created by sql_scripts/init when the database is first
+ * initialized. Changes made afterwards are SQL files in
+ * src/main/resources/db/migration named V{version}__{description}.sql, e.g.
+ * V1__lookup_indexes.sql. Each pending file is run in its own transaction, in
+ * version order, and recorded in spotish.schema_migration with a checksum of
+ * its content. A migration must never be edited once applied: the backend
+ * refuses to start if an applied file changed.
+ *
+ * A file with a line "-- no-transaction" is run outside of a transaction
+ * instead, for the statements PostgreSQL refuses in one, such as CREATE INDEX
+ * CONCURRENTLY. It must hold a single statement: the driver sends the
+ * statements of a file together, and PostgreSQL runs them in one transaction.
+ * If it fails, it may have left a change behind (e.g. an INVALID index) to
+ * undo before the backend starts again.
+ */
+public final class Migrations {
+  private static final Logger LOG = LoggerFactory.getLogger(Migrations.class);
+
+  private static final String LOCATION = "db/migration";
+  private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+  private static final Pattern NO_TRANSACTION = Pattern.compile("^--\\s*no-transaction\\s*$", Pattern.MULTILINE);
+  // Arbitrary key of the advisory lock taken while migrating, so that
+  // instances starting together do not apply the same migration twice
+  private static final long LOCK_KEY = 0x5370_6f74_6973_6801L;
+  private static final long LOCK_RETRY_MILLIS = 100;
+
+  private Migrations() {
+  } // This class should not be instanciated
+
+  private record Migration(int version, String description, String sql, String checksum, boolean transactional) {
+  }
+
+  /**
+   * Applies the migrations that were not applied yet.
+   *
+   * @param ds the data source of the database to migrate
+   * @throws IllegalStateException if an applied migration was modified
+   */
+  public static void migrate(DataSource ds) {
+    List<Migration> migrations = load();
+
+    try (Connection conn = ds.getConnection()) {
+      lock(conn);
+
+      try {
+        createHistoryTable(conn);
+        Map<Integer, String> applied = getApplied(conn);
+
+        for (Migration migration : migrations) {
+          String checksum = applied.get(migration.version());
+          if (checksum == null) {
+            apply(conn, migration);
+          } else if (!checksum.equals(migration.checksum())) {
+            throw new IllegalStateException("Migration V" + migration.version() + "__" + migration.description()
+                + " was modified after it was applied, add a new migration instead");
+          }
+        }
+      } finally {
+        try (Statement stmt = conn.createStatement()) {
+          stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+        }
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Takes the advisory lock, polling instead of waiting in pg_advisory_lock:
+   * the snapshot of a waiting statement would block a CREATE INDEX
+   * CONCURRENTLY run by the instance holding the lock, which waits for the
+   * older snapshots.
+   */
+  private static void lock(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      while (true) {
+        try (ResultSet rs = stmt.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")")) {
+          rs.next();
+          if (rs.getBoolean(1)) {
+            return;
+          }
+        }
+        try {
+          Thread.sleep(LOCK_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for another instance to migrate", e);
+        }
+      }
+    }
+  }
+
+  private static void createHistoryTable(Connection conn) throws SQLException {
+    String sql = """
+        CREATE TABLE IF NOT EXISTS spotish.schema_migration (
+          version INT PRIMARY KEY,
+          description VARCHAR(255) NOT NULL,
+          checksum VARCHAR(64) NOT NULL,
+          applied_at TIMESTAMP NOT NULL DEFAULT now()
+        );
+            """;
+
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(sql);
+    }
+  }
+
+  private static Map<Integer, String> getApplied(Connection conn) throws SQLException {
+    String sql = """
+        SELECT version, checksum
+        FROM spotish.schema_migration;
+            """;
+
+    Map<Integer, String> applied = new HashMap<>();
+    try (Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(sql)) {
+      while (rs.next()) {
+        applied.put(rs.getInt("version"), rs.getString("checksum"));
+      }
+    }
+    return applied;
+  }
+
+  private static void apply(Connection conn, Migration migration) throws SQLException {
+    long start = System.nanoTime();
+    if (migration.transactional()) {
+      conn.setAutoCommit(false);
+      try {
+        // The driver sends a file with several statements as a single query
+        execute(conn, migration);
+        record(conn, migration);
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } else {
+      try {
+        execute(conn, migration);
+      } catch (SQLException e) {
+        throw new IllegalStateException("Migration V" + migration.version() + "__" + migration.description()
+            + " failed outside of a transaction, undo what it may have left (e.g. an INVALID index) before"
+            + " starting again", e);
+      }
+      record(conn, migration);
+    }
+
+    LOG.info("Applied migration V{}__{} in {} ms", migration.version(), migration.description(),
+        (System.nanoTime() - start) / 1_000_000);
+  }
+
+  private static void execute(Connection conn, Migration migration) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(migration.sql());
+    }
+  }
+
+  private static void record(Connection conn, Migration migration) throws SQLException {
+    String sql = """
+        INSERT INTO spotish.schema_migration (version, description, checksum)
+        VALUES (?, ?, ?);
+            """;
+
+    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+      ps.setInt(1, migration.version());
+      ps.setString(2, migration.description());
+      ps.setString(3, migration.checksum());
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Reads the migration files from the classpath, both when running from the
+   * classes folder and from the jar.
+   */
+  private static List<Migration> load() {
+    URL url = Migrations.class.getClassLoader().getResource(LOCATION);
+    if (url == null) {
+      return List.of();
+    }
+
+    try {
+      URI uri = url.toURI();
+      if (!"jar".equals(uri.getScheme())) {
+        return load(Path.of(uri));
+      }
+
+      FileSystem jar;
+      try {
+        jar = FileSystems.getFileSystem(uri);
+      } catch (FileSystemNotFoundException e) {
+        jar = FileSystems.newFileSystem(uri, Map.of());
+      }
+      return load(jar.getPath(LOCATION));
+    } catch (IOException | URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static List<Migration> load(Path directory) throws IOException {
+    List<Migration> migrations = new ArrayList<>();
+
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : files.toList()) {
+        Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+        if (!name.matches()) {
+          throw new IllegalStateException("Unexpected migration file name " + file.getFileName()
+              + ", expected V{version}__{description}.sql");
+        }
+
+        byte[] content;
+        try (InputStream in = Files.newInputStream(file)) {
+          content = in.readAllBytes();
+        }
+        String sql = new String(content, StandardCharsets.UTF_8);
+        migrations.add(new Migration(Integer.parseInt(name.group(1)), name.group(2), sql, sha256(content),
+            !NO_TRANSACTION.matcher(sql).find()));
+      }
+    }
+
+    migrations.sort(Comparator.comparingInt(Migration::version));
+    for (int i = 1; i < migrations.size(); i++) {
+      if (migrations.get(i).version() == migrations.get(i - 1).version()) {
+        throw new IllegalStateException("Two migrations have the version " + migrations.get(i).version());
+      }
+    }
+    return migrations;
+  }
+
+  private static String sha256(byte[] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package ch.heigvd.admin;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.heigvd.concurrency.PinningMonitor;
+import ch.heigvd.concurrency.RequestLimiter;
+import ch.heigvd.metrics.SlowQueryLog;
+import ch.heigvd.pool.AdaptivePoolSizer;
+import ch.heigvd.pool.PoolMetrics;
+import ch.heigvd.pool.ReadRouter;
+import ch.heigvd.stats.ListeningStatsAggregator;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.UnauthorizedResponse;
+
+/**
+ * Operational endpoints, under /admin. They expose the internals of the
+ * backend, so they require the admin token in an "Authorization: Bearer"
+ * header.
+ */
+public class AdminController {
+  private final byte[] token;
+  private final boolean virtualThreads;
+  private final RequestLimiter requestLimiter;
+  private final PinningMonitor pinningMonitor;
+  private final PoolMetrics poolMetrics;
+  private final AdaptivePoolSizer poolSizer;
+  private final ReadRouter readRouter;
+  private final PoolMetrics replicaPoolMetrics;
+  private final SlowQueryLog slowQueryLog;
+  private final ListeningStatsAggregator statsAggregator;
+
+  /**
+   * @param token              the token expected from the clients
+   * @param virtualThreads     whether the requests are handled by virtual
+   *                           threads
+   * @param requestLimiter     the admission control of the requests
+   * @param pinningMonitor     the pins of the virtual threads, null when they
+   *                           are not monitored
+   * @param poolMetrics        the metrics of the connection pool
+   * @param poolSizer          the sizer of the connection pool, null when its
+   *                           size is fixed
+   * @param readRouter         the routing of the reads to the replica
+   * @param replicaPoolMetrics the metrics of the connection pool of the
+   *                           replica, null without replica
+   * @param slowQueryLog       the captures of the slow queries
+   * @param statsAggregator    the aggregator of the listening statistics
+   */
+  public AdminController(String token, boolean virtualThreads, RequestLimiter requestLimiter,
+      PinningMonitor pinningMonitor, PoolMetrics poolMetrics, AdaptivePoolSizer poolSizer, ReadRouter readRouter,
+      PoolMetrics replicaPoolMetrics, SlowQueryLog slowQueryLog, ListeningStatsAggregator statsAggregator) {
+    this.token = token.getBytes(StandardCharsets.UTF_8);
+    this.virtualThreads = virtualThreads;
+    this.requestLimiter = requestLimiter;
+    this.pinningMonitor = pinningMonitor;
+    this.poolMetrics = poolMetrics;
+    this.poolSizer = poolSizer;
+    this.readRouter = readRouter;
+    this.replicaPoolMetrics = replicaPoolMetrics;
+    this.slowQueryLog = slowQueryLog;
+    this.statsAggregator = statsAggregator;
+  }
+
+  /**
+   * Checks the admin token of the request. To be registered as a before
+   * handler of /admin/*.
+   *
+   * @param ctx the Javalin context
+   */
+  public void authenticate(Context ctx) {
+    String authorization = ctx.header(Header.AUTHORIZATION);
+    String prefix = "Bearer ";
+
+    // Compared in constant time, so the token cannot be guessed from the
+    // response times
+    if (authorization == null || !authorization.startsWith(prefix) || !MessageDigest.isEqual(token,
+        authorization.substring(prefix.length()).getBytes(StandardCharsets.UTF_8))) {
+      throw new UnauthorizedResponse("A valid admin token is required to access this ressource !");
+    }
+  }
+
+  /**
+   * Get how the requests are executed: the thread mode, the admission control
+   * and the pins of the virtual threads.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getConcurrency(Context ctx) {
+    Map<String, Object> concurrency = new LinkedHashMap<>();
+    concurrency.put("virtualThreads", virtualThreads);
+    concurrency.put("requests", requestLimiter.stats());
+    concurrency.put("pinning", pinningMonitor == null ? null : pinningMonitor.stats());
+
+    ctx.json(concurrency);
+  }
+
+  /**
+   * Get the state of the connection pool: its connections, the threads
+   * waiting for one, how long they waited and how long they kept it.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getPool(Context ctx) {
+    Map<String, Object> pool = poolMetrics.summary();
+    pool.put("adaptive", poolSizer == null ? null : poolSizer.summary());
+
+    ctx.json(pool);
+  }
+
+  /**
+   * Get the state of the read replica: its lag, where the reads went and the
+   * connection pool of the replica.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getReplica(Context ctx) {
+    Map<String, Object> replica = readRouter.summary();
+    replica.put("pool", replicaPoolMetrics == null ? null : replicaPoolMetrics.summary());
+
+    ctx.json(replica);
+  }
+
+  /**
+   * Get the last queries slower than the threshold, newest first, with their
+   * plan when they were explained.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getSlowQueries(Context ctx) {
+    ctx.json(slowQueryLog.summary());
+  }
+
+  /**
+   * Get the state of the rollups of the listens: the listens queued, how late
+   * the rollups are and the runs of the aggregator.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getListeningStats(Context ctx) {
+    ctx.json(statsAggregator.stats());
+  }
+}
@@ -0,0 +1,139 @@
+package ch.heigvd.admin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import ch.heigvd.concurrency.RequestLimiter;
+import ch.heigvd.metrics.HttpMetrics;
+import ch.heigvd.metrics.PrometheusText;
+import ch.heigvd.metrics.QueryMetrics;
+import ch.heigvd.pool.PoolMetrics;
+import io.javalin.http.Context;
+
+/**
+ * Exposes the metrics of the backend to Prometheus, at /metrics: the requests
+ * of each route, the SQL queries of each repository method, the admission
+ * control and the connection pools.
+ */
+public class MetricsController {
+  private final HttpMetrics httpMetrics;
+  private final QueryMetrics queryMetrics;
+  private final RequestLimiter requestLimiter;
+  // By name of the pool
+  private final Map<String, PoolMetrics> pools = new LinkedHashMap<>();
+
+  /**
+   * @param httpMetrics        the metrics of the routes
+   * @param queryMetrics       the metrics of the SQL queries
+   * @param requestLimiter     the admission control of the requests
+   * @param poolMetrics        the metrics of the connection pool
+   * @param replicaPoolMetrics the metrics of the connection pool of the
+   *                           replica, null without replica
+   */
+  public MetricsController(HttpMetrics httpMetrics, QueryMetrics queryMetrics, RequestLimiter requestLimiter,
+      PoolMetrics poolMetrics, PoolMetrics replicaPoolMetrics) {
+    this.httpMetrics = httpMetrics;
+    this.queryMetrics = queryMetrics;
+    this.requestLimiter = requestLimiter;
+    pools.put("primary", poolMetrics);
+    if (replicaPoolMetrics != null) {
+      pools.put("replica", replicaPoolMetrics);
+    }
+  }
+
+  /**
+   * Get all the metrics, in the Prometheus text format.
+   *
+   * @param ctx the Javalin context
+   */
+  public void getMetrics(Context ctx) {
+    PrometheusText text = new PrometheusText();
+    writeRoutes(text);
+    writeQueries(text);
+    writeRequestLimiter(text);
+    writePools(text);
+
+    ctx.contentType(PrometheusText.CONTENT_TYPE);
+    ctx.result(text.toString());
+  }
+
+  private void writeRoutes(PrometheusText text) {
+    text.describe("spotish_http_requests_total", "counter", "Requests handled, by route and status code.");
+    for (HttpMetrics.Route route : httpMetrics.routes()) {
+      for (Map.Entry<Integer, Long> status : route.statusCounts().entrySet()) {
+        text.sample("spotish_http_requests_total", status.getValue(), "method", route.method().name(), "route",
+            route.template(), "status", String.valueOf(status.getKey()));
+      }
+    }
+
+    text.describe("spotish_http_request_duration_seconds", "histogram", "Time to handle the requests, by route.");
+    for (HttpMetrics.Route route : httpMetrics.routes()) {
+      text.histogram("spotish_http_request_duration_seconds", route.durations(), "method", route.method().name(),
+          "route", route.template());
+    }
+  }
+
+  private void writeQueries(PrometheusText text) {
+    text.describe("spotish_sql_query_duration_seconds", "histogram",
+        "Time to execute the SQL queries, by repository method.");
+    for (QueryMetrics.Query query : queryMetrics.queries()) {
+      text.histogram("spotish_sql_query_duration_seconds", query.durations(), "query", query.name());
+    }
+
+    text.describe("spotish_sql_query_errors_total", "counter", "SQL queries that failed, by repository method.");
+    for (QueryMetrics.Query query : queryMetrics.queries()) {
+      text.sample("spotish_sql_query_errors_total", query.errors(), "query", query.name());
+    }
+  }
+
+  private void writeRequestLimiter(PrometheusText text) {
+    RequestLimiter.Stats stats = requestLimiter.stats();
+    text.describe("spotish_requests_in_flight", "gauge", "Requests being handled.")
+        .sample("spotish_requests_in_flight", stats.inFlight());
+    text.describe("spotish_requests_queued", "gauge", "Requests waiting to be handled.")
+        .sample("spotish_requests_queued", stats.queued());
+    text.describe("spotish_requests_rejected_total", "counter", "Requests rejected by the admission control.")
+        .sample("spotish_requests_rejected_total", stats.rejectedQueueFull(), "reason", "queue_full")
+        .sample("spotish_requests_rejected_total", stats.rejectedTimeout(), "reason", "timeout");
+  }
+
+  private void writePools(PrometheusText text) {
+    text.describe("spotish_db_pool_connections", "gauge", "Connections of the pool, by state.");
+    pools.forEach((pool, metrics) -> {
+      PoolStats stats = metrics.poolStats();
+      if (stats != null) {
+        text.sample("spotish_db_pool_connections", stats.getActiveConnections(), "pool", pool, "state", "active");
+        text.sample("spotish_db_pool_connections", stats.getIdleConnections(), "pool", pool, "state", "idle");
+      }
+    });
+
+    text.describe("spotish_db_pool_pending_threads", "gauge", "Threads waiting for a connection.");
+    pools.forEach((pool, metrics) -> {
+      PoolStats stats = metrics.poolStats();
+      if (stats != null) {
+        text.sample("spotish_db_pool_pending_threads", stats.getPendingThreads(), "pool", pool);
+      }
+    });
+
+    text.describe("spotish_db_pool_max_connections", "gauge", "Maximum size of the pool.");
+    pools.forEach((pool, metrics) -> {
+      PoolStats stats = metrics.poolStats();
+      if (stats != null) {
+        text.sample("spotish_db_pool_max_connections", stats.getMaxConnections(), "pool", pool);
+      }
+    });
+
+    text.describe("spotish_db_pool_timeouts_total", "counter", "Threads that gave up waiting for a connection.");
+    pools.forEach((pool, metrics) -> text.sample("spotish_db_pool_timeouts_total", metrics.timeouts(), "pool", pool));
+
+    text.describe("spotish_db_pool_acquire_duration_seconds", "histogram", "Time waited for a connection.");
+    pools.forEach((pool, metrics) -> text.histogram("spotish_db_pool_acquire_duration_seconds",
+        metrics.acquireTimes(), "pool", pool));
+
+    text.describe("spotish_db_pool_usage_duration_seconds", "histogram", "Time a connection was kept.");
+    pools.forEach((pool, metrics) -> text.histogram("spotish_db_pool_usage_duration_seconds",
+        metrics.usageTimes(), "pool", pool));
+  }
+}
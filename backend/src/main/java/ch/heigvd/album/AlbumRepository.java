@@ -10,8 +10,33 @@ import java.util.List;
 
 import ch.heigvd.entities.Album;
 import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicCatalogCache;
 
 public class AlbumRepository {
+  private static final String GET_ALBUM_SQL = """
+      /* AlbumRepository.getAlbum */
+      SELECT a.idalbum AS albumId, m.titre AS title, m.datedesortie AS releaseDate,
+             cm.nomcreateur AS creatorName
+      FROM spotish.album a
+      JOIN spotish.media m           ON a.idalbum = m.idmedia
+      JOIN spotish.createur_media cm ON m.idmedia = cm.idmedia
+      WHERE a.idalbum = ?;
+      """;
+
+  // Only the IDs are read here, the musics themselves come from the catalog
+  private static final String GET_MUSICS_FOR_ALBUM_SQL = """
+      /* AlbumRepository.getMusicsForAlbum */
+      SELECT ac.idchanson AS musicId
+      FROM spotish.album_chanson ac
+      WHERE ac.idalbum = ?;
+      """;
+
+  private final MusicCatalogCache musicCatalog;
+
+  public AlbumRepository(MusicCatalogCache musicCatalog) {
+    this.musicCatalog = musicCatalog;
+  }
+
   /**
    * Retrieves an album by its ID, including its musics.
    *
@@ -21,16 +46,7 @@ public class AlbumRepository {
    * @throws SQLException if a database access error occurs
    */
   public Album getAlbum(Connection conn, Long id) throws SQLException {
-    String sql = """
-        SELECT a.idalbum AS albumId, m.titre AS title, m.datedesortie AS releaseDate,
-               cm.nomcreateur AS creatorName
-        FROM spotish.album a
-        JOIN spotish.media m           ON a.idalbum = m.idmedia
-        JOIN spotish.createur_media cm ON m.idmedia = cm.idmedia
-        WHERE a.idalbum = ?;
-            """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALBUM_SQL)) {
       ps.setLong(1, id);
       ResultSet rs = ps.executeQuery();
 
@@ -59,35 +75,16 @@ public class AlbumRepository {
    * @throws SQLException if a database access error occurs
    */
   private List<Music> getMusicsForAlbum(Connection conn, Long albumId) throws SQLException {
-    String sql = """
-        SELECT c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-               STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM spotish.album_chanson ac
-        JOIN spotish.chanson c          ON ac.idchanson = c.idchanson
-        JOIN spotish.media m            ON m.idmedia = c.idchanson
-        JOIN spotish.createur_media cm  ON cm.idmedia = m.idmedia
-        WHERE ac.idalbum = ?
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_MUSICS_FOR_ALBUM_SQL)) {
       ps.setLong(1, albumId);
       ResultSet rs = ps.executeQuery();
 
-      List<Music> musics = new ArrayList<>();
+      List<Long> musicIds = new ArrayList<>();
 
       while (rs.next()) {
-        Music music = new Music(
-            rs.getLong("musicId"),
-            rs.getString("title"),
-            rs.getObject("releaseDate", LocalDate.class),
-            rs.getInt("duration"),
-            rs.getString("genre"),
-            rs.getString("creatorNames"));
-
-        musics.add(music);
+        musicIds.add(rs.getLong("musicId"));
       }
-      return musics;
+      return musicCatalog.getAll(conn, musicIds);
     }
   }
 }
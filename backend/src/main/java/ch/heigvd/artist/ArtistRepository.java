@@ -8,6 +8,21 @@ import java.sql.SQLException;
 import ch.heigvd.entities.Creator;
 
 public class ArtistRepository {
+  private static final String GET_ONE_SQL = """
+      /* ArtistRepository.getOne */
+      SELECT cr.nomcreateur AS artistName
+      FROM spotish.createur cr
+      INNER JOIN spotish.artiste a ON cr.nomcreateur = a.nomartiste
+      WHERE a.nomartiste = ?;
+      """;
+
+  private static final String EXISTS_SQL = """
+      /* ArtistRepository.exists */
+      SELECT 1
+      FROM spotish.artiste a
+      WHERE a.nomartiste = ?;
+      """;
+
   /**
    * Retrieves an artist by their name, including their albums and musics.
    *
@@ -17,13 +32,7 @@ public class ArtistRepository {
    * @throws SQLException if a database access error occurs
    */
   public Creator getOne(Connection conn, String artistName) throws SQLException {
-    String sql = """
-        SELECT cr.nomcreateur AS artistName
-        FROM spotish.createur cr
-        INNER JOIN spotish.artiste a ON cr.nomcreateur = a.nomartiste
-        WHERE a.nomartiste = ?;
-            """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ONE_SQL)) {
       ps.setString(1, artistName);
       try (ResultSet rs = ps.executeQuery()) {
         if (rs.next()) {
@@ -49,12 +58,7 @@ public class ArtistRepository {
    * @throws SQLException if a database access error occurs
    */
   public boolean exists(Connection conn, String artistName) throws SQLException {
-    String sql = """
-        SELECT 1
-        FROM spotish.artiste a
-        WHERE a.nomartiste = ?;
-            """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(EXISTS_SQL)) {
       ps.setString(1, artistName);
       try (ResultSet rs = ps.executeQuery()) {
         return rs.next();
@@ -0,0 +1,43 @@
+package ch.heigvd.autocomplete;
+
+import java.util.List;
+
+import ch.heigvd.entities.Completion;
+import io.javalin.http.Context;
+
+public class AutocompleteController {
+  private final AutocompleteService autocompleteService;
+
+  // Each keystroke sends a request, the browser can reuse the completions of a
+  // prefix typed again. They follow the play counts, refreshed every few
+  // minutes.
+  private final static int AUTOCOMPLETE_CACHE_MAX_AGE_SECONDS = 60;
+
+  public AutocompleteController(AutocompleteService autocompleteService) {
+    this.autocompleteService = autocompleteService;
+  }
+
+  /**
+   * Handles the HTTP GET request to complete a prefix, with ?prefix the text
+   * typed and ?limit the maximum number of completions.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void complete(Context ctx) {
+    String prefix = ctx.queryParamAsClass("prefix", String.class)
+        .check(p -> !p.isBlank(), "prefix must not be blank")
+        .check(p -> p.length() <= 255, "prefix must be at most 255 characters long")
+        .get();
+    Integer limit = ctx.queryParamAsClass("limit", Integer.class)
+        .check(l -> l > 0 && l <= AutocompleteService.MAX_COMPLETIONS,
+            "limit must be between 1 and " + AutocompleteService.MAX_COMPLETIONS)
+        .getOrDefault(AutocompleteService.MAX_COMPLETIONS);
+
+    List<Completion> completions = autocompleteService.complete(prefix, limit);
+
+    // Cache the response for AUTOCOMPLETE_CACHE_MAX_AGE_SECONDS seconds
+    ctx.header("Cache-Control", "max-age=" + AUTOCOMPLETE_CACHE_MAX_AGE_SECONDS);
+
+    ctx.json(completions);
+  }
+}
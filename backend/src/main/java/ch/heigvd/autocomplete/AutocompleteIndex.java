@@ -0,0 +1,381 @@
+package ch.heigvd.autocomplete;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ch.heigvd.entities.Completion;
+import ch.heigvd.search.SearchIndex;
+
+/**
+ * Compact trie of the titles and creator names of the catalog, for the
+ * type-ahead.
+ *
+ * The texts are folded like in the search index (lower case, without
+ * accents) and their words joined by single spaces. Each text is inserted
+ * from each of its words, so that "La Vie en rose" completes "vie" and "rose"
+ * as well as "la". The chains of nodes with a single child are merged into
+ * one node labeled with several characters, and each node keeps the most
+ * listened completions below it, ranked once when the trie is built. A lookup
+ * walks the prefix, one step per character, and returns the completions of
+ * the node it ends on: it sorts nothing and allocates nothing but the result.
+ *
+ * The nodes are stored in parallel arrays, the children of a node next to
+ * each other and sorted by their first character. The trie is immutable, it
+ * is built again to take new texts or play counts into account.
+ */
+public final class AutocompleteIndex {
+  private static final int ROOT = 0;
+
+  // The completions, the most listened first: a completion is referenced by
+  // its rank
+  private final Completion[] completions;
+  private final char[] labels;
+  private final int[] labelStarts;
+  private final int[] labelEnds;
+  private final int[] firstChildren;
+  private final int[] childCounts;
+  // The best completions of each node are tops[topStarts[node]] to
+  // tops[topStarts[node] + topCounts[node] - 1], the best first
+  private final int[] tops;
+  private final int[] topStarts;
+  private final int[] topCounts;
+
+  private AutocompleteIndex(Builder builder) {
+    this.completions = builder.completions;
+    this.labels = Arrays.copyOf(builder.labels, builder.labelLength);
+    this.labelStarts = Arrays.copyOf(builder.labelStarts, builder.nodeCount);
+    this.labelEnds = Arrays.copyOf(builder.labelEnds, builder.nodeCount);
+    this.firstChildren = Arrays.copyOf(builder.firstChildren, builder.nodeCount);
+    this.childCounts = Arrays.copyOf(builder.childCounts, builder.nodeCount);
+    this.tops = Arrays.copyOf(builder.tops, builder.topLength);
+    this.topStarts = Arrays.copyOf(builder.topStarts, builder.nodeCount);
+    this.topCounts = Arrays.copyOf(builder.topCounts, builder.nodeCount);
+  }
+
+  /**
+   * Builds a trie.
+   *
+   * @param entries        the completions, with their number of plays
+   * @param maxCompletions the number of completions kept per node, the
+   *                       maximum a lookup can return
+   * @return the trie
+   */
+  public static AutocompleteIndex build(List<Entry> entries, int maxCompletions) {
+    // The most listened first, then the shortest, then in alphabetical order
+    List<Entry> ranked = new ArrayList<>(entries);
+    ranked.sort(Comparator.comparingLong(Entry::plays).reversed()
+        .thenComparingInt(entry -> entry.completion().text().length())
+        .thenComparing(entry -> entry.completion().text()));
+
+    List<Key> keys = new ArrayList<>();
+    for (int rank = 0; rank < ranked.size(); rank++) {
+      String text = normalize(ranked.get(rank).completion().text());
+      if (text.isEmpty()) {
+        continue;
+      }
+      int start = 0;
+      while (true) {
+        keys.add(new Key(text.substring(start), rank));
+        int space = text.indexOf(' ', start);
+        if (space < 0) {
+          break;
+        }
+        start = space + 1;
+      }
+    }
+    keys.sort(Comparator.comparing(Key::text).thenComparingInt(Key::rank));
+
+    Completion[] completions = new Completion[ranked.size()];
+    for (int rank = 0; rank < completions.length; rank++) {
+      completions[rank] = ranked.get(rank).completion();
+    }
+    return new AutocompleteIndex(new Builder(completions, keys, maxCompletions).build());
+  }
+
+  /**
+   * Completes a prefix.
+   *
+   * @param prefix the prefix typed, in any case and with or without accents
+   * @param limit  the maximum number of completions, at most the number kept
+   *               per node
+   * @return the most listened texts having a word starting with the prefix,
+   *         the most listened first
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    // Folding allocates, the ASCII prefixes only need to be lowercased
+    for (int i = 0; i < prefix.length(); i++) {
+      if (prefix.charAt(i) >= 0x80) {
+        prefix = SearchIndex.fold(prefix);
+        break;
+      }
+    }
+
+    long position = position(ROOT, labelEnds[ROOT]);
+    boolean started = false;
+    boolean separated = false;
+    for (int i = 0; i < prefix.length() && position >= 0; i++) {
+      char c = Character.toLowerCase(prefix.charAt(i));
+      if (!Character.isLetterOrDigit(c)) {
+        // The separators between two words are matched as a single space
+        separated = started;
+        continue;
+      }
+      if (separated) {
+        position = step(position, ' ');
+        separated = false;
+      }
+      position = step(position, c);
+      started = true;
+    }
+    if (!started || position < 0) {
+      return List.of();
+    }
+
+    int node = (int) (position >>> 32);
+    int count = Math.min(limit, topCounts[node]);
+    List<Completion> result = new ArrayList<>(count);
+    for (int i = topStarts[node]; i < topStarts[node] + count; i++) {
+      result.add(completions[tops[i]]);
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of completions
+   */
+  public int size() {
+    return completions.length;
+  }
+
+  /**
+   * @return the number of nodes of the trie
+   */
+  public int nodeCount() {
+    return labelStarts.length;
+  }
+
+  /**
+   * @param position where the prefix matched so far ends, or -1 if it did not
+   *                 match
+   * @param c        the next character of the prefix
+   * @return where the prefix ends with the character, -1 if it does not match
+   */
+  private long step(long position, char c) {
+    if (position < 0) {
+      return -1;
+    }
+    int node = (int) (position >>> 32);
+    int next = (int) position;
+    if (next < labelEnds[node]) {
+      return labels[next] == c ? position(node, next + 1) : -1;
+    }
+    int child = child(node, c);
+    return child < 0 ? -1 : position(child, labelStarts[child] + 1);
+  }
+
+  /**
+   * @return a node and the index of the next character of its label to
+   *         match, packed in a long so that walking the trie allocates nothing
+   */
+  private static long position(int node, int next) {
+    return (long) node << 32 | next;
+  }
+
+  /**
+   * @return the child of the node whose label starts with the character, -1
+   *         if there is none
+   */
+  private int child(int node, char c) {
+    int low = firstChildren[node];
+    int high = low + childCounts[node] - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      char first = labels[labelStarts[middle]];
+      if (first < c) {
+        low = middle + 1;
+      } else if (first > c) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the folded text, its words separated by single spaces
+   */
+  static String normalize(String text) {
+    String folded = SearchIndex.fold(text);
+    StringBuilder normalized = new StringBuilder(folded.length());
+    boolean separated = false;
+    for (int i = 0; i < folded.length(); i++) {
+      char c = folded.charAt(i);
+      if (!Character.isLetterOrDigit(c)) {
+        separated = normalized.length() > 0;
+        continue;
+      }
+      if (separated) {
+        normalized.append(' ');
+        separated = false;
+      }
+      normalized.append(c);
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * A completion and how many times it was played, which ranks it.
+   *
+   * @param completion the completion
+   * @param plays      the number of plays of the music, or of the musics of
+   *                   the album or creator
+   */
+  public record Entry(Completion completion, long plays) {
+  }
+
+  /**
+   * A text inserted in the trie, from one of its words.
+   *
+   * @param text the normalized text, from the word
+   * @param rank the rank of the completion
+   */
+  private record Key(String text, int rank) {
+  }
+
+  /**
+   * Builds the arrays of the trie from the sorted keys, depth first.
+   */
+  private static final class Builder {
+    private final Completion[] completions;
+    private final List<Key> keys;
+    private final int maxCompletions;
+
+    private char[] labels = new char[1024];
+    private int labelLength;
+    private int[] labelStarts = new int[1024];
+    private int[] labelEnds = new int[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] childCounts = new int[1024];
+    private int[] topStarts = new int[1024];
+    private int[] topCounts = new int[1024];
+    private int nodeCount;
+    private int[] tops = new int[1024];
+    private int topLength;
+
+    Builder(Completion[] completions, List<Key> keys, int maxCompletions) {
+      this.completions = completions;
+      this.keys = keys;
+      this.maxCompletions = maxCompletions;
+    }
+
+    Builder build() {
+      int root = reserveNodes(1);
+      labelStarts[root] = 0;
+      labelEnds[root] = 0;
+      fill(root, 0, keys.size(), 0);
+      return this;
+    }
+
+    /**
+     * Fills a node whose label is set, from the keys between from and to
+     * (excluded), which all share their first depth characters.
+     */
+    private void fill(int node, int from, int to, int depth) {
+      // The keys ending at this node sort before the longer ones
+      int start = from;
+      while (start < to && keys.get(start).text().length() == depth) {
+        start++;
+      }
+
+      // One child per character following the depth
+      List<int[]> groups = new ArrayList<>();
+      for (int i = start; i < to;) {
+        char c = keys.get(i).text().charAt(depth);
+        int end = i + 1;
+        while (end < to && keys.get(end).text().charAt(depth) == c) {
+          end++;
+        }
+        groups.add(new int[] { i, end });
+        i = end;
+      }
+      int firstChild = reserveNodes(groups.size());
+      firstChildren[node] = firstChild;
+      childCounts[node] = groups.size();
+
+      for (int g = 0; g < groups.size(); g++) {
+        int child = firstChild + g;
+        int groupFrom = groups.get(g)[0];
+        int groupTo = groups.get(g)[1];
+        // The label runs while all the keys of the child share it: the keys
+        // are sorted, the first and the last one bound it
+        String first = keys.get(groupFrom).text();
+        String last = keys.get(groupTo - 1).text();
+        int end = depth + 1;
+        while (end < first.length() && end < last.length() && first.charAt(end) == last.charAt(end)) {
+          end++;
+        }
+        labelStarts[child] = appendLabel(first, depth, end);
+        labelEnds[child] = labelLength;
+        fill(child, groupFrom, groupTo, end);
+      }
+
+      // The best completions ending here or below, each once
+      int[] candidates = new int[start - from + groups.size() * maxCompletions];
+      int count = 0;
+      for (int i = from; i < start; i++) {
+        candidates[count++] = keys.get(i).rank();
+      }
+      for (int g = 0; g < groups.size(); g++) {
+        int child = firstChild + g;
+        for (int i = topStarts[child]; i < topStarts[child] + topCounts[child]; i++) {
+          candidates[count++] = tops[i];
+        }
+      }
+      Arrays.sort(candidates, 0, count);
+      topStarts[node] = topLength;
+      int kept = 0;
+      for (int i = 0; i < count && kept < maxCompletions; i++) {
+        if (i == 0 || candidates[i] != candidates[i - 1]) {
+          appendTop(candidates[i]);
+          kept++;
+        }
+      }
+      topCounts[node] = kept;
+    }
+
+    private int reserveNodes(int count) {
+      int first = nodeCount;
+      nodeCount += count;
+      if (nodeCount > labelStarts.length) {
+        int capacity = Math.max(nodeCount, 2 * labelStarts.length);
+        labelStarts = Arrays.copyOf(labelStarts, capacity);
+        labelEnds = Arrays.copyOf(labelEnds, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        topStarts = Arrays.copyOf(topStarts, capacity);
+        topCounts = Arrays.copyOf(topCounts, capacity);
+      }
+      return first;
+    }
+
+    private int appendLabel(String text, int from, int to) {
+      int start = labelLength;
+      if (labelLength + to - from > labels.length) {
+        labels = Arrays.copyOf(labels, Math.max(labelLength + to - from, 2 * labels.length));
+      }
+      text.getChars(from, to, labels, labelLength);
+      labelLength += to - from;
+      return start;
+    }
+
+    private void appendTop(int rank) {
+      if (topLength == tops.length) {
+        tops = Arrays.copyOf(tops, 2 * tops.length);
+      }
+      tops[topLength++] = rank;
+    }
+  }
+}
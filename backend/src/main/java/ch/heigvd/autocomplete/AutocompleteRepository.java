@@ -0,0 +1,63 @@
+package ch.heigvd.autocomplete;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.heigvd.entities.Completion;
+
+public class AutocompleteRepository {
+  // The plays are read from the per-music rollup of the listening statistics
+  // (V6__music_plays.sql), which lags the listens by the queue of the
+  // ListeningStatsAggregator. Albums and creators are as popular as their
+  // musics together.
+  private static final String GET_ENTRIES_SQL = """
+      /* AutocompleteRepository.getEntries */
+      WITH plays AS (
+        SELECT s.idchanson, s.ecoutes AS plays
+        FROM spotish.stats_ecoute_chanson s
+      )
+      SELECT 'music' AS kind, cd.idchanson AS id, cd.titre AS text, COALESCE(p.plays, 0) AS plays
+      FROM spotish.chanson_detail cd
+      LEFT JOIN plays p ON p.idchanson = cd.idchanson
+      UNION ALL
+      SELECT 'album', a.idalbum, m.titre, COALESCE(SUM(p.plays), 0)
+      FROM spotish.album a
+      JOIN spotish.media m               ON m.idmedia = a.idalbum
+      LEFT JOIN spotish.album_chanson ac ON ac.idalbum = a.idalbum
+      LEFT JOIN plays p                  ON p.idchanson = ac.idchanson
+      GROUP BY a.idalbum, m.titre
+      UNION ALL
+      SELECT 'creator', NULL, c.nomcreateur, COALESCE(SUM(p.plays), 0)
+      FROM spotish.createur c
+      LEFT JOIN spotish.createur_media cm ON cm.nomcreateur = c.nomcreateur
+      LEFT JOIN plays p                   ON p.idchanson = cm.idmedia
+      GROUP BY c.nomcreateur;
+      """;
+
+  /**
+   * Retrieves the titles of the musics and albums and the names of the
+   * creators, with how many times they were played.
+   *
+   * @param conn the database connection
+   * @return the completions with their number of plays
+   * @throws SQLException if a database access error occurs
+   */
+  public List<AutocompleteIndex.Entry> getEntries(Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ENTRIES_SQL)) {
+      ResultSet rs = ps.executeQuery();
+      List<AutocompleteIndex.Entry> entries = new ArrayList<>();
+      while (rs.next()) {
+        Completion completion = new Completion(
+            rs.getString("text"),
+            rs.getString("kind"),
+            rs.getObject("id", Long.class));
+        entries.add(new AutocompleteIndex.Entry(completion, rs.getLong("plays")));
+      }
+      return entries;
+    }
+  }
+}
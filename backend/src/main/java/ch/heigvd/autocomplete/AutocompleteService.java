@@ -0,0 +1,169 @@
+package ch.heigvd.autocomplete;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.cache.ResourceVersions;
+import ch.heigvd.entities.Completion;
+import ch.heigvd.stats.ListeningStatsAggregator;
+
+/**
+ * Completes the prefixes typed from a trie held in memory, so that the
+ * type-ahead never queries the database.
+ *
+ * The trie is built at startup, then again in the background when the
+ * catalog changed or when it gets older than the refresh interval, to follow
+ * the play counts. The changes of the catalog come in bursts during the
+ * imports: the trie is only built again once the catalog did not change for
+ * CATALOG_QUIET_MILLIS, or CATALOG_MAX_DELAY_MILLIS after the first change if
+ * it keeps changing. Until a new trie is ready, the previous one is used.
+ *
+ * The play counts are those of the per-music rollup of the listening
+ * statistics (V6__music_plays.sql), so they lag behind the listens by the queue
+ * of the ListeningStatsAggregator. A build warns when they are more than
+ * STALE_PLAYS_MILLIS late, the ranking then no longer follows the listens.
+ */
+public class AutocompleteService implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(AutocompleteService.class);
+
+  /**
+   * The maximum number of completions returned, kept for each node.
+   */
+  public static final int MAX_COMPLETIONS = 10;
+
+  private static final long CHECK_INTERVAL_MILLIS = 10_000;
+  private static final long CATALOG_QUIET_MILLIS = 30_000;
+  private static final long CATALOG_MAX_DELAY_MILLIS = 300_000;
+  private static final long STALE_PLAYS_MILLIS = 60_000;
+
+  private final DataSource ds;
+  private final ResourceVersions versions;
+  private final AutocompleteRepository autocompleteRepo;
+  private final ListeningStatsAggregator statsAggregator;
+  private final long refreshIntervalNanos;
+  private final ScheduledExecutorService refresher;
+
+  private volatile AutocompleteIndex index;
+  // Only read and written by the refresher after start()
+  private long builtVersion;
+  private long builtAt;
+  // The last version of the catalog seen, when it was first seen and when the
+  // catalog first changed since the trie was built
+  private long seenVersion;
+  private long seenAt;
+  private long changedAt;
+
+  /**
+   * @param ds               the database the play counts are read from
+   * @param versions         the versions of the resources, to know when the
+   *                         catalog changed
+   * @param autocompleteRepo the repository of the completions
+   * @param statsAggregator  the aggregator of the rollup the play counts are
+   *                         read from, to know how late they are
+   * @param refreshInterval  how often the trie is built again to follow the
+   *                         play counts
+   */
+  public AutocompleteService(DataSource ds, ResourceVersions versions, AutocompleteRepository autocompleteRepo,
+      ListeningStatsAggregator statsAggregator, Duration refreshInterval) {
+    this.ds = ds;
+    this.versions = versions;
+    this.autocompleteRepo = autocompleteRepo;
+    this.statsAggregator = statsAggregator;
+    this.refreshIntervalNanos = refreshInterval.toNanos();
+    this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "autocomplete-refresher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Builds the trie, then starts refreshing it in the background.
+   *
+   * @throws RuntimeException if the completions could not be read
+   */
+  public void start() {
+    rebuild();
+    refresher.scheduleWithFixedDelay(this::refreshIfStale, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Completes a prefix with titles and creator names.
+   *
+   * @param prefix the prefix typed
+   * @param limit  the maximum number of completions, at most MAX_COMPLETIONS
+   * @return the most listened musics, albums and creators with a word
+   *         starting with the prefix, the most listened first
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    return index.complete(prefix, limit);
+  }
+
+  @Override
+  public void close() {
+    refresher.shutdownNow();
+  }
+
+  private void refreshIfStale() {
+    try {
+      long now = System.nanoTime();
+      long version = versions.version(ResourceVersions.CATALOG);
+      if (version != seenVersion) {
+        if (seenVersion == builtVersion) {
+          changedAt = now;
+        }
+        seenVersion = version;
+        seenAt = now;
+      }
+
+      boolean catalogChanged = version != builtVersion
+          && (now - seenAt >= TimeUnit.MILLISECONDS.toNanos(CATALOG_QUIET_MILLIS)
+              || now - changedAt >= TimeUnit.MILLISECONDS.toNanos(CATALOG_MAX_DELAY_MILLIS));
+      if (catalogChanged || now - builtAt >= refreshIntervalNanos) {
+        rebuild();
+      }
+    } catch (RuntimeException e) {
+      // The previous trie is kept, the next check tries again
+      LOG.warn("Could not refresh the autocomplete", e);
+    }
+  }
+
+  private void rebuild() {
+    long start = System.nanoTime();
+    // Read before the catalog, a change made while it is read triggers another
+    // build
+    long version = versions.version(ResourceVersions.CATALOG);
+    long playsLag = statsAggregator.lagMillis();
+    List<AutocompleteIndex.Entry> entries;
+    try (Connection conn = ds.getConnection()) {
+      entries = autocompleteRepo.getEntries(conn);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    AutocompleteIndex built = AutocompleteIndex.build(entries, MAX_COMPLETIONS);
+    index = built;
+    builtVersion = version;
+    builtAt = System.nanoTime();
+    // A change made while the catalog was read is seen as a new one
+    seenVersion = version;
+    seenAt = builtAt;
+
+    LOG.info("Built the autocomplete of {} texts ({} nodes) in {} ms, play counts {} ms late", built.size(),
+        built.nodeCount(), (System.nanoTime() - start) / 1_000_000, playsLag);
+    if (playsLag > STALE_PLAYS_MILLIS) {
+      LOG.warn("The play counts of the autocomplete are {} s late, the listening statistics are not aggregated"
+          + " (see GET /admin/listening-stats)", playsLag / 1_000);
+    }
+  }
+}
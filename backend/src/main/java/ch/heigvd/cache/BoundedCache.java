@@ -0,0 +1,393 @@
+package ch.heigvd.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Small thread-safe in-memory cache with a maximum number of entries and an
+ * expiration delay.
+ *
+ * When the cache is full, the least recently used entry is evicted. Entries
+ * also expire, either a fixed time after they were stored or after they have
+ * not been read for a while, depending on the factory method used. The
+ * entries whose size varies a lot can be weighed, the cache then bounds the
+ * sum of their weights instead of their number. The entries that must not be
+ * lost yet can be pinned: they are neither evicted nor expired while pinned,
+ * and may then exceed the maximum weight.
+ *
+ * The entries are spread over independently locked segments by the hash of
+ * their key, so that threads using different keys rarely wait for each other.
+ * Each segment holds an equal share of the maximum weight and evicts its own
+ * least recently used entries.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class BoundedCache<K, V> {
+  private static final int MAX_SEGMENTS = 16;
+  // Below this weight per segment, the LRU order of a segment says too little
+  // about the whole cache
+  private static final long MIN_SEGMENT_WEIGHT = 1024;
+
+  private final long maxWeight;
+  private final long ttlNanos;
+  private final boolean refreshOnAccess;
+  private final ToIntFunction<? super V> weigher;
+  private final Predicate<? super V> pinned;
+
+  private final List<Segment> segments;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private BoundedCache(long maxWeight, Duration ttl, boolean refreshOnAccess, ToIntFunction<? super V> weigher,
+      Predicate<? super V> pinned) {
+    this.maxWeight = maxWeight;
+    this.ttlNanos = ttl.toNanos();
+    this.refreshOnAccess = refreshOnAccess;
+    this.weigher = weigher;
+    this.pinned = pinned;
+
+    int segmentCount = 1;
+    while (segmentCount < MAX_SEGMENTS && maxWeight / (segmentCount * 2) >= MIN_SEGMENT_WEIGHT) {
+      segmentCount *= 2;
+    }
+    List<Segment> segments = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      segments.add(new Segment((maxWeight + segmentCount - 1) / segmentCount));
+    }
+    this.segments = List.copyOf(segments);
+  }
+
+  /**
+   * Creates a cache whose entries expire a fixed time after being stored.
+   *
+   * @param maxSize the maximum number of entries
+   * @param ttl     how long an entry stays valid after being stored
+   * @return the new cache
+   */
+  public static <K, V> BoundedCache<K, V> expireAfterWrite(int maxSize, Duration ttl) {
+    return new BoundedCache<>(maxSize, ttl, false, value -> 1, value -> false);
+  }
+
+  /**
+   * Creates a cache whose entries expire when they have not been read for some
+   * time.
+   *
+   * @param maxSize  the maximum number of entries
+   * @param idleTime how long an entry stays valid without being read
+   * @return the new cache
+   */
+  public static <K, V> BoundedCache<K, V> expireAfterAccess(int maxSize, Duration idleTime) {
+    return new BoundedCache<>(maxSize, idleTime, true, value -> 1, value -> false);
+  }
+
+  /**
+   * Creates a cache whose entries expire when they have not been read for some
+   * time, bounded by the sum of the weights of its entries.
+   *
+   * @param maxWeight the maximum sum of the weights of the entries
+   * @param idleTime  how long an entry stays valid without being read
+   * @param weigher   the weight of a value, computed when it is stored
+   * @return the new cache
+   */
+  public static <K, V> BoundedCache<K, V> expireAfterAccess(long maxWeight, Duration idleTime,
+      ToIntFunction<? super V> weigher) {
+    return new BoundedCache<>(maxWeight, idleTime, true, weigher, value -> false);
+  }
+
+  /**
+   * Creates a cache whose entries expire when they have not been read for some
+   * time, bounded by the sum of the weights of its entries, except those
+   * pinned.
+   *
+   * @param maxWeight the maximum sum of the weights of the entries
+   * @param idleTime  how long an entry stays valid without being read
+   * @param weigher   the weight of a value, computed when it is stored
+   * @param pinned    whether a value must be kept for now, tested when it
+   *                  could be evicted
+   * @return the new cache
+   */
+  public static <K, V> BoundedCache<K, V> expireAfterAccess(long maxWeight, Duration idleTime,
+      ToIntFunction<? super V> weigher, Predicate<? super V> pinned) {
+    return new BoundedCache<>(maxWeight, idleTime, true, weigher, pinned);
+  }
+
+  /**
+   * Returns the value stored for a key.
+   *
+   * @param key the key to look up
+   * @return the value, or null if absent or expired
+   */
+  public V get(K key) {
+    Segment segment = segmentOf(key);
+    synchronized (segment) {
+      return segment.get(key);
+    }
+  }
+
+  /**
+   * Stores a value, replacing any previous value for the key. Storing the
+   * same value again weighs it again.
+   *
+   * @param key   the key
+   * @param value the value, must not be null
+   */
+  public void put(K key, V value) {
+    Segment segment = segmentOf(key);
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  /**
+   * Returns the value stored for a key, storing a new one first if there is
+   * none, atomically.
+   *
+   * @param key     the key
+   * @param factory creates the value to store, must not return null
+   * @return the value stored for the key
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> factory) {
+    Segment segment = segmentOf(key);
+    synchronized (segment) {
+      V value = segment.get(key);
+      if (value == null) {
+        value = factory.apply(key);
+        segment.put(key, value);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Returns the value stored for a key, storing a new one first if there is
+   * none, and applies an action to it before it can be evicted, atomically:
+   * e.g. pinning it.
+   *
+   * @param key     the key
+   * @param factory creates the value to store, must not return null
+   * @param action  applied to the value stored for the key, must be quick
+   * @return the value stored for the key
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> factory, Consumer<? super V> action) {
+    Segment segment = segmentOf(key);
+    synchronized (segment) {
+      V value = segment.get(key);
+      if (value == null) {
+        value = factory.apply(key);
+        segment.put(key, value);
+      }
+      action.accept(value);
+      return value;
+    }
+  }
+
+  /**
+   * Removes the value stored for a key, if any.
+   *
+   * @param key the key
+   */
+  public void remove(K key) {
+    Segment segment = segmentOf(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  /**
+   * Removes all the values.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.entries.clear();
+        segment.totalWeight = 0;
+      }
+    }
+  }
+
+  /**
+   * @return the number of entries currently stored (expired ones included
+   *         until they are purged)
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.entries.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return the sum of the weights of the entries, their number unless they
+   *         are weighed
+   */
+  public long weight() {
+    long weight = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        weight += segment.totalWeight;
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * @return the maximum number of entries, or sum of their weights
+   */
+  public long maxWeight() {
+    return maxWeight;
+  }
+
+  /**
+   * @return the number of lookups that found a valid value
+   */
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of lookups that found nothing
+   */
+  public long missCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of entries removed because the cache was full or they
+   *         expired
+   */
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  private Segment segmentOf(K key) {
+    int hash = key.hashCode();
+    // The high bits take part too, the low ones of some hashes vary little
+    return segments.get((hash ^ hash >>> 16) & (segments.size() - 1));
+  }
+
+  /**
+   * Part of the entries, guarded by its own monitor.
+   */
+  private final class Segment {
+    private final long maxWeight;
+    // accessOrder = true turns the map into an LRU list: the eldest entry is
+    // the least recently used one
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight;
+
+    private Segment(long maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    private V get(K key) {
+      long now = System.nanoTime();
+      Entry<V> entry = entries.get(key);
+
+      if (entry == null || entry.isExpired(now) && !pinned.test(entry.value)) {
+        if (entry != null) {
+          entries.remove(key);
+          totalWeight -= entry.weight;
+          evictions.increment();
+        }
+        misses.increment();
+        return null;
+      }
+
+      if (refreshOnAccess) {
+        entry.expiresAt = now + ttlNanos;
+      }
+      hits.increment();
+      return entry.value;
+    }
+
+    private void put(K key, V value) {
+      long now = System.nanoTime();
+      Entry<V> entry = new Entry<>(value, now + ttlNanos, weigher.applyAsInt(value));
+      Entry<V> previous = entries.put(key, entry);
+      totalWeight += entry.weight - (previous == null ? 0 : previous.weight);
+
+      if (refreshOnAccess) {
+        purgeIdleEntries(now);
+      }
+      evictEldestEntries(entry);
+    }
+
+    private void remove(K key) {
+      Entry<V> entry = entries.remove(key);
+      if (entry != null) {
+        totalWeight -= entry.weight;
+      }
+    }
+
+    /**
+     * Drops idle entries from the head of the LRU list, except the pinned
+     * ones. Only valid when reads refresh the expiration, as the list is then
+     * also ordered by expiration.
+     */
+    private void purgeIdleEntries(long now) {
+      Iterator<Entry<V>> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry<V> entry = it.next();
+        if (!entry.isExpired(now)) {
+          break;
+        }
+        if (pinned.test(entry.value)) {
+          continue;
+        }
+        it.remove();
+        totalWeight -= entry.weight;
+        evictions.increment();
+      }
+    }
+
+    /**
+     * Drops the least recently used entries until the weight is within
+     * bounds, never the entry just stored nor the pinned ones.
+     */
+    private void evictEldestEntries(Entry<V> stored) {
+      Iterator<Entry<V>> it = entries.values().iterator();
+      while (totalWeight > maxWeight && it.hasNext()) {
+        Entry<V> entry = it.next();
+        if (entry == stored) {
+          break;
+        }
+        if (pinned.test(entry.value)) {
+          continue;
+        }
+        it.remove();
+        totalWeight -= entry.weight;
+        evictions.increment();
+      }
+    }
+  }
+
+  private static final class Entry<V> {
+    private final V value;
+    private final int weight;
+    private long expiresAt;
+
+    private Entry(V value, long expiresAt, int weight) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.weight = weight;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expiresAt > 0;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package ch.heigvd.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.NotModifiedResponse;
+
+/**
+ * Handles the conditional GETs of the routes whose responses are versioned,
+ * as a filter shared by all of them.
+ *
+ * Before the handler of such a route runs, the ETag of its response is built
+ * from the current versions of the resources it depends on. If the client
+ * already has it (If-None-Match), the request ends with a 304 Not Modified
+ * and the handler does not run: neither the database nor the serialization
+ * is involved. Otherwise the ETag is sent with the response.
+ *
+ * The ETag is built before the response, so a write committed in between can
+ * only make it older than the response, never newer: the client then fetches
+ * the response again at its next revalidation.
+ */
+public class ConditionalRequests {
+  /**
+   * Cache-Control of the responses to revalidate before each use.
+   */
+  public static final String REVALIDATE = "no-cache";
+  /**
+   * Cache-Control of the responses to revalidate before each use that depend
+   * on the logged-in user, which must not be stored by shared caches.
+   */
+  public static final String PRIVATE_REVALIDATE = "private, no-cache";
+
+  private static final String ETAG_ATTRIBUTE = ConditionalRequests.class.getName() + ".etag";
+
+  private final ResourceVersions versions;
+  // By route template
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+  /**
+   * @param versions the versions of the resources
+   */
+  public ConditionalRequests(ResourceVersions versions) {
+    this.versions = versions;
+  }
+
+  /**
+   * Versions the responses of a GET route.
+   *
+   * @param path         the path of the route, as registered in Javalin
+   * @param cacheControl the Cache-Control of the responses, null to leave it
+   *                     to the handler. With PRIVATE_REVALIDATE, the
+   *                     responses also vary with the cookies.
+   * @param keys         the resources a response depends on, from the request
+   */
+  public void register(String path, String cacheControl, Function<Context, String[]> keys) {
+    routes.put(path, new Route(cacheControl, keys));
+  }
+
+  /**
+   * Sends the ETag of a versioned route, or ends the request with a 304 if the
+   * client already has it. To be called before the handlers of the routes,
+   * once the route is known.
+   *
+   * @param ctx the Javalin context
+   * @throws NotModifiedResponse if the client has the current response
+   */
+  public void handle(Context ctx) {
+    if (ctx.method() != HandlerType.GET) {
+      return;
+    }
+    Route route = routes.get(ctx.endpointHandlerPath());
+    if (route == null) {
+      return;
+    }
+
+    String etag = versions.etag(route.keys().apply(ctx));
+    ctx.attribute(ETAG_ATTRIBUTE, etag);
+    ctx.header("ETag", etag);
+    if (route.cacheControl() != null) {
+      ctx.header("Cache-Control", route.cacheControl());
+      if (route.cacheControl().equals(PRIVATE_REVALIDATE)) {
+        ctx.header("Vary", "Cookie");
+      }
+    }
+
+    if (matches(ctx.header("If-None-Match"), etag, true)) {
+      throw new NotModifiedResponse();
+    }
+  }
+
+  /**
+   * Removes the ETag of the error responses. To be called after the handlers.
+   *
+   * @param ctx the Javalin context
+   */
+  public void clearOnError(Context ctx) {
+    if (ctx.attribute(ETAG_ATTRIBUTE) != null && ctx.statusCode() >= 400 && !ctx.res().isCommitted()) {
+      ctx.res().setHeader("ETag", null);
+    }
+  }
+
+  /**
+   * @param header the value of an If-None-Match or If-Match header, null if
+   *               absent
+   * @param etag   the current ETag of the resource
+   * @param weak   whether the weak ETags of the header match too, as for
+   *               If-None-Match, e.g. when a proxy compressed the response
+   * @return whether the header lists the ETag, or is "*"
+   */
+  public static boolean matches(String header, String etag, boolean weak) {
+    if (header == null) {
+      return false;
+    }
+    for (String candidate : header.split(",")) {
+      candidate = candidate.strip();
+      if (candidate.equals("*")) {
+        return true;
+      }
+      if (weak && candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private record Route(String cacheControl, Function<Context, String[]> keys) {
+  }
+}
@@ -0,0 +1,141 @@
+package ch.heigvd.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versions of the resources served by the API, from which their ETag is
+ * built.
+ *
+ * The services bump the version of what they modified once the write is
+ * committed. All the versions come from one clock, so a version never goes
+ * back, and a response depending on several resources can take the greatest
+ * of their versions.
+ *
+ * Only the resources modified since the start are stored, at most
+ * {@link #MAX_RESOURCES}. The others share a floor version, raised to the
+ * current clock when the map is full and cleared: the versions stay
+ * monotonic, some clients just fetch again what did not change. The ETags
+ * also contain the start time of the process, so the versions of a previous
+ * run are never taken for current ones.
+ */
+public class ResourceVersions {
+  /**
+   * The musics, albums and creators, only written by the import scripts and
+   * bumped when the database notifies their changes.
+   */
+  public static final String CATALOG = "catalog";
+  /**
+   * The musics of every playlist, for the responses listing playlists of
+   * several users.
+   */
+  public static final String ALL_PLAYLISTS = "playlists";
+  /**
+   * The list of users.
+   */
+  public static final String USERS = "users";
+
+  // Bounds the memory used, a few MB
+  private static final int MAX_RESOURCES = 100_000;
+
+  private final String instance = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+  private final AtomicLong clock = new AtomicLong();
+  private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+
+  private volatile long floor;
+
+  /**
+   * @param keys the resources a response depends on
+   * @return the greatest of their versions
+   */
+  public long version(String... keys) {
+    long version = 0;
+    for (String key : keys) {
+      Long modified = versions.get(key);
+      if (modified != null && modified > version) {
+        version = modified;
+      }
+    }
+    // Read after the versions: if one of them was just cleared, the floor was
+    // already raised above it
+    return Math.max(version, floor);
+  }
+
+  /**
+   * @param keys the resources a response depends on
+   * @return the strong ETag of the response, quoted
+   */
+  public String etag(String... keys) {
+    // The keys are hashed in so that per-user responses sharing a URL do not
+    // share an ETag
+    return "\"" + instance + "-" + Long.toString(version(keys), Character.MAX_RADIX)
+        + "-" + Integer.toHexString(String.join("|", keys).hashCode()) + "\"";
+  }
+
+  /**
+   * Gives the resources a new version, to be called once their modification
+   * is committed.
+   *
+   * @param keys the resources modified
+   */
+  public void bump(String... keys) {
+    long version = clock.incrementAndGet();
+    if (versions.size() + keys.length > MAX_RESOURCES) {
+      // The floor is raised before the versions are forgotten, so that none
+      // goes back in between
+      floor = version;
+      versions.clear();
+    }
+    for (String key : keys) {
+      versions.merge(key, version, Math::max);
+    }
+  }
+
+  /**
+   * @param playlistId the unique identifier of a playlist
+   * @return the key of the playlist
+   */
+  public static String playlistKey(Long playlistId) {
+    return "playlist:" + playlistId;
+  }
+
+  /**
+   * @param creatorName the name of a user
+   * @return the key of the playlists created by the user
+   */
+  public static String userPlaylistsKey(String creatorName) {
+    return "playlists-of:" + creatorName;
+  }
+
+  /**
+   * @param username the name of a user
+   * @return the key of the playlists followed by the user
+   */
+  public static String followedPlaylistsKey(String username) {
+    return "followed:" + username;
+  }
+
+  /**
+   * @param username the name of a user
+   * @return the key of the listens of the user
+   */
+  public static String listensKey(String username) {
+    return "listens:" + username;
+  }
+
+  /**
+   * @param username the name of a user
+   * @return the key of the musics liked by the user
+   */
+  public static String likedMusicsKey(String username) {
+    return "liked:" + username;
+  }
+
+  /**
+   * @param username the name of a user
+   * @return the key of the user
+   */
+  public static String userKey(String username) {
+    return "user:" + username;
+  }
+}
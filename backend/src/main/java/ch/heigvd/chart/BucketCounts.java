@@ -0,0 +1,87 @@
+package ch.heigvd.chart;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The plays of each music during a period, in two arrays sorted by music ID,
+ * so that the counts of several periods are added by merging them.
+ */
+final class BucketCounts {
+  static final BucketCounts EMPTY = new BucketCounts(new long[0], new long[0]);
+
+  private final long[] musicIds;
+  private final long[] plays;
+
+  BucketCounts(long[] musicIds, long[] plays) {
+    this.musicIds = musicIds;
+    this.plays = plays;
+  }
+
+  /**
+   * @return the counts of a bucket still being incremented, as they are now
+   */
+  static BucketCounts of(Map<Long, LongAdder> counters) {
+    long[][] entries = new long[counters.size()][];
+    int count = 0;
+    for (Map.Entry<Long, LongAdder> counter : counters.entrySet()) {
+      // Added concurrently since the size was read
+      if (count == entries.length) {
+        break;
+      }
+      entries[count++] = new long[] { counter.getKey(), counter.getValue().sum() };
+    }
+    Arrays.sort(entries, 0, count, (a, b) -> Long.compare(a[0], b[0]));
+
+    long[] musicIds = new long[count];
+    long[] plays = new long[count];
+    for (int i = 0; i < count; i++) {
+      musicIds[i] = entries[i][0];
+      plays[i] = entries[i][1];
+    }
+    return new BucketCounts(musicIds, plays);
+  }
+
+  /**
+   * @return the plays of the two periods together
+   */
+  BucketCounts plus(BucketCounts other) {
+    if (other.size() == 0) {
+      return this;
+    }
+    if (size() == 0) {
+      return other;
+    }
+    long[] mergedIds = new long[size() + other.size()];
+    long[] mergedPlays = new long[mergedIds.length];
+    int i = 0;
+    int j = 0;
+    int count = 0;
+    while (i < size() || j < other.size()) {
+      long id = j == other.size() || i < size() && musicIds[i] <= other.musicIds[j] ? musicIds[i] : other.musicIds[j];
+      long sum = 0;
+      if (i < size() && musicIds[i] == id) {
+        sum += plays[i++];
+      }
+      if (j < other.size() && other.musicIds[j] == id) {
+        sum += other.plays[j++];
+      }
+      mergedIds[count] = id;
+      mergedPlays[count++] = sum;
+    }
+    return new BucketCounts(Arrays.copyOf(mergedIds, count), Arrays.copyOf(mergedPlays, count));
+  }
+
+  int size() {
+    return musicIds.length;
+  }
+
+  long musicId(int i) {
+    return musicIds[i];
+  }
+
+  long plays(int i) {
+    return plays[i];
+  }
+}
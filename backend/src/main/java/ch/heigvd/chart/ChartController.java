@@ -0,0 +1,42 @@
+package ch.heigvd.chart;
+
+import ch.heigvd.entities.Chart;
+import io.javalin.http.Context;
+
+public class ChartController {
+  private final ChartService chartService;
+
+  // The charts are extracted every minute
+  private final static int CHART_CACHE_MAX_AGE_SECONDS = 60;
+
+  public ChartController(ChartService chartService) {
+    this.chartService = chartService;
+  }
+
+  /**
+   * Handles the HTTP GET request to retrieve the trending musics and creators,
+   * with ?window the period counted, ?genre the genre of the musics and ?limit
+   * the maximum number of musics and creators.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void getTrending(Context ctx) {
+    String window = ctx.queryParamAsClass("window", String.class)
+        .check(w -> TrendingCounters.Window.of(w) != null, "window must be 1h, 24h or 7d")
+        .getOrDefault(TrendingCounters.Window.DAY.label());
+    String genre = ctx.queryParamAsClass("genre", String.class)
+        .allowNullable()
+        .check(g -> g == null || !g.isBlank(), "genre must not be blank")
+        .get();
+    Integer limit = ctx.queryParamAsClass("limit", Integer.class)
+        .check(l -> l > 0 && l <= ChartService.MAX_CHART_SIZE, "limit must be between 1 and " + ChartService.MAX_CHART_SIZE)
+        .getOrDefault(10);
+
+    Chart chart = chartService.getTrending(TrendingCounters.Window.of(window), genre, limit);
+
+    // Cache the response for CHART_CACHE_MAX_AGE_SECONDS seconds
+    ctx.header("Cache-Control", "max-age=" + CHART_CACHE_MAX_AGE_SECONDS);
+
+    ctx.json(chart);
+  }
+}
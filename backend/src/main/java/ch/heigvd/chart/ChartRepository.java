@@ -0,0 +1,91 @@
+package ch.heigvd.chart;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ChartRepository {
+  /**
+   * What the charts of a music are extracted by: its genre and its creators.
+   */
+  public record MusicTags(String genre, List<String> creatorNames) {
+  }
+
+  private static final String GET_PLAYS_BY_MINUTE_SQL = """
+      /* ChartRepository.getPlaysByMinute */
+      SELECT date_trunc('minute', e.dateheureecoute) AS minute, e.idchanson AS musicId, COUNT(*) AS plays
+      FROM spotish.ecoute e
+      WHERE e.dateheureecoute >= ?
+      GROUP BY 1, 2
+      ORDER BY 1, 2;
+      """;
+
+  private static final String GET_TAGS_SQL = """
+      /* ChartRepository.getTags */
+      SELECT cd.idchanson AS musicId, cd.genre AS genre, cd.nomscreateurs AS creatorNames
+      FROM spotish.chanson_detail cd
+      WHERE cd.idchanson = ANY(?);
+      """;
+
+  /**
+   * Retrieves the number of plays of each music, minute by minute.
+   *
+   * The listens are stored in the local time of the backend, their minutes are
+   * converted to those of the clock of TrendingCounters. The minutes repeated
+   * when the daylight saving time ends are counted in the first of them.
+   *
+   * @param conn  the database connection
+   * @param since the first minute, see TrendingCounters.currentMinute
+   * @return the plays, by minute in chronological order, then by music
+   * @throws SQLException if a database access error occurs
+   */
+  public List<TrendingCounters.MinutePlays> getPlaysByMinute(Connection conn, long since) throws SQLException {
+    ZoneId zone = ZoneId.systemDefault();
+    try (PreparedStatement ps = conn.prepareStatement(GET_PLAYS_BY_MINUTE_SQL)) {
+      ps.setObject(1, LocalDateTime.ofInstant(Instant.ofEpochSecond(since * 60), zone));
+      ResultSet rs = ps.executeQuery();
+      List<TrendingCounters.MinutePlays> plays = new ArrayList<>();
+      while (rs.next()) {
+        LocalDateTime minute = rs.getObject("minute", LocalDateTime.class);
+        plays.add(new TrendingCounters.MinutePlays(
+            Math.floorDiv(minute.atZone(zone).toEpochSecond(), 60),
+            rs.getLong("musicId"),
+            rs.getLong("plays")));
+      }
+      return plays;
+    }
+  }
+
+  /**
+   * Retrieves the genre and the creators of musics.
+   *
+   * @param conn     the database connection
+   * @param musicIds the unique identifiers of the musics
+   * @return the genre and creators by music ID, without the musics that do not
+   *         exist
+   * @throws SQLException if a database access error occurs
+   */
+  public Map<Long, MusicTags> getTags(Connection conn, List<Long> musicIds) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_TAGS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("bigint", musicIds.toArray(new Long[0])));
+      ResultSet rs = ps.executeQuery();
+      Map<Long, MusicTags> tags = new HashMap<>();
+      while (rs.next()) {
+        String creatorNames = rs.getString("creatorNames");
+        tags.put(rs.getLong("musicId"), new MusicTags(
+            rs.getString("genre"),
+            creatorNames == null ? List.of() : Arrays.asList(creatorNames.split(", "))));
+      }
+      return tags;
+    }
+  }
+}
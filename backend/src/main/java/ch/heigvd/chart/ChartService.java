@@ -0,0 +1,322 @@
+package ch.heigvd.chart;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.cache.ResourceVersions;
+import ch.heigvd.entities.Chart;
+import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicCatalogCache;
+
+/**
+ * Computes the trending charts from the counters of the recent plays.
+ *
+ * Every minute, the counters seal the minutes over and the charts of each
+ * window, for all the genres and for each of them, are extracted at once. The
+ * requests only read the last charts extracted.
+ *
+ * The musics played are ranked by genre and creator from a snapshot of their
+ * tags kept for the extraction, not through the cache of the musics shared
+ * with the requests, which would be swept by the plays of the week. Only the
+ * musics that end up in the charts are read from that cache.
+ */
+public class ChartService implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(ChartService.class);
+
+  /**
+   * The maximum number of musics and creators of a chart.
+   */
+  public static final int MAX_CHART_SIZE = 50;
+
+  private static final long EXTRACT_INTERVAL_MILLIS = 60_000;
+  private static final long MINUTES_PER_DAY = 24 * 60;
+  // The key of the charts of all the genres
+  private static final String ALL_GENRES = "";
+  // The tags of the musics played that are not in the catalog anymore
+  private static final ChartRepository.MusicTags NOT_IN_CATALOG = new ChartRepository.MusicTags(null, List.of());
+
+  private final DataSource ds;
+  private final ResourceVersions versions;
+  private final MusicCatalogCache musicCatalog;
+  private final ChartRepository chartRepo;
+  private final TrendingCounters counters;
+  private final ScheduledExecutorService extractor;
+
+  // The genre and creators of the musics played, by ID, read with the version
+  // of the catalog. Only read and written by the extractor after start().
+  private Map<Long, ChartRepository.MusicTags> musicTags = Map.of();
+  private long tagsVersion;
+
+  // By window and genre, see key()
+  private volatile Map<String, Chart> charts = Map.of();
+
+  /**
+   * @param ds           the database the plays of the last week are loaded
+   *                     from at startup, and the genre and creators of the
+   *                     musics played
+   * @param versions     the versions of the resources, to know when the
+   *                     catalog changed
+   * @param musicCatalog the cache of the musics in the charts
+   * @param chartRepo    the repository of the plays
+   * @param counters     the counters incremented by the listens
+   */
+  public ChartService(DataSource ds, ResourceVersions versions, MusicCatalogCache musicCatalog,
+      ChartRepository chartRepo, TrendingCounters counters) {
+    this.ds = ds;
+    this.versions = versions;
+    this.musicCatalog = musicCatalog;
+    this.chartRepo = chartRepo;
+    this.counters = counters;
+    this.extractor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "chart-extractor");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Loads the plays of the last week into the counters, then extracts the
+   * charts every minute.
+   *
+   * @throws RuntimeException if the plays could not be read
+   */
+  public void start() {
+    long start = System.nanoTime();
+    long now = TrendingCounters.currentMinute();
+    // The week window starts with the day six days ago, in UTC
+    long since = Math.floorDiv(now, MINUTES_PER_DAY) * MINUTES_PER_DAY - 6 * MINUTES_PER_DAY;
+    List<TrendingCounters.MinutePlays> plays;
+    try (Connection conn = ds.getConnection()) {
+      plays = chartRepo.getPlaysByMinute(conn, since);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    counters.load(plays, now);
+    extract();
+
+    LOG.info("Loaded the plays of the musics since {}, {} rows by minute, in {} ms",
+        Instant.ofEpochSecond(since * 60), plays.size(),
+        (System.nanoTime() - start) / 1_000_000);
+
+    extractor.scheduleWithFixedDelay(this::extractQuietly, EXTRACT_INTERVAL_MILLIS, EXTRACT_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Retrieves a trending chart.
+   *
+   * @param window the window of the plays counted
+   * @param genre  the genre of the musics, in any case, or null for all of
+   *               them
+   * @param limit  the maximum number of musics and of creators, at most
+   *               MAX_CHART_SIZE
+   * @return the chart, empty if nothing of the genre was played
+   */
+  public Chart getTrending(TrendingCounters.Window window, String genre, int limit) {
+    Chart chart = charts.get(key(window, genreKey(genre)));
+    if (chart == null) {
+      return new Chart(window.label(), genre, List.of(), List.of());
+    }
+    return new Chart(chart.window(), chart.genre(),
+        chart.musics().subList(0, Math.min(limit, chart.musics().size())),
+        chart.creators().subList(0, Math.min(limit, chart.creators().size())));
+  }
+
+  @Override
+  public void close() {
+    extractor.shutdownNow();
+  }
+
+  private void extractQuietly() {
+    try {
+      extract();
+    } catch (RuntimeException e) {
+      // The previous charts are kept until the next extraction
+      LOG.warn("Could not extract the trending charts", e);
+    }
+  }
+
+  private void extract() {
+    long now = TrendingCounters.currentMinute();
+    counters.seal(now);
+
+    Map<TrendingCounters.Window, BucketCounts> countsByWindow = new EnumMap<>(TrendingCounters.Window.class);
+    Set<Long> played = new HashSet<>();
+    for (TrendingCounters.Window window : TrendingCounters.Window.values()) {
+      BucketCounts counts = counters.counts(window, now);
+      countsByWindow.put(window, counts);
+      for (int i = 0; i < counts.size(); i++) {
+        played.add(counts.musicId(i));
+      }
+    }
+    Map<Long, ChartRepository.MusicTags> tags = tagsOf(played);
+
+    Map<String, Ranking> rankings = new HashMap<>();
+    for (Map.Entry<TrendingCounters.Window, BucketCounts> counts : countsByWindow.entrySet()) {
+      rank(counts.getKey(), counts.getValue(), tags, rankings);
+    }
+
+    // Only the musics in the charts are hydrated
+    Set<Long> ranked = new HashSet<>();
+    for (Ranking ranking : rankings.values()) {
+      for (MusicCount music : ranking.musics()) {
+        ranked.add(music.musicId());
+      }
+    }
+    Map<Long, Music> musics = new HashMap<>();
+    try {
+      for (Music music : musicCatalog.getAll(new ArrayList<>(ranked))) {
+        musics.put(music.musicId(), music);
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+
+    Map<String, Chart> extracted = new HashMap<>();
+    for (Map.Entry<String, Ranking> ranking : rankings.entrySet()) {
+      List<Chart.MusicPlays> musicPlays = new ArrayList<>();
+      for (MusicCount count : ranking.getValue().musics()) {
+        // Deleted since the tags were read
+        Music music = musics.get(count.musicId());
+        if (music != null) {
+          musicPlays.add(new Chart.MusicPlays(music, count.plays()));
+        }
+      }
+      extracted.put(ranking.getKey(), new Chart(ranking.getValue().window(), ranking.getValue().genre(),
+          List.copyOf(musicPlays), ranking.getValue().creators()));
+    }
+    charts = extracted;
+  }
+
+  /**
+   * Returns the genre and creators of the musics played, from the snapshot
+   * kept for the extraction. Only the musics it is missing are read, and it
+   * is read again when the catalog changes.
+   */
+  private Map<Long, ChartRepository.MusicTags> tagsOf(Set<Long> played) {
+    // Read before the catalog, a change made while it is read is seen at the
+    // next extraction
+    long version = versions.version(ResourceVersions.CATALOG);
+    Map<Long, ChartRepository.MusicTags> previous = version == tagsVersion ? musicTags : Map.of();
+
+    // Only the musics still played are kept
+    Map<Long, ChartRepository.MusicTags> tags = new HashMap<>();
+    List<Long> missing = new ArrayList<>();
+    for (Long musicId : played) {
+      ChartRepository.MusicTags musicTags = previous.get(musicId);
+      if (musicTags == null) {
+        missing.add(musicId);
+      } else {
+        tags.put(musicId, musicTags);
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<Long, ChartRepository.MusicTags> loaded;
+      try (Connection conn = ds.getConnection()) {
+        loaded = chartRepo.getTags(conn, missing);
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+      for (Long musicId : missing) {
+        tags.put(musicId, loaded.getOrDefault(musicId, NOT_IN_CATALOG));
+      }
+    }
+
+    musicTags = tags;
+    tagsVersion = version;
+    return tags;
+  }
+
+  /**
+   * Ranks the musics and creators of a window, for all the genres and for each
+   * of them.
+   */
+  private static void rank(TrendingCounters.Window window, BucketCounts counts,
+      Map<Long, ChartRepository.MusicTags> tags, Map<String, Ranking> rankings) {
+    // The most played first, then by ID so that the order is stable
+    Integer[] order = new Integer[counts.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.<Integer>comparingLong(i -> -counts.plays(i)).thenComparingLong(counts::musicId));
+
+    Map<String, String> genres = new HashMap<>();
+    genres.put(ALL_GENRES, null);
+    Map<String, List<MusicCount>> musicPlays = new HashMap<>();
+    Map<String, Map<String, Long>> creatorPlays = new HashMap<>();
+    for (int i : order) {
+      // Only plays taken back, see TrendingCounters.unrecord
+      if (counts.plays(i) <= 0) {
+        continue;
+      }
+      // The plays of musics deleted since are not counted
+      ChartRepository.MusicTags music = tags.get(counts.musicId(i));
+      if (music == null || music == NOT_IN_CATALOG) {
+        continue;
+      }
+      String[] keys = { ALL_GENRES };
+      if (music.genre() != null) {
+        keys = new String[] { ALL_GENRES, genreKey(music.genre()) };
+        genres.putIfAbsent(keys[1], music.genre());
+      }
+      for (String key : keys) {
+        List<MusicCount> top = musicPlays.computeIfAbsent(key, k -> new ArrayList<>());
+        if (top.size() < MAX_CHART_SIZE) {
+          top.add(new MusicCount(counts.musicId(i), counts.plays(i)));
+        }
+        Map<String, Long> creators = creatorPlays.computeIfAbsent(key, k -> new HashMap<>());
+        for (String creatorName : music.creatorNames()) {
+          creators.merge(creatorName, counts.plays(i), Long::sum);
+        }
+      }
+    }
+
+    for (Map.Entry<String, String> genre : genres.entrySet()) {
+      rankings.put(key(window, genre.getKey()), new Ranking(window.label(), genre.getValue(),
+          musicPlays.getOrDefault(genre.getKey(), List.of()),
+          topCreators(creatorPlays.getOrDefault(genre.getKey(), Map.of()))));
+    }
+  }
+
+  private static List<Chart.CreatorPlays> topCreators(Map<String, Long> plays) {
+    return plays.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+        .limit(MAX_CHART_SIZE)
+        .map(entry -> new Chart.CreatorPlays(entry.getKey(), entry.getValue()))
+        .toList();
+  }
+
+  private record MusicCount(long musicId, long plays) {
+  }
+
+  private record Ranking(String window, String genre, List<MusicCount> musics,
+      List<Chart.CreatorPlays> creators) {
+  }
+
+  private static String key(TrendingCounters.Window window, String genreKey) {
+    return window.label() + "/" + genreKey;
+  }
+
+  private static String genreKey(String genre) {
+    return genre == null ? ALL_GENRES : genre.toLowerCase(Locale.ROOT);
+  }
+}
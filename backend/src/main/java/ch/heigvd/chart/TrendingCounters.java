@@ -0,0 +1,295 @@
+package ch.heigvd.chart;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the plays of each music over the last hour, day and week, in memory,
+ * so that the trending charts never aggregate the listens in the database.
+ *
+ * A listen increments the counter of its music in the bucket of the current
+ * minute, without taking any lock. Once a minute is over, its bucket is
+ * sealed into sorted arrays and added to the bucket of its hour and of its
+ * day. The plays of a window are the sum of the buckets starting inside it:
+ * the last hour is counted by minute, the last day by hour and the last week
+ * by day, so the oldest hour or day of a window is dropped at once.
+ *
+ * The times are the minutes of the clock since 1970-01-01T00:00Z, in UTC, so
+ * that they never go back when the local time does at the end of the daylight
+ * saving time: the hours and days are those of UTC. The local times of the
+ * listens stored in spotish.ecoute are converted once, when they are read
+ * (ChartRepository.getPlaysByMinute).
+ */
+public class TrendingCounters {
+  private static final int MINUTES_PER_HOUR = 60;
+  private static final int MINUTES_PER_DAY = 24 * MINUTES_PER_HOUR;
+
+  /**
+   * The windows of the charts.
+   */
+  public enum Window {
+    HOUR("1h", MINUTES_PER_HOUR),
+    DAY("24h", MINUTES_PER_DAY),
+    WEEK("7d", 7 * MINUTES_PER_DAY);
+
+    private final String label;
+    private final int minutes;
+
+    Window(String label, int minutes) {
+      this.label = label;
+      this.minutes = minutes;
+    }
+
+    /**
+     * @return the window as given in the requests, e.g. "24h"
+     */
+    public String label() {
+      return label;
+    }
+
+    /**
+     * @return the window of a label, null if there is none
+     */
+    public static Window of(String label) {
+      for (Window window : values()) {
+        if (window.label.equals(label)) {
+          return window;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * The plays of a music during a minute, as read from the database.
+   *
+   * @param minute  the minute, see currentMinute
+   * @param musicId the unique identifier of the music
+   * @param plays   the number of plays
+   */
+  public record MinutePlays(long minute, long musicId, long plays) {
+  }
+
+  // The bucket incremented by the listens, then the buckets of the previous
+  // minutes, which can still be incremented by a listen that read the current
+  // bucket before it was replaced
+  private final AtomicReference<LiveBucket> current = new AtomicReference<>(
+      new LiveBucket(Long.MIN_VALUE));
+  private final ConcurrentLinkedQueue<LiveBucket> closed = new ConcurrentLinkedQueue<>();
+
+  // Sealed buckets, the oldest first, guarded by this
+  private final Deque<Bucket> minutes = new ArrayDeque<>();
+  private final Deque<Bucket> hours = new ArrayDeque<>();
+  private final Deque<Bucket> days = new ArrayDeque<>();
+  private Bucket hour;
+  private Bucket day;
+
+  /**
+   * @return the current minute of the clock, in minutes since
+   *         1970-01-01T00:00Z
+   */
+  public static long currentMinute() {
+    return Math.floorDiv(System.currentTimeMillis(), 60_000);
+  }
+
+  /**
+   * Counts a play of a music now.
+   *
+   * @param musicId the unique identifier of the music
+   */
+  public void record(long musicId) {
+    liveBucket().add(musicId, 1);
+  }
+
+  /**
+   * Takes back a play of a music counted earlier, that will never be written.
+   * It is subtracted from the current minute, the listen having been counted
+   * shortly before.
+   *
+   * @param musicId the unique identifier of the music
+   */
+  public void unrecord(long musicId) {
+    liveBucket().add(musicId, -1);
+  }
+
+  private LiveBucket liveBucket() {
+    long minute = currentMinute();
+    LiveBucket bucket = current.get();
+    if (bucket.minute != minute) {
+      bucket = roll(minute);
+    }
+    return bucket;
+  }
+
+  /**
+   * Loads plays read from the database, at startup.
+   *
+   * @param plays the plays, by minute in chronological order, then by music
+   * @param now   the current minute
+   */
+  public synchronized void load(List<MinutePlays> plays, long now) {
+    int from = 0;
+    while (from < plays.size()) {
+      long minute = plays.get(from).minute();
+      int to = from;
+      while (to < plays.size() && plays.get(to).minute() == minute) {
+        to++;
+      }
+      long[] musicIds = new long[to - from];
+      long[] counts = new long[to - from];
+      for (int i = from; i < to; i++) {
+        musicIds[i - from] = plays.get(i).musicId();
+        counts[i - from] = plays.get(i).plays();
+      }
+      add(new Bucket(minute, new BucketCounts(musicIds, counts)));
+      from = to;
+    }
+    evict(now);
+  }
+
+  /**
+   * Seals the buckets of the minutes over for more than a minute, the delay
+   * letting the listens that were counting in them finish.
+   *
+   * @param now the current minute
+   */
+  public synchronized void seal(long now) {
+    roll(now);
+    while (closed.peek() != null && closed.peek().minute < now - 1) {
+      LiveBucket bucket = closed.poll();
+      if (!bucket.counters.isEmpty()) {
+        add(new Bucket(bucket.minute, BucketCounts.of(bucket.counters)));
+      }
+    }
+    evict(now);
+  }
+
+  /**
+   * @param window the window
+   * @param now    the current minute
+   * @return the plays of each music during the window
+   */
+  synchronized BucketCounts counts(Window window, long now) {
+    long start = now - window.minutes;
+    BucketCounts counts = BucketCounts.EMPTY;
+    switch (window) {
+      case HOUR -> counts = sum(counts, minutes, start);
+      case DAY -> counts = sum(counts, hours, start).plus(sum(hour, start));
+      case WEEK -> counts = sum(counts, days, start).plus(sum(day, start));
+    }
+
+    // The minutes not sealed yet
+    List<LiveBucket> live = new ArrayList<>(closed);
+    live.add(current.get());
+    for (LiveBucket bucket : live) {
+      if (bucket.minute > start) {
+        counts = counts.plus(BucketCounts.of(bucket.counters));
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @param minute the minute of the clock
+   * @return the bucket of the minute, replacing the current one if it is older
+   */
+  private LiveBucket roll(long minute) {
+    LiveBucket bucket = current.get();
+    while (bucket.minute < minute) {
+      LiveBucket next = new LiveBucket(minute);
+      if (current.compareAndSet(bucket, next)) {
+        closed.add(bucket);
+        return next;
+      }
+      bucket = current.get();
+    }
+    return bucket;
+  }
+
+  private void add(Bucket minute) {
+    minutes.addLast(minute);
+
+    long hourStart = Math.floorDiv(minute.start, MINUTES_PER_HOUR) * MINUTES_PER_HOUR;
+    if (hour != null && hour.start == hourStart) {
+      hour = new Bucket(hourStart, hour.counts.plus(minute.counts));
+    } else {
+      if (hour != null) {
+        hours.addLast(hour);
+      }
+      hour = new Bucket(hourStart, minute.counts);
+    }
+
+    long dayStart = Math.floorDiv(minute.start, MINUTES_PER_DAY) * MINUTES_PER_DAY;
+    if (day != null && day.start == dayStart) {
+      day = new Bucket(dayStart, day.counts.plus(minute.counts));
+    } else {
+      if (day != null) {
+        days.addLast(day);
+      }
+      day = new Bucket(dayStart, minute.counts);
+    }
+  }
+
+  private void evict(long now) {
+    evict(minutes, now - Window.HOUR.minutes);
+    evict(hours, now - Window.DAY.minutes);
+    evict(days, now - Window.WEEK.minutes);
+  }
+
+  private static void evict(Deque<Bucket> buckets, long start) {
+    while (!buckets.isEmpty() && buckets.peekFirst().start <= start) {
+      buckets.removeFirst();
+    }
+  }
+
+  private static BucketCounts sum(BucketCounts counts, Iterable<Bucket> buckets, long start) {
+    for (Bucket bucket : buckets) {
+      counts = counts.plus(sum(bucket, start));
+    }
+    return counts;
+  }
+
+  /**
+   * @return the counts of the bucket if it starts after start, none otherwise
+   */
+  private static BucketCounts sum(Bucket bucket, long start) {
+    return bucket != null && bucket.start > start ? bucket.counts : BucketCounts.EMPTY;
+  }
+
+  /**
+   * A sealed bucket.
+   *
+   * @param start  the first minute of the bucket
+   * @param counts the plays of each music
+   */
+  private record Bucket(long start, BucketCounts counts) {
+  }
+
+  /**
+   * The bucket of a minute, incremented by the listens.
+   */
+  private static final class LiveBucket {
+    private final long minute;
+    private final ConcurrentHashMap<Long, LongAdder> counters = new ConcurrentHashMap<>();
+
+    LiveBucket(long minute) {
+      this.minute = minute;
+    }
+
+    void add(long musicId, long plays) {
+      // The lookup of an existing counter does not lock, only its first
+      // insertion does
+      LongAdder counter = counters.get(musicId);
+      if (counter == null) {
+        counter = counters.computeIfAbsent(musicId, id -> new LongAdder());
+      }
+      counter.add(plays);
+    }
+  }
+}
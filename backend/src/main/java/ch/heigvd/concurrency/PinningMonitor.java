@@ -0,0 +1,111 @@
+package ch.heigvd.concurrency;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the times a virtual thread blocked while pinned to its carrier
+ * thread, e.g. on I/O inside a synchronized block of the JDBC driver.
+ *
+ * A pinned virtual thread keeps its carrier (an OS thread) busy while it
+ * waits, so enough of them stall every request. The events come from the
+ * jdk.VirtualThreadPinned event of Java Flight Recorder, streamed in-process.
+ * They are grouped by the first frame outside of the JDK, which is the code
+ * that entered the synchronized section.
+ */
+public class PinningMonitor implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(PinningMonitor.class);
+
+  private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+  // Shorter pins do not hold a carrier long enough to matter
+  private static final Duration THRESHOLD = Duration.ofMillis(1);
+  // Bounds the memory used by the sites if the pins come from many places
+  private static final int MAX_SITES = 100;
+  private static final String OTHER_SITES = "(other)";
+  private static final int TOP_SITES = 10;
+
+  private final RecordingStream stream = new RecordingStream();
+  private final AtomicLong events = new AtomicLong();
+  private final AtomicLong pinnedNanos = new AtomicLong();
+  private final Map<String, LongAdder> sites = new ConcurrentHashMap<>();
+
+  public PinningMonitor() {
+    stream.enable(PINNED_EVENT).withThreshold(THRESHOLD).withStackTrace();
+    stream.onEvent(PINNED_EVENT, this::record);
+  }
+
+  /**
+   * Starts listening to the events in a background thread.
+   */
+  public void start() {
+    stream.startAsync();
+    LOG.info("Monitoring virtual threads pinned for more than {} ms", THRESHOLD.toMillis());
+  }
+
+  /**
+   * @return the pins recorded since the start
+   */
+  public Stats stats() {
+    Map<String, Long> topSites = new LinkedHashMap<>();
+    sites.entrySet().stream()
+        .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> site) -> site.getValue().sum()).reversed())
+        .limit(TOP_SITES)
+        .forEach(site -> topSites.put(site.getKey(), site.getValue().sum()));
+
+    return new Stats(events.get(), Duration.ofNanos(pinnedNanos.get()).toMillis(), topSites);
+  }
+
+  @Override
+  public void close() {
+    stream.close();
+  }
+
+  private void record(RecordedEvent event) {
+    events.incrementAndGet();
+    pinnedNanos.addAndGet(event.getDuration().toNanos());
+
+    String site = site(event.getStackTrace());
+    if (sites.size() >= MAX_SITES && !sites.containsKey(site)) {
+      site = OTHER_SITES;
+    }
+    sites.computeIfAbsent(site, key -> new LongAdder()).increment();
+  }
+
+  private static String site(RecordedStackTrace stackTrace) {
+    if (stackTrace == null) {
+      return OTHER_SITES;
+    }
+    List<RecordedFrame> frames = stackTrace.getFrames();
+    for (RecordedFrame frame : frames) {
+      String type = frame.getMethod().getType().getName();
+      if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+        return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+      }
+    }
+    return frames.isEmpty() ? OTHER_SITES : frames.get(0).getMethod().getType().getName();
+  }
+
+  /**
+   * Pins recorded since the start.
+   *
+   * @param events   the number of pins longer than the threshold
+   * @param pinnedMs the total time the carriers were pinned
+   * @param topSites the number of pins of the sites pinning most often
+   */
+  public record Stats(long events, long pinnedMs, Map<String, Long> topSites) {
+  }
+}
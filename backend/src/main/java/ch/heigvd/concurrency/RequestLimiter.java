@@ -0,0 +1,153 @@
+package ch.heigvd.concurrency;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Admission control of the requests, sized after the connection pool.
+ *
+ * Every request needs a permit to be handled. Once all the permits are taken,
+ * the following requests wait in a bounded queue for at most a timeout. With
+ * virtual threads this wait is cheap, a waiting request only holds a small
+ * heap object, so the queue can be much longer than the pool. With platform
+ * threads a waiting request parks a thread of Jetty's pool, the queue must
+ * then be shorter than the threads left once the permits are taken. When the
+ * queue is full or the timeout expires, the request is answered 503 right
+ * away instead of waiting for a connection until Hikari's own timeout.
+ */
+public class RequestLimiter {
+  private static final String PERMIT_ATTRIBUTE = RequestLimiter.class.getName() + ".permit";
+  // Seconds the clients are asked to wait before retrying a rejected request
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final Duration queueTimeout;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong rejectedQueueFull = new AtomicLong();
+  private final AtomicLong rejectedTimeout = new AtomicLong();
+  private final AtomicLong queuedNanos = new AtomicLong();
+
+  /**
+   * @param maxConcurrent the number of requests handled at the same time
+   * @param maxQueued     the number of requests allowed to wait for a permit
+   * @param queueTimeout  how long a request waits for a permit at most
+   */
+  public RequestLimiter(int maxConcurrent, int maxQueued, Duration queueTimeout) {
+    if (maxConcurrent < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("maxConcurrent must be positive and maxQueued must not be negative");
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeout = queueTimeout;
+    // Fair, so that the requests are admitted in the order they arrived
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Takes a permit for the request, waiting in the queue if needed. To be
+   * registered as a before handler.
+   *
+   * @param ctx the context of the request
+   * @throws ServiceUnavailableResponse if the queue is full or no permit was
+   *                                    released in time
+   */
+  public void acquire(Context ctx) throws InterruptedException {
+    // Unlike tryAcquire(), a timed tryAcquire respects the fairness, so new
+    // requests do not take the permits from under the waiting ones
+    if (!permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+      if (queued.incrementAndGet() > maxQueued) {
+        queued.decrementAndGet();
+        rejectedQueueFull.incrementAndGet();
+        throw unavailable(ctx, "Too many requests are waiting, try again later");
+      }
+
+      long start = System.nanoTime();
+      boolean acquired;
+      try {
+        acquired = permits.tryAcquire(queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+      } finally {
+        queued.decrementAndGet();
+        queuedNanos.addAndGet(System.nanoTime() - start);
+      }
+      if (!acquired) {
+        rejectedTimeout.incrementAndGet();
+        throw unavailable(ctx, "The server is overloaded, try again later");
+      }
+    }
+
+    ctx.attribute(PERMIT_ATTRIBUTE, true);
+    admitted.incrementAndGet();
+  }
+
+  /**
+   * Gives the permit of the request back. To be registered as an after
+   * handler, which also runs when the request failed.
+   *
+   * @param ctx the context of the request
+   */
+  public void release(Context ctx) {
+    // Rejected requests never got a permit
+    if (ctx.attribute(PERMIT_ATTRIBUTE) != null) {
+      ctx.attribute(PERMIT_ATTRIBUTE, null);
+      permits.release();
+    }
+  }
+
+  /**
+   * @return the current state and counters of the limiter
+   */
+  public Stats stats() {
+    long admittedCount = admitted.get();
+    return new Stats(
+        maxConcurrent,
+        maxQueued,
+        queueTimeout.toMillis(),
+        maxConcurrent - permits.availablePermits(),
+        queued.get(),
+        admittedCount,
+        rejectedQueueFull.get(),
+        rejectedTimeout.get(),
+        TimeUnit.NANOSECONDS.toMillis(queuedNanos.get()));
+  }
+
+  private static ServiceUnavailableResponse unavailable(Context ctx, String message) {
+    ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+    return new ServiceUnavailableResponse(message);
+  }
+
+  /**
+   * State of the limiter.
+   *
+   * @param maxConcurrent     the number of requests handled at the same time
+   * @param maxQueued         the number of requests allowed to wait
+   * @param queueTimeoutMs    how long a request waits for a permit at most
+   * @param inFlight          the requests currently handled
+   * @param queued            the requests currently waiting
+   * @param admitted          the requests handled since the start
+   * @param rejectedQueueFull the requests rejected because the queue was full
+   * @param rejectedTimeout   the requests rejected after waiting too long
+   * @param queuedMs          the total time spent waiting by the requests
+   */
+  public record Stats(
+      int maxConcurrent,
+      int maxQueued,
+      long queueTimeoutMs,
+      int inFlight,
+      int queued,
+      long admitted,
+      long rejectedQueueFull,
+      long rejectedTimeout,
+      long queuedMs) {
+  }
+}
@@ -10,8 +10,33 @@ import java.util.List;
 
 import ch.heigvd.entities.Album;
 import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicCatalogCache;
 
 public class CreatorRepository {
+  private static final String GET_ALBUMS_OF_CREATOR_SQL = """
+      /* CreatorRepository.getAlbumsOfCreator */
+      SELECT a.idalbum AS albumId, m.titre AS title, cm.nomcreateur as
+           creatorName, m.datedesortie AS releaseDate
+      FROM spotish.createur_media cm
+      JOIN spotish.album a           ON cm.idmedia = a.idalbum
+      JOIN spotish.media m           ON a.idalbum = m.idmedia
+      WHERE cm.nomcreateur = ?;
+      """;
+
+  // Only the IDs are read here, the musics themselves come from the catalog
+  private static final String GET_MUSICS_OF_ALBUM_OF_CREATOR_SQL = """
+      /* CreatorRepository.getMusicsOfAlbumOfCreator */
+      SELECT ac.idchanson AS musicId
+      FROM spotish.createur_media cm
+      JOIN spotish.album_chanson ac  ON cm.idmedia = ac.idalbum
+      WHERE cm.nomcreateur = ? AND ac.idalbum = ?;
+      """;
+
+  private final MusicCatalogCache musicCatalog;
+
+  public CreatorRepository(MusicCatalogCache musicCatalog) {
+    this.musicCatalog = musicCatalog;
+  }
 
   /**
    * Retrieves the list of albums for a given creator.
@@ -22,15 +47,7 @@ public class CreatorRepository {
    * @throws SQLException if a database access error occurs
    */
   public List<Album> getAlbumsOfCreator(Connection conn, String creatorName) throws SQLException {
-    String sql = """
-        SELECT a.idalbum AS albumId, m.titre AS title, cm.nomcreateur as
-             creatorName, m.datedesortie AS releaseDate
-        FROM spotish.createur_media cm
-        JOIN spotish.album a           ON cm.idmedia = a.idalbum
-        JOIN spotish.media m           ON a.idalbum = m.idmedia
-        WHERE cm.nomcreateur = ?;
-                """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALBUMS_OF_CREATOR_SQL)) {
       ps.setString(1, creatorName);
       ResultSet rs = ps.executeQuery();
       List<Album> albums = new ArrayList<>();
@@ -57,32 +74,15 @@ public class CreatorRepository {
    * @throws SQLException if a database access error occurs
    */
   public List<Music> getMusicsOfAlbumOfCreator(Connection conn, String creatorName, Long albumId) throws SQLException {
-    String sql = """
-        SELECT c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-               STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM spotish.createur_media cm
-        JOIN spotish.album_chanson ac  ON cm.idmedia = ac.idalbum
-        JOIN spotish.chanson c         ON ac.idchanson = c.idchanson
-        JOIN spotish.media m           ON m.idmedia = c.idchanson
-        WHERE cm.nomcreateur = ? AND ac.idalbum = ?
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_MUSICS_OF_ALBUM_OF_CREATOR_SQL)) {
       ps.setString(1, creatorName);
       ps.setLong(2, albumId);
       ResultSet rs = ps.executeQuery();
-      List<Music> musics = new ArrayList<>();
+      List<Long> musicIds = new ArrayList<>();
       while (rs.next()) {
-        Music music = new Music(
-            rs.getLong("musicId"),
-            rs.getString("title"),
-            rs.getObject("releaseDate", LocalDate.class),
-            rs.getInt("duration"),
-            rs.getString("genre"),
-            rs.getString("creatorNames"));
-        musics.add(music);
+        musicIds.add(rs.getLong("musicId"));
       }
-      return musics;
+      return musicCatalog.getAll(conn, musicIds);
     }
   }
 }
@@ -0,0 +1,29 @@
+package ch.heigvd.entities;
+
+import java.util.List;
+
+/**
+ * Trending chart: the most played musics and creators over a recent window,
+ * the most played first.
+ *
+ * @param window   the window, "1h", "24h" or "7d"
+ * @param genre    the genre of the musics counted, null for all of them
+ * @param musics   the most played musics, with their plays
+ * @param creators the creators whose musics were the most played, with their
+ *                 plays
+ */
+public record Chart(String window, String genre, List<MusicPlays> musics, List<CreatorPlays> creators) {
+  /**
+   * @param music the music
+   * @param plays the number of plays during the window
+   */
+  public record MusicPlays(Music music, long plays) {
+  }
+
+  /**
+   * @param creatorName the name of the creator (artist or groupe)
+   * @param plays       the number of plays of its musics during the window
+   */
+  public record CreatorPlays(String creatorName, long plays) {
+  }
+}
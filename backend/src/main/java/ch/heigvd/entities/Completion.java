@@ -0,0 +1,12 @@
+package ch.heigvd.entities;
+
+/**
+ * A completion of the type-ahead: a title or a creator name.
+ *
+ * @param text the title of the music or album, or the name of the creator
+ * @param kind "music", "album" or "creator"
+ * @param id   the unique identifier of the music or album, null for a
+ *             creator, identified by its name
+ */
+public record Completion(String text, String kind, Long id) {
+}
@@ -0,0 +1,14 @@
+package ch.heigvd.entities;
+
+import java.time.LocalDateTime;
+
+/**
+ * Listen record representing one play of a music by a user (a row of
+ * spotish.ecoute).
+ *
+ * @param username   the username of the user who listened to the music
+ * @param musicId    the unique identifier of the music listened to
+ * @param listenedAt the date and time of the listen
+ */
+public record Listen(String username, Long musicId, LocalDateTime listenedAt) {
+}
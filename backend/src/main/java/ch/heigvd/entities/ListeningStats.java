@@ -0,0 +1,44 @@
+package ch.heigvd.entities;
+
+import java.util.List;
+
+/**
+ * Listening statistics of a user over a year. The listening times are the
+ * durations of the musics listened to, in seconds.
+ *
+ * @param username      the username of the user
+ * @param year          the year
+ * @param listens       the number of listens during the year
+ * @param listeningTime the time spent listening during the year
+ * @param topGenres     the genres listened to the longest, the longest first
+ * @param topCreators   the creators listened to the longest, the longest
+ *                      first
+ * @param months        the listens of each month with at least one, in
+ *                      chronological order
+ */
+public record ListeningStats(String username, int year, long listens, long listeningTime,
+    List<GenreStats> topGenres, List<CreatorStats> topCreators, List<MonthStats> months) {
+  /**
+   * @param genre         the genre
+   * @param listens       the number of listens of musics of the genre
+   * @param listeningTime the time spent listening to musics of the genre
+   */
+  public record GenreStats(String genre, long listens, long listeningTime) {
+  }
+
+  /**
+   * @param creatorName   the name of the creator (artist or groupe)
+   * @param listens       the number of listens of musics of the creator
+   * @param listeningTime the time spent listening to musics of the creator
+   */
+  public record CreatorStats(String creatorName, long listens, long listeningTime) {
+  }
+
+  /**
+   * @param month         the month, from 1 to 12
+   * @param listens       the number of listens during the month
+   * @param listeningTime the time spent listening during the month
+   */
+  public record MonthStats(int month, long listens, long listeningTime) {
+  }
+}
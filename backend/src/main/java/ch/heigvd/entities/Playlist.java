@@ -13,4 +13,14 @@ public record Playlist(Long id, String name, String description, String creatorN
   public Playlist setCreatorName(String creatorName) {
     return new Playlist(this.id, this.name, this.description, creatorName, this.musics);
   }
+
+  /**
+   * Returns a new Playlist instance with the specified musics.
+   *
+   * @param musics the list of musics to set
+   * @return a new Playlist instance with the updated musics
+   */
+  public Playlist setMusics(List<Music> musics) {
+    return new Playlist(this.id, this.name, this.description, this.creatorName, musics);
+  }
 }
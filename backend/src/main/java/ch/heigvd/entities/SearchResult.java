@@ -0,0 +1,15 @@
+package ch.heigvd.entities;
+
+import java.util.List;
+
+/**
+ * Hits of a search in the catalog, by kind, the best hit first.
+ *
+ * @param musics   the musics whose title or creators match
+ * @param albums   the albums whose title or creator match, without their
+ *                 musics
+ * @param creators the creators whose name matches, without their artists and
+ *                 albums
+ */
+public record SearchResult(List<Music> musics, List<Album> albums, List<Creator> creators) {
+}
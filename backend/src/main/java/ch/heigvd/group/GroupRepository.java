@@ -9,6 +9,30 @@ import java.util.List;
 import ch.heigvd.entities.Creator;
 
 public class GroupRepository {
+  private static final String GET_ONE_SQL = """
+            /* GroupRepository.getOne */
+            SELECT cr.nomcreateur AS groupName, cr.nomGerant AS managerName
+      FROM spotish.createur cr
+      INNER JOIN spotish.groupe g ON cr.nomcreateur = g.nomgroupe
+      WHERE g.nomgroupe = ?;
+      """;
+
+  private static final String GET_ARTISTS_OF_GROUP_SQL = """
+          /* GroupRepository.getArtistsOfGroup */
+          SELECT a.nomartiste AS artistName
+      FROM spotish.groupe g
+      JOIN spotish.artiste a ON g.nomgroupe = a.nomgroupe
+      JOIN spotish.createur cr ON a.nomartiste = cr.nomcreateur
+      WHERE g.nomgroupe = ?;
+      """;
+
+  private static final String EXISTS_SQL = """
+          /* GroupRepository.exists */
+          SELECT 1
+      FROM spotish.groupe g
+      WHERE g.nomgroupe = ?;
+      """;
+
   /**
    * Retrieves a group by its name, including its artists.
    *
@@ -18,13 +42,7 @@ public class GroupRepository {
    *         if not found
    */
   public Creator getOne(Connection conn, String groupName) {
-    String sql = """
-              SELECT cr.nomcreateur AS groupName, cr.nomGerant AS managerName
-        FROM spotish.createur cr
-        INNER JOIN spotish.groupe g ON cr.nomcreateur = g.nomgroupe
-        WHERE g.nomgroupe = ?;
-                    """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ONE_SQL)) {
       ps.setString(1, groupName);
       try (ResultSet rs = ps.executeQuery()) {
         if (rs.next()) {
@@ -49,14 +67,7 @@ public class GroupRepository {
    * @return a list of artist names belonging to the specified group
    */
   public List<String> getArtistsOfGroup(Connection conn, String groupName) {
-    String sql = """
-            SELECT a.nomartiste AS artistName
-        FROM spotish.groupe g
-        JOIN spotish.artiste a ON g.nomgroupe = a.nomgroupe
-        JOIN spotish.createur cr ON a.nomartiste = cr.nomcreateur
-        WHERE g.nomgroupe = ?;
-            """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ARTISTS_OF_GROUP_SQL)) {
       ps.setString(1, groupName);
       try (ResultSet rs = ps.executeQuery()) {
         List<String> artists = new ArrayList<>();
@@ -79,12 +90,7 @@ public class GroupRepository {
    * @return true if the group exists, false otherwise
    */
   public boolean exists(Connection conn, String groupName) {
-    String sql = """
-            SELECT 1
-        FROM spotish.groupe g
-        WHERE g.nomgroupe = ?;
-            """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(EXISTS_SQL)) {
       ps.setString(1, groupName);
       try (ResultSet rs = ps.executeQuery()) {
         return rs.next();
@@ -0,0 +1,59 @@
+package ch.heigvd.listen;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import ch.heigvd.entities.Listen;
+
+public class ListenRepository {
+  // The three arrays are unnested side by side, which gives us one row per
+  // listen without having to build a multi-row VALUES clause by hand
+  private static final String INSERT_BATCH_SQL = """
+      /* ListenRepository.insertBatch */
+      INSERT INTO spotish.ecoute (nomutilisateur, idchanson, dateheureecoute)
+      SELECT l.nomutilisateur, l.idchanson, l.dateheureecoute
+      FROM unnest(?::varchar[], ?::bigint[], ?::timestamp[]) AS l(nomutilisateur, idchanson, dateheureecoute)
+      JOIN spotish.utilisateur u ON u.nomutilisateur = l.nomutilisateur
+      JOIN spotish.chanson c     ON c.idchanson = l.idchanson
+      ON CONFLICT DO NOTHING;
+      """;
+
+  /**
+   * Inserts a batch of listens in a single statement.
+   *
+   * Listens referencing an unknown user or music are silently skipped, as are
+   * duplicates of an already recorded listen, so one bad entry never makes the
+   * whole batch fail.
+   *
+   * @param conn    the database connection
+   * @param listens the listens to insert
+   * @return the number of rows inserted
+   * @throws SQLException if a database access error occurs
+   */
+  public int insertBatch(Connection conn, List<Listen> listens) throws SQLException {
+    String[] usernames = new String[listens.size()];
+    Long[] musicIds = new Long[listens.size()];
+    Timestamp[] listenedAts = new Timestamp[listens.size()];
+    for (int i = 0; i < listens.size(); i++) {
+      Listen listen = listens.get(i);
+      usernames[i] = listen.username();
+      musicIds[i] = listen.musicId();
+      listenedAts[i] = Timestamp.valueOf(listen.listenedAt());
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement(INSERT_BATCH_SQL)) {
+      Array usernamesArray = conn.createArrayOf("varchar", usernames);
+      Array musicIdsArray = conn.createArrayOf("bigint", musicIds);
+      Array listenedAtsArray = conn.createArrayOf("timestamp", listenedAts);
+      ps.setArray(1, usernamesArray);
+      ps.setArray(2, musicIdsArray);
+      ps.setArray(3, listenedAtsArray);
+
+      return ps.executeUpdate();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package ch.heigvd.listen;
+
+/**
+ * Outcome of recording listens.
+ *
+ * @param accepted the number of listens queued for writing
+ * @param dropped  the number of listens rejected because the queue of the
+ *                 {@link ListenWriter} was full
+ * @param rejected the number of listens rejected because their music does not
+ *                 exist
+ */
+public record ListenResult(int accepted, int dropped, int rejected) {
+}
@@ -0,0 +1,317 @@
+package ch.heigvd.listen;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.entities.Listen;
+
+/**
+ * Write-behind buffer for listens.
+ *
+ * Request threads only push listens into a bounded in-memory queue. A single
+ * background thread drains the queue and writes the listens in batches, so
+ * recording a play never checks a connection out of the pool on the request
+ * path. When the queue is full, new listens are dropped instead of blocking
+ * the caller.
+ *
+ * The listens were already answered and counted in memory when they are
+ * written, so a batch is never given up because the database is unreachable:
+ * it is written again with a growing delay until it succeeds, the inserts
+ * ignoring the listens written by a previous attempt. Only the listens the
+ * database refuses are given up, the batch being split until they are
+ * isolated, and handed to the rejection handler to be uncounted. The listens
+ * written are handed to the written handler, e.g. to release what was kept
+ * in memory until then.
+ */
+public class ListenWriter implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(ListenWriter.class);
+
+  private static final int QUEUE_CAPACITY = 100_000;
+  private static final int MAX_BATCH_SIZE = 1_000;
+  private static final long FLUSH_INTERVAL_MILLIS = 500;
+  private static final long CLOSE_TIMEOUT_MILLIS = 30_000;
+  private static final long MIN_RETRY_DELAY_MILLIS = 100;
+  private static final long MAX_RETRY_DELAY_MILLIS = 10_000;
+
+  private final DataSource ds;
+  private final ListenRepository listenRepo;
+  private final BlockingQueue<Listen> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final Thread worker;
+
+  // Held to queue listens, and exclusively to stop accepting them, so that
+  // no listen is queued once the worker may have drained the queue for good
+  private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+  private volatile boolean running = true;
+  private volatile Consumer<List<Listen>> rejectionHandler = listens -> {
+  };
+  private volatile Consumer<List<Listen>> writtenHandler = listens -> {
+  };
+  // The listens of the batch being written again
+  private volatile int retrying;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+
+  public ListenWriter(DataSource ds, ListenRepository listenRepo) {
+    this.ds = ds;
+    this.listenRepo = listenRepo;
+    this.worker = new Thread(this::run, "listen-writer");
+    // The JVM must not wait for this thread, close() takes care of the flush
+    this.worker.setDaemon(true);
+  }
+
+  /**
+   * Sets what is done with the listens the database refused, which will never
+   * be written. Called by the writer thread, before start().
+   *
+   * @param rejectionHandler takes the listens refused
+   */
+  public void onRejected(Consumer<List<Listen>> rejectionHandler) {
+    this.rejectionHandler = rejectionHandler;
+  }
+
+  /**
+   * Sets what is done with the listens once written, each batch or part of a
+   * batch as soon as it is committed. Called by the writer thread, with a
+   * list only valid during the call, before start().
+   *
+   * @param writtenHandler takes the listens written
+   */
+  public void onWritten(Consumer<List<Listen>> writtenHandler) {
+    this.writtenHandler = writtenHandler;
+  }
+
+  /**
+   * Starts the background writer thread.
+   */
+  public void start() {
+    worker.start();
+  }
+
+  /**
+   * Queues listens to be written to the database.
+   *
+   * @param listens the listens to queue
+   * @return how many listens were accepted, the first ones. The others were
+   *         dropped.
+   */
+  public int submit(List<Listen> listens) {
+    int acceptedCount = 0;
+    submitLock.readLock().lock();
+    try {
+      // Once closed, nothing would drain the queue anymore
+      if (running) {
+        for (Listen listen : listens) {
+          if (!queue.offer(listen)) {
+            break;
+          }
+          acceptedCount++;
+        }
+      }
+    } finally {
+      submitLock.readLock().unlock();
+    }
+    int droppedCount = listens.size() - acceptedCount;
+
+    accepted.addAndGet(acceptedCount);
+    dropped.addAndGet(droppedCount);
+
+    return acceptedCount;
+  }
+
+  /**
+   * @return the total number of listens accepted since startup
+   */
+  public long acceptedCount() {
+    return accepted.get();
+  }
+
+  /**
+   * @return the total number of listens dropped because the queue was full
+   */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the total number of listens handed to the database
+   */
+  public long writtenCount() {
+    return written.get();
+  }
+
+  /**
+   * @return the total number of listens refused by the database, which were
+   *         given up
+   */
+  public long rejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return the total number of times a batch was written again after a
+   *         transient failure
+   */
+  public long retryCount() {
+    return retries.get();
+  }
+
+  /**
+   * @return the number of listens waiting to be written
+   */
+  public int pendingCount() {
+    return queue.size() + retrying;
+  }
+
+  /**
+   * Stops accepting listens and waits until the queued ones are written.
+   */
+  @Override
+  public void close() {
+    submitLock.writeLock().lock();
+    try {
+      running = false;
+    } finally {
+      submitLock.writeLock().unlock();
+    }
+    try {
+      worker.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (pendingCount() > 0) {
+      LOG.warn("{} listens could not be flushed before shutdown", pendingCount());
+    }
+  }
+
+  private void run() {
+    List<Listen> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+    // Keep draining after close() until the queue is empty
+    while (running || !queue.isEmpty()) {
+      try {
+        Listen first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+        write(batch);
+      } catch (InterruptedException e) {
+        // Only close() is supposed to stop us
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes a batch, again after each transient failure until it succeeds.
+   */
+  private void write(List<Listen> batch) throws InterruptedException {
+    // The parts of the batch left to write, split when the database refuses
+    // one of their listens
+    Deque<List<Listen>> parts = new ArrayDeque<>();
+    parts.push(batch);
+    long delayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    while (!parts.isEmpty()) {
+      try (Connection conn = ds.getConnection()) {
+        writeParts(conn, parts);
+      } catch (SQLException | RuntimeException e) {
+        // The connection could not be taken or was lost: nothing says the
+        // listens are wrong, they are written again
+        int left = parts.stream().mapToInt(List::size).sum();
+        retrying = left;
+        retries.incrementAndGet();
+        LOG.warn("Failed to write {} listens, retrying in {} ms", left, delayMillis, e);
+        Thread.sleep(delayMillis);
+        delayMillis = Math.min(delayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+      }
+    }
+    retrying = 0;
+  }
+
+  /**
+   * Writes the parts one after the other, removing each once written.
+   *
+   * @throws SQLException if a transient failure occurred, the parts left are
+   *                      to be written again
+   */
+  private void writeParts(Connection conn, Deque<List<Listen>> parts) throws SQLException {
+    while (!parts.isEmpty()) {
+      List<Listen> part = parts.peek();
+      try {
+        listenRepo.insertBatch(conn, part);
+      } catch (SQLException | RuntimeException e) {
+        if (e instanceof SQLException sqlException && isTransient(sqlException)) {
+          throw sqlException;
+        }
+        parts.pop();
+        if (part.size() > 1) {
+          // Halved until the listens refused are alone
+          parts.push(part.subList(part.size() / 2, part.size()));
+          parts.push(part.subList(0, part.size() / 2));
+        } else {
+          reject(part, e);
+        }
+        continue;
+      }
+      parts.pop();
+      written.addAndGet(part.size());
+      try {
+        writtenHandler.accept(part);
+      } catch (RuntimeException e) {
+        LOG.error("Failed to handle the listens written", e);
+      }
+    }
+  }
+
+  private void reject(List<Listen> listens, Exception cause) {
+    rejected.addAndGet(listens.size());
+    LOG.error("The database refused the listen {}, it is given up", listens.get(0), cause);
+    try {
+      rejectionHandler.accept(List.copyOf(listens));
+    } catch (RuntimeException e) {
+      LOG.error("Failed to uncount the listens refused", e);
+    }
+  }
+
+  /**
+   * @return whether the failure says nothing about the listens written, but
+   *         about the connection or the server
+   */
+  private static boolean isTransient(SQLException e) {
+    String state = e.getSQLState();
+    return e instanceof SQLTransientException
+        // connection_exception
+        || state != null && state.startsWith("08")
+        // admin_shutdown, crash_shutdown, cannot_connect_now
+        || "57P01".equals(state) || "57P02".equals(state) || "57P03".equals(state)
+        // serialization_failure, deadlock_detected
+        || "40001".equals(state) || "40P01".equals(state);
+  }
+}
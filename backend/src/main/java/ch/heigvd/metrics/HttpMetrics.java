@@ -0,0 +1,155 @@
+package ch.heigvd.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * Number of requests, status codes and latencies of each route.
+ *
+ * The requests are grouped by method and route template (e.g. "GET
+ * /musics/{idMedia}"), not by path, so that the number of routes stays small.
+ * The requests matching no route, or rejected by the admission control before
+ * being routed, are grouped under "unmatched".
+ *
+ * Finding the route of a request is two map lookups with strings Javalin
+ * already has, and recording it only updates counters: the only allocation
+ * is the start time kept in the context.
+ */
+public class HttpMetrics {
+  private static final String START_ATTRIBUTE = "metrics.startNanos";
+  private static final String UNMATCHED = "unmatched";
+
+  // Filled for every method upfront, so it is only read afterwards
+  private final Map<HandlerType, ConcurrentHashMap<String, Route>> routes = new EnumMap<>(HandlerType.class);
+
+  public HttpMetrics() {
+    for (HandlerType method : HandlerType.values()) {
+      routes.put(method, new ConcurrentHashMap<>());
+    }
+  }
+
+  /**
+   * Notes when the request started. To be registered as the first before
+   * handler.
+   *
+   * @param ctx the context of the request
+   */
+  public void start(Context ctx) {
+    ctx.attribute(START_ATTRIBUTE, System.nanoTime());
+  }
+
+  /**
+   * Records the status and latency of the request. To be registered as an
+   * after handler, which also runs when the request failed.
+   *
+   * @param ctx the context of the request
+   */
+  public void record(Context ctx) {
+    Long startNanos = ctx.attribute(START_ATTRIBUTE);
+    if (startNanos == null) {
+      return;
+    }
+
+    // Without a matching route, Javalin gives a message instead of a template,
+    // or nothing when the request was rejected before being matched
+    String template = ctx.endpointHandlerPath();
+    if (template.isEmpty() || template.charAt(0) != '/') {
+      template = UNMATCHED;
+    }
+    HandlerType method = ctx.method();
+    Map<String, Route> methodRoutes = routes.get(method);
+    Route route = methodRoutes.get(template);
+    if (route == null) {
+      route = methodRoutes.computeIfAbsent(template, key -> new Route(method, key));
+    }
+    route.record(ctx.statusCode(), System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return the metrics of every route requested so far, by template and
+   *         method
+   */
+  public List<Route> routes() {
+    List<Route> all = new ArrayList<>();
+    routes.values().forEach(methodRoutes -> all.addAll(methodRoutes.values()));
+    all.sort(Comparator.comparing(Route::template).thenComparing(route -> route.method().name()));
+    return all;
+  }
+
+  /**
+   * Requests of a route.
+   */
+  public static final class Route {
+    private static final int MAX_STATUS = 599;
+
+    private final HandlerType method;
+    private final String template;
+    private final LatencyHistogram durations = new LatencyHistogram();
+    // Indexed by status code, created when the code is first returned. The
+    // codes outside of 100..599 are not counted.
+    private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS + 1);
+
+    private Route(HandlerType method, String template) {
+      this.method = method;
+      this.template = template;
+    }
+
+    /**
+     * @return the HTTP method of the route
+     */
+    public HandlerType method() {
+      return method;
+    }
+
+    /**
+     * @return the path template of the route, e.g. "/musics/{idMedia}"
+     */
+    public String template() {
+      return template;
+    }
+
+    /**
+     * @return how long the requests took to be handled
+     */
+    public LatencyHistogram.Snapshot durations() {
+      return durations.snapshot();
+    }
+
+    /**
+     * @return the number of responses, by status code, for the codes returned
+     *         at least once
+     */
+    public Map<Integer, Long> statusCounts() {
+      Map<Integer, Long> counts = new TreeMap<>();
+      for (int status = 100; status <= MAX_STATUS; status++) {
+        LongAdder count = statuses.get(status);
+        if (count != null) {
+          counts.put(status, count.sum());
+        }
+      }
+      return counts;
+    }
+
+    private void record(int status, long nanos) {
+      if (status >= 100 && status <= MAX_STATUS) {
+        LongAdder count = statuses.get(status);
+        if (count == null) {
+          statuses.compareAndSet(status, null, new LongAdder());
+          count = statuses.get(status);
+        }
+        count.increment();
+      }
+      durations.record(nanos);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package ch.heigvd.metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets, from 50 µs to 10 s.
+ *
+ * Recording a duration only updates a few counters, without locking, so it
+ * can be done on every request or query. The buckets are cumulative in the
+ * snapshots, like the buckets of a Prometheus histogram, and the percentiles
+ * are estimated from them.
+ */
+public class LatencyHistogram {
+  // Upper bounds of the buckets, the last bucket holds everything above
+  private static final long[] BOUNDS_MICROS = {
+      50, 100, 250, 500,
+      1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+      1_000_000, 2_500_000, 5_000_000, 10_000_000 };
+
+  private final LongAdder[] buckets = new LongAdder[BOUNDS_MICROS.length + 1];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration, in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    // The first bound at or above the duration, the last bucket past them all
+    int bucket = Arrays.binarySearch(BOUNDS_MICROS, micros);
+    if (bucket < 0) {
+      bucket = -bucket - 1;
+    }
+    buckets[bucket].increment();
+    count.increment();
+    sumNanos.add(nanos);
+
+    // The maximum rarely changes: it is only written, and its cache line only
+    // contended, when a longer duration is recorded
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * @return the durations recorded so far
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return new Snapshot(counts, count.sum(), sumNanos.sum(), maxNanos.get());
+  }
+
+  /**
+   * Durations recorded up to a point in time. The counts of the buckets and
+   * the total can be slightly off from each other, as recording goes on while
+   * they are read.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sumNanos;
+    private final long maxNanos;
+
+    private Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+      this.counts = counts;
+      this.count = count;
+      this.sumNanos = sumNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long count() {
+      return count;
+    }
+
+    /**
+     * @return the sum of the durations, in seconds
+     */
+    public double sumSeconds() {
+      return sumNanos / 1e9;
+    }
+
+    /**
+     * @return the mean duration, in milliseconds
+     */
+    public double meanMillis() {
+      return count == 0 ? 0 : sumNanos / 1e6 / count;
+    }
+
+    /**
+     * @return the longest duration ever recorded, in milliseconds. Unlike the
+     *         other values, it is not reset by {@link #minus(Snapshot)}.
+     */
+    public double maxMillis() {
+      return maxNanos / 1e6;
+    }
+
+    /**
+     * Estimates a percentile, as the upper bound of the bucket it falls in,
+     * capped by the longest duration.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated duration, in milliseconds, or 0 if nothing was
+     *         recorded. Beyond the last bound, the longest duration is
+     *         returned.
+     */
+    public double percentileMillis(double percentile) {
+      long total = 0;
+      for (long bucketCount : counts) {
+        total += bucketCount;
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil(percentile / 100 * total);
+      long seen = 0;
+      for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+        seen += counts[i];
+        if (seen >= Math.max(rank, 1)) {
+          return Math.min(BOUNDS_MICROS[i] / 1000.0, maxMillis());
+        }
+      }
+      return maxMillis();
+    }
+
+    /**
+     * @return the cumulative number of durations of each bucket, by upper
+     *         bound in seconds. The last bucket, "+Inf", holds them all.
+     */
+    public Map<String, Long> cumulativeBuckets() {
+      Map<String, Long> cumulative = new LinkedHashMap<>();
+      long seen = 0;
+      for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+        seen += counts[i];
+        cumulative.put(BigDecimal.valueOf(BOUNDS_MICROS[i]).movePointLeft(6).stripTrailingZeros().toPlainString(), seen);
+      }
+      cumulative.put("+Inf", seen + counts[BOUNDS_MICROS.length]);
+      return cumulative;
+    }
+
+    /**
+     * @param earlier a snapshot of the same histogram taken before this one
+     * @return the durations recorded between the two snapshots
+     */
+    public Snapshot minus(Snapshot earlier) {
+      long[] delta = new long[counts.length];
+      for (int i = 0; i < counts.length; i++) {
+        delta[i] = counts[i] - earlier.counts[i];
+      }
+      return new Snapshot(delta, count - earlier.count, sumNanos - earlier.sumNanos, maxNanos);
+    }
+
+    /**
+     * @return a summary of the snapshot, to be serialized to JSON
+     */
+    public Map<String, Object> summary() {
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("count", count);
+      summary.put("meanMs", meanMillis());
+      summary.put("p50Ms", percentileMillis(50));
+      summary.put("p90Ms", percentileMillis(90));
+      summary.put("p99Ms", percentileMillis(99));
+      summary.put("maxMs", maxMillis());
+      summary.put("buckets", cumulativeBuckets());
+      return summary;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package ch.heigvd.metrics;
+
+import java.util.Map;
+
+/**
+ * Writes metrics in the text format scraped by Prometheus.
+ *
+ * The labels are given as name/value pairs, e.g. sample("x", 1, "route",
+ * "/musics"). Each metric must be described by {@link #describe} before its
+ * samples.
+ */
+public class PrometheusText {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final StringBuilder out = new StringBuilder(16 * 1024);
+
+  /**
+   * Writes the help and type of a metric.
+   *
+   * @param name the name of the metric
+   * @param type "counter", "gauge" or "histogram"
+   * @param help what the metric measures
+   * @return this writer
+   */
+  public PrometheusText describe(String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    return this;
+  }
+
+  /**
+   * Writes a sample of a counter or a gauge.
+   *
+   * @param name   the name of the metric
+   * @param value  the value of the sample
+   * @param labels the labels of the sample, as name/value pairs
+   * @return this writer
+   */
+  public PrometheusText sample(String name, double value, String... labels) {
+    appendName(name, labels);
+    out.append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+    return this;
+  }
+
+  /**
+   * Writes the buckets, sum and count of a histogram, in seconds.
+   *
+   * @param name      the name of the metric
+   * @param durations the durations recorded
+   * @param labels    the labels of the samples, as name/value pairs
+   * @return this writer
+   */
+  public PrometheusText histogram(String name, LatencyHistogram.Snapshot durations, String... labels) {
+    String[] bucketLabels = new String[labels.length + 2];
+    System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+    bucketLabels[labels.length] = "le";
+    for (Map.Entry<String, Long> bucket : durations.cumulativeBuckets().entrySet()) {
+      bucketLabels[labels.length + 1] = bucket.getKey();
+      sample(name + "_bucket", bucket.getValue(), bucketLabels);
+    }
+    sample(name + "_sum", durations.sumSeconds(), labels);
+    sample(name + "_count", durations.count(), labels);
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return out.toString();
+  }
+
+  private void appendName(String name, String[] labels) {
+    out.append(name);
+    if (labels.length == 0) {
+      return;
+    }
+
+    out.append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(labels[i]).append("=\"");
+      appendEscaped(labels[i + 1]);
+      out.append('"');
+    }
+    out.append('}');
+  }
+
+  private void appendEscaped(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package ch.heigvd.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution times of the SQL queries, by repository method (e.g.
+ * "MusicRepository.getByIds").
+ *
+ * A query is named by the block comment starting its SQL, its tag, e.g.
+ * "MusicRepository.getByIds". Being part of the SQL, the tag also shows in
+ * pg_stat_activity and in the logs of PostgreSQL. A tag ending with
+ * "[sensitive]" marks a query whose parameters must not be logged. Without
+ * tag, the query is named after the method preparing it, found by walking the
+ * stack.
+ *
+ * The name is only computed the first time a SQL is prepared. After that, the
+ * SQL is looked up in a map: the queries are text blocks, so the same string
+ * is prepared each time and the lookup neither allocates nor compares the
+ * whole string.
+ */
+public class QueryMetrics {
+  // Bounds the memory used if some SQL is built for each call
+  private static final int MAX_STATEMENTS = 10_000;
+  private static final String OTHER = "other";
+  private static final String SENSITIVE = "[sensitive]";
+
+  private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+  private final ConcurrentHashMap<String, Query> bySql = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Query> byName = new ConcurrentHashMap<>();
+
+  /**
+   * @param sql the SQL of a statement being prepared
+   * @return the metrics of the query, named after the method preparing it
+   */
+  Query forSql(String sql) {
+    Query query = bySql.get(sql);
+    if (query != null) {
+      return query;
+    }
+
+    if (bySql.size() >= MAX_STATEMENTS) {
+      return byName.computeIfAbsent(OTHER, name -> new Query(name, false));
+    }
+    String tag = tagOf(sql);
+    boolean sensitive = tag != null && tag.endsWith(SENSITIVE);
+    String name = tag == null ? callerName()
+        : sensitive ? tag.substring(0, tag.length() - SENSITIVE.length()).strip() : tag;
+    query = byName.computeIfAbsent(name, key -> new Query(key, sensitive));
+    Query previous = bySql.putIfAbsent(sql, query);
+    return previous != null ? previous : query;
+  }
+
+  /**
+   * @return the metrics of every query executed so far, by name
+   */
+  public List<Query> queries() {
+    List<Query> queries = new ArrayList<>(byName.values());
+    queries.sort(Comparator.comparing(Query::name));
+    return queries;
+  }
+
+  /**
+   * @return the comment starting the SQL, null if there is none
+   */
+  private static String tagOf(String sql) {
+    String statement = sql.stripLeading();
+    int end = statement.indexOf("*/");
+    if (!statement.startsWith("/*") || end < 0) {
+      return null;
+    }
+    String tag = statement.substring(2, end).strip();
+    return tag.isEmpty() ? null : tag;
+  }
+
+  /**
+   * @return the first method of the application on the stack, outside of
+   *         this package, as "Class.method"
+   */
+  private static String callerName() {
+    Optional<StackWalker.StackFrame> caller = STACK_WALKER.walk(frames -> frames
+        .filter(frame -> frame.getClassName().startsWith("ch.heigvd.")
+            && !frame.getClassName().startsWith(QueryMetrics.class.getPackageName() + "."))
+        .findFirst());
+    if (caller.isEmpty()) {
+      return OTHER;
+    }
+
+    String className = caller.get().getClassName();
+    className = className.substring(className.lastIndexOf('.') + 1);
+    // Anonymous and inner classes are named after their enclosing class
+    int inner = className.indexOf('$');
+    if (inner >= 0) {
+      className = className.substring(0, inner);
+    }
+    // Lambdas are named after the method declaring them, e.g.
+    // "lambda$streamAllMusics$0"
+    String methodName = caller.get().getMethodName();
+    if (methodName.startsWith("lambda$")) {
+      String[] parts = methodName.split("\\$");
+      methodName = parts.length > 1 ? parts[1] : methodName;
+    }
+    return className + "." + methodName;
+  }
+
+  /**
+   * Execution times of a query.
+   */
+  public static final class Query {
+    private final String name;
+    private final boolean sensitive;
+    private final LatencyHistogram durations = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    private Query(String name, boolean sensitive) {
+      this.name = name;
+      this.sensitive = sensitive;
+    }
+
+    /**
+     * @return the name of the query, as "Class.method"
+     */
+    public String name() {
+      return name;
+    }
+
+    /**
+     * @return whether the parameters of the query must not be logged
+     */
+    public boolean sensitive() {
+      return sensitive;
+    }
+
+    /**
+     * @return how long the executions of the query took
+     */
+    public LatencyHistogram.Snapshot durations() {
+      return durations.snapshot();
+    }
+
+    /**
+     * @return the number of executions that failed
+     */
+    public long errors() {
+      return errors.sum();
+    }
+
+    void record(long nanos) {
+      durations.record(nanos);
+    }
+
+    void recordError() {
+      errors.increment();
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package ch.heigvd.metrics;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures the queries slower than a threshold: their name, their SQL with
+ * the bound parameters, the number of rows and the time they took. The
+ * captures are logged and the last ones are kept in memory.
+ *
+ * A sample of them is explained again in a background thread, with EXPLAIN
+ * (ANALYZE, BUFFERS) for the reads and a plain EXPLAIN for the writes, so
+ * that their plan is kept with them. Whatever the query does, the EXPLAIN
+ * runs in a read-only transaction that is rolled back. When some parameters
+ * are unknown, e.g. arrays, that the driver does not render, the generic plan
+ * of the query is explained instead.
+ *
+ * The parameters of the queries tagged as sensitive, like those holding
+ * personal data, are never logged, and only their generic plan is explained.
+ */
+public class SlowQueryLog implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+  // The explains beyond these are dropped, a burst of slow queries must not
+  // add load to a database that is already slow
+  private static final int MAX_PENDING_EXPLAINS = 4;
+  private static final int EXPLAIN_TIMEOUT_MILLIS = 10_000;
+  private static final String GENERIC_STATEMENT = "spotish_slow_query";
+
+  private final long thresholdNanos;
+  private final double explainRate;
+  private final int capacity;
+  private final ThreadPoolExecutor explainer;
+
+  // Guarded by itself, the newest capture last
+  private final ArrayDeque<Capture> captures = new ArrayDeque<>();
+
+  private final LongAdder captured = new LongAdder();
+  private final LongAdder explained = new LongAdder();
+  private final LongAdder explainsDropped = new LongAdder();
+
+  /**
+   * @param threshold   the duration above which a query is captured
+   * @param explainRate the share of the captured queries that are explained,
+   *                    between 0 and 1
+   * @param capacity    the number of captures kept in memory
+   */
+  public SlowQueryLog(Duration threshold, double explainRate, int capacity) {
+    if (explainRate < 0 || explainRate > 1 || capacity < 1) {
+      throw new IllegalArgumentException("Invalid slow query log: explain rate " + explainRate
+          + ", capacity " + capacity);
+    }
+    this.thresholdNanos = threshold.toNanos();
+    this.explainRate = explainRate;
+    this.capacity = capacity;
+    this.explainer = explainRate == 0 ? null
+        : new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_PENDING_EXPLAINS),
+            runnable -> {
+              Thread thread = new Thread(runnable, "slow-query-explainer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * @param nanos the duration of an execution
+   * @return whether the execution must be captured
+   */
+  boolean isSlow(long nanos) {
+    return nanos >= thresholdNanos;
+  }
+
+  /**
+   * Captures a slow execution.
+   *
+   * @param query     the query executed
+   * @param sql       its SQL, with the parameters when they are known and not
+   *                  sensitive
+   * @param nanos     how long it took
+   * @param rows      the number of rows read or written, -1 if unknown
+   * @param explainOn where to explain it, usually the pool it ran on
+   */
+  void record(QueryMetrics.Query query, String sql, long nanos, long rows, DataSource explainOn) {
+    captured.increment();
+    double elapsedMillis = nanos / 1e6;
+    LOG.warn("Slow query {} took {} ms, {} rows:\n{}", query.name(), Math.round(elapsedMillis), rows, sql.strip());
+
+    Instant at = Instant.now();
+    if (explainer != null && ThreadLocalRandom.current().nextDouble() < explainRate) {
+      try {
+        explainer.execute(() -> add(
+            new Capture(at, query.name(), elapsedMillis, rows, sql, explain(sql, explainOn))));
+        return;
+      } catch (RejectedExecutionException e) {
+        explainsDropped.increment();
+      }
+    }
+    add(new Capture(at, query.name(), elapsedMillis, rows, sql, null));
+  }
+
+  /**
+   * @return the settings, counters and last captures of the log, newest
+   *         first, to be serialized to JSON
+   */
+  public Map<String, Object> summary() {
+    List<Capture> newestFirst;
+    synchronized (captures) {
+      newestFirst = new ArrayList<>(captures);
+    }
+    Collections.reverse(newestFirst);
+
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("thresholdMs", TimeUnit.NANOSECONDS.toMillis(thresholdNanos));
+    summary.put("explainRate", explainRate);
+    summary.put("capacity", capacity);
+    summary.put("captured", captured.sum());
+    summary.put("explained", explained.sum());
+    summary.put("explainsDropped", explainsDropped.sum());
+    summary.put("captures", newestFirst);
+    return summary;
+  }
+
+  @Override
+  public void close() {
+    if (explainer != null) {
+      explainer.shutdownNow();
+    }
+  }
+
+  private void add(Capture capture) {
+    synchronized (captures) {
+      if (captures.size() >= capacity) {
+        captures.removeFirst();
+      }
+      captures.addLast(capture);
+    }
+  }
+
+  private List<String> explain(String sql, DataSource ds) {
+    Placeholders generic = numberPlaceholders(sql);
+    List<String> plan = new ArrayList<>();
+    try (Connection conn = ds.getConnection()) {
+      conn.setAutoCommit(false);
+      try (Statement statement = conn.createStatement()) {
+        try {
+          statement.execute("SET TRANSACTION READ ONLY");
+          statement.execute("SET LOCAL statement_timeout = " + EXPLAIN_TIMEOUT_MILLIS);
+          String explain;
+          if (generic != null) {
+            // The driver would take the placeholders for its own parameters,
+            // the statement is prepared by the server instead
+            statement.execute("SET LOCAL plan_cache_mode = force_generic_plan");
+            statement.execute("PREPARE " + GENERIC_STATEMENT + " AS " + generic.sql());
+            explain = "EXPLAIN EXECUTE " + GENERIC_STATEMENT + "("
+                + String.join(", ", Collections.nCopies(generic.count(), "NULL")) + ")";
+          } else if (isRead(sql)) {
+            explain = "EXPLAIN (ANALYZE, BUFFERS) " + sql;
+          } else {
+            // EXPLAIN ANALYZE runs the query, only the reads are worth running
+            // again
+            explain = "EXPLAIN " + sql;
+          }
+
+          try (ResultSet rs = statement.executeQuery(explain)) {
+            while (rs.next()) {
+              plan.add(rs.getString(1));
+            }
+          }
+        } finally {
+          conn.rollback();
+          if (generic != null) {
+            // Prepared statements outlive the transactions
+            conn.setAutoCommit(true);
+            statement.execute("DEALLOCATE " + GENERIC_STATEMENT);
+          }
+        }
+      }
+      explained.increment();
+    } catch (SQLException e) {
+      LOG.debug("Could not explain a slow query", e);
+      plan.add("Could not explain the query: " + e.getMessage());
+    }
+    return plan;
+  }
+
+  /**
+   * @return the SQL with its "?" placeholders numbered like "$1", or null if
+   *         it has none. The placeholders in literals, quoted identifiers and
+   *         comments are left as is.
+   */
+  private static Placeholders numberPlaceholders(String sql) {
+    StringBuilder numbered = new StringBuilder(sql.length() + 8);
+    int placeholders = 0;
+    int i = 0;
+    while (i < sql.length()) {
+      char c = sql.charAt(i);
+      int end = i + 1;
+      if (c == '\'' || c == '"') {
+        end = endOf(sql, sql.indexOf(c, i + 1), 1);
+      } else if (sql.startsWith("/*", i)) {
+        end = endOf(sql, sql.indexOf("*/", i + 2), 2);
+      } else if (sql.startsWith("--", i)) {
+        end = endOf(sql, sql.indexOf('\n', i + 2), 1);
+      }
+
+      if (c == '?') {
+        numbered.append('$').append(++placeholders);
+      } else {
+        numbered.append(sql, i, end);
+      }
+      i = end;
+    }
+    return placeholders == 0 ? null : new Placeholders(numbered.toString(), placeholders);
+  }
+
+  /**
+   * @return the index after the closing token found at the given index, or
+   *         the end of the SQL if it was not found
+   */
+  private static int endOf(String sql, int closing, int closingLength) {
+    return closing < 0 ? sql.length() : closing + closingLength;
+  }
+
+  private static boolean isRead(String sql) {
+    String statement = sql.strip();
+    // Skip the tag of the query
+    if (statement.startsWith("/*") && statement.contains("*/")) {
+      statement = statement.substring(statement.indexOf("*/") + 2).strip();
+    }
+    statement = statement.toLowerCase(Locale.ROOT);
+    return statement.startsWith("select") || statement.startsWith("with");
+  }
+
+  /**
+   * A slow execution of a query.
+   *
+   * @param at        when it was captured
+   * @param query     the name of the query
+   * @param elapsedMs how long it took
+   * @param rows      the number of rows read or written, -1 if unknown
+   * @param sql       the SQL executed, with the parameters when they are known
+   *                  and not sensitive
+   * @param plan      the lines of its plan, null when it was not explained
+   */
+  public record Capture(Instant at, String query, double elapsedMs, long rows, String sql, List<String> plan) {
+  }
+
+  /**
+   * SQL whose placeholders were numbered.
+   *
+   * @param sql   the SQL with the placeholders numbered
+   * @param count the number of placeholders
+   */
+  private record Placeholders(String sql, int count) {
+  }
+}
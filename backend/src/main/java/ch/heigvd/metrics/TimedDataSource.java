@@ -0,0 +1,99 @@
+package ch.heigvd.metrics;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Data source timing the execution of every prepared statement of its
+ * connections, in the given query metrics, and capturing the slow ones.
+ *
+ * It only wraps the connections of another data source, usually the pool: a
+ * connection and a statement more are allocated per query, nothing else.
+ */
+public class TimedDataSource implements DataSource {
+  private final DataSource delegate;
+  private final QueryMetrics queries;
+  private final SlowQueryLog slowQueries;
+
+  /**
+   * @param delegate    the data source giving the connections
+   * @param queries     where to record the execution times
+   * @param slowQueries where to capture the slow executions
+   */
+  public TimedDataSource(DataSource delegate, QueryMetrics queries, SlowQueryLog slowQueries) {
+    this.delegate = delegate;
+    this.queries = queries;
+    this.slowQueries = slowQueries;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return new TimedConnection(delegate.getConnection(), this);
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    return new TimedConnection(delegate.getConnection(username, password), this);
+  }
+
+  /**
+   * @return the wrapped data source, where the slow queries are explained
+   */
+  DataSource delegate() {
+    return delegate;
+  }
+
+  /**
+   * @return where to record the execution times
+   */
+  QueryMetrics queries() {
+    return queries;
+  }
+
+  /**
+   * @return where to capture the slow executions
+   */
+  SlowQueryLog slowQueries() {
+    return slowQueries;
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return delegate.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    delegate.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return delegate.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return delegate.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || delegate.isWrapperFor(iface);
+  }
+}
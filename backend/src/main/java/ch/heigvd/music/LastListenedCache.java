@@ -0,0 +1,150 @@
+package ch.heigvd.music;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.heigvd.cache.BoundedCache;
+
+/**
+ * Keeps, for the users active recently, the IDs of the last distinct musics
+ * they listened to.
+ *
+ * A user's ring is loaded from the database the first time it is needed and is
+ * then updated in memory every time the user listens to a music. Users that
+ * stay inactive are evicted, and the number of users kept is bounded, so the
+ * memory used does not depend on the size of the listening history.
+ *
+ * The listens are recorded even for the users whose ring is not loaded yet:
+ * they reach the database a bit later, in the next batch of the ListenWriter,
+ * so a ring loaded in between would miss them. They are merged in front of
+ * the musics loaded instead, which they are more recent than.
+ */
+public class LastListenedCache {
+  public static final int RING_SIZE = 10;
+
+  private static final int MAX_USERS = 10_000;
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(30);
+
+  private final BoundedCache<String, Ring> rings = BoundedCache.expireAfterAccess(MAX_USERS, IDLE_TIMEOUT);
+
+  /**
+   * Returns the last listened music IDs of a user.
+   *
+   * @param username the username of the user
+   * @return the music IDs, most recent first, or null if the user's ring is
+   *         not loaded
+   */
+  public List<Long> get(String username) {
+    Ring ring = rings.get(username);
+    return ring == null ? null : ring.snapshotIfLoaded();
+  }
+
+  /**
+   * Loads the ring of a user with the last listened music IDs read from the
+   * database, behind the listens recorded since the ring was created.
+   *
+   * @param username the username of the user
+   * @param musicIds the distinct music IDs, most recent first
+   * @return the last listened music IDs of the user, most recent first
+   */
+  public List<Long> load(String username, List<Long> musicIds) {
+    return rings.computeIfAbsent(username, key -> new Ring()).load(musicIds);
+  }
+
+  /**
+   * Records that a user listened to a music.
+   *
+   * @param username the username of the user
+   * @param musicId  the unique identifier of the music
+   */
+  public void record(String username, Long musicId) {
+    rings.computeIfAbsent(username, key -> new Ring()).push(musicId);
+  }
+
+  /**
+   * Takes back a listen of a user that will never be written. The music
+   * leaves the ring, which is loaded again from the database the next time
+   * it is read, behind the listens still recorded: the music is then back at
+   * its place if it was listened to before.
+   *
+   * @param username the username of the user
+   * @param musicId  the unique identifier of the music
+   */
+  public void forget(String username, Long musicId) {
+    Ring ring = rings.get(username);
+    if (ring != null) {
+      ring.remove(musicId);
+    }
+  }
+
+  /**
+   * Fixed-size list of distinct music IDs, most recent first. Until it is
+   * loaded, it only holds the listens recorded since it was created.
+   */
+  private static final class Ring {
+    private final long[] musicIds = new long[RING_SIZE];
+    private int size = 0;
+    private boolean loaded = false;
+
+    private synchronized void push(long musicId) {
+      // If the music is already in the ring, it is moved to the front,
+      // otherwise the oldest music falls off the end
+      int position = indexOf(musicId);
+      int last = position >= 0 ? position : Math.min(size, RING_SIZE - 1);
+
+      System.arraycopy(musicIds, 0, musicIds, 1, last);
+      musicIds[0] = musicId;
+
+      if (position < 0 && size < RING_SIZE) {
+        size++;
+      }
+    }
+
+    private synchronized void remove(long musicId) {
+      int position = indexOf(musicId);
+      if (position >= 0) {
+        System.arraycopy(musicIds, position + 1, musicIds, position, size - position - 1);
+        size--;
+      }
+      loaded = false;
+    }
+
+    /**
+     * Appends the musics read from the database that are not in the ring
+     * yet, unless another request loaded it already.
+     */
+    private synchronized List<Long> load(List<Long> loadedIds) {
+      if (!loaded) {
+        for (int i = 0; i < loadedIds.size() && size < RING_SIZE; i++) {
+          if (indexOf(loadedIds.get(i)) < 0) {
+            musicIds[size++] = loadedIds.get(i);
+          }
+        }
+        loaded = true;
+      }
+      return snapshot();
+    }
+
+    private synchronized List<Long> snapshotIfLoaded() {
+      return loaded ? snapshot() : null;
+    }
+
+    private synchronized List<Long> snapshot() {
+      List<Long> ids = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        ids.add(musicIds[i]);
+      }
+      return ids;
+    }
+
+    private int indexOf(long musicId) {
+      for (int i = 0; i < size; i++) {
+        if (musicIds[i] == musicId) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
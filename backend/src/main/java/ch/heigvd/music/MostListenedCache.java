@@ -0,0 +1,373 @@
+package ch.heigvd.music;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.heigvd.cache.BoundedCache;
+import ch.heigvd.entities.Listen;
+
+/**
+ * Keeps, for the users active recently, how many times they listened to each
+ * music, so that their most listened musics can be computed without going
+ * through their whole listening history.
+ *
+ * A user's counters are loaded with a single aggregate query the first time
+ * they are needed and are then incremented in memory every time the user
+ * listens to a music. The most listened musics are kept up to date at each
+ * increment, a read only copies them. Inactive users are evicted, and the
+ * counters of all the users are bounded by their size in memory.
+ *
+ * The listens are counted even for the users whose counters are not loaded
+ * yet, before being handed to the ListenWriter: a listen can only reach the
+ * database once it is counted in memory. The counters are then loaded with
+ * the listens older than the first one counted in memory, which they are
+ * added to, so that the listens not written yet are not lost and those
+ * written already are not counted twice.
+ *
+ * The counters of a user are pinned while some of their listens are not
+ * written yet: evicted then, the listens would be counted neither by the
+ * counters loaded again, from a later listen, nor in memory. They are
+ * released once the ListenWriter wrote them or they are uncounted, so the
+ * counters pinned are bounded by the listens queued.
+ */
+public class MostListenedCache {
+  public static final int TOP_SIZE = 10;
+
+  // Slots of the counter tables, 13 bytes each: about 26 MB in all
+  private static final long MAX_COUNTERS = 2_000_000;
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(30);
+
+  private final BoundedCache<String, PlayCounts> users = BoundedCache.expireAfterAccess(MAX_COUNTERS,
+      IDLE_TIMEOUT, PlayCounts::capacity, PlayCounts::isPinned);
+
+  /**
+   * Reads the play counts of a user from the database.
+   */
+  @FunctionalInterface
+  public interface Loader {
+    /**
+     * @param before the listens to count are those strictly before, may be
+     *               LocalDateTime.MAX
+     * @return the number of listens per music ID
+     * @throws SQLException if a database access error occurs
+     */
+    Map<Long, Long> load(LocalDateTime before) throws SQLException;
+  }
+
+  /**
+   * Returns the most listened musics of a user.
+   *
+   * @param username the username of the user
+   * @return the IDs of the most listened musics, most listened first, or null
+   *         if the user's counters are not loaded
+   */
+  public List<Long> get(String username) {
+    PlayCounts counts = users.get(username);
+    return counts == null ? null : counts.topIfLoaded();
+  }
+
+  /**
+   * Loads the counters of a user, unless another request did it already. The
+   * listens of the user wait until they are loaded.
+   *
+   * @param username the username of the user
+   * @param loader   reads the play counts of the listens before a date
+   * @return the IDs of the most listened musics of the user, most listened
+   *         first
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Long> load(String username, Loader loader) throws SQLException {
+    PlayCounts counts = users.computeIfAbsent(username, key -> new PlayCounts());
+    List<Long> top = counts.load(loader);
+    // Weighed again with the counters loaded
+    users.put(username, counts);
+    return top;
+  }
+
+  /**
+   * Counts a listen of a user, before it is queued.
+   *
+   * @param username   the username of the user
+   * @param musicId    the unique identifier of the music
+   * @param listenedAt the date and time of the listen
+   */
+  public void record(String username, Long musicId, LocalDateTime listenedAt) {
+    // Pinned before it can be evicted, until the listen is written
+    PlayCounts counts = users.computeIfAbsent(username, key -> new PlayCounts(), PlayCounts::pin);
+    if (counts.increment(musicId, listenedAt)) {
+      users.put(username, counts);
+    }
+  }
+
+  /**
+   * Uncounts a listen of a user that was not queued after all, or that the
+   * database refused.
+   *
+   * @param username the username of the user
+   * @param musicId  the unique identifier of the music
+   */
+  public void unrecord(String username, Long musicId) {
+    PlayCounts counts = users.get(username);
+    if (counts != null) {
+      counts.decrement(musicId);
+      counts.unpin(1);
+    }
+  }
+
+  /**
+   * Releases the counters of the users of listens now written, which they no
+   * longer have to be kept for.
+   *
+   * @param listens the listens written
+   */
+  public void written(List<Listen> listens) {
+    Map<String, Integer> writtenByUser = new HashMap<>();
+    for (Listen listen : listens) {
+      writtenByUser.merge(listen.username(), 1, Integer::sum);
+    }
+    for (Map.Entry<String, Integer> entry : writtenByUser.entrySet()) {
+      PlayCounts counts = users.get(entry.getKey());
+      if (counts != null) {
+        counts.unpin(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Exact play counters of one user in an open addressing table, without
+   * boxing, and the most listened musics among them.
+   */
+  private static final class PlayCounts {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Not a monitor: a virtual thread blocked on the database while holding a
+    // monitor would pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // A count can go back to 0 when a listen is uncounted, its music then
+    // keeps its slot
+    private long[] musicIds = new long[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private boolean[] used = new boolean[INITIAL_CAPACITY];
+    private int size;
+
+    // Most listened first, ties broken by ID so that the order is stable
+    private final long[] topIds = new long[TOP_SIZE];
+    private final int[] topCounts = new int[TOP_SIZE];
+    private int topSize;
+
+    private boolean loaded;
+    // The oldest listen counted before the counters were loaded
+    private LocalDateTime since;
+
+    // The listens counted but not written nor uncounted yet, read without the
+    // lock by the cache
+    private final AtomicInteger unwritten = new AtomicInteger();
+
+    // Read without the lock by the cache to weigh the counters
+    private volatile int capacity = INITIAL_CAPACITY;
+
+    private int capacity() {
+      return capacity;
+    }
+
+    private void pin() {
+      unwritten.incrementAndGet();
+    }
+
+    private void unpin(int listens) {
+      unwritten.addAndGet(-listens);
+    }
+
+    private boolean isPinned() {
+      return unwritten.get() > 0;
+    }
+
+    /**
+     * @return whether the table grew
+     */
+    private boolean increment(long musicId, LocalDateTime listenedAt) {
+      lock.lock();
+      try {
+        if (!loaded && (since == null || listenedAt.isBefore(since))) {
+          since = listenedAt;
+        }
+        int grownFrom = capacity;
+        int slot = slotOf(musicId, true);
+        counts[slot]++;
+        promote(musicId, counts[slot]);
+        return capacity != grownFrom;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void decrement(long musicId) {
+      lock.lock();
+      try {
+        int slot = slotOf(musicId, false);
+        if (slot < 0 || counts[slot] == 0) {
+          return;
+        }
+        counts[slot]--;
+        if (topIndexOf(musicId) >= 0) {
+          // Another music may now rank above it: only happens when listens
+          // are dropped, the whole ranking is computed again
+          computeTop();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private List<Long> load(Loader loader) throws SQLException {
+      lock.lock();
+      try {
+        if (!loaded) {
+          Map<Long, Long> loadedCounts = loader.load(since == null ? LocalDateTime.MAX : since);
+          for (Map.Entry<Long, Long> entry : loadedCounts.entrySet()) {
+            int slot = slotOf(entry.getKey(), true);
+            counts[slot] += entry.getValue().intValue();
+          }
+          computeTop();
+          loaded = true;
+        }
+        return top();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private List<Long> topIfLoaded() {
+      lock.lock();
+      try {
+        return loaded ? top() : null;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private List<Long> top() {
+      List<Long> ids = new ArrayList<>(topSize);
+      for (int i = 0; i < topSize; i++) {
+        ids.add(topIds[i]);
+      }
+      return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Moves a music whose count grew up the ranking, entering it if it now
+     * ranks above the last one. The counts only grow between two
+     * computations, so no music outside of the ranking can rank above it.
+     */
+    private void promote(long musicId, int count) {
+      int position = topIndexOf(musicId);
+      if (position < 0) {
+        if (topSize < TOP_SIZE) {
+          position = topSize++;
+        } else if (ranksAbove(musicId, count, topIds[TOP_SIZE - 1], topCounts[TOP_SIZE - 1])) {
+          position = TOP_SIZE - 1;
+        } else {
+          return;
+        }
+        topIds[position] = musicId;
+      }
+      topCounts[position] = count;
+
+      while (position > 0 && ranksAbove(topIds[position], topCounts[position], topIds[position - 1],
+          topCounts[position - 1])) {
+        long id = topIds[position];
+        topIds[position] = topIds[position - 1];
+        topIds[position - 1] = id;
+        int previous = topCounts[position];
+        topCounts[position] = topCounts[position - 1];
+        topCounts[position - 1] = previous;
+        position--;
+      }
+    }
+
+    private void computeTop() {
+      topSize = 0;
+      for (int slot = 0; slot < used.length; slot++) {
+        if (used[slot] && counts[slot] > 0) {
+          promote(musicIds[slot], counts[slot]);
+        }
+      }
+    }
+
+    private int topIndexOf(long musicId) {
+      for (int i = 0; i < topSize; i++) {
+        if (topIds[i] == musicId) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static boolean ranksAbove(long musicId, int count, long otherId, int otherCount) {
+      return count > otherCount || (count == otherCount && musicId < otherId);
+    }
+
+    /**
+     * @return the slot of the music, -1 if it has none and create is false
+     */
+    private int slotOf(long musicId, boolean create) {
+      int mask = used.length - 1;
+      int slot = slot(musicId, mask);
+      while (used[slot]) {
+        if (musicIds[slot] == musicId) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (!create) {
+        return -1;
+      }
+      // At most half full, so that the probes stay short
+      if ((size + 1) * 2 > used.length) {
+        grow();
+        return slotOf(musicId, true);
+      }
+      used[slot] = true;
+      musicIds[slot] = musicId;
+      size++;
+      return slot;
+    }
+
+    private static int slot(long musicId, int mask) {
+      // Spreads the consecutive IDs over the whole table
+      long hash = musicId * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ hash >>> 32) & mask;
+    }
+
+    private void grow() {
+      long[] oldIds = musicIds;
+      int[] oldCounts = counts;
+      boolean[] oldUsed = used;
+      musicIds = new long[oldIds.length * 2];
+      counts = new int[oldCounts.length * 2];
+      used = new boolean[oldUsed.length * 2];
+      int mask = used.length - 1;
+      for (int i = 0; i < oldIds.length; i++) {
+        if (oldUsed[i]) {
+          int slot = slot(oldIds[i], mask);
+          while (used[slot]) {
+            slot = (slot + 1) & mask;
+          }
+          used[slot] = true;
+          musicIds[slot] = oldIds[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+      capacity = used.length;
+    }
+  }
+}
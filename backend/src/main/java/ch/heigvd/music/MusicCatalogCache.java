@@ -0,0 +1,291 @@
+package ch.heigvd.music;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import ch.heigvd.cache.BoundedCache;
+import ch.heigvd.entities.Music;
+
+/**
+ * Process-wide read-through cache of the musics of the catalog, by music ID.
+ *
+ * The catalog rarely changes, so repositories only fetch the IDs of the musics
+ * they need and hydrate them from this cache. All the musics missing from the
+ * cache are loaded with a single query, and a music already being loaded by
+ * another request is waited for rather than loaded again. The IDs without a
+ * music are remembered as well, so that unknown IDs sent again and again do
+ * not query the database each time.
+ *
+ * A request holding a connection never waits for the load of another one,
+ * which may itself be waiting for a connection of the pool: it loads the
+ * musics with its own connection instead. A request without one only waits
+ * for LOAD_WAIT_MILLIS before loading them itself.
+ *
+ * A load that was running when a music was invalidated may have read its old
+ * row: its results are then dropped from the cache once stored, so that an
+ * invalidation always wins over the loads that started before it.
+ */
+public class MusicCatalogCache {
+  private static final int MAX_MUSICS = 100_000;
+  // Musics are not modified through the API. The CatalogIndexer invalidates
+  // those the database notifies as changed, the expiration only bounds how
+  // long a change can go unnoticed if a notification is missed.
+  private static final Duration TTL = Duration.ofHours(1);
+  private static final int MAX_ABSENT = 100_000;
+  private static final long LOAD_WAIT_MILLIS = 250;
+
+  private final DataSource ds;
+  private final MusicRepository musicRepo;
+  private final BoundedCache<Long, Music> musics = BoundedCache.expireAfterWrite(MAX_MUSICS, TTL);
+  // The IDs found without a music, until a music is created with one of them
+  private final BoundedCache<Long, Boolean> absent = BoundedCache.expireAfterWrite(MAX_ABSENT, TTL);
+  // The loads in progress, completed with null for the IDs without a music
+  private final ConcurrentHashMap<Long, CompletableFuture<Music>> loading = new ConcurrentHashMap<>();
+  // Incremented by each invalidation, before the musics are removed
+  private final AtomicLong generation = new AtomicLong();
+
+  public MusicCatalogCache(DataSource ds, MusicRepository musicRepo) {
+    this.ds = ds;
+    this.musicRepo = musicRepo;
+  }
+
+  /**
+   * Retrieves a music by its ID.
+   *
+   * @param conn    the database connection used if the music is not cached
+   * @param musicId the unique identifier of the music
+   * @return the music, or null if it does not exist
+   * @throws SQLException if a database access error occurs
+   */
+  public Music get(Connection conn, Long musicId) throws SQLException {
+    List<Music> found = getAll(conn, List.of(musicId));
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * Retrieves a music by its ID. A connection is only taken from the pool if the
+   * music is not cached.
+   *
+   * @param musicId the unique identifier of the music
+   * @return the music, or null if it does not exist
+   * @throws SQLException if a database access error occurs
+   */
+  public Music get(Long musicId) throws SQLException {
+    List<Music> found = getAll(List.of(musicId));
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * Retrieves musics by their IDs.
+   *
+   * @param conn     the database connection used for the musics that are not
+   *                 cached
+   * @param musicIds the unique identifiers of the musics
+   * @return the musics, in the order of the given IDs. IDs that do not match any
+   *         music are skipped.
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Music> getAll(Connection conn, List<Long> musicIds) throws SQLException {
+    return lookup(musicIds, conn);
+  }
+
+  /**
+   * Retrieves musics by their IDs. A connection is only taken from the pool if
+   * some musics are not cached.
+   *
+   * @param musicIds the unique identifiers of the musics
+   * @return the musics, in the order of the given IDs. IDs that do not match any
+   *         music are skipped.
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Music> getAll(List<Long> musicIds) throws SQLException {
+    return lookup(musicIds, null);
+  }
+
+  /**
+   * Removes a music from the cache, to be called when it is modified.
+   *
+   * @param musicId the unique identifier of the music
+   */
+  public void invalidate(Long musicId) {
+    generation.incrementAndGet();
+    musics.remove(musicId);
+    absent.remove(musicId);
+    // The next lookups do not wait for a load that may read the old row
+    loading.remove(musicId);
+  }
+
+  /**
+   * Removes all the musics from the cache.
+   */
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    musics.clear();
+    absent.clear();
+    loading.clear();
+  }
+
+  /**
+   * @return the number of musics found in the cache
+   */
+  public long hitCount() {
+    return musics.hitCount();
+  }
+
+  /**
+   * @return the number of musics that had to be loaded from the database
+   */
+  public long missCount() {
+    return musics.missCount();
+  }
+
+  /**
+   * @return the number of musics currently cached
+   */
+  public int size() {
+    return musics.size();
+  }
+
+  private List<Music> lookup(List<Long> musicIds, Connection conn) throws SQLException {
+    Music[] found = new Music[musicIds.size()];
+    // The musics of the IDs resolved by this lookup, null for the absent ones
+    Map<Long, Music> resolved = new HashMap<>();
+    Map<Long, CompletableFuture<Music>> owned = new LinkedHashMap<>();
+    Map<Long, CompletableFuture<Music>> awaited = new HashMap<>();
+    // Being loaded by another lookup, but loaded again by this one
+    List<Long> reloaded = new ArrayList<>();
+    Set<Long> missing = new HashSet<>();
+
+    for (int i = 0; i < musicIds.size(); i++) {
+      Long musicId = musicIds.get(i);
+      found[i] = musics.get(musicId);
+      if (found[i] != null || !missing.add(musicId)) {
+        continue;
+      }
+      if (absent.get(musicId) != null) {
+        resolved.put(musicId, null);
+        continue;
+      }
+      CompletableFuture<Music> future = new CompletableFuture<>();
+      CompletableFuture<Music> other = loading.putIfAbsent(musicId, future);
+      if (other == null) {
+        owned.put(musicId, future);
+      } else if (conn != null && !other.isDone()) {
+        reloaded.add(musicId);
+      } else {
+        awaited.put(musicId, other);
+      }
+    }
+
+    if (!owned.isEmpty() || !reloaded.isEmpty()) {
+      resolved.putAll(loadOwned(owned, reloaded, conn));
+    }
+
+    // Only waited for without a connection, see the class comment
+    List<Long> late = new ArrayList<>();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_WAIT_MILLIS);
+    for (Map.Entry<Long, CompletableFuture<Music>> entry : awaited.entrySet()) {
+      try {
+        resolved.put(entry.getKey(), await(entry.getValue(), deadline - System.nanoTime()));
+      } catch (TimeoutException | ExecutionException e) {
+        // Taking too long or failed, maybe for want of a connection
+        late.add(entry.getKey());
+      }
+    }
+    if (!late.isEmpty()) {
+      resolved.putAll(loadOwned(Map.of(), late, conn));
+    }
+
+    List<Music> result = new ArrayList<>(found.length);
+    for (int i = 0; i < found.length; i++) {
+      Music music = found[i] != null ? found[i] : resolved.get(musicIds.get(i));
+      if (music != null) {
+        result.add(music);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Loads the musics this lookup registered itself for, completing their
+   * futures for the lookups waiting on them, along with musics it does not
+   * wait for.
+   *
+   * @return the musics of all the IDs, null for those without a music
+   */
+  private Map<Long, Music> loadOwned(Map<Long, CompletableFuture<Music>> owned, List<Long> others,
+      Connection conn) throws SQLException {
+    long loadedGeneration = generation.get();
+    List<Long> musicIds = new ArrayList<>(owned.keySet());
+    musicIds.addAll(others);
+    Map<Long, Music> loaded = new HashMap<>();
+    try {
+      for (Music music : load(musicIds, conn)) {
+        loaded.put(music.musicId(), music);
+        musics.put(music.musicId(), music);
+      }
+      for (Long musicId : musicIds) {
+        if (!loaded.containsKey(musicId)) {
+          loaded.put(musicId, null);
+          absent.put(musicId, Boolean.TRUE);
+        }
+      }
+      if (generation.get() != loadedGeneration) {
+        // Some music was invalidated meanwhile, maybe one of these: they are
+        // still returned to this request but not kept
+        for (Long musicId : musicIds) {
+          musics.remove(musicId);
+          absent.remove(musicId);
+        }
+      }
+      for (Map.Entry<Long, CompletableFuture<Music>> entry : owned.entrySet()) {
+        entry.getValue().complete(loaded.get(entry.getKey()));
+      }
+      return loaded;
+    } catch (SQLException | RuntimeException e) {
+      for (CompletableFuture<Music> future : owned.values()) {
+        future.completeExceptionally(e);
+      }
+      throw e;
+    } finally {
+      for (Map.Entry<Long, CompletableFuture<Music>> entry : owned.entrySet()) {
+        loading.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private static Music await(CompletableFuture<Music> future, long timeoutNanos)
+      throws TimeoutException, ExecutionException {
+    try {
+      return future.get(Math.max(timeoutNanos, 0), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private List<Music> load(List<Long> musicIds, Connection conn) throws SQLException {
+    if (conn != null) {
+      return musicRepo.getByIds(conn, musicIds);
+    }
+    try (Connection ownConn = ds.getConnection()) {
+      return musicRepo.getByIds(ownConn, musicIds);
+    }
+  }
+}
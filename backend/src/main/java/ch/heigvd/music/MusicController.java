@@ -1,35 +1,80 @@
 package ch.heigvd.music;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
 
 import ch.heigvd.entities.Music;
+import ch.heigvd.listen.ListenResult;
 import io.javalin.http.Context;
 
 public class MusicController {
   private final MusicService musicService;
 
   private final static int TEN_LAST_LISTENED_CACHE_MAX_AGE_SECONDS = 60;
-  private final static int TEN_MOST_LISTENED_CACHE_MAX_AGE_SECONDS = 600; // 10 minutes
   private final static int MUSIC_ID_CACHE_MAX_AGE_SECONDS = 1800; // 30 minutes
   private final static int ALL_MUSICS_CACHE_MAX_AGE_SECONDS = 3600; // 1 hour
-  private final static int LIKED_MUSICS_CACHE_MAX_AGE_SECONDS = 300; // 5 minutes
+
+  private final static int MAX_LISTENS_PER_REQUEST = 500;
+
+  private final static int DEFAULT_PAGE_SIZE = 50;
+  private final static int MAX_PAGE_SIZE = 500;
 
   public MusicController(MusicService musicService) {
     this.musicService = musicService;
   }
 
-    /**
-     * Handles the HTTP GET request to retrieve all musics.
-     *
-     * @param ctx the Javalin HTTP context containing request and response data
-     */
+  /**
+   * Handles the HTTP GET request to retrieve all musics.
+   *
+   * Three modes are supported:
+   * <ul>
+   * <li>with ?stream=true, the whole catalog is streamed as it is read from the
+   * database, which keeps the memory usage constant</li>
+   * <li>with ?after and/or ?limit, one page of musics is returned (keyset
+   * pagination on the music ID) and the next page is announced with a Link
+   * header</li>
+   * <li>otherwise, the whole catalog is returned at once</li>
+   * </ul>
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
   public void getAll(Context ctx) {
-
-    List<Music> musics = musicService.getAllMusics();
+    boolean stream = ctx.queryParamAsClass("stream", Boolean.class).getOrDefault(false);
 
     // Cache the response for ALL_MUSICS_CACHE_MAX_AGE_SECONDS seconds
     ctx.header("Cache-Control", "max-age=" + ALL_MUSICS_CACHE_MAX_AGE_SECONDS);
 
+    if (stream) {
+      try (Stream<Music> musics = musicService.streamAllMusics()) {
+        ctx.writeJsonStream(musics);
+      }
+      return;
+    }
+
+    if (ctx.queryParam("after") != null || ctx.queryParam("limit") != null) {
+      Long after = ctx.queryParamAsClass("after", Long.class)
+          .check(id -> id >= 0, "after must be positive")
+          .getOrDefault(0L);
+      Integer limit = ctx.queryParamAsClass("limit", Integer.class)
+          .check(l -> l > 0 && l <= MAX_PAGE_SIZE, "limit must be between 1 and " + MAX_PAGE_SIZE)
+          .getOrDefault(DEFAULT_PAGE_SIZE);
+
+      List<Music> musics = musicService.getMusicsPage(after, limit);
+
+      // A full page means there might be more musics after it. The link is
+      // relative to the current URL so it also works behind the /api prefix.
+      if (musics.size() == limit) {
+        Long lastId = musics.get(musics.size() - 1).musicId();
+        ctx.header("Link", "<?after=" + lastId + "&limit=" + limit + ">; rel=\"next\"");
+      }
+
+      ctx.json(musics);
+      return;
+    }
+
+    List<Music> musics = musicService.getAllMusics();
+
     ctx.json(musics);
   }
 
@@ -79,11 +124,10 @@ public class MusicController {
     // has the role LOGGED_IN which implies that the username must be valid
     String username = ctx.cookie("userNameCookie");
 
+    // The response is revalidated with its ETag, handled by the conditional
+    // requests filter: it changes when the user listens to a music
     List<Music> musics = musicService.getTenMostListenedMusics(username);
 
-    // Cache the response for TEN_MOST_LISTENED_CACHE_MAX_AGE_SECONDS seconds
-    ctx.header("Cache-Control", "max-age=" + TEN_MOST_LISTENED_CACHE_MAX_AGE_SECONDS);
-
     ctx.json(musics);
   }
 
@@ -98,11 +142,10 @@ public class MusicController {
     // has the role LOGGED_IN which implies that the username must be valid
     String username = ctx.cookie("userNameCookie");
 
+    // The response is revalidated with its ETag, handled by the conditional
+    // requests filter
     List<Music> musics = musicService.getLikedMusics(username);
 
-    // Cache the response for LIKED_MUSICS_CACHE_MAX_AGE_SECONDS seconds
-    ctx.header("Cache-Control", "max-age=" + LIKED_MUSICS_CACHE_MAX_AGE_SECONDS);
-
     ctx.json(musics);
   }
 
@@ -120,4 +163,44 @@ public class MusicController {
     // 201 == Created
     ctx.status(201);
   }
+
+  /**
+   * Handles the HTTP POST request to record that the logged-in user listened to
+   * a music.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void listenMusic(Context ctx) {
+    String username = ctx.cookie("userNameCookie");
+    Long musicId = ctx.pathParamAsClass("idMedia", Long.class).check(id -> id >= 0, "idMedia must be positive").get();
+
+    ListenResult result = musicService.listenMusics(username, List.of(musicId));
+
+    // 202 == Accepted, the listen is written in the background
+    ctx.status(202);
+    ctx.json(result);
+  }
+
+  /**
+   * Handles the HTTP POST request to record that the logged-in user listened to
+   * several musics. The body is the list of music IDs, in the order they were
+   * played.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void listenMusics(Context ctx) {
+    String username = ctx.cookie("userNameCookie");
+    Long[] musicIds = ctx.bodyValidator(Long[].class)
+        .check(ids -> ids.length > 0, "At least one music ID must be provided")
+        .check(ids -> ids.length <= MAX_LISTENS_PER_REQUEST,
+            "At most " + MAX_LISTENS_PER_REQUEST + " listens can be sent at once")
+        .check(ids -> Arrays.stream(ids).allMatch(id -> id != null && id >= 0), "Music IDs must be positive")
+        .get();
+
+    ListenResult result = musicService.listenMusics(username, Arrays.asList(musicIds));
+
+    // 202 == Accepted, the listens are written in the background
+    ctx.status(202);
+    ctx.json(result);
+  }
 }
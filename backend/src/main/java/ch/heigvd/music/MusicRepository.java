@@ -5,12 +5,84 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import ch.heigvd.entities.Music;
 
 public class MusicRepository {
+  private static final String GET_ALL_SQL = """
+      /* MusicRepository.getAll */
+      SELECT cd.idchanson AS musicId, cd.titre AS title, cd.datedesortie AS releaseDate, cd.duree AS duration, cd.genre AS genre,
+        cd.nomscreateurs AS creatorNames
+      FROM spotish.chanson_detail cd;
+      """;
+
+  private static final String GET_PAGE_SQL = """
+      /* MusicRepository.getPage */
+      SELECT cd.idchanson AS musicId, cd.titre AS title, cd.datedesortie AS releaseDate, cd.duree AS duration, cd.genre AS genre,
+        cd.nomscreateurs AS creatorNames
+      FROM spotish.chanson_detail cd
+      WHERE cd.idchanson > ?
+      ORDER BY cd.idchanson
+      LIMIT ?;
+      """;
+
+  private static final String STREAM_ALL_SQL = """
+      /* MusicRepository.streamAll */
+      SELECT cd.idchanson AS musicId, cd.titre AS title, cd.datedesortie AS releaseDate, cd.duree AS duration, cd.genre AS genre,
+        cd.nomscreateurs AS creatorNames
+      FROM spotish.chanson_detail cd
+      ORDER BY cd.idchanson;
+      """;
+
+  private static final String GET_BY_IDS_SQL = """
+      /* MusicRepository.getByIds */
+      SELECT cd.idchanson AS musicId, cd.titre AS title, cd.datedesortie AS releaseDate, cd.duree AS duration, cd.genre AS genre,
+        cd.nomscreateurs AS creatorNames
+      FROM spotish.chanson_detail cd
+      WHERE cd.idchanson = ANY(?);
+      """;
+
+  private static final String GET_LAST_LISTENED_IDS_SQL = """
+      /* MusicRepository.getLastListenedIds */
+      SELECT e.idchanson AS musicId
+      FROM spotish.ecoute e
+      WHERE e.nomutilisateur = ?
+      GROUP BY e.idchanson
+      ORDER BY MAX(e.dateheureecoute) DESC
+      LIMIT ?;
+      """;
+
+  private static final String GET_PLAY_COUNTS_SQL = """
+      /* MusicRepository.getPlayCounts */
+      SELECT e.idchanson AS musicId, count(*) AS playCount
+      FROM spotish.ecoute e
+      WHERE e.nomutilisateur = ? AND e.dateheureecoute < ?
+      GROUP BY e.idchanson;
+      """;
+
+  private static final String GET_LIKED_MUSIC_IDS_SQL = """
+      /* MusicRepository.getLikedMusicIds */
+      SELECT uac.idchanson AS musicId
+      FROM spotish.utilisateur_aime_chanson uac
+      WHERE uac.nomutilisateur = ?;
+      """;
+
+  private static final String LIKE_MUSIC_SQL = """
+      /* MusicRepository.likeMusic */
+      INSERT INTO spotish.utilisateur_aime_chanson (nomutilisateur, idchanson)
+      VALUES (?, ?)
+      ON CONFLICT DO NOTHING;
+      """;
 
     /**
     * Retrieves all musics from the database.
@@ -20,16 +92,7 @@ public class MusicRepository {
     * @throws SQLException if a database access error occurs
     */
     public List<Music> getAll(Connection conn) throws SQLException {
-        String sql = """
-            SELECT  c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-              STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-            FROM spotish.chanson c
-            JOIN spotish.media m           ON m.idmedia = c.idchanson
-            JOIN spotish.createur_media cm ON cm.idmedia = c.idchanson
-            GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                            """;
-
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (PreparedStatement ps = conn.prepareStatement(GET_ALL_SQL)) {
           ResultSet rs = ps.executeQuery();
 
           List<Music> musics = new ArrayList<>();
@@ -49,247 +112,217 @@ public class MusicRepository {
 
 
   /**
-   * Retrieves a music by its ID from the database.
+   * Retrieves one page of musics, ordered by ID.
+   *
+   * Keyset pagination is used: the page starts right after the given ID, so
+   * the database does not need to go through the previous pages.
    *
-   * @param conn    the database connection
-   * @param musicId the unique identifier of the music
-   * @return the Music object corresponding to the given ID, or null if not found
+   * @param conn  the database connection
+   * @param after the ID of the last music of the previous page, 0 for the
+   *              first page
+   * @param limit the maximum number of musics in the page
+   * @return the musics of the page
    * @throws SQLException if a database access error occurs
    */
-  public Music getOne(Connection conn, Long musicId) throws SQLException {
-    // Got the help of ChatGPT for the STRING_AGG part. This part allows to
-    // concatenate the creator names in case of a featuring.
-    String sql = """
-        SELECT c.idchanson as musicId, m.titre as title, m.datedesortie as releaseDate, c.duree as duration, c.genre as genre,
-        STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM spotish.media m
-        INNER JOIN spotish.chanson c ON m.idmedia = c.idchanson
-        INNER JOIN spotish.createur_media cm ON m.idmedia = cm.idmedia
-        WHERE m.idmedia = ?
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setLong(1, musicId); // Autoboxing
+  public List<Music> getPage(Connection conn, Long after, int limit) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_PAGE_SQL)) {
+      ps.setLong(1, after);
+      ps.setInt(2, limit);
       ResultSet rs = ps.executeQuery();
 
-      Music music = null;
-      if (rs.next()) {
-        music = new Music(
+      List<Music> musics = new ArrayList<>();
+      while (rs.next()) {
+        musics.add(new Music(
             rs.getLong("musicId"),
             rs.getString("title"),
             rs.getObject("releaseDate", LocalDate.class),
             rs.getInt("duration"),
             rs.getString("genre"),
-            rs.getString("creatorNames"));
+            rs.getString("creatorNames")));
       }
-      return music;
+      return musics;
     }
-
   }
 
   /**
-   * Retrieves the ten last listened musics for a given user from the database.
+   * Streams all musics from the database, ordered by ID.
    *
-   * @param conn     the database connection
-   * @param username the username of the user
-   * @return a list of the ten last listened Music objects for the user
+   * The rows are fetched from the database by chunks of fetchSize while the
+   * stream is consumed, so the whole catalog is never in memory at once. For
+   * the driver to use a cursor, the connection must not be in auto-commit
+   * mode. The returned stream must be closed.
+   *
+   * @param conn      the database connection, used until the stream is closed
+   * @param fetchSize the number of rows fetched at a time
+   * @return a stream of all Music objects
    * @throws SQLException if a database access error occurs
    */
-  public List<Music> getTenLastListened(Connection conn, String username) throws SQLException {
-    // Got the help of ChatGPT for the STRING_AGG part. Without this part, if
-    // there's a featuring in the recently listened musics, there would be an entry
-    // of the same music for each creator.
-    String sql = """
-        WITH last_listen AS (
-          SELECT e.idchanson, MAX(e.dateheureecoute) AS lastListenedAt
-          FROM spotish.ecoute e
-          WHERE e.nomutilisateur = ?
-          GROUP BY e.idchanson
-        )
-        SELECT
-          c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-          STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM last_listen ll
-        JOIN spotish.chanson c         ON c.idchanson = ll.idchanson
-        JOIN spotish.media m           ON m.idmedia = c.idchanson
-        JOIN spotish.createur_media cm ON cm.idmedia = m.idmedia
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre, ll.lastListenedAt
-        ORDER BY ll.lastListenedAt DESC
-        LIMIT 10;
-            """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setString(1, username);
+  public Stream<Music> streamAll(Connection conn, int fetchSize) throws SQLException {
+    PreparedStatement ps = conn.prepareStatement(STREAM_ALL_SQL);
+    try {
+      ps.setFetchSize(fetchSize);
       ResultSet rs = ps.executeQuery();
 
-      List<Music> musics = new ArrayList<>();
-      while (rs.next()) {
-        musics.add(new Music(
-            rs.getLong("musicId"),
-            rs.getString("title"),
-            rs.getObject("releaseDate", LocalDate.class),
-            rs.getInt("duration"),
-            rs.getString("genre"),
-            rs.getString("creatorNames")));
-      }
-      return musics;
+      Spliterator<Music> musics = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED) {
+        @Override
+        public boolean tryAdvance(Consumer<? super Music> action) {
+          try {
+            if (!rs.next()) {
+              return false;
+            }
+            action.accept(new Music(
+                rs.getLong("musicId"),
+                rs.getString("title"),
+                rs.getObject("releaseDate", LocalDate.class),
+                rs.getInt("duration"),
+                rs.getString("genre"),
+                rs.getString("creatorNames")));
+            return true;
+          } catch (SQLException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+
+      return StreamSupport.stream(musics, false).onClose(() -> {
+        // Closing the statement also closes its result set
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    } catch (SQLException e) {
+      ps.close();
+      throw e;
     }
   }
 
   /**
-   * Retrieves the ten most listened musics for a given user from the database.
+   * Retrieves musics by their IDs from the database.
    *
    * @param conn     the database connection
-   * @param username the username of the user
-   * @return a list of the ten most listened Music objects for the user
+   * @param musicIds the unique identifiers of the musics
+   * @return the Music objects found, in the order of the given IDs. IDs that do
+   *         not match any music are skipped.
    * @throws SQLException if a database access error occurs
    */
-  public List<Music> getTenMostListened(Connection conn, String username) throws SQLException {
-    String sql = """
-        WITH most_listened_musics AS (SELECT e.idchanson, count(*) as nblistening
-                                      FROM spotish.ecoute e
-                                      WHERE e.nomutilisateur = ?
-                                      GROUP BY e.idchanson
-                                      ORDER BY count(e.idchanson) desc
-                                      LIMIT 10)
-        SELECT
-          c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-          STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM most_listened_musics mlm
-        JOIN spotish.chanson c         ON c.idchanson = mlm.idchanson
-        JOIN spotish.media m           ON m.idmedia = c.idchanson
-        JOIN spotish.createur_media cm ON cm.idmedia = m.idmedia
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre, mlm.nblistening;
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setString(1, username);
+  public List<Music> getByIds(Connection conn, List<Long> musicIds) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_BY_IDS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("bigint", musicIds.toArray(new Long[0])));
       ResultSet rs = ps.executeQuery();
 
-      List<Music> musics = new ArrayList<>();
+      Map<Long, Music> musicsById = new HashMap<>();
       while (rs.next()) {
-        musics.add(new Music(
+        Music music = new Music(
             rs.getLong("musicId"),
             rs.getString("title"),
             rs.getObject("releaseDate", LocalDate.class),
             rs.getInt("duration"),
             rs.getString("genre"),
-            rs.getString("creatorNames")));
+            rs.getString("creatorNames"));
+        musicsById.put(music.musicId(), music);
+      }
+
+      // ANY(?) gives no ordering guarantee, restore the order of the IDs
+      List<Music> musics = new ArrayList<>(musicIds.size());
+      for (Long musicId : musicIds) {
+        Music music = musicsById.get(musicId);
+        if (music != null) {
+          musics.add(music);
+        }
       }
       return musics;
     }
   }
 
   /**
-   * Retrieves all musics liked by a given user from the database.
+   * Retrieves the IDs of the last distinct musics listened to by a given user.
    *
    * @param conn     the database connection
    * @param username the username of the user
-   * @return a list of Music objects liked by the user
+   * @param limit    the maximum number of IDs to retrieve
+   * @return the music IDs, the most recently listened first
    * @throws SQLException if a database access error occurs
    */
-  public List<Music> getLikedMusics(Connection conn, String username) throws SQLException {
-    String sql = """
-        SELECT  c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-          STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM spotish.utilisateur_aime_chanson uac
-        JOIN spotish.chanson c         ON c.idchanson = uac.idchanson
-        JOIN spotish.media m           ON m.idmedia = c.idchanson
-        JOIN spotish.createur_media cm ON cm.idmedia = m.idmedia
-        WHERE uac.nomutilisateur = ?
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                        """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+  public List<Long> getLastListenedIds(Connection conn, String username, int limit) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_LAST_LISTENED_IDS_SQL)) {
       ps.setString(1, username);
+      ps.setInt(2, limit);
       ResultSet rs = ps.executeQuery();
 
-      List<Music> musics = new ArrayList<>();
+      List<Long> musicIds = new ArrayList<>();
       while (rs.next()) {
-        musics.add(new Music(
-            rs.getLong("musicId"),
-            rs.getString("title"),
-            rs.getObject("releaseDate", LocalDate.class),
-            rs.getInt("duration"),
-            rs.getString("genre"),
-            rs.getString("creatorNames")));
+        musicIds.add(rs.getLong("musicId"));
       }
-      return musics;
+      return musicIds;
     }
   }
 
   /**
-   * Marks a music as liked by a given user in the database.
+   * Retrieves how many times a given user listened to each music before a
+   * date.
    *
    * @param conn     the database connection
    * @param username the username of the user
-   * @param musicId  the unique identifier of the music
-   * @return the number of rows affected
+   * @param before   the listens counted are those strictly before,
+   *                 LocalDateTime.MAX for all of them
+   * @return the number of listens per music ID
    * @throws SQLException if a database access error occurs
    */
-  public int likeMusic(Connection conn, String username, Long musicId) throws SQLException {
-    String sql = """
-        INSERT INTO spotish.utilisateur_aime_chanson (nomutilisateur, idchanson)
-        VALUES (?, ?);
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+  public Map<Long, Long> getPlayCounts(Connection conn, String username, LocalDateTime before)
+      throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_PLAY_COUNTS_SQL)) {
       ps.setString(1, username);
-      ps.setLong(2, musicId);
-      return ps.executeUpdate();
+      // LocalDateTime.MAX is sent as 'infinity'
+      ps.setObject(2, before);
+      ResultSet rs = ps.executeQuery();
+
+      Map<Long, Long> playCounts = new HashMap<>();
+      while (rs.next()) {
+        playCounts.put(rs.getLong("musicId"), rs.getLong("playCount"));
+      }
+      return playCounts;
     }
   }
 
   /**
-   * Checks if a music is liked by a given user in the database.
+   * Retrieves the IDs of all musics liked by a given user from the database.
    *
    * @param conn     the database connection
    * @param username the username of the user
-   * @param musicId  the unique identifier of the music
-   * @return true if the music is liked by the user, false otherwise
+   * @return the IDs of the musics liked by the user
    * @throws SQLException if a database access error occurs
    */
-  public boolean isMusicLikedByUser(Connection conn, String username, Long musicId) throws SQLException {
-    String sql = """
-        SELECT COUNT(*) AS count
-        FROM spotish.utilisateur_aime_chanson
-        WHERE nomutilisateur = ? AND idchanson = ?;
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+  public List<Long> getLikedMusicIds(Connection conn, String username) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_LIKED_MUSIC_IDS_SQL)) {
       ps.setString(1, username);
-      ps.setLong(2, musicId);
       ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        return rs.getInt("count") > 0;
-      } else {
-        return false;
+
+      List<Long> musicIds = new ArrayList<>();
+      while (rs.next()) {
+        musicIds.add(rs.getLong("musicId"));
       }
+      return musicIds;
     }
   }
 
   /**
-   * Checks if a music exists in the database.
+   * Marks a music as liked by a given user in the database, unless it already
+   * is. A music that does not exist makes the insert fail with a foreign key
+   * violation.
    *
-   * @param conn    the database connection
-   * @param musicId the unique identifier of the music
-   * @return true if the music exists, false otherwise
+   * @param conn     the database connection
+   * @param username the username of the user
+   * @param musicId  the unique identifier of the music
+   * @return 1 if the music was liked, 0 if it already was
    * @throws SQLException if a database access error occurs
    */
-  public boolean exists(Connection conn, Long musicId) throws SQLException {
-    String sql = """
-        SELECT COUNT(*) AS count
-        FROM spotish.chanson
-        WHERE idchanson = ?;
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setLong(1, musicId);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        return rs.getInt("count") > 0;
-      } else {
-        return false;
-      }
+  public int likeMusic(Connection conn, String username, Long musicId) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(LIKE_MUSIC_SQL)) {
+      ps.setString(1, username);
+      ps.setLong(2, musicId);
+      return ps.executeUpdate();
     }
   }
 }
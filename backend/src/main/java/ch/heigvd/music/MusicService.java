@@ -2,20 +2,53 @@ package ch.heigvd.music;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import javax.sql.DataSource;
 
+import org.postgresql.util.PSQLState;
+
+import ch.heigvd.cache.ResourceVersions;
+import ch.heigvd.chart.TrendingCounters;
+import ch.heigvd.entities.Listen;
 import ch.heigvd.entities.Music;
+import ch.heigvd.listen.ListenResult;
+import ch.heigvd.listen.ListenWriter;
+import ch.heigvd.pool.ReadRouter;
 import io.javalin.http.NotFoundResponse;
 
 public class MusicService {
+  // Number of rows fetched at a time when streaming the catalog
+  private static final int STREAM_FETCH_SIZE = 500;
+
   private final MusicRepository musicRepo;
+  private final ListenWriter listenWriter;
+  private final LastListenedCache lastListenedCache;
+  private final MostListenedCache mostListenedCache;
+  private final TrendingCounters trendingCounters;
+  private final MusicCatalogCache musicCatalog;
   private final DataSource ds;
+  private final ReadRouter readRouter;
+  private final ResourceVersions versions;
 
-  public MusicService(DataSource ds, MusicRepository musicRepo) {
+  public MusicService(DataSource ds, ReadRouter readRouter, ResourceVersions versions, MusicRepository musicRepo,
+      MusicCatalogCache musicCatalog, ListenWriter listenWriter, LastListenedCache lastListenedCache,
+      MostListenedCache mostListenedCache, TrendingCounters trendingCounters) {
     this.ds = ds;
+    this.readRouter = readRouter;
+    this.versions = versions;
     this.musicRepo = musicRepo;
+    this.musicCatalog = musicCatalog;
+    this.listenWriter = listenWriter;
+    this.lastListenedCache = lastListenedCache;
+    this.mostListenedCache = mostListenedCache;
+    this.trendingCounters = trendingCounters;
   }
 
     /**
@@ -25,7 +58,7 @@ public class MusicService {
      * @throws NotFoundResponse if no musics are found in the database
      */
   public List<Music> getAllMusics() {
-      try (Connection conn = ds.getConnection()) {
+      try (Connection conn = readRouter.reads().getConnection()) {
         List<Music> musics = musicRepo.getAll(conn);
 
         if (musics == null || musics.isEmpty()) {
@@ -38,6 +71,59 @@ public class MusicService {
       }
     }
 
+  /**
+   * Retrieves one page of musics, ordered by ID.
+   *
+   * @param after the ID of the last music of the previous page, 0 for the
+   *              first page
+   * @param limit the maximum number of musics in the page
+   * @return the musics of the page, empty after the last page
+   */
+  public List<Music> getMusicsPage(Long after, int limit) {
+    try (Connection conn = readRouter.reads().getConnection()) {
+      return musicRepo.getPage(conn, after, limit);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Streams all musics from the database, ordered by ID.
+   *
+   * A connection is held until the stream is closed, so the caller must close
+   * it (ideally with a try-with-resources) as soon as it is done.
+   *
+   * @return a stream of all Music objects
+   */
+  public Stream<Music> streamAllMusics() {
+    Connection conn = null;
+    try {
+      conn = readRouter.reads().getConnection();
+      // The driver only fetches rows by chunks (using a cursor) inside a
+      // transaction
+      conn.setAutoCommit(false);
+
+      Connection streamConn = conn;
+      return musicRepo.streamAll(conn, STREAM_FETCH_SIZE).onClose(() -> {
+        try (streamConn) {
+          streamConn.commit();
+          streamConn.setAutoCommit(true);
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    } catch (SQLException e) {
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException closeException) {
+          e.addSuppressed(closeException);
+        }
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Retrieves a music by its ID.
    *
@@ -46,8 +132,8 @@ public class MusicService {
    * @throws NotFoundResponse if no music with the given ID is found
    */
   public Music getMusic(Long musicId) {
-    try (Connection conn = ds.getConnection()) {
-      Music music = musicRepo.getOne(conn, musicId);
+    try {
+      Music music = musicCatalog.get(musicId);
 
       if (music == null) {
         throw new NotFoundResponse("Music with id \"" + musicId + "\" not found");
@@ -67,10 +153,22 @@ public class MusicService {
    * @throws NotFoundResponse if the user has not listened to any musics
    */
   public List<Music> getTenLastListenedMusics(String username) {
-    try (Connection conn = ds.getConnection()) {
-      List<Music> musics = musicRepo.getTenLastListened(conn, username);
+    try {
+      // The IDs come from memory when the user was active recently and the
+      // musics from the catalog cache, so most calls do not touch the database
+      List<Long> musicIds = lastListenedCache.get(username);
 
-      if (musics == null || musics.isEmpty()) {
+      if (musicIds == null) {
+        try (Connection conn = ds.getConnection()) {
+          musicIds = musicRepo.getLastListenedIds(conn, username, LastListenedCache.RING_SIZE);
+        }
+        // Merged with the listens not written yet
+        musicIds = lastListenedCache.load(username, musicIds);
+      }
+
+      List<Music> musics = musicCatalog.getAll(musicIds);
+
+      if (musics.isEmpty()) {
         throw new NotFoundResponse("No listened musics found for user \"" + username + "\"");
       }
 
@@ -84,14 +182,15 @@ public class MusicService {
    * Retrieves the ten most listened musics for a given user.
    *
    * @param username the username of the user
-   * @return a list of the ten most listened Music objects for the user
+   * @return a list of the ten most listened Music objects for the user, most
+   *         listened first
    * @throws NotFoundResponse if the user has not listened to any musics
    */
   public List<Music> getTenMostListenedMusics(String username) {
-    try (Connection conn = ds.getConnection()) {
-      List<Music> musics = musicRepo.getTenMostListened(conn, username);
+    try {
+      List<Music> musics = musicCatalog.getAll(getMostListened(username));
 
-      if (musics == null || musics.isEmpty()) {
+      if (musics.isEmpty()) {
         throw new NotFoundResponse("No listened musics found for user \"" + username + "\"");
       }
 
@@ -101,6 +200,29 @@ public class MusicService {
     }
   }
 
+  /**
+   * Retrieves the most listened musics of a user from memory, loading the
+   * user's play counts from the database first if they are not cached.
+   */
+  private List<Long> getMostListened(String username) {
+    List<Long> top = mostListenedCache.get(username);
+    if (top != null) {
+      return top;
+    }
+
+    try {
+      // The listens counted in memory but maybe not written yet are left out
+      // of the query
+      return mostListenedCache.load(username, before -> {
+        try (Connection conn = ds.getConnection()) {
+          return musicRepo.getPlayCounts(conn, username, before);
+        }
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Retrieves all liked musics for a given user.
    *
@@ -109,8 +231,9 @@ public class MusicService {
    * @throws NotFoundResponse if the user has not liked any musics
    */
   public List<Music> getLikedMusics(String username) {
-    try (Connection conn = ds.getConnection()) {
-      List<Music> musics = musicRepo.getLikedMusics(conn, username);
+    // From the primary if the user just liked a music
+    try (Connection conn = readRouter.forRead(ReadRouter.userKey(username)).getConnection()) {
+      List<Music> musics = musicCatalog.getAll(conn, musicRepo.getLikedMusicIds(conn, username));
 
       if (musics == null || musics.isEmpty()) {
         throw new NotFoundResponse("No liked musics found for user \"" + username + "\"");
@@ -131,18 +254,100 @@ public class MusicService {
    */
   public void likeMusic(String username, Long musicId) {
     try (Connection conn = ds.getConnection()) {
-      Music music = musicRepo.getOne(conn, musicId);
-
-      // Check if the music exists
-      if (music == null) {
+      // A single insert, ignored if the music is already liked, so that two
+      // likes at the same time do not fail on the primary key. The user is
+      // known since they are authenticated, so a missing reference is the
+      // music.
+      if (musicRepo.likeMusic(conn, username, musicId) > 0) {
+        readRouter.recordWrite(ReadRouter.userKey(username));
+        versions.bump(ResourceVersions.likedMusicsKey(username));
+      }
+    } catch (SQLException e) {
+      if (PSQLState.FOREIGN_KEY_VIOLATION.getState().equals(e.getSQLState())) {
         throw new NotFoundResponse("Music with id \"" + musicId + "\" not found");
       }
-      // Check if the music is already liked by the user to avoid errors
-      if (!musicRepo.isMusicLikedByUser(conn, username, musicId)) {
-        musicRepo.likeMusic(conn, username, musicId);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Records that a user listened to some musics.
+   *
+   * The listens are written asynchronously in batches. The listens of musics
+   * that do not exist are rejected before being queued, so that they never
+   * reach the in-memory rankings. The user exists since they are
+   * authenticated.
+   *
+   * @param username the username of the user
+   * @param musicIds the unique identifiers of the musics listened to, in the
+   *                 order they were played
+   * @return how many listens were accepted, dropped and rejected
+   */
+  public ListenResult listenMusics(String username, List<Long> musicIds) {
+    LocalDateTime now = LocalDateTime.now();
+
+    // The whole catalog fits in the cache, so checking the IDs seldom needs
+    // the database
+    Set<Long> knownIds = new HashSet<>();
+    try {
+      for (Music music : musicCatalog.getAll(new ArrayList<>(new LinkedHashSet<>(musicIds)))) {
+        knownIds.add(music.musicId());
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
+
+    List<Listen> listens = new ArrayList<>(musicIds.size());
+    for (int i = 0; i < musicIds.size(); i++) {
+      if (knownIds.contains(musicIds.get(i))) {
+        // ecoute's primary key contains the timestamp, so the plays of a bulk
+        // request are spread over distinct microseconds to all be kept
+        listens.add(new Listen(username, musicIds.get(i), now.plusNanos(i * 1_000L)));
+      }
+    }
+
+    // Counted before being queued, see MostListenedCache
+    for (Listen listen : listens) {
+      mostListenedCache.record(username, listen.musicId(), listen.listenedAt());
+    }
+
+    int accepted = listenWriter.submit(listens);
+
+    // Only the accepted listens will reach the database, so only those are
+    // reflected in memory
+    for (int i = 0; i < accepted; i++) {
+      Long musicId = listens.get(i).musicId();
+      lastListenedCache.record(username, musicId);
+      trendingCounters.record(musicId);
+    }
+    for (int i = accepted; i < listens.size(); i++) {
+      mostListenedCache.unrecord(username, listens.get(i).musicId());
+    }
+    // Even when listens were dropped: their counts may have been read before
+    // being undone
+    if (!listens.isEmpty()) {
+      versions.bump(ResourceVersions.listensKey(username));
+    }
+
+    return new ListenResult(accepted, listens.size() - accepted, musicIds.size() - listens.size());
+  }
+
+  /**
+   * Takes back the listens the database refused, which were counted in
+   * memory when they were accepted but will never be written.
+   *
+   * @param listens the listens refused
+   */
+  public void unrecordListens(List<Listen> listens) {
+    Set<String> usernames = new HashSet<>();
+    for (Listen listen : listens) {
+      mostListenedCache.unrecord(listen.username(), listen.musicId());
+      lastListenedCache.forget(listen.username(), listen.musicId());
+      trendingCounters.unrecord(listen.musicId());
+      usernames.add(listen.username());
+    }
+    for (String username : usernames) {
+      versions.bump(ResourceVersions.listensKey(username));
+    }
   }
 }
@@ -1,26 +1,15 @@
 package ch.heigvd.playlist;
 
-import java.time.LocalDateTime;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import ch.heigvd.entities.Playlist;
 import io.javalin.http.Context;
-import io.javalin.http.NotModifiedResponse;
-import io.javalin.http.PreconditionFailedResponse;
 
 public class PlaylistController {
   private final PlaylistService playlistService;
 
-  private final ConcurrentMap<String, LocalDateTime> usersCache;
-
-  // This is a magic String used as key to identify all playlists in the cache
-  private static final String ALL_PLAYLISTS_CACHE_KEY = "ALL_PLAYLISTS";
-
-  public PlaylistController(PlaylistService playlistService, ConcurrentMap<String, LocalDateTime> usersCache) {
+  public PlaylistController(PlaylistService playlistService) {
     this.playlistService = playlistService;
-    this.usersCache = usersCache;
   }
 
   /**
@@ -44,22 +33,16 @@ public class PlaylistController {
 
     Long playlistId = playlistService.createPlaylist(playlist);
 
-    // Store the last modification date of the user
-    LocalDateTime now = LocalDateTime.now();
-    usersCache.put(playlistCacheKey(playlistId), now);
-
-    // Invalidate the cache for all users
-    usersCache.remove(allPlaylistsCacheKey(ctx.cookie("userNameCookie")));
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
+    // The version of the new playlist, for the next modifications
+    ctx.header("ETag", playlistService.playlistEtag(playlistId));
 
     // 201 == Created
     ctx.status(201);
   }
 
   /**
-   * Get a playlist by its ID.
+   * Get a playlist by its ID. Its ETag is handled by the conditional requests
+   * filter.
    *
    * @param ctx the Javalin context
    */
@@ -68,35 +51,14 @@ public class PlaylistController {
         .check(id -> id > 0, "Playlist ID must be a positive number")
         .get();
 
-    // Get the last known modification date of the user
-    LocalDateTime lastKnownModification =
-      ctx.headerAsClass("If-Modified-Since", LocalDateTime.class).getOrDefault(null);
-
-    // Check if the user has been modified since the last known modification date
-    if (lastKnownModification != null && usersCache.get(playlistCacheKey(playlistId)).equals(lastKnownModification)) {
-      throw new NotModifiedResponse();
-    }
-
     Playlist playlist = playlistService.getPlaylist(playlistId);
 
-    LocalDateTime now;
-    if (usersCache.containsKey(playlistCacheKey(playlistId))) {
-      // If it is already in the cache, get the last modification date
-      now = usersCache.get(playlistCacheKey(playlistId));
-    } else {
-      // Otherwise, set to the current date
-      now = LocalDateTime.now();
-      usersCache.put(playlistCacheKey(playlistId), now);
-    }
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
-
     ctx.json(playlist);
   }
 
   /**
-   * Get all playlists created by a specific user.
+   * Get all playlists created by a specific user. Their ETag is handled by the
+   * conditional requests filter.
    *
    * @param ctx the Javalin context
    */
@@ -106,69 +68,22 @@ public class PlaylistController {
         .check(name -> name == null || name.length() <= 250, "Creator name must be at most 250 characters")
         .get();
 
-    // Get the last known modification date of all users
-    LocalDateTime lastKnownModification =
-      ctx.headerAsClass("If-Modified-Since", LocalDateTime.class).getOrDefault(null);
-
-    // Check if all users have been modified since the last known modification date
-    if (lastKnownModification != null
-        && usersCache.containsKey(allPlaylistsCacheKey(creatorName))
-        && usersCache.get(allPlaylistsCacheKey(creatorName)).equals(lastKnownModification)) {
-      throw new NotModifiedResponse();
-    }
-
     List<Playlist> playlists = playlistService.getUserPlaylists(creatorName);
 
-    LocalDateTime now;
-    if (usersCache.containsKey(allPlaylistsCacheKey(creatorName))) {
-      // If it is already in the cache, get the last modification date
-      now = usersCache.get(allPlaylistsCacheKey(creatorName));
-    } else {
-      // Otherwise, set to the current date
-      now = LocalDateTime.now();
-      usersCache.put(allPlaylistsCacheKey(creatorName), now);
-    }
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
-
     ctx.json(playlists);
   }
 
   /**
-   * Get all playlists followed by the logged-in user.
+   * Get all playlists followed by the logged-in user. Their ETag is handled by
+   * the conditional requests filter.
    *
    * @param ctx the Javalin context
    */
   public void getFollowedPlaylists(Context ctx) {
     String username = ctx.cookie("userNameCookie");
 
-    // Get the last known modification date of all users
-    LocalDateTime lastKnownModification =
-            ctx.headerAsClass("If-Modified-Since", LocalDateTime.class).getOrDefault(null);
-
-    // Check if all users have been modified since the last known modification date
-    if (lastKnownModification != null
-            && usersCache.containsKey(followedAllPlaylistsCacheKey(username))
-            && usersCache.get(followedAllPlaylistsCacheKey(username)).equals(lastKnownModification)) {
-      throw new NotModifiedResponse();
-    }
-
     List<Playlist> playlists = playlistService.getFollowedPlaylists(username);
 
-    LocalDateTime now;
-    if (usersCache.containsKey(followedAllPlaylistsCacheKey(username))) {
-      // If it is already in the cache, get the last modification date
-      now = usersCache.get(followedAllPlaylistsCacheKey(username));
-    } else {
-      // Otherwise, set to the current date
-      now = LocalDateTime.now();
-      usersCache.put(followedAllPlaylistsCacheKey(username), now);
-    }
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
-
     ctx.json(playlists);
   }
 
@@ -186,9 +101,6 @@ public class PlaylistController {
 
     playlistService.followPlaylist(username, playlistId);
 
-    // Invalidate the cache for all users
-    usersCache.remove(followedAllPlaylistsCacheKey(username));
-
     // 201 == Created
     ctx.status(201);
   }
@@ -207,28 +119,10 @@ public class PlaylistController {
         .get();
     String username = ctx.cookie("userNameCookie");
 
-    // Get the last known modification date of the user
-    LocalDateTime lastKnownModification =
-      ctx.headerAsClass("If-Unmodified-Since", LocalDateTime.class).getOrDefault(null);
-
-    // Check if the user has been modified since the last known modification date
-    if (lastKnownModification != null
-            //&& usersCache.get(playlistCacheKey(playlistId)) != null
-            && !usersCache.get(playlistCacheKey(playlistId)).equals(lastKnownModification)) {
-      throw new PreconditionFailedResponse();
-    }
-
-    playlistService.addMusicToPlaylist(username, playlistId, musicId);
-
-    // Store the last modification date of the user
-    LocalDateTime now = LocalDateTime.now();
-    usersCache.put(playlistCacheKey(playlistId), now);
-
-    // Invalidate the cache for all users
-    usersCache.remove(allPlaylistsCacheKey(username));
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
+    // The If-Match header is checked along with the modification, the new
+    // version of the playlist is returned
+    String etag = playlistService.addMusicToPlaylist(username, playlistId, musicId, ctx.header("If-Match"));
+    ctx.header("ETag", etag);
 
     // 201 == Created
     ctx.status(201);
@@ -248,53 +142,12 @@ public class PlaylistController {
         .get();
     String username = ctx.cookie("userNameCookie");
 
-    // Get the last known modification date of the user
-    LocalDateTime lastKnownModification =
-      ctx.headerAsClass("If-Unmodified-Since", LocalDateTime.class).getOrDefault(null);
-
-    // Check if the user has been modified since the last known modification date
-    if (lastKnownModification != null
-            //&& usersCache.get(playlistCacheKey(playlistId)) != null
-            && !usersCache.get(playlistCacheKey(playlistId)).equals(lastKnownModification)) {
-      throw new PreconditionFailedResponse();
-    }
-
-    playlistService.removeMusicFromPlaylist(username, playlistId, musicId);
-
-    // Invalidate the cache for the user and update the playlist timestamp
-    LocalDateTime now = LocalDateTime.now();
-    usersCache.put(playlistCacheKey(playlistId), now);
-
-    // Invalidate the cache for all users
-    usersCache.remove(allPlaylistsCacheKey(username));
-
-    // Add the last modification date to the response
-    ctx.header("Last-Modified", String.valueOf(now));
+    // The If-Match header is checked along with the modification, the new
+    // version of the playlist is returned
+    String etag = playlistService.removeMusicFromPlaylist(username, playlistId, musicId, ctx.header("If-Match"));
+    ctx.header("ETag", etag);
 
     // 204 == No Content
     ctx.status(204);
   }
-
-  private String playlistCacheKey(Long playlistId) {
-    return "playlist:" + playlistId;
-  }
-
-
-  /**
-   * Cache key for all playlists.
-   * @param name the name identifier
-   * @return the cache key
-   */
-  private String allPlaylistsCacheKey(String name) {
-    return ALL_PLAYLISTS_CACHE_KEY + ":" + name;
-  }
-
-  /**
-   * Cache key for all followed playlists.
-   * @param name the name identifier
-   * @return the cache key
-   */
-  private String followedAllPlaylistsCacheKey(String name) {
-    return "FOLLOWED_" + ALL_PLAYLISTS_CACHE_KEY + ":" + name;
-  }
 }
@@ -5,14 +5,98 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ch.heigvd.entities.Music;
 import ch.heigvd.entities.Playlist;
+import ch.heigvd.music.MusicCatalogCache;
 
 public class PlaylistRepository {
+  // Source used as reference for unnest function (+ some ChatGPT usage examples):
+  // https://stackoverflow.com/questions/68136872/postgresql-join-unnest-output-with-cte-insert-id-insert-many-to-many
+  private static final String CREATE_PLAYLIST_SQL = """
+      /* PlaylistRepository.createPlaylist */
+      WITH new_playlist AS (
+        INSERT INTO spotish.playlist (nom, description, nomcreateur)
+        VALUES (?, ?, ?)
+        RETURNING idplaylist
+      ),
+      insert_chansons AS (
+        INSERT INTO spotish.chanson_playlist (idchanson, idplaylist)
+        SELECT unnest(?::bigint[]), np.idplaylist
+        FROM new_playlist np
+      )
+      SELECT idplaylist AS playlistId FROM new_playlist;
+      """;
+
+  private static final String GET_PLAYLIST_SQL = """
+      /* PlaylistRepository.getPlaylist */
+      SELECT p.idplaylist AS playlistId, p.nom AS name, p.description AS description, p.nomcreateur AS creatorName
+      FROM spotish.playlist p
+      WHERE p.idplaylist = ?;
+      """;
+
+  private static final String EXISTS_SQL = """
+      /* PlaylistRepository.exists */
+      SELECT COUNT(*) AS count
+      FROM spotish.playlist
+      WHERE idplaylist = ?;
+      """;
+
+  private static final String GET_USER_PLAYLISTS_SQL = """
+      /* PlaylistRepository.getUserPlaylists */
+      SELECT p.idplaylist AS playlistId, p.nom AS name, p.description AS description, p.nomcreateur AS creatorName
+      FROM spotish.playlist p
+      WHERE p.nomcreateur = ?;
+      """;
+
+  private static final String GET_ALL_FOLLOWED_PLAYLISTS_SQL = """
+      /* PlaylistRepository.getAllFollowedPlaylists */
+      SELECT up.idplaylist, p.nom AS playlist_name, p.description, p.nomcreateur AS playlist_creator
+      FROM spotish.utilisateur_playlist up
+      JOIN spotish.playlist p ON up.idplaylist = p.idplaylist
+      WHERE up.nomutilisateur = ?;
+      """;
+
+  private static final String FOLLOW_PLAYLIST_SQL = """
+      /* PlaylistRepository.followPlaylist */
+      INSERT INTO spotish.utilisateur_playlist (nomutilisateur, idplaylist)
+      VALUES (?, ?)
+      ON CONFLICT DO NOTHING;
+      """;
+
+  private static final String ADD_MUSIC_TO_PLAYLIST_SQL = """
+      /* PlaylistRepository.addMusicToPlaylist */
+      INSERT INTO spotish.chanson_playlist (idchanson, idplaylist)
+      VALUES (?, ?)
+      ON CONFLICT DO NOTHING;
+      """;
+
+  private static final String DELETE_MUSIC_FROM_PLAYLIST_SQL = """
+      /* PlaylistRepository.deleteMusicFromPlaylist */
+      DELETE FROM spotish.chanson_playlist
+      WHERE idchanson = ? AND idplaylist = ?;
+      """;
+
+  // Only the IDs are read here, the musics themselves come from the catalog
+  private static final String GET_MUSICS_OF_PLAYLISTS_SQL = """
+      /* PlaylistRepository.getMusicsOfPlaylists */
+      SELECT cp.idplaylist AS playlistId, cp.idchanson AS musicId
+      FROM spotish.chanson_playlist cp
+      WHERE cp.idplaylist = ANY(?);
+      """;
+
+  private final MusicCatalogCache musicCatalog;
+
+  public PlaylistRepository(MusicCatalogCache musicCatalog) {
+    this.musicCatalog = musicCatalog;
+  }
+
   /**
    * Create a new playlist in the database.
    *
@@ -22,25 +106,9 @@ public class PlaylistRepository {
    * @throws SQLException if a database access error occurs
    */
   public Long createPlaylist(Connection conn, Playlist playlist) throws SQLException {
-    // Source used as reference for unnest function (+ some ChatGPT usage examples):
-    // https://stackoverflow.com/questions/68136872/postgresql-join-unnest-output-with-cte-insert-id-insert-many-to-many
-    String sql = """
-        WITH new_playlist AS (
-          INSERT INTO spotish.playlist (nom, description, nomcreateur)
-          VALUES (?, ?, ?)
-          RETURNING idplaylist
-        ),
-        insert_chansons AS (
-          INSERT INTO spotish.chanson_playlist (idchanson, idplaylist)
-          SELECT unnest(?::bigint[]), np.idplaylist
-          FROM new_playlist np
-        )
-        SELECT idplaylist AS playlistId FROM new_playlist;
-            """;
-
     // Disable auto-commit mode to enable transaction management
     conn.setAutoCommit(false);
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(CREATE_PLAYLIST_SQL)) {
       ps.setString(1, playlist.name());
       ps.setString(2, playlist.description());
       ps.setString(3, playlist.creatorName());
@@ -81,26 +149,24 @@ public class PlaylistRepository {
    * @throws SQLException if a database access error occurs
    */
   public Playlist getPlaylist(Connection conn, Long playlistId) throws SQLException {
-    String sql = """
-        SELECT p.idplaylist AS playlistId, p.nom AS name, p.description AS description, p.nomcreateur AS creatorName
-        FROM spotish.playlist p
-        WHERE p.idplaylist = ?;
-                """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_PLAYLIST_SQL)) {
       ps.setLong(1, playlistId);
       ResultSet rs = ps.executeQuery();
 
       Playlist playlist = null;
 
       if (rs.next()) {
-        List<Music> musics = getMusicsOfPlaylist(conn, playlistId);
-
         playlist = new Playlist(
             rs.getLong("playlistId"),
             rs.getString("name"),
             rs.getString("description"),
             rs.getString("creatorName"),
-            musics);
+            null);
+      }
+      rs.close();
+
+      if (playlist != null) {
+        playlist = withMusics(conn, List.of(playlist)).get(0);
       }
       return playlist;
     }
@@ -115,12 +181,7 @@ public class PlaylistRepository {
    * @throws SQLException if a database access error occurs
    */
   public boolean exists(Connection conn, Long playlistId) throws SQLException {
-    String sql = """
-        SELECT COUNT(*) AS count
-        FROM spotish.playlist
-        WHERE idplaylist = ?;
-                """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(EXISTS_SQL)) {
       ps.setLong(1, playlistId);
       ResultSet rs = ps.executeQuery();
 
@@ -140,31 +201,26 @@ public class PlaylistRepository {
    * @throws SQLException if a database access error occurs
    */
   public List<Playlist> getUserPlaylists(Connection conn, String creatorName) throws SQLException {
-    String sql = """
-        SELECT p.idplaylist AS playlistId, p.nom AS name, p.description AS description, p.nomcreateur AS creatorName
-        FROM spotish.playlist p
-        WHERE p.nomcreateur = ?;
-                """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_USER_PLAYLISTS_SQL)) {
       ps.setString(1, creatorName);
       ResultSet rs = ps.executeQuery();
 
       List<Playlist> playlists = new ArrayList<>();
 
       while (rs.next()) {
-        Long playlistId = rs.getLong("playlistId");
-        List<Music> musics = getMusicsOfPlaylist(conn, playlistId);
-
         Playlist playlist = new Playlist(
-            playlistId,
+            rs.getLong("playlistId"),
             rs.getString("name"),
             rs.getString("description"),
             rs.getString("creatorName"),
-            musics);
+            null);
 
         playlists.add(playlist);
       }
-      return playlists;
+      rs.close();
+
+      // The musics of all the playlists are loaded at once
+      return withMusics(conn, playlists);
     }
   }
 
@@ -177,52 +233,41 @@ public class PlaylistRepository {
    * @throws SQLException if a database access error occurs
    */
   public List<Playlist> getAllFollowedPlaylists(Connection conn, String username) throws SQLException {
-    String sql = """
-        SELECT up.idplaylist, p.nom AS playlist_name, p.description, p.nomcreateur AS playlist_creator
-        FROM spotish.utilisateur_playlist up
-        JOIN spotish.playlist p ON up.idplaylist = p.idplaylist
-        WHERE up.nomutilisateur = ?;
-            """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALL_FOLLOWED_PLAYLISTS_SQL)) {
       ps.setString(1, username);
       ResultSet rs = ps.executeQuery();
 
       List<Playlist> playlists = new ArrayList<>();
 
       while (rs.next()) {
-        Long playlistId = rs.getLong("idplaylist");
-        List<Music> musics = getMusicsOfPlaylist(conn, playlistId);
-
         Playlist playlist = new Playlist(
-            playlistId,
+            rs.getLong("idplaylist"),
             rs.getString("playlist_name"),
             rs.getString("description"),
             rs.getString("playlist_creator"),
-            musics);
+            null);
 
         playlists.add(playlist);
       }
-      return playlists;
+      rs.close();
+
+      // The musics of all the playlists are loaded at once
+      return withMusics(conn, playlists);
     }
   }
 
   /**
-   * Follow a playlist for a specific user.
+   * Follow a playlist for a specific user, unless they already do. A playlist
+   * that does not exist makes the insert fail with a foreign key violation.
    *
    * @param conn       the database connection
    * @param username   the username of the user
    * @param playlistId the unique identifier of the playlist to follow
-   * @return the number of rows affected
+   * @return 1 if the playlist was followed, 0 if it already was
    * @throws SQLException if a database access error occurs
    */
   public int followPlaylist(Connection conn, String username, Long playlistId) throws SQLException {
-    String sql = """
-        INSERT INTO spotish.utilisateur_playlist (nomutilisateur, idplaylist)
-        VALUES (?, ?);
-            """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    try (PreparedStatement ps = conn.prepareStatement(FOLLOW_PLAYLIST_SQL)) {
       ps.setString(1, username);
       ps.setLong(2, playlistId);
 
@@ -231,34 +276,27 @@ public class PlaylistRepository {
   }
 
   /**
-   * Check if a user is following a specific playlist.
+   * Add a music to a specific playlist, unless it is already in it. A music or
+   * a playlist that does not exist makes the insert fail with a foreign key
+   * violation.
    *
    * @param conn       the database connection
-   * @param username   the username of the user
+   * @param musicId    the unique identifier of the music
    * @param playlistId the unique identifier of the playlist
-   * @return true if the user is following the playlist, false otherwise
+   * @return 1 if the music was added, 0 if it already was in the playlist
    * @throws SQLException if a database access error occurs
    */
-  public boolean isFollowingPlaylist(Connection conn, String username, Long playlistId) throws SQLException {
-    String sql = """
-        SELECT COUNT(*) AS count
-        FROM spotish.utilisateur_playlist
-        WHERE nomutilisateur = ? AND idplaylist = ?;
-                """;
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setString(1, username);
+  public int addMusicToPlaylist(Connection conn, Long musicId, Long playlistId) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(ADD_MUSIC_TO_PLAYLIST_SQL)) {
+      ps.setLong(1, musicId);
       ps.setLong(2, playlistId);
-      ResultSet rs = ps.executeQuery();
 
-      if (rs.next()) {
-        return rs.getInt("count") > 0;
-      }
-      return false;
+      return ps.executeUpdate();
     }
   }
 
   /**
-   * Add a music to a specific playlist.
+   * Delete a music from a specific playlist.
    *
    * @param conn       the database connection
    * @param musicId    the unique identifier of the music
@@ -266,13 +304,8 @@ public class PlaylistRepository {
    * @return the number of rows affected
    * @throws SQLException if a database access error occurs
    */
-  public int addMusicToPlaylist(Connection conn, Long musicId, Long playlistId) throws SQLException {
-    String sql = """
-        INSERT INTO spotish.chanson_playlist (idchanson, idplaylist)
-        VALUES (?, ?);
-            """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+  public int deleteMusicFromPlaylist(Connection conn, Long musicId, Long playlistId) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(DELETE_MUSIC_FROM_PLAYLIST_SQL)) {
       ps.setLong(1, musicId);
       ps.setLong(2, playlistId);
 
@@ -281,63 +314,73 @@ public class PlaylistRepository {
   }
 
   /**
-   * Delete a music from a specific playlist.
+   * Fill in the musics of the given playlists.
    *
-   * @param conn       the database connection
-   * @param musicId    the unique identifier of the music
-   * @param playlistId the unique identifier of the playlist
-   * @return the number of rows affected
+   * @param conn      the database connection
+   * @param playlists the playlists, without their musics
+   * @return the same playlists, in the same order, with their musics
    * @throws SQLException if a database access error occurs
    */
-  public int deleteMusicFromPlaylist(Connection conn, Long musicId, Long playlistId) throws SQLException {
-    String sql = """
-        DELETE FROM spotish.chanson_playlist
-        WHERE idchanson = ? AND idplaylist = ?;
-            """;
+  private List<Playlist> withMusics(Connection conn, List<Playlist> playlists) throws SQLException {
+    if (playlists.isEmpty()) {
+      return playlists;
+    }
 
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setLong(1, musicId);
-      ps.setLong(2, playlistId);
+    List<Long> playlistIds = new ArrayList<>(playlists.size());
+    for (Playlist playlist : playlists) {
+      playlistIds.add(playlist.id());
+    }
 
-      return ps.executeUpdate();
+    Map<Long, List<Music>> musicsByPlaylist = getMusicsOfPlaylists(conn, playlistIds);
+
+    List<Playlist> result = new ArrayList<>(playlists.size());
+    for (Playlist playlist : playlists) {
+      result.add(playlist.setMusics(musicsByPlaylist.getOrDefault(playlist.id(), new ArrayList<>())));
     }
+    return result;
   }
 
   /**
-   * Get all musics of a given playlist.
+   * Get all musics of several playlists in a single query.
    *
-   * @param conn       the database connection
-   * @param playlistId the unique identifier of the playlist
-   * @return a list of musics in the playlist
+   * @param conn        the database connection
+   * @param playlistIds the unique identifiers of the playlists
+   * @return the musics of each playlist, by playlist ID. Playlists without
+   *         musics are absent from the map.
    * @throws SQLException if a database access error occurs
    */
-  private List<Music> getMusicsOfPlaylist(Connection conn, Long playlistId) throws SQLException {
-    String sql = """
-        SELECT c.idchanson AS musicId, m.titre AS title, m.datedesortie AS releaseDate, c.duree AS duration, c.genre AS genre,
-               STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur) AS creatorNames
-        FROM spotish.chanson_playlist cp
-        JOIN spotish.chanson c          ON cp.idchanson = c.idchanson
-        JOIN spotish.media m            ON m.idmedia = c.idchanson
-        JOIN spotish.createur_media cm  ON cm.idmedia = m.idmedia
-        WHERE cp.idplaylist = ?
-        GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
-                """;
-
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setLong(1, playlistId);
+  private Map<Long, List<Music>> getMusicsOfPlaylists(Connection conn, List<Long> playlistIds) throws SQLException {
+    Map<Long, List<Long>> musicIdsByPlaylist = new HashMap<>();
+    Set<Long> musicIds = new LinkedHashSet<>();
+
+    try (PreparedStatement ps = conn.prepareStatement(GET_MUSICS_OF_PLAYLISTS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("bigint", playlistIds.toArray(new Long[0])));
       ResultSet rs = ps.executeQuery();
 
-      List<Music> musics = new ArrayList<>();
       while (rs.next()) {
-        musics.add(new Music(
-            rs.getLong("musicId"),
-            rs.getString("title"),
-            rs.getObject("releaseDate", LocalDate.class),
-            rs.getInt("duration"),
-            rs.getString("genre"),
-            rs.getString("creatorNames")));
+        Long musicId = rs.getLong("musicId");
+        musicIdsByPlaylist.computeIfAbsent(rs.getLong("playlistId"), id -> new ArrayList<>()).add(musicId);
+        musicIds.add(musicId);
+      }
+    }
+
+    // A music shared by several playlists is only hydrated once
+    Map<Long, Music> musicsById = new HashMap<>();
+    for (Music music : musicCatalog.getAll(conn, new ArrayList<>(musicIds))) {
+      musicsById.put(music.musicId(), music);
+    }
+
+    Map<Long, List<Music>> musicsByPlaylist = new HashMap<>();
+    for (Map.Entry<Long, List<Long>> entry : musicIdsByPlaylist.entrySet()) {
+      List<Music> musics = new ArrayList<>(entry.getValue().size());
+      for (Long musicId : entry.getValue()) {
+        Music music = musicsById.get(musicId);
+        if (music != null) {
+          musics.add(music);
+        }
       }
-      return musics;
+      musicsByPlaylist.put(entry.getKey(), musics);
     }
+    return musicsByPlaylist;
   }
 }
@@ -1,31 +1,51 @@
 package ch.heigvd.playlist;
 
 import ch.heigvd.user.UserRepository;
-import ch.heigvd.music.MusicRepository;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
+import org.postgresql.util.PSQLState;
+
+import ch.heigvd.cache.ConditionalRequests;
+import ch.heigvd.cache.ResourceVersions;
 import ch.heigvd.entities.Playlist;
+import ch.heigvd.pool.ReadRouter;
 import io.javalin.http.ConflictResponse;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.PreconditionFailedResponse;
 import io.javalin.http.UnauthorizedResponse;
 
 public class PlaylistService {
+  // A modification of a playlist checks its version, writes and gives it a
+  // new version under the lock of the playlist, so that two clients sending
+  // the same If-Match cannot both succeed. The versions only exist in this
+  // instance, so a lock of the instance is enough. Locks are shared by the
+  // playlists with the same stripe.
+  private static final int LOCK_STRIPES = 64;
+
+
   private final PlaylistRepository playlistRepo;
   private final UserRepository userRepo;
-  private final MusicRepository musicRepo;
   private final DataSource ds;
+  private final ReadRouter readRouter;
+  private final ResourceVersions versions;
+  private final ReentrantLock[] playlistLocks = new ReentrantLock[LOCK_STRIPES];
 
-  public PlaylistService(DataSource ds, PlaylistRepository playlistRepo, UserRepository userRepo,
-      MusicRepository musicRepo) {
+  public PlaylistService(DataSource ds, ReadRouter readRouter, ResourceVersions versions,
+      PlaylistRepository playlistRepo, UserRepository userRepo) {
     this.ds = ds;
+    this.readRouter = readRouter;
+    this.versions = versions;
     this.playlistRepo = playlistRepo;
     this.userRepo = userRepo;
-    this.musicRepo = musicRepo;
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      playlistLocks[i] = new ReentrantLock();
+    }
   }
 
   /**
@@ -41,7 +61,13 @@ public class PlaylistService {
         throw new ConflictResponse("Playlist with ID " + playlist.id() + " already exists");
       }
 
-      return playlistRepo.createPlaylist(conn, playlist);
+      Long playlistId = playlistRepo.createPlaylist(conn, playlist);
+
+      readRouter.recordWrite(ReadRouter.userKey(playlist.creatorName()));
+      readRouter.recordWrite(ReadRouter.playlistKey(playlistId));
+      versions.bump(ResourceVersions.playlistKey(playlistId),
+          ResourceVersions.userPlaylistsKey(playlist.creatorName()));
+      return playlistId;
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
@@ -55,7 +81,8 @@ public class PlaylistService {
    * @throws NotFoundResponse if the playlist with the given ID does not exist.
    */
   public Playlist getPlaylist(Long playlistId) {
-    try (Connection conn = ds.getConnection()) {
+    // From the primary if the playlist was just created or modified
+    try (Connection conn = readRouter.forRead(ReadRouter.playlistKey(playlistId)).getConnection()) {
       Playlist playlist = playlistRepo.getPlaylist(conn, playlistId);
       if (playlist == null) {
         throw new NotFoundResponse("Playlist with ID " + playlistId + " not found");
@@ -74,7 +101,8 @@ public class PlaylistService {
    * @throws NotFoundResponse if no playlists are found for the given user.
    */
   public List<Playlist> getUserPlaylists(String creatorName) {
-    try (Connection conn = ds.getConnection()) {
+    // From the primary if the creator just created or modified a playlist
+    try (Connection conn = readRouter.forRead(ReadRouter.userKey(creatorName)).getConnection()) {
       // Check if user exists first
       if (!userRepo.exists(conn, creatorName)) {
         throw new NotFoundResponse("User " + creatorName + " does not exist");
@@ -101,7 +129,10 @@ public class PlaylistService {
    *                          user.
    */
   public List<Playlist> getFollowedPlaylists(String username) {
-    try (Connection conn = ds.getConnection()) {
+    // From the primary if the user just followed a playlist or if any
+    // playlist was just modified, as for the ETag of the list
+    try (Connection conn = readRouter.forRead(ReadRouter.userKey(username), ReadRouter.ALL_PLAYLISTS)
+        .getConnection()) {
       // Check if user exists first (technically shouldn't be necessary if called
       // after authentication but if we scale this to apply to every user it might be
       // useful)
@@ -130,19 +161,17 @@ public class PlaylistService {
    */
   public void followPlaylist(String username, Long playlistId) {
     try (Connection conn = ds.getConnection()) {
-      // No need to check if user exists here since this is done during authentication
-      // Check if playlist exists
-      if (!playlistRepo.exists(conn, playlistId)) {
-        throw new NotFoundResponse("Playlist with ID " + playlistId + " does not exist");
-      }
-
-      // Check if user already follows the playlist
-      if (playlistRepo.isFollowingPlaylist(conn, username, playlistId)) {
-        return; // No action needed if already following
+      // No need to check if user exists here since this is done during
+      // authentication, so a missing reference is the playlist. Following a
+      // playlist twice is ignored by the insert.
+      if (playlistRepo.followPlaylist(conn, username, playlistId) > 0) {
+        readRouter.recordWrite(ReadRouter.userKey(username));
+        versions.bump(ResourceVersions.followedPlaylistsKey(username));
       }
-
-      playlistRepo.followPlaylist(conn, username, playlistId);
     } catch (SQLException e) {
+      if (PSQLState.FOREIGN_KEY_VIOLATION.getState().equals(e.getSQLState())) {
+        throw new NotFoundResponse("Playlist with ID " + playlistId + " does not exist");
+      }
       throw new RuntimeException(e);
     }
   }
@@ -153,31 +182,32 @@ public class PlaylistService {
    * @param username   The name of the user adding the music.
    * @param playlistId The unique identifier of the playlist.
    * @param musicId    The unique identifier of the music.
-   * @throws NotFoundResponse     if the music or playlist does not exist.
-   * @throws UnauthorizedResponse if the user is not the creator of the playlist.
+   * @param ifMatch    The If-Match header of the request, or null.
+   * @return The ETag of the playlist once modified.
+   * @throws NotFoundResponse           if the music or playlist does not exist.
+   * @throws UnauthorizedResponse       if the user is not the creator of the
+   *                                    playlist.
+   * @throws PreconditionFailedResponse if the playlist does not match ifMatch.
    */
-  public void addMusicToPlaylist(String username, Long playlistId, Long musicId) {
+  public String addMusicToPlaylist(String username, Long playlistId, Long musicId, String ifMatch) {
+    ReentrantLock lock = lockOf(playlistId);
+    lock.lock();
     try (Connection conn = ds.getConnection()) {
-      // Check if music exists
-      if (!musicRepo.exists(conn, musicId)) {
-        throw new NotFoundResponse("Music with ID " + musicId + " does not exist");
-      }
+      checkModifiable(conn, username, playlistId, ifMatch);
 
-      Playlist playlist = playlistRepo.getPlaylist(conn, playlistId);
-
-      // Check if playlist exists
-      if (playlist == null) {
-        throw new NotFoundResponse("Playlist with ID " + playlistId + " does not exist");
-      }
-      // Check if user is the creator of the playlist
-      if (!playlist.creatorName().equals(username)) {
-        throw new UnauthorizedResponse("User " + username + " is not the creator of playlist " + playlistId);
+      // Add music to playlist, the playlist exists so a missing reference is
+      // the music. Adding a music twice is ignored by the insert.
+      if (playlistRepo.addMusicToPlaylist(conn, musicId, playlistId) > 0) {
+        bumpPlaylist(username, playlistId);
       }
-
-      // Add music to playlist
-      playlistRepo.addMusicToPlaylist(conn, musicId, playlistId);
+      return playlistEtag(playlistId);
     } catch (SQLException e) {
+      if (PSQLState.FOREIGN_KEY_VIOLATION.getState().equals(e.getSQLState())) {
+        throw new NotFoundResponse("Music with ID " + musicId + " does not exist");
+      }
       throw new RuntimeException(e);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -187,26 +217,85 @@ public class PlaylistService {
    * @param username   The name of the user removing the music.
    * @param playlistId The unique identifier of the playlist.
    * @param musicId    The unique identifier of the music.
-   * @throws NotFoundResponse     if the playlist does not exist.
-   * @throws UnauthorizedResponse if the user is not the creator of the playlist.
+   * @param ifMatch    The If-Match header of the request, or null.
+   * @return The ETag of the playlist once modified.
+   * @throws NotFoundResponse           if the playlist does not exist.
+   * @throws UnauthorizedResponse       if the user is not the creator of the
+   *                                    playlist.
+   * @throws PreconditionFailedResponse if the playlist does not match ifMatch.
    */
-  public void removeMusicFromPlaylist(String username, Long playlistId, Long musicId) {
+  public String removeMusicFromPlaylist(String username, Long playlistId, Long musicId, String ifMatch) {
+    ReentrantLock lock = lockOf(playlistId);
+    lock.lock();
     try (Connection conn = ds.getConnection()) {
-      Playlist playlist = playlistRepo.getPlaylist(conn, playlistId);
-
-      // Check if playlist exists
-      if (playlist == null) {
-        throw new NotFoundResponse("Playlist with ID " + playlistId + " does not exist");
-      }
-      // Check if user is the creator of the playlist
-      if (!playlist.creatorName().equals(username)) {
-        throw new UnauthorizedResponse("User " + username + " is not the creator of playlist " + playlistId);
-      }
+      checkModifiable(conn, username, playlistId, ifMatch);
 
       // Remove music from playlist
-      playlistRepo.deleteMusicFromPlaylist(conn, musicId, playlistId);
+      if (playlistRepo.deleteMusicFromPlaylist(conn, musicId, playlistId) > 0) {
+        bumpPlaylist(username, playlistId);
+      }
+      return playlistEtag(playlistId);
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      lock.unlock();
     }
   }
+
+  /**
+   * The ETag of a playlist, built from the same resources as the one of GET
+   * /playlists/{playlistId}: the playlist and the musics of the catalog it
+   * contains.
+   *
+   * @param playlistId The unique identifier of the playlist.
+   * @return The current ETag of the playlist.
+   */
+  public String playlistEtag(Long playlistId) {
+    return versions.etag(ResourceVersions.playlistKey(playlistId), ResourceVersions.CATALOG);
+  }
+
+  /**
+   * Checks that a playlist exists, belongs to the user and is still the
+   * version the user modifies, if they sent one with If-Match. To be called
+   * under the lock of the playlist.
+   */
+  private void checkModifiable(Connection conn, String username, Long playlistId, String ifMatch)
+      throws SQLException {
+    Playlist playlist = playlistRepo.getPlaylist(conn, playlistId);
+
+    // Check if playlist exists
+    if (playlist == null) {
+      throw new NotFoundResponse("Playlist with ID " + playlistId + " does not exist");
+    }
+    // Check if user is the creator of the playlist
+    if (!playlist.creatorName().equals(username)) {
+      throw new UnauthorizedResponse("User " + username + " is not the creator of playlist " + playlistId);
+    }
+    // Check if the playlist was modified since the version of the user
+    if (ifMatch != null && !ConditionalRequests.matches(ifMatch, playlistEtag(playlistId), false)) {
+      throw new PreconditionFailedResponse();
+    }
+  }
+
+  private ReentrantLock lockOf(Long playlistId) {
+    return playlistLocks[(int) Math.floorMod(playlistId, (long) LOCK_STRIPES)];
+  }
+
+  /**
+   * Gives a new version to a playlist whose musics changed, and to the lists
+   * it appears in. They are read from the primary for a while, so that the
+   * new versions are not served with the old content of the replica.
+   *
+   * @param creatorName The name of the creator of the playlist.
+   * @param playlistId  The unique identifier of the playlist.
+   */
+  private void bumpPlaylist(String creatorName, Long playlistId) {
+    readRouter.recordWrite(ReadRouter.userKey(creatorName));
+    readRouter.recordWrite(ReadRouter.playlistKey(playlistId));
+    // The followers of the playlist are not known here, their lists of
+    // followed playlists depend on all the playlists instead
+    readRouter.recordWrite(ReadRouter.ALL_PLAYLISTS);
+    versions.bump(ResourceVersions.playlistKey(playlistId), ResourceVersions.userPlaylistsKey(creatorName),
+        ResourceVersions.ALL_PLAYLISTS);
+  }
 }
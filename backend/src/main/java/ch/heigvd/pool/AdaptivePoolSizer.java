@@ -0,0 +1,229 @@
+package ch.heigvd.pool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import ch.heigvd.metrics.LatencyHistogram;
+
+/**
+ * Resizes the connection pool from the time the threads wait for a
+ * connection and the CPU load of the database.
+ *
+ * Every second, it samples the active connections of the pool and the
+ * backends of PostgreSQL running on a CPU (active, not waiting on a lock or
+ * on I/O). Every window of samples, it decides:
+ *
+ * - when the database CPUs are saturated, more connections only add
+ * contention, so the pool shrinks;
+ * - when the threads waited for a connection and the database has spare CPU,
+ * the pool grows;
+ * - when nobody waited and less than half of the pool was used, the pool
+ * shrinks back towards its configured size.
+ *
+ * The database is sampled through a connection of its own, so that the sizer
+ * still works when the pool is starved.
+ */
+public class AdaptivePoolSizer implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+
+  private static final long SAMPLE_INTERVAL_MILLIS = 1_000;
+  private static final int SAMPLES_PER_WINDOW = 10;
+  // Waiting longer than this for a connection means the pool is too small
+  private static final double WAIT_TARGET_MILLIS = 10;
+  // Under this, nobody really waited
+  private static final double NO_WAIT_MILLIS = 1;
+  // Share of the database CPUs busy above which the pool must not grow
+  private static final double CPU_HIGH = 0.8;
+  // Share of the database CPUs busy above which the pool shrinks
+  private static final double CPU_SATURATED = 0.95;
+
+  private static final String CPU_SQL = """
+      SELECT COUNT(*) AS onCpu
+      FROM pg_stat_activity
+      WHERE backend_type = 'client backend'
+        AND state = 'active'
+        AND wait_event IS NULL
+        AND pid <> pg_backend_pid();
+      """;
+
+  private final HikariDataSource ds;
+  private final PoolMetrics metrics;
+  private final int minSize;
+  private final int maxSize;
+  private final int databaseCpus;
+  private final ScheduledExecutorService scheduler;
+
+  // Only used by the scheduler thread
+  private Connection monitorConn;
+  private int samples;
+  private long onCpuSum;
+  private int peakActive;
+  private LatencyHistogram.Snapshot windowStart;
+
+  private volatile Decision lastDecision;
+
+  /**
+   * @param ds           the pool to resize
+   * @param metrics      the metrics of the pool
+   * @param minSize      the smallest maximum size of the pool, usually its
+   *                     configured size
+   * @param maxSize      the largest maximum size of the pool
+   * @param databaseCpus the number of CPUs of the database server
+   */
+  public AdaptivePoolSizer(HikariDataSource ds, PoolMetrics metrics, int minSize, int maxSize, int databaseCpus) {
+    if (minSize < 1 || maxSize < minSize || databaseCpus < 1) {
+      throw new IllegalArgumentException("Invalid bounds of the pool size: " + minSize + ".." + maxSize
+          + " for " + databaseCpus + " CPUs");
+    }
+    this.ds = ds;
+    this.metrics = metrics;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.databaseCpus = databaseCpus;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "pool-sizer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts sampling and resizing the pool in a background thread.
+   */
+  public void start() {
+    windowStart = metrics.acquireTimes();
+    scheduler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    LOG.info("Adapting the size of the pool between {} and {} connections", minSize, maxSize);
+  }
+
+  /**
+   * @return the bounds and the last decision of the sizer, to be serialized
+   *         to JSON
+   */
+  public Map<String, Object> summary() {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("minSize", minSize);
+    summary.put("maxSize", maxSize);
+    summary.put("databaseCpus", databaseCpus);
+    summary.put("lastDecision", lastDecision);
+    return summary;
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closeMonitorConnection();
+  }
+
+  private void sample() {
+    try {
+      onCpuSum += countBackendsOnCpu();
+      peakActive = Math.max(peakActive, ds.getHikariPoolMXBean().getActiveConnections());
+      samples++;
+
+      if (samples >= SAMPLES_PER_WINDOW) {
+        decide();
+      }
+    } catch (SQLException e) {
+      // The connection is opened again at the next sample
+      LOG.warn("Could not sample the load of the database", e);
+      closeMonitorConnection();
+    } catch (RuntimeException e) {
+      // An exception would cancel the scheduled task
+      LOG.error("Could not resize the pool", e);
+    }
+  }
+
+  private void decide() {
+    LatencyHistogram.Snapshot acquireTimes = metrics.acquireTimes();
+    LatencyHistogram.Snapshot window = acquireTimes.minus(windowStart);
+    double waitP99 = window.percentileMillis(99);
+    double cpu = (double) onCpuSum / samples / databaseCpus;
+    int current = ds.getHikariConfigMXBean().getMaximumPoolSize();
+
+    int size = current;
+    String reason;
+    if (cpu >= CPU_SATURATED && current > minSize) {
+      size = current - 1;
+      reason = "database CPUs saturated";
+    } else if (waitP99 >= WAIT_TARGET_MILLIS && cpu < CPU_HIGH && current < maxSize) {
+      size = Math.min(maxSize, current + Math.max(1, current / 4));
+      reason = "threads waiting for a connection";
+    } else if (waitP99 < NO_WAIT_MILLIS && peakActive < current / 2 && current > minSize) {
+      size = current - 1;
+      reason = "pool underused";
+    } else {
+      reason = "unchanged";
+    }
+
+    if (size != current) {
+      ds.getHikariConfigMXBean().setMaximumPoolSize(size);
+      LOG.info("Pool resized from {} to {} connections: {} (p99 wait {} ms, database CPU {}%, peak active {})",
+          current, size, reason, waitP99, Math.round(cpu * 100), peakActive);
+    }
+    lastDecision = new Decision(Instant.now(), current, size, reason, waitP99, cpu, peakActive);
+
+    windowStart = acquireTimes;
+    samples = 0;
+    onCpuSum = 0;
+    peakActive = 0;
+  }
+
+  private int countBackendsOnCpu() throws SQLException {
+    if (monitorConn == null) {
+      monitorConn = DriverManager.getConnection(ds.getJdbcUrl(), ds.getUsername(), ds.getPassword());
+    }
+    try (PreparedStatement ps = monitorConn.prepareStatement(CPU_SQL);
+        ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      return rs.getInt("onCpu");
+    }
+  }
+
+  private void closeMonitorConnection() {
+    if (monitorConn != null) {
+      try {
+        monitorConn.close();
+      } catch (SQLException e) {
+        LOG.debug("Could not close the monitoring connection", e);
+      }
+      monitorConn = null;
+    }
+  }
+
+  /**
+   * A decision of the sizer.
+   *
+   * @param at          when it was taken
+   * @param fromSize    the maximum size of the pool before
+   * @param toSize      the maximum size of the pool after
+   * @param reason      why the size changed, or "unchanged"
+   * @param waitP99Ms   the 99th percentile of the time waited for a connection
+   *                    during the window
+   * @param databaseCpu the average share of the database CPUs busy
+   * @param peakActive  the most connections in use at once during the window
+   */
+  public record Decision(Instant at, int fromSize, int toSize, String reason, double waitP99Ms, double databaseCpu,
+      int peakActive) {
+  }
+}
@@ -0,0 +1,107 @@
+package ch.heigvd.pool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import ch.heigvd.metrics.LatencyHistogram;
+
+/**
+ * Metrics of the connection pool, recorded by Hikari.
+ *
+ * The acquire time is how long a thread waited for a connection, the usage
+ * time how long it kept it. A latency spike with long acquire times is pool
+ * starvation; with short acquire times but long usage times, it is the SQL
+ * that is slow.
+ */
+public class PoolMetrics implements MetricsTrackerFactory {
+  private final LatencyHistogram acquire = new LatencyHistogram();
+  private final LatencyHistogram usage = new LatencyHistogram();
+  private final LatencyHistogram creation = new LatencyHistogram();
+  private final LongAdder timeouts = new LongAdder();
+
+  private volatile PoolStats poolStats;
+
+  @Override
+  public IMetricsTracker create(String poolName, PoolStats poolStats) {
+    this.poolStats = poolStats;
+
+    return new IMetricsTracker() {
+      @Override
+      public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquire.record(elapsedAcquiredNanos);
+      }
+
+      @Override
+      public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+      }
+
+      @Override
+      public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        creation.record(TimeUnit.MILLISECONDS.toNanos(connectionCreatedMillis));
+      }
+
+      @Override
+      public void recordConnectionTimeout() {
+        timeouts.increment();
+      }
+    };
+  }
+
+  /**
+   * @return how long the threads waited for a connection
+   */
+  public LatencyHistogram.Snapshot acquireTimes() {
+    return acquire.snapshot();
+  }
+
+  /**
+   * @return how long the connections were kept by the threads
+   */
+  public LatencyHistogram.Snapshot usageTimes() {
+    return usage.snapshot();
+  }
+
+  /**
+   * @return the current connections and waiting threads of the pool, null
+   *         until the pool is started
+   */
+  public PoolStats poolStats() {
+    return poolStats;
+  }
+
+  /**
+   * @return the number of threads that gave up waiting for a connection
+   */
+  public long timeouts() {
+    return timeouts.sum();
+  }
+
+  /**
+   * @return the current state of the pool and the histograms, to be
+   *         serialized to JSON
+   */
+  public Map<String, Object> summary() {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    PoolStats stats = poolStats;
+    if (stats != null) {
+      summary.put("active", stats.getActiveConnections());
+      summary.put("idle", stats.getIdleConnections());
+      summary.put("total", stats.getTotalConnections());
+      summary.put("pendingThreads", stats.getPendingThreads());
+      summary.put("minIdle", stats.getMinConnections());
+      summary.put("maxSize", stats.getMaxConnections());
+    }
+    summary.put("timeouts", timeouts());
+    summary.put("acquire", acquire.snapshot().summary());
+    summary.put("usage", usage.snapshot().summary());
+    summary.put("creation", creation.snapshot().summary());
+    return summary;
+  }
+}
@@ -0,0 +1,345 @@
+package ch.heigvd.pool;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.cache.BoundedCache;
+
+/**
+ * Sends the read-only queries to a read replica when it is up to date enough,
+ * and everything else to the primary.
+ *
+ * The lag of the replica is measured every second. While it is unreachable
+ * or lags more than the allowed lag, every read goes to the primary.
+ *
+ * To read their own writes, the services record what they wrote (e.g.
+ * "user:alice" or "playlist:12"). For a while after that, the reads about the
+ * same keys go to the primary. That while is never shorter than the allowed
+ * lag, so a read sent to the replica always sees the writes made before it.
+ */
+public class ReadRouter implements AutoCloseable {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ReadRouter.class);
+
+  private static final long LAG_CHECK_INTERVAL_MILLIS = 1_000;
+  // Bounds the memory used by the keys written recently
+  private static final int MAX_RECENT_WRITES = 100_000;
+
+  // A replica that received all the WAL it knows of is up to date, even if
+  // its last replayed transaction is old because the primary is idle
+  private static final String LAG_SQL = """
+      /* ReadRouter.checkLag */
+      SELECT CASE
+          WHEN NOT pg_is_in_recovery() THEN 0
+          WHEN pg_last_wal_receive_lsn() <= pg_last_wal_replay_lsn() THEN 0
+          ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0)
+        END AS lagMillis;
+      """;
+
+  private static final String CURRENT_LSN_SQL = """
+      /* ReadRouter.awaitReplay */
+      SELECT pg_current_wal_lsn()::text AS lsn;
+      """;
+
+  // Also true when the "replica" is a primary, which has nothing to replay
+  private static final String REPLAYED_SQL = """
+      /* ReadRouter.awaitReplay */
+      SELECT COALESCE(pg_last_wal_replay_lsn() >= ?::pg_lsn, NOT pg_is_in_recovery()) AS replayed;
+      """;
+
+  private static final long REPLAY_POLL_INTERVAL_MILLIS = 50;
+
+  private final DataSource primary;
+  private final DataSource replica;
+  private final Duration maxLag;
+  private final BoundedCache<String, Boolean> recentWrites;
+  private final ScheduledExecutorService lagChecker;
+  private final DataSource reads = new RoutingDataSource();
+
+  private volatile boolean replicaHealthy;
+  private volatile long lagMillis = -1;
+
+  private final LongAdder replicaReads = new LongAdder();
+  private final LongAdder primaryReads = new LongAdder();
+  private final LongAdder recentWriteFallbacks = new LongAdder();
+  private final LongAdder unhealthyFallbacks = new LongAdder();
+
+  /**
+   * @param primary     the primary database
+   * @param replica     the read replica, or null to send everything to the
+   *                    primary
+   * @param maxLag      the lag above which the replica is not used
+   * @param stickyAfter how long the reads about a key written go to the
+   *                    primary, at least maxLag
+   */
+  public ReadRouter(DataSource primary, DataSource replica, Duration maxLag, Duration stickyAfter) {
+    this.primary = primary;
+    this.replica = replica;
+    this.maxLag = maxLag;
+    // The lag is only known once per check, it could have grown since
+    Duration sticky = maxLag.plusMillis(LAG_CHECK_INTERVAL_MILLIS);
+    this.recentWrites = BoundedCache.expireAfterWrite(MAX_RECENT_WRITES,
+        stickyAfter.compareTo(sticky) > 0 ? stickyAfter : sticky);
+    this.lagChecker = replica == null ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "replica-lag-checker");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts checking the lag of the replica in a background thread.
+   */
+  public void start() {
+    if (lagChecker != null) {
+      checkLag();
+      lagChecker.scheduleWithFixedDelay(this::checkLag, LAG_CHECK_INTERVAL_MILLIS, LAG_CHECK_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return a data source for reads that do not depend on recent writes, like
+   *         the catalog. Each connection comes from the replica when it is
+   *         usable, from the primary otherwise.
+   */
+  public DataSource reads() {
+    return reads;
+  }
+
+  /**
+   * Chooses where to read data that may have just been written.
+   *
+   * @param keys what is read, as passed to {@link #recordWrite(String)}. Null
+   *             keys are ignored.
+   * @return the replica if it is usable and none of the keys was written
+   *         recently, the primary otherwise
+   */
+  public DataSource forRead(String... keys) {
+    if (replica == null) {
+      return primary;
+    }
+    for (String key : keys) {
+      if (key != null && recentWrites.get(key) != null) {
+        recentWriteFallbacks.increment();
+        primaryReads.increment();
+        return primary;
+      }
+    }
+    return replicaIfHealthy();
+  }
+
+  /**
+   * Records that something was written to the primary, so that it is read
+   * from the primary for a while.
+   *
+   * @param key what was written, e.g. "user:alice"
+   */
+  public void recordWrite(String key) {
+    if (replica != null) {
+      recentWrites.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Waits until the replica has replayed everything committed on the primary
+   * so far, for at most the allowed lag. To be called after a change made
+   * outside of the API, before dropping the caches filled from the replica,
+   * so that they are not filled again with the old rows.
+   *
+   * If the replica is unreachable or does not catch up in time, every read
+   * goes to the primary until the next check of its lag.
+   */
+  public void awaitReplay() {
+    if (replica == null) {
+      return;
+    }
+    try {
+      String lsn;
+      try (Connection conn = primary.getConnection();
+          PreparedStatement ps = conn.prepareStatement(CURRENT_LSN_SQL);
+          ResultSet rs = ps.executeQuery()) {
+        rs.next();
+        lsn = rs.getString("lsn");
+      }
+
+      long deadline = System.nanoTime() + maxLag.toNanos();
+      try (Connection conn = replica.getConnection();
+          PreparedStatement ps = conn.prepareStatement(REPLAYED_SQL)) {
+        ps.setString(1, lsn);
+        while (true) {
+          try (ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            if (rs.getBoolean("replayed")) {
+              return;
+            }
+          }
+          if (System.nanoTime() - deadline > 0) {
+            break;
+          }
+          Thread.sleep(REPLAY_POLL_INTERVAL_MILLIS);
+        }
+      }
+      LOG.warn("Read replica did not replay the changes within {} ms, reading from the primary", maxLag.toMillis());
+    } catch (SQLException | RuntimeException e) {
+      LOG.warn("Could not wait for the read replica, reading from the primary", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    replicaHealthy = false;
+  }
+
+  /**
+   * Key of the musics of all the playlists, read by the lists of followed
+   * playlists whose followers are not known when a playlist changes.
+   */
+  public static final String ALL_PLAYLISTS = "playlists";
+
+  /**
+   * @param username the name of a user
+   * @return the key of what the user wrote
+   */
+  public static String userKey(String username) {
+    return username == null ? null : "user:" + username;
+  }
+
+  /**
+   * @param playlistId the unique identifier of a playlist
+   * @return the key of the playlist
+   */
+  public static String playlistKey(Long playlistId) {
+    return playlistId == null ? null : "playlist:" + playlistId;
+  }
+
+  /**
+   * @return the state of the replica and where the reads went, to be
+   *         serialized to JSON
+   */
+  public Map<String, Object> summary() {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("configured", replica != null);
+    summary.put("healthy", replicaHealthy);
+    summary.put("lagMs", lagMillis);
+    summary.put("maxLagMs", maxLag.toMillis());
+    summary.put("replicaReads", replicaReads.sum());
+    summary.put("primaryReads", primaryReads.sum());
+    summary.put("recentWriteFallbacks", recentWriteFallbacks.sum());
+    summary.put("unhealthyFallbacks", unhealthyFallbacks.sum());
+    return summary;
+  }
+
+  @Override
+  public void close() {
+    if (lagChecker != null) {
+      lagChecker.shutdownNow();
+    }
+  }
+
+  private DataSource replicaIfHealthy() {
+    if (replica == null) {
+      return primary;
+    }
+    if (!replicaHealthy) {
+      unhealthyFallbacks.increment();
+      primaryReads.increment();
+      return primary;
+    }
+    replicaReads.increment();
+    return replica;
+  }
+
+  private void checkLag() {
+    boolean wasHealthy = replicaHealthy;
+    try (Connection conn = replica.getConnection();
+        PreparedStatement ps = conn.prepareStatement(LAG_SQL);
+        ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      lagMillis = rs.getLong("lagMillis");
+      replicaHealthy = lagMillis <= maxLag.toMillis();
+    } catch (SQLException | RuntimeException e) {
+      lagMillis = -1;
+      replicaHealthy = false;
+      if (wasHealthy) {
+        LOG.warn("Read replica unreachable, reading from the primary", e);
+      }
+      return;
+    }
+
+    if (wasHealthy != replicaHealthy) {
+      if (replicaHealthy) {
+        LOG.info("Read replica up to date (lag {} ms), reading from it", lagMillis);
+      } else {
+        LOG.warn("Read replica lagging {} ms behind, reading from the primary", lagMillis);
+      }
+    }
+  }
+
+  /**
+   * Data source taking each connection from the replica or the primary,
+   * depending on the state of the replica at that time.
+   */
+  private final class RoutingDataSource implements DataSource {
+    @Override
+    public Connection getConnection() throws SQLException {
+      return replicaIfHealthy().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+      return replicaIfHealthy().getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+      return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+      primary.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+      primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+      return primary.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      return primary.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) {
+        return iface.cast(this);
+      }
+      throw new SQLException("Not a wrapper of " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+      return iface.isInstance(this);
+    }
+  }
+}
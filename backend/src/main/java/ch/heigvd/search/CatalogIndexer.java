@@ -0,0 +1,294 @@
+package ch.heigvd.search;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.cache.ResourceVersions;
+import ch.heigvd.entities.Album;
+import ch.heigvd.entities.Creator;
+import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicCatalogCache;
+import ch.heigvd.music.MusicRepository;
+import ch.heigvd.pool.ReadRouter;
+
+/**
+ * Builds the search index at startup and keeps it up to date with the
+ * catalog.
+ *
+ * The catalog is not written through the API but by the import scripts or
+ * directly in the database. The triggers of V3__catalog_notify.sql notify
+ * each change on the spotish_catalog channel when it is committed, as
+ * "media:{idMedia}" or "creator:{nomCreateur}". A background thread listens
+ * to them on a connection of its own and reindexes what changed. It also
+ * drops the changed musics from the catalog cache and gives the catalog a new
+ * version, so that the clients revalidate their responses. The cache is
+ * filled from the read replica: both wait until the replica has replayed the
+ * change, so that the old rows are not cached again under the new version.
+ *
+ * The notifications sent while the connection is lost are missed: the whole
+ * index is built again once it is back. A large batch of changes, like an
+ * import, also rebuilds it instead of reading the media one by one.
+ */
+public class CatalogIndexer implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(CatalogIndexer.class);
+
+  private static final String CHANNEL = "spotish_catalog";
+  private static final String MEDIA_PREFIX = "media:";
+  private static final String CREATOR_PREFIX = "creator:";
+
+  private static final int POLL_TIMEOUT_MILLIS = 1_000;
+  private static final long RECONNECT_DELAY_MILLIS = 5_000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+  // Beyond this many changes at once, reading the whole catalog is cheaper
+  private static final int MAX_INCREMENTAL_CHANGES = 1_000;
+
+  private final DataSource ds;
+  private final DataSource listenDs;
+  private final SearchIndex index;
+  private final SearchRepository searchRepo;
+  private final MusicRepository musicRepo;
+  private final MusicCatalogCache musicCatalog;
+  private final ResourceVersions versions;
+  private final ReadRouter readRouter;
+  private final Thread worker;
+
+  // The connection listening since start(), taken over by the worker
+  private Connection listening;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param ds           the primary database, read once a change is committed
+   * @param listenDs     the primary database, without pool, for the
+   *                     connection held to listen to the changes
+   * @param index        the index to keep up to date
+   * @param searchRepo   the repository of the albums and creators to index
+   * @param musicRepo    the repository of the musics to index
+   * @param musicCatalog the cache of the musics, invalidated on change
+   * @param versions     the versions of the resources, the catalog gets a new
+   *                     one on change
+   * @param readRouter   the router of the reads, whose replica must have
+   *                     replayed a change before the caches are dropped
+   */
+  public CatalogIndexer(DataSource ds, DataSource listenDs, SearchIndex index, SearchRepository searchRepo,
+      MusicRepository musicRepo, MusicCatalogCache musicCatalog, ResourceVersions versions,
+      ReadRouter readRouter) {
+    this.ds = ds;
+    this.listenDs = listenDs;
+    this.index = index;
+    this.searchRepo = searchRepo;
+    this.musicRepo = musicRepo;
+    this.musicCatalog = musicCatalog;
+    this.versions = versions;
+    this.readRouter = readRouter;
+    this.worker = new Thread(this::run, "catalog-indexer");
+    this.worker.setDaemon(true);
+  }
+
+  /**
+   * Builds the index, then starts listening to the changes in the background.
+   *
+   * @throws RuntimeException if the catalog could not be read
+   */
+  public void start() {
+    // Listening first, so that no change committed while the index is built
+    // is missed
+    Connection conn;
+    try {
+      conn = listen();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    try {
+      rebuild();
+    } catch (RuntimeException e) {
+      closeQuietly(conn);
+      throw e;
+    }
+    // Seen by the worker, started after
+    listening = conn;
+    worker.start();
+  }
+
+  /**
+   * Stops listening to the changes.
+   */
+  @Override
+  public void close() {
+    running = false;
+    try {
+      worker.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    Connection conn = listening;
+    listening = null;
+    while (running) {
+      try {
+        if (conn == null) {
+          conn = listen();
+          // The changes made while nobody listened were missed
+          rebuild();
+        }
+        poll(conn);
+      } catch (SQLException | RuntimeException e) {
+        if (!running) {
+          break;
+        }
+        // Whatever failed, the index is built again once listening again
+        LOG.warn("Stopped following the changes of the catalog, listening again in {} ms", RECONNECT_DELAY_MILLIS,
+            e);
+        closeQuietly(conn);
+        conn = null;
+        try {
+          Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    closeQuietly(conn);
+  }
+
+  private Connection listen() throws SQLException {
+    Connection conn = listenDs.getConnection();
+    try (Statement statement = conn.createStatement()) {
+      statement.execute("LISTEN " + CHANNEL);
+      return conn;
+    } catch (SQLException e) {
+      closeQuietly(conn);
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the changes notified until the connection fails or the indexer is
+   * closed.
+   */
+  private void poll(Connection conn) throws SQLException {
+    PGConnection pgConn = conn.unwrap(PGConnection.class);
+    while (running) {
+      PGNotification[] notifications = pgConn.getNotifications(POLL_TIMEOUT_MILLIS);
+      if (notifications == null || notifications.length == 0) {
+        continue;
+      }
+
+      Set<Long> mediaIds = new LinkedHashSet<>();
+      Set<String> creatorNames = new LinkedHashSet<>();
+      for (PGNotification notification : notifications) {
+        String payload = notification.getParameter();
+        if (payload.startsWith(MEDIA_PREFIX)) {
+          mediaIds.add(Long.parseLong(payload.substring(MEDIA_PREFIX.length())));
+        } else if (payload.startsWith(CREATOR_PREFIX)) {
+          creatorNames.add(payload.substring(CREATOR_PREFIX.length()));
+        }
+      }
+
+      if (mediaIds.size() + creatorNames.size() > MAX_INCREMENTAL_CHANGES) {
+        rebuild();
+      } else {
+        update(new ArrayList<>(mediaIds), new ArrayList<>(creatorNames));
+      }
+    }
+  }
+
+  /**
+   * Reads the whole catalog into the index.
+   */
+  private void rebuild() {
+    long start = System.nanoTime();
+    List<Music> musics;
+    List<Album> albums;
+    List<Creator> creators;
+    try (Connection conn = ds.getConnection()) {
+      musics = musicRepo.getAll(conn);
+      albums = searchRepo.getAlbums(conn);
+      creators = searchRepo.getCreators(conn);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    index.replaceAll(musics, albums, creators);
+    readRouter.awaitReplay();
+    musicCatalog.invalidateAll();
+    versions.bump(ResourceVersions.CATALOG);
+
+    LOG.info("Indexed {} musics, {} albums and {} creators ({} terms) in {} ms", musics.size(), albums.size(),
+        creators.size(), index.termCount(), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Reindexes the given media and creators, and removes those that do not
+   * exist anymore.
+   */
+  private void update(List<Long> mediaIds, List<String> creatorNames) throws SQLException {
+    Set<Long> musicIds = new HashSet<>();
+    Set<Long> albumIds = new HashSet<>();
+    Set<String> existingCreators = new HashSet<>();
+    try (Connection conn = ds.getConnection()) {
+      if (!mediaIds.isEmpty()) {
+        for (Music music : musicRepo.getByIds(conn, mediaIds)) {
+          index.putMusic(music);
+          musicIds.add(music.musicId());
+        }
+        for (Album album : searchRepo.getAlbumsByIds(conn, mediaIds)) {
+          index.putAlbum(album);
+          albumIds.add(album.id());
+        }
+      }
+      if (!creatorNames.isEmpty()) {
+        for (Creator creator : searchRepo.getCreatorsByNames(conn, creatorNames)) {
+          index.putCreator(creator);
+          existingCreators.add(creator.creatorName());
+        }
+      }
+    }
+
+    readRouter.awaitReplay();
+    // A media is a music or an album, the other kind is removed
+    for (Long mediaId : mediaIds) {
+      if (!musicIds.contains(mediaId)) {
+        index.removeMusic(mediaId);
+      }
+      if (!albumIds.contains(mediaId)) {
+        index.removeAlbum(mediaId);
+      }
+      musicCatalog.invalidate(mediaId);
+    }
+    for (String creatorName : creatorNames) {
+      if (!existingCreators.contains(creatorName)) {
+        index.removeCreator(creatorName);
+      }
+    }
+    versions.bump(ResourceVersions.CATALOG);
+
+    LOG.debug("Reindexed {} media and {} creators", mediaIds.size(), creatorNames.size());
+  }
+
+  private static void closeQuietly(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      LOG.debug("Could not close the connection listening to the catalog", e);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package ch.heigvd.search;
+
+import ch.heigvd.entities.SearchResult;
+import io.javalin.http.Context;
+
+public class SearchController {
+  private final SearchService searchService;
+
+  // The index follows the catalog, which rarely changes
+  private final static int SEARCH_CACHE_MAX_AGE_SECONDS = 300; // 5 minutes
+
+  private final static int DEFAULT_LIMIT = 10;
+  private final static int MAX_LIMIT = 50;
+
+  public SearchController(SearchService searchService) {
+    this.searchService = searchService;
+  }
+
+  /**
+   * Handles the HTTP GET request to search the catalog, with ?q the words
+   * searched and ?limit the maximum number of hits of each kind.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void search(Context ctx) {
+    String query = ctx.queryParamAsClass("q", String.class)
+        .check(q -> !q.isBlank(), "q must not be blank")
+        .check(q -> q.length() <= 255, "q must be at most 255 characters long")
+        .get();
+    Integer limit = ctx.queryParamAsClass("limit", Integer.class)
+        .check(l -> l > 0 && l <= MAX_LIMIT, "limit must be between 1 and " + MAX_LIMIT)
+        .getOrDefault(DEFAULT_LIMIT);
+
+    SearchResult result = searchService.search(query, limit);
+
+    // Cache the response for SEARCH_CACHE_MAX_AGE_SECONDS seconds
+    ctx.header("Cache-Control", "max-age=" + SEARCH_CACHE_MAX_AGE_SECONDS);
+
+    ctx.json(result);
+  }
+}
@@ -0,0 +1,504 @@
+package ch.heigvd.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.heigvd.entities.Album;
+import ch.heigvd.entities.Creator;
+import ch.heigvd.entities.Music;
+import ch.heigvd.entities.SearchResult;
+
+/**
+ * In-memory inverted index of the catalog: the titles of the musics and
+ * albums, and the names of the creators.
+ *
+ * The texts are folded (lower case, without accents, "œ" as "oe") and split
+ * into terms on anything that is neither a letter nor a digit, so that "Les
+ * Misérables" is found by "miserables". A hit contains every term of the
+ * query, in its title or in its creators. The hits are ranked by the rarity
+ * of the terms they contain, a term of the title weighing more than a term of
+ * a creator, and by how much of their title the query covers: an exact title
+ * counts twice.
+ *
+ * Each term maps to the postings of the documents containing it, sorted by
+ * document ID. A posting packs the ID with all the ranking needs: the kind of
+ * the document, the number of terms of its title and whether the term is in
+ * the title. A search walks the postings of its rarest term and looks the
+ * other terms up from there, and only reads the documents of its best hits.
+ * The writes replace the arrays of postings they change instead of modifying
+ * them: the searches never lock.
+ */
+public class SearchIndex {
+  // A term of the title weighs more than a term of a creator
+  private static final double TITLE_WEIGHT = 2;
+  private static final double CREATOR_WEIGHT = 1;
+  // Bounds the work of a query pasted by mistake
+  private static final int MAX_QUERY_TERMS = 16;
+
+  // Layout of a posting, from the high bits: the document ID, its kind, the
+  // length of its title (capped) and whether the term is in the title
+  private static final int ID_SHIFT = 16;
+  private static final int KIND_SHIFT = 9;
+  private static final int KIND_MASK = 0x3;
+  private static final int LENGTH_SHIFT = 1;
+  private static final int MAX_LENGTH = 0xff;
+  private static final long IN_TITLE = 1;
+
+  private static final SearchResult NO_HITS = new SearchResult(List.of(), List.of(), List.of());
+
+  private final Object writeLock = new Object();
+  private volatile Contents contents = new Contents();
+
+  /**
+   * Searches the catalog.
+   *
+   * @param query the words searched, in any case and with or without accents
+   * @param limit the maximum number of hits of each kind
+   * @return the best hits of each kind, the best first
+   */
+  public SearchResult search(String query, int limit) {
+    Contents contents = this.contents;
+    List<String> terms = terms(query);
+    if (terms.isEmpty()) {
+      return NO_HITS;
+    }
+    if (terms.size() > MAX_QUERY_TERMS) {
+      terms = terms.subList(0, MAX_QUERY_TERMS);
+    }
+
+    // The postings of the terms, the rarest first, and the weight of each term
+    long[][] postings = new long[terms.size()][];
+    for (int i = 0; i < terms.size(); i++) {
+      postings[i] = contents.postings.get(terms.get(i));
+      if (postings[i] == null) {
+        return NO_HITS;
+      }
+    }
+    Arrays.sort(postings, Comparator.comparingInt(termPostings -> termPostings.length));
+    double[] idfs = new double[postings.length];
+    int documentCount = contents.documents.size();
+    for (int i = 0; i < postings.length; i++) {
+      idfs[i] = Math.log(1 + (double) documentCount / postings[i].length);
+    }
+
+    List<Ranking> rankings = List.of(new Ranking(limit), new Ranking(limit), new Ranking(limit));
+    // Where the lookups of each term stopped, the IDs only grow
+    int[] cursors = new int[postings.length];
+    candidates: for (long candidate : postings[0]) {
+      long id = candidate >>> ID_SHIFT;
+      double score = weight(candidate) * idfs[0];
+      int titleMatches = (int) (candidate & IN_TITLE);
+      for (int i = 1; i < postings.length; i++) {
+        cursors[i] = seek(postings[i], cursors[i], id);
+        if (cursors[i] == postings[i].length) {
+          // No other candidate has this term
+          break candidates;
+        }
+        long posting = postings[i][cursors[i]];
+        if (posting >>> ID_SHIFT != id) {
+          continue candidates;
+        }
+        score += weight(posting) * idfs[i];
+        titleMatches += (int) (posting & IN_TITLE);
+      }
+      int titleLength = Math.max((int) (candidate >>> LENGTH_SHIFT) & MAX_LENGTH, 1);
+      score *= 1 + (double) titleMatches / titleLength;
+      rankings.get((int) (candidate >>> KIND_SHIFT) & KIND_MASK).add((int) id, score);
+    }
+
+    return new SearchResult(
+        rankings.get(Kind.MUSIC.ordinal()).hits(contents, Music.class),
+        rankings.get(Kind.ALBUM.ordinal()).hits(contents, Album.class),
+        rankings.get(Kind.CREATOR.ordinal()).hits(contents, Creator.class));
+  }
+
+  /**
+   * Replaces the whole content of the index.
+   *
+   * @param musics   the musics of the catalog
+   * @param albums   the albums of the catalog, without their musics
+   * @param creators the creators of the catalog, without their artists and
+   *                 albums
+   */
+  public void replaceAll(Collection<Music> musics, Collection<Album> albums, Collection<Creator> creators) {
+    Contents rebuilt = new Contents();
+    // Appending to the arrays one document at a time would copy them each
+    // time, they are only built at the end
+    Map<String, List<Long>> postings = new HashMap<>();
+    for (Music music : musics) {
+      addNew(rebuilt, postings, musicDocument(music));
+    }
+    for (Album album : albums) {
+      addNew(rebuilt, postings, albumDocument(album));
+    }
+    for (Creator creator : creators) {
+      addNew(rebuilt, postings, creatorDocument(creator));
+    }
+    postings.forEach((term, termPostings) -> rebuilt.postings.put(term,
+        termPostings.stream().mapToLong(Long::longValue).toArray()));
+
+    synchronized (writeLock) {
+      contents = rebuilt;
+    }
+  }
+
+  /**
+   * Adds a music to the index, or updates it.
+   *
+   * @param music the music
+   */
+  public void putMusic(Music music) {
+    put(musicDocument(music));
+  }
+
+  /**
+   * Adds an album to the index, or updates it.
+   *
+   * @param album the album, without its musics
+   */
+  public void putAlbum(Album album) {
+    put(albumDocument(album));
+  }
+
+  /**
+   * Adds a creator to the index, or updates it.
+   *
+   * @param creator the creator, without its artists and albums
+   */
+  public void putCreator(Creator creator) {
+    put(creatorDocument(creator));
+  }
+
+  /**
+   * Removes a music from the index, if it is there.
+   *
+   * @param musicId the unique identifier of the music
+   */
+  public void removeMusic(Long musicId) {
+    remove(Kind.MUSIC.key(musicId));
+  }
+
+  /**
+   * Removes an album from the index, if it is there.
+   *
+   * @param albumId the unique identifier of the album
+   */
+  public void removeAlbum(Long albumId) {
+    remove(Kind.ALBUM.key(albumId));
+  }
+
+  /**
+   * Removes a creator from the index, if it is there.
+   *
+   * @param creatorName the name of the creator
+   */
+  public void removeCreator(String creatorName) {
+    remove(Kind.CREATOR.key(creatorName));
+  }
+
+  /**
+   * @return the number of musics, albums and creators indexed
+   */
+  public int size() {
+    return contents.documents.size();
+  }
+
+  /**
+   * @return the number of distinct terms indexed
+   */
+  public int termCount() {
+    return contents.postings.size();
+  }
+
+  /**
+   * Folds a text for comparisons that ignore the case and the accents.
+   *
+   * @param text the text
+   * @return the text in lower case, without diacritics and with the ligatures
+   *         split, e.g. "Cœur brisé" as "coeur brise"
+   */
+  public static String fold(String text) {
+    String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+    StringBuilder folded = new StringBuilder(decomposed.length());
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        continue;
+      }
+      switch (c) {
+        case 'œ', 'Œ' -> folded.append("oe");
+        case 'æ', 'Æ' -> folded.append("ae");
+        case 'ß' -> folded.append("ss");
+        default -> folded.append(Character.toLowerCase(c));
+      }
+    }
+    return folded.toString();
+  }
+
+  /**
+   * Splits a text into the terms of the index.
+   *
+   * @param text the text
+   * @return the distinct folded terms of the text, in order of appearance
+   */
+  public static List<String> terms(String text) {
+    String folded = fold(text);
+    Set<String> terms = new LinkedHashSet<>();
+    int start = -1;
+    for (int i = 0; i <= folded.length(); i++) {
+      boolean inTerm = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+      if (inTerm && start < 0) {
+        start = i;
+      } else if (!inTerm && start >= 0) {
+        terms.add(folded.substring(start, i));
+        start = -1;
+      }
+    }
+    return new ArrayList<>(terms);
+  }
+
+  private void put(Document document) {
+    synchronized (writeLock) {
+      Contents contents = this.contents;
+      remove(contents, document.key());
+
+      int id = contents.nextId++;
+      // The document is there before its postings, a search never finds a
+      // posting without its document
+      contents.documents.put(id, document);
+      contents.idsByKey.put(document.key(), id);
+      for (String term : document.terms()) {
+        // The IDs only grow, appending keeps the postings sorted
+        contents.postings.merge(term, new long[] { document.posting(id, term) }, (termPostings, added) -> {
+          long[] appended = Arrays.copyOf(termPostings, termPostings.length + 1);
+          appended[termPostings.length] = added[0];
+          return appended;
+        });
+      }
+    }
+  }
+
+  private void remove(String key) {
+    synchronized (writeLock) {
+      remove(contents, key);
+    }
+  }
+
+  private static void remove(Contents contents, String key) {
+    Integer id = contents.idsByKey.remove(key);
+    if (id == null) {
+      return;
+    }
+    Document document = contents.documents.remove(id);
+    for (String term : document.terms()) {
+      contents.postings.computeIfPresent(term, (t, termPostings) -> {
+        int index = seek(termPostings, 0, id);
+        if (index == termPostings.length || termPostings[index] >>> ID_SHIFT != id) {
+          return termPostings;
+        }
+        if (termPostings.length == 1) {
+          return null;
+        }
+        long[] removed = new long[termPostings.length - 1];
+        System.arraycopy(termPostings, 0, removed, 0, index);
+        System.arraycopy(termPostings, index + 1, removed, index, termPostings.length - index - 1);
+        return removed;
+      });
+    }
+  }
+
+  /**
+   * Adds a document while the index is built, the first one wins if a key is
+   * there twice.
+   */
+  private static void addNew(Contents contents, Map<String, List<Long>> postings, Document document) {
+    if (contents.idsByKey.containsKey(document.key())) {
+      return;
+    }
+    int id = contents.nextId++;
+    contents.documents.put(id, document);
+    contents.idsByKey.put(document.key(), id);
+    for (String term : document.terms()) {
+      postings.computeIfAbsent(term, t -> new ArrayList<>()).add(document.posting(id, term));
+    }
+  }
+
+  /**
+   * @param postings postings sorted by ID
+   * @param from     the index to start from
+   * @param id       the ID of a document
+   * @return the index of the first posting from the given index whose ID is
+   *         not lower than the given ID, the length of the postings if there
+   *         is none
+   */
+  private static int seek(long[] postings, int from, long id) {
+    // Gallops then bisects, the candidates are often close to each other
+    int low = from;
+    int step = 1;
+    while (low + step < postings.length && postings[low + step] >>> ID_SHIFT < id) {
+      low += step;
+      step <<= 1;
+    }
+    int high = Math.min(low + step, postings.length);
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (postings[middle] >>> ID_SHIFT < id) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static double weight(long posting) {
+    return (posting & IN_TITLE) != 0 ? TITLE_WEIGHT : CREATOR_WEIGHT;
+  }
+
+  private static Document musicDocument(Music music) {
+    return new Document(Kind.MUSIC, Kind.MUSIC.key(music.musicId()), music,
+        terms(music.title()), terms(nullToEmpty(music.creatorNames())));
+  }
+
+  private static Document albumDocument(Album album) {
+    return new Document(Kind.ALBUM, Kind.ALBUM.key(album.id()), album,
+        terms(album.title()), terms(nullToEmpty(album.creatorName())));
+  }
+
+  private static Document creatorDocument(Creator creator) {
+    return new Document(Kind.CREATOR, Kind.CREATOR.key(creator.creatorName()), creator,
+        terms(creator.creatorName()), List.of());
+  }
+
+  private static String nullToEmpty(String text) {
+    return text == null ? "" : text;
+  }
+
+  /**
+   * The kinds of documents, their ordinal is stored in the postings.
+   */
+  private enum Kind {
+    MUSIC, ALBUM, CREATOR;
+
+    String key(Object id) {
+      return name() + ":" + id;
+    }
+  }
+
+  /**
+   * A music, an album or a creator, with its terms.
+   */
+  private record Document(Kind kind, String key, Object entity, List<String> titleTerms,
+      List<String> creatorTerms) {
+
+    /**
+     * @return the distinct terms of the title and of the creators
+     */
+    List<String> terms() {
+      Set<String> terms = new LinkedHashSet<>(titleTerms);
+      terms.addAll(creatorTerms);
+      return new ArrayList<>(terms);
+    }
+
+    /**
+     * @return the posting of the document for one of its terms
+     */
+    long posting(int id, String term) {
+      return (long) id << ID_SHIFT
+          | (long) kind.ordinal() << KIND_SHIFT
+          | (long) Math.min(titleTerms.size(), MAX_LENGTH) << LENGTH_SHIFT
+          | (titleTerms.contains(term) ? IN_TITLE : 0);
+    }
+  }
+
+  /**
+   * The documents and the terms of the index. Only modified under the write
+   * lock, read concurrently by the searches.
+   */
+  private static final class Contents {
+    private final ConcurrentHashMap<String, long[]> postings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Document> documents = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> idsByKey = new ConcurrentHashMap<>();
+    private int nextId;
+  }
+
+  /**
+   * The best hits of a kind seen so far, at most a limit of them.
+   */
+  private static final class Ranking {
+    private final int[] ids;
+    private final double[] scores;
+    private int count;
+    // The hit to replace by a better one, and its score
+    private int worst;
+    private double worstScore;
+
+    Ranking(int limit) {
+      this.ids = new int[limit];
+      this.scores = new double[limit];
+    }
+
+    /**
+     * Adds a hit, if it is better than the worst one kept. At equal scores,
+     * the document indexed first wins: the hits come by growing ID.
+     */
+    void add(int id, double score) {
+      if (count < ids.length) {
+        ids[count] = id;
+        scores[count] = score;
+        count++;
+      } else if (score > worstScore) {
+        ids[worst] = id;
+        scores[worst] = score;
+      } else {
+        return;
+      }
+      if (count == ids.length) {
+        findWorst();
+      }
+    }
+
+    /**
+     * @return the entities of the hits, the best first. Those removed since
+     *         the search started are skipped.
+     */
+    <T> List<T> hits(Contents contents, Class<T> type) {
+      List<Hit> hits = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        hits.add(new Hit(ids[i], scores[i]));
+      }
+      hits.sort(Comparator.comparingDouble(Hit::score).reversed().thenComparingInt(Hit::id));
+      List<T> entities = new ArrayList<>(hits.size());
+      for (Hit hit : hits) {
+        Document document = contents.documents.get(hit.id());
+        if (document != null) {
+          entities.add(type.cast(document.entity()));
+        }
+      }
+      return entities;
+    }
+
+    private void findWorst() {
+      worst = 0;
+      for (int i = 1; i < count; i++) {
+        // The latest ID loses at equal scores
+        if (scores[i] < scores[worst] || scores[i] == scores[worst] && ids[i] > ids[worst]) {
+          worst = i;
+        }
+      }
+      worstScore = scores[worst];
+    }
+  }
+
+  private record Hit(int id, double score) {
+  }
+}
@@ -0,0 +1,131 @@
+package ch.heigvd.search;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.heigvd.entities.Album;
+import ch.heigvd.entities.Creator;
+
+/**
+ * Reads the albums and the creators to index. The musics come from the
+ * MusicRepository.
+ */
+public class SearchRepository {
+  // An album has a single creator, DISTINCT ON only guards against a second one
+  private static final String GET_ALBUMS_SQL = """
+      /* SearchRepository.getAlbums */
+      SELECT DISTINCT ON (a.idalbum) a.idalbum AS albumId, m.titre AS title, m.datedesortie AS releaseDate,
+             cm.nomcreateur AS creatorName
+      FROM spotish.album a
+      JOIN spotish.media m           ON a.idalbum = m.idmedia
+      JOIN spotish.createur_media cm ON a.idalbum = cm.idmedia
+      ORDER BY a.idalbum, cm.nomcreateur;
+      """;
+
+  private static final String GET_ALBUMS_BY_IDS_SQL = """
+      /* SearchRepository.getAlbumsByIds */
+      SELECT DISTINCT ON (a.idalbum) a.idalbum AS albumId, m.titre AS title, m.datedesortie AS releaseDate,
+             cm.nomcreateur AS creatorName
+      FROM spotish.album a
+      JOIN spotish.media m           ON a.idalbum = m.idmedia
+      JOIN spotish.createur_media cm ON a.idalbum = cm.idmedia
+      WHERE a.idalbum = ANY(?)
+      ORDER BY a.idalbum, cm.nomcreateur;
+      """;
+
+  private static final String GET_CREATORS_SQL = """
+      /* SearchRepository.getCreators */
+      SELECT c.nomcreateur AS creatorName
+      FROM spotish.createur c;
+      """;
+
+  private static final String GET_CREATORS_BY_NAMES_SQL = """
+      /* SearchRepository.getCreatorsByNames */
+      SELECT c.nomcreateur AS creatorName
+      FROM spotish.createur c
+      WHERE c.nomcreateur = ANY(?);
+      """;
+
+  /**
+   * Retrieves all the albums.
+   *
+   * @param conn the database connection
+   * @return the albums, without their musics
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Album> getAlbums(Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALBUMS_SQL)) {
+      return readAlbums(ps.executeQuery());
+    }
+  }
+
+  /**
+   * Retrieves albums by their IDs.
+   *
+   * @param conn     the database connection
+   * @param albumIds the unique identifiers of the albums, may include IDs of
+   *                 other media
+   * @return the albums found, without their musics
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Album> getAlbumsByIds(Connection conn, List<Long> albumIds) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALBUMS_BY_IDS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("bigint", albumIds.toArray(new Long[0])));
+      return readAlbums(ps.executeQuery());
+    }
+  }
+
+  /**
+   * Retrieves all the creators.
+   *
+   * @param conn the database connection
+   * @return the creators, without their artists and albums
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Creator> getCreators(Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_CREATORS_SQL)) {
+      return readCreators(ps.executeQuery());
+    }
+  }
+
+  /**
+   * Retrieves creators by their names.
+   *
+   * @param conn         the database connection
+   * @param creatorNames the names of the creators
+   * @return the creators found, without their artists and albums
+   * @throws SQLException if a database access error occurs
+   */
+  public List<Creator> getCreatorsByNames(Connection conn, List<String> creatorNames) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_CREATORS_BY_NAMES_SQL)) {
+      ps.setArray(1, conn.createArrayOf("varchar", creatorNames.toArray(new String[0])));
+      return readCreators(ps.executeQuery());
+    }
+  }
+
+  private static List<Album> readAlbums(ResultSet rs) throws SQLException {
+    List<Album> albums = new ArrayList<>();
+    while (rs.next()) {
+      albums.add(new Album(
+          rs.getLong("albumId"),
+          rs.getString("title"),
+          rs.getObject("releaseDate", LocalDate.class),
+          rs.getString("creatorName"),
+          null));
+    }
+    return albums;
+  }
+
+  private static List<Creator> readCreators(ResultSet rs) throws SQLException {
+    List<Creator> creators = new ArrayList<>();
+    while (rs.next()) {
+      creators.add(new Creator(rs.getString("creatorName"), null, null));
+    }
+    return creators;
+  }
+}
@@ -0,0 +1,23 @@
+package ch.heigvd.search;
+
+import ch.heigvd.entities.SearchResult;
+
+public class SearchService {
+  private final SearchIndex searchIndex;
+
+  public SearchService(SearchIndex searchIndex) {
+    this.searchIndex = searchIndex;
+  }
+
+  /**
+   * Searches the musics, albums and creators of the catalog. Served from the
+   * in-memory index, without any query.
+   *
+   * @param query the words searched
+   * @param limit the maximum number of hits of each kind
+   * @return the best hits of each kind, the best first
+   */
+  public SearchResult search(String query, int limit) {
+    return searchIndex.search(query, limit);
+  }
+}
@@ -0,0 +1,127 @@
+package ch.heigvd.similar;
+
+import java.util.Arrays;
+
+/**
+ * The groups of musics played or kept together, a playlist or a listening
+ * session, from which the similar musics are computed.
+ *
+ * The musics are numbered from 0 in the order they are first seen, and the
+ * groups are stored one after the other in a single array of these numbers,
+ * so that millions of listens fit in a few arrays of ints. A music is kept
+ * once per group, and a group longer than the maximum size is cut in several
+ * groups, so that a listening session of a whole day does not pair each of
+ * its musics with all the others.
+ */
+public final class CooccurrenceGroups {
+  private final int maxGroupSize;
+  private final LongIntHashMap indexes = new LongIntHashMap(1 << 16);
+
+  private long[] musicIds = new long[1 << 16];
+  private int[] members = new int[1 << 16];
+  private int memberCount;
+  // Where the groups ended start in members, the current one at groupStart
+  private int[] groupStarts = new int[1 << 12];
+  private int groupCount;
+  private int groupStart;
+
+  /**
+   * @param maxGroupSize the maximum number of musics of a group
+   */
+  public CooccurrenceGroups(int maxGroupSize) {
+    this.maxGroupSize = maxGroupSize;
+  }
+
+  /**
+   * Adds a music to the current group.
+   *
+   * @param musicId the unique identifier of the music
+   */
+  public void add(long musicId) {
+    int index = indexes.get(musicId);
+    if (index < 0) {
+      index = indexes.size();
+      indexes.put(musicId, index);
+      if (index == musicIds.length) {
+        musicIds = Arrays.copyOf(musicIds, 2 * musicIds.length);
+      }
+      musicIds[index] = musicId;
+    }
+
+    for (int i = groupStart; i < memberCount; i++) {
+      if (members[i] == index) {
+        return;
+      }
+    }
+    if (memberCount - groupStart == maxGroupSize) {
+      endGroup();
+    }
+    if (memberCount == members.length) {
+      members = Arrays.copyOf(members, 2 * members.length);
+    }
+    members[memberCount++] = index;
+  }
+
+  /**
+   * Ends the current group, the next musics added start a new one.
+   */
+  public void endGroup() {
+    if (memberCount - groupStart < 2) {
+      // A music alone is similar to nothing
+      memberCount = groupStart;
+      return;
+    }
+    if (groupCount == groupStarts.length) {
+      groupStarts = Arrays.copyOf(groupStarts, 2 * groupStarts.length);
+    }
+    groupStarts[groupCount++] = groupStart;
+    groupStart = memberCount;
+  }
+
+  /**
+   * @return the number of groups ended
+   */
+  public int groupCount() {
+    return groupCount;
+  }
+
+  /**
+   * @return the number of musics found in the groups
+   */
+  public int musicCount() {
+    return indexes.size();
+  }
+
+  /**
+   * @return the unique identifiers of the musics, by their number
+   */
+  long[] musicIds() {
+    return Arrays.copyOf(musicIds, indexes.size());
+  }
+
+  /**
+   * @return the index of the music ID, -1 if the music was never added
+   */
+  LongIntHashMap indexes() {
+    return indexes;
+  }
+
+  /**
+   * @return the members of the group i are members()[groupStarts()[i]] to
+   *         members()[groupStarts()[i + 1] - 1]: the array has a last start,
+   *         where the groups end
+   */
+  int[] groupStarts() {
+    int[] starts = Arrays.copyOf(groupStarts, groupCount + 1);
+    starts[groupCount] = groupStart;
+    return starts;
+  }
+
+  /**
+   * @return the numbers of the musics of the groups, one group after the
+   *         other
+   */
+  int[] members() {
+    return members;
+  }
+}
@@ -0,0 +1,84 @@
+package ch.heigvd.similar;
+
+/**
+ * Map from long keys to non-negative int values, without boxing: the keys and
+ * the values are stored in two arrays, with open addressing and linear
+ * probing.
+ */
+final class LongIntHashMap {
+  // A free slot has the value 0, the values are stored plus one
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  LongIntHashMap(int expectedSize) {
+    // At most half full, so that the probes stay short
+    int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+    this.keys = new long[capacity];
+    this.values = new int[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * @return the value of the key, -1 if it has none
+   */
+  int get(long key) {
+    for (int slot = slot(key);; slot = (slot + 1) & mask) {
+      if (values[slot] == 0) {
+        return -1;
+      }
+      if (keys[slot] == key) {
+        return values[slot] - 1;
+      }
+    }
+  }
+
+  /**
+   * Sets the value of a key.
+   *
+   * @param value the value, at least 0
+   */
+  void put(long key, int value) {
+    int slot = slot(key);
+    while (values[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    if (values[slot] == 0) {
+      size++;
+    }
+    keys[slot] = key;
+    values[slot] = value + 1;
+    if (size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private int slot(long key) {
+    // Spreads the consecutive IDs over the whole table
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ hash >>> 32) & mask;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != 0) {
+        int slot = slot(oldKeys[i]);
+        while (values[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
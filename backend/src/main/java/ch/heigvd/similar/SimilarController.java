@@ -0,0 +1,38 @@
+package ch.heigvd.similar;
+
+import java.util.List;
+
+import ch.heigvd.entities.Music;
+import io.javalin.http.Context;
+
+public class SimilarController {
+  private final SimilarService similarService;
+
+  // The similar musics only change when the index is built again, every hour
+  // by default
+  private final static int SIMILAR_CACHE_MAX_AGE_SECONDS = 600;
+
+  public SimilarController(SimilarService similarService) {
+    this.similarService = similarService;
+  }
+
+  /**
+   * Handles the HTTP GET request to retrieve the musics similar to a music,
+   * with ?limit the maximum number of musics.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void getSimilar(Context ctx) {
+    Long musicId = ctx.pathParamAsClass("idMedia", Long.class).check(id -> id >= 0, "idMedia must be positive").get();
+    Integer limit = ctx.queryParamAsClass("limit", Integer.class)
+        .check(l -> l > 0 && l <= SimilarService.MAX_SIMILAR, "limit must be between 1 and " + SimilarService.MAX_SIMILAR)
+        .getOrDefault(10);
+
+    List<Music> musics = similarService.getSimilarMusics(musicId, limit);
+
+    // Cache the response for SIMILAR_CACHE_MAX_AGE_SECONDS seconds
+    ctx.header("Cache-Control", "max-age=" + SIMILAR_CACHE_MAX_AGE_SECONDS);
+
+    ctx.json(musics);
+  }
+}
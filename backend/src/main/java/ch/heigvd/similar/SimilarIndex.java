@@ -0,0 +1,217 @@
+package ch.heigvd.similar;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The most similar musics of each music, computed once from the groups of
+ * musics played or kept together.
+ *
+ * Two musics are as similar as they appear in the same groups, relatively to
+ * how many groups each of them appears in (the cosine of their occurrences),
+ * so that the most popular musics are not similar to all the others. The
+ * similar musics of each music are stored one after the other in a single
+ * array: a lookup finds where they start in a primitive map and copies them.
+ * The index is immutable, it is built again to take new listens into
+ * account.
+ */
+public final class SimilarIndex {
+  // Below this many musics, a task scores them instead of splitting them
+  private static final int MUSICS_PER_TASK = 512;
+
+  private final LongIntHashMap indexes;
+  // The similar musics of the music i are similarIds[starts[i]] to
+  // similarIds[starts[i + 1] - 1], the most similar first
+  private final int[] starts;
+  private final long[] similarIds;
+
+  private SimilarIndex(LongIntHashMap indexes, int[] starts, long[] similarIds) {
+    this.indexes = indexes;
+    this.starts = starts;
+    this.similarIds = similarIds;
+  }
+
+  /**
+   * Builds an index, the musics being scored in parallel.
+   *
+   * @param groups           the groups of musics played or kept together
+   * @param maxSimilar       the number of similar musics kept per music, the
+   *                         maximum a lookup can return
+   * @param minCooccurrences the number of groups two musics must share to be
+   *                         similar
+   * @param pool             the pool scoring the musics
+   * @return the index
+   */
+  public static SimilarIndex build(CooccurrenceGroups groups, int maxSimilar, int minCooccurrences,
+      ForkJoinPool pool) {
+    Scoring scoring = new Scoring(groups, maxSimilar, minCooccurrences);
+    pool.invoke(scoring.new ScoreTask(0, scoring.musicCount));
+
+    // The similar musics of each music are kept next to each other
+    long[] musicIds = groups.musicIds();
+    int[] starts = new int[scoring.musicCount + 1];
+    for (int music = 0; music < scoring.musicCount; music++) {
+      starts[music + 1] = starts[music] + scoring.similarCounts[music];
+    }
+    long[] similarIds = new long[starts[scoring.musicCount]];
+    for (int music = 0; music < scoring.musicCount; music++) {
+      for (int i = 0; i < scoring.similarCounts[music]; i++) {
+        similarIds[starts[music] + i] = musicIds[scoring.similar[music * maxSimilar + i]];
+      }
+    }
+    return new SimilarIndex(groups.indexes(), starts, similarIds);
+  }
+
+  /**
+   * Finds the musics similar to a music.
+   *
+   * @param musicId the unique identifier of the music
+   * @param limit   the maximum number of musics, at most the number kept per
+   *                music
+   * @return the unique identifiers of the similar musics, the most similar
+   *         first, empty if the music was never played nor kept in a
+   *         playlist with another one
+   */
+  public long[] similar(long musicId, int limit) {
+    int music = indexes.get(musicId);
+    if (music < 0) {
+      return new long[0];
+    }
+    int count = Math.min(limit, starts[music + 1] - starts[music]);
+    return Arrays.copyOfRange(similarIds, starts[music], starts[music] + count);
+  }
+
+  /**
+   * @return the number of musics having similar musics or not
+   */
+  public int size() {
+    return starts.length - 1;
+  }
+
+  /**
+   * @return the number of similar musics kept, for all the musics
+   */
+  public int similarCount() {
+    return similarIds.length;
+  }
+
+  /**
+   * The arrays shared by the tasks scoring the musics. Each task only writes
+   * the similar musics of its own musics.
+   */
+  private static final class Scoring {
+    private final int maxSimilar;
+    private final int minCooccurrences;
+    private final int musicCount;
+    private final int[] groupStarts;
+    private final int[] members;
+    // The groups of the music i are musicGroups[musicStarts[i]] to
+    // musicGroups[musicStarts[i + 1] - 1]
+    private final int[] musicStarts;
+    private final int[] musicGroups;
+    // The similar musics of the music i are similar[i * maxSimilar] to
+    // similar[i * maxSimilar + similarCounts[i] - 1], the most similar first
+    private final int[] similar;
+    private final int[] similarCounts;
+
+    Scoring(CooccurrenceGroups groups, int maxSimilar, int minCooccurrences) {
+      this.maxSimilar = maxSimilar;
+      this.minCooccurrences = minCooccurrences;
+      this.musicCount = groups.musicCount();
+      this.groupStarts = groups.groupStarts();
+      this.members = groups.members();
+      this.similar = new int[musicCount * maxSimilar];
+      this.similarCounts = new int[musicCount];
+
+      // The groups of each music, by counting sort of the members
+      int groupCount = groupStarts.length - 1;
+      int memberCount = groupStarts[groupCount];
+      musicStarts = new int[musicCount + 1];
+      for (int i = 0; i < memberCount; i++) {
+        musicStarts[members[i] + 1]++;
+      }
+      for (int music = 0; music < musicCount; music++) {
+        musicStarts[music + 1] += musicStarts[music];
+      }
+      musicGroups = new int[memberCount];
+      int[] next = Arrays.copyOf(musicStarts, musicCount);
+      for (int group = 0; group < groupCount; group++) {
+        for (int i = groupStarts[group]; i < groupStarts[group + 1]; i++) {
+          musicGroups[next[members[i]]++] = group;
+        }
+      }
+    }
+
+    /**
+     * Scores the musics from one music to another (excluded), splitting them
+     * in two halves while there are many.
+     */
+    private final class ScoreTask extends RecursiveAction {
+      private final int from;
+      private final int to;
+
+      ScoreTask(int from, int to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (to - from > MUSICS_PER_TASK) {
+          int middle = (from + to) >>> 1;
+          invokeAll(new ScoreTask(from, middle), new ScoreTask(middle, to));
+          return;
+        }
+
+        // The number of groups shared with each music, and which musics were
+        // counted, to reset them for the next music
+        int[] cooccurrences = new int[musicCount];
+        int[] counted = new int[musicCount];
+        double[] scores = new double[maxSimilar];
+        for (int music = from; music < to; music++) {
+          int countedCount = 0;
+          for (int i = musicStarts[music]; i < musicStarts[music + 1]; i++) {
+            int group = musicGroups[i];
+            for (int j = groupStarts[group]; j < groupStarts[group + 1]; j++) {
+              int other = members[j];
+              if (other != music && cooccurrences[other]++ == 0) {
+                counted[countedCount++] = other;
+              }
+            }
+          }
+
+          int offset = music * maxSimilar;
+          int kept = 0;
+          double occurrences = musicStarts[music + 1] - musicStarts[music];
+          for (int i = 0; i < countedCount; i++) {
+            int other = counted[i];
+            int shared = cooccurrences[other];
+            cooccurrences[other] = 0;
+            if (shared < minCooccurrences) {
+              continue;
+            }
+            double score = shared / Math.sqrt(occurrences * (musicStarts[other + 1] - musicStarts[other]));
+
+            // Insertion in the best musics, the lowest number first on a tie
+            int position = kept;
+            while (position > 0 && (scores[position - 1] < score
+                || scores[position - 1] == score && similar[offset + position - 1] > other)) {
+              position--;
+            }
+            if (position == maxSimilar) {
+              continue;
+            }
+            int last = Math.min(kept, maxSimilar - 1);
+            System.arraycopy(scores, position, scores, position + 1, last - position);
+            System.arraycopy(similar, offset + position, similar, offset + position + 1, last - position);
+            scores[position] = score;
+            similar[offset + position] = other;
+            kept = Math.min(kept + 1, maxSimilar);
+          }
+          similarCounts[music] = kept;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package ch.heigvd.similar;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+
+/**
+ * Reads the playlists and the listening sessions as groups of musics. The rows
+ * are fetched by chunks: for the driver to use a cursor, the connection must
+ * not be in auto-commit mode.
+ */
+public class SimilarRepository {
+  private static final String READ_PLAYLISTS_SQL = """
+      /* SimilarRepository.readPlaylists */
+      SELECT cp.idplaylist AS playlistId, cp.idchanson AS musicId
+      FROM spotish.chanson_playlist cp
+      ORDER BY cp.idplaylist;
+      """;
+
+  // A listen starts a session when it is the first of its user, or when the
+  // previous one is older than the gap
+  private static final String READ_SESSIONS_SQL = """
+      /* SimilarRepository.readSessions */
+      SELECT e.idchanson AS musicId,
+             COALESCE(e.dateheureecoute - LAG(e.dateheureecoute) OVER listens > ? * INTERVAL '1 second', TRUE)
+               AS newSession
+      FROM spotish.ecoute e
+      WINDOW listens AS (PARTITION BY e.nomutilisateur ORDER BY e.dateheureecoute)
+      ORDER BY e.nomutilisateur, e.dateheureecoute;
+      """;
+
+  /**
+   * Reads each playlist as a group of musics.
+   *
+   * @param conn      the database connection, not in auto-commit mode
+   * @param groups    the groups the playlists are added to
+   * @param fetchSize the number of rows fetched at a time
+   * @throws SQLException if a database access error occurs
+   */
+  public void readPlaylists(Connection conn, CooccurrenceGroups groups, int fetchSize) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(READ_PLAYLISTS_SQL)) {
+      ps.setFetchSize(fetchSize);
+      ResultSet rs = ps.executeQuery();
+      long playlistId = -1;
+      while (rs.next()) {
+        if (rs.getLong("playlistId") != playlistId) {
+          groups.endGroup();
+          playlistId = rs.getLong("playlistId");
+        }
+        groups.add(rs.getLong("musicId"));
+      }
+      groups.endGroup();
+    }
+  }
+
+  /**
+   * Reads each listening session of each user as a group of musics.
+   *
+   * @param conn       the database connection, not in auto-commit mode
+   * @param groups     the groups the sessions are added to
+   * @param sessionGap the time without listening after which a new session
+   *                   starts
+   * @param fetchSize  the number of rows fetched at a time
+   * @throws SQLException if a database access error occurs
+   */
+  public void readSessions(Connection conn, CooccurrenceGroups groups, Duration sessionGap, int fetchSize)
+      throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(READ_SESSIONS_SQL)) {
+      ps.setFetchSize(fetchSize);
+      ps.setLong(1, sessionGap.toSeconds());
+      ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        if (rs.getBoolean("newSession")) {
+          groups.endGroup();
+        }
+        groups.add(rs.getLong("musicId"));
+      }
+      groups.endGroup();
+    }
+  }
+}
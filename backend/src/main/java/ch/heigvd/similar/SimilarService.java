@@ -0,0 +1,158 @@
+package ch.heigvd.similar;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.entities.Music;
+import ch.heigvd.music.MusicCatalogCache;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Finds the musics similar to a music in an index computed in the background
+ * from the playlists and the listening sessions.
+ *
+ * The index is built after startup, then again at each refresh interval, on a
+ * pool of its own. The requests keep using the previous index until the new
+ * one is complete and replaces it, so they never wait for a build.
+ */
+public class SimilarService implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(SimilarService.class);
+
+  /**
+   * The maximum number of similar musics returned, kept for each music.
+   */
+  public static final int MAX_SIMILAR = 20;
+
+  // Two musics listened or kept together once are not similar yet
+  private static final int MIN_COOCCURRENCES = 2;
+  // The listens more than 30 minutes apart are in different sessions
+  private static final Duration SESSION_GAP = Duration.ofMinutes(30);
+  // The musics of a longer playlist or session are paired in chunks, so that
+  // the build stays linear in the number of listens
+  private static final int MAX_GROUP_SIZE = 50;
+  private static final int FETCH_SIZE = 10_000;
+
+  private final DataSource ds;
+  private final MusicCatalogCache musicCatalog;
+  private final SimilarRepository similarRepo;
+  private final Duration refreshInterval;
+  private final ForkJoinPool pool;
+  private final ScheduledExecutorService refresher;
+
+  private volatile SimilarIndex index;
+
+  /**
+   * @param ds              the database the playlists and listens are read
+   *                        from
+   * @param musicCatalog    the cache of the musics returned
+   * @param similarRepo     the repository of the playlists and sessions
+   * @param refreshInterval how often the index is built again
+   */
+  public SimilarService(DataSource ds, MusicCatalogCache musicCatalog, SimilarRepository similarRepo,
+      Duration refreshInterval) {
+    this.ds = ds;
+    this.musicCatalog = musicCatalog;
+    this.similarRepo = similarRepo;
+    this.refreshInterval = refreshInterval;
+    this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "similar-refresher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts building the index in the background, then again at each refresh
+   * interval.
+   */
+  public void start() {
+    refresher.scheduleWithFixedDelay(this::refresh, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Retrieves the musics similar to a music.
+   *
+   * @param musicId the unique identifier of the music
+   * @param limit   the maximum number of musics, at most MAX_SIMILAR
+   * @return the musics most often listened or kept in a playlist with it, the
+   *         most similar first
+   * @throws NotFoundResponse           if no music with the given ID is found
+   * @throws ServiceUnavailableResponse if the index is not built yet
+   */
+  public List<Music> getSimilarMusics(Long musicId, int limit) {
+    SimilarIndex current = index;
+    if (current == null) {
+      throw new ServiceUnavailableResponse("The similar musics are being computed");
+    }
+    try {
+      if (musicCatalog.get(musicId) == null) {
+        throw new NotFoundResponse("Music with id \"" + musicId + "\" not found");
+      }
+
+      long[] similarIds = current.similar(musicId, limit);
+      List<Long> ids = new ArrayList<>(similarIds.length);
+      for (long similarId : similarIds) {
+        ids.add(similarId);
+      }
+      return musicCatalog.getAll(ids);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    refresher.shutdownNow();
+    pool.shutdownNow();
+  }
+
+  private void refresh() {
+    try {
+      rebuild();
+    } catch (RuntimeException e) {
+      // The previous index is kept, the next refresh tries again
+      LOG.warn("Could not build the similar musics", e);
+    }
+  }
+
+  private void rebuild() {
+    long start = System.nanoTime();
+    CooccurrenceGroups groups = new CooccurrenceGroups(MAX_GROUP_SIZE);
+    try (Connection conn = ds.getConnection()) {
+      // The driver only fetches rows by chunks (using a cursor) inside a
+      // transaction
+      conn.setAutoCommit(false);
+      try {
+        similarRepo.readPlaylists(conn, groups, FETCH_SIZE);
+        similarRepo.readSessions(conn, groups, SESSION_GAP, FETCH_SIZE);
+        conn.commit();
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    long read = System.nanoTime();
+
+    SimilarIndex built = SimilarIndex.build(groups, MAX_SIMILAR, MIN_COOCCURRENCES, pool);
+    index = built;
+
+    LOG.info("Computed {} similar musics of {} musics from {} groups in {} ms ({} ms reading)",
+        built.similarCount(), built.size(), groups.groupCount(), (System.nanoTime() - start) / 1_000_000,
+        (read - start) / 1_000_000);
+  }
+}
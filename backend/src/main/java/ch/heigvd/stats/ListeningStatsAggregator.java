@@ -0,0 +1,143 @@
+package ch.heigvd.stats;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds the queued listens to the rollups of the listening statistics, in the
+ * background.
+ *
+ * The trigger of V5__listening_stats.sql queues each listen inserted. Every
+ * few seconds, the queue is drained in batches, each aggregated and removed
+ * from the queue in a single statement: a listen is counted once even if the
+ * backend stops in the middle, and several backends can drain the same queue.
+ * A failed batch stays queued and is taken again at the next run.
+ *
+ * The rollups lag behind the listens by the queue: each run first measures it,
+ * and the lag is the age of the oldest listen queued, or the time since the
+ * queue was last drained.
+ */
+public class ListeningStatsAggregator implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(ListeningStatsAggregator.class);
+
+  private static final long AGGREGATE_INTERVAL_MILLIS = 5_000;
+  private static final int BATCH_SIZE = 5_000;
+
+  private final DataSource ds;
+  private final StatsRepository statsRepo;
+  private final ScheduledExecutorService aggregator;
+  private final LongAdder aggregated = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  // The listens queued at the start of the last run, and the time before which
+  // all the listens are counted
+  private volatile long queued;
+  private volatile Instant countedUntil = Instant.now();
+  private volatile Instant lastRun;
+
+  /**
+   * @param ds        the primary database, whose queue is drained
+   * @param statsRepo the repository of the rollups
+   */
+  public ListeningStatsAggregator(DataSource ds, StatsRepository statsRepo) {
+    this.ds = ds;
+    this.statsRepo = statsRepo;
+    this.aggregator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "listening-stats-aggregator");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts draining the queue in the background.
+   */
+  public void start() {
+    aggregator.scheduleWithFixedDelay(this::aggregateQuietly, 0, AGGREGATE_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return how late the rollups are, in milliseconds: the listens older than
+   *         that are counted in them
+   */
+  public long lagMillis() {
+    return Math.max(0, Instant.now().toEpochMilli() - countedUntil.toEpochMilli());
+  }
+
+  /**
+   * @return the state of the queue and of the aggregator
+   */
+  public Stats stats() {
+    return new Stats(queued, lagMillis(), lastRun, aggregated.sum(), failures.sum());
+  }
+
+  @Override
+  public void close() {
+    aggregator.shutdownNow();
+  }
+
+  private void aggregateQuietly() {
+    try {
+      aggregate();
+    } catch (SQLException | RuntimeException e) {
+      // The listens stay queued until the next run
+      failures.increment();
+      LOG.warn("Could not aggregate the listening statistics", e);
+    }
+  }
+
+  /**
+   * Aggregates batches until the queue is empty.
+   */
+  private void aggregate() throws SQLException {
+    long start = System.nanoTime();
+    Instant runAt = Instant.now();
+    lastRun = runAt;
+    long total = 0;
+    try (Connection conn = ds.getConnection()) {
+      StatsRepository.Pending pending = statsRepo.getPending(conn);
+      queued = pending.listens();
+      countedUntil = pending.oldest() == null ? runAt : pending.oldest();
+
+      int batch;
+      do {
+        batch = statsRepo.aggregatePending(conn, BATCH_SIZE);
+        total += batch;
+        aggregated.add(batch);
+      } while (batch == BATCH_SIZE && !Thread.currentThread().isInterrupted());
+
+      // The listens queued before the run are counted, except those of
+      // uncommitted transactions or taken by another backend
+      if (batch < BATCH_SIZE) {
+        countedUntil = runAt;
+      }
+    }
+    if (total > 0) {
+      LOG.debug("Aggregated {} listens in {} ms", total, (System.nanoTime() - start) / 1_000_000);
+    }
+  }
+
+  /**
+   * State of the aggregator.
+   *
+   * @param queued     the listens queued at the start of the last run
+   * @param lagMs      how late the rollups are: the listens older than that
+   *                   are counted in them
+   * @param lastRun    when the last run started, null before the first one
+   * @param aggregated the listens aggregated since the start
+   * @param failures   the runs that failed since the start
+   */
+  public record Stats(long queued, long lagMs, Instant lastRun, long aggregated, long failures) {
+  }
+}
@@ -0,0 +1,51 @@
+package ch.heigvd.stats;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.heigvd.Db;
+import ch.heigvd.Migrations;
+
+/**
+ * Command computing the rollups of the listening statistics from all the
+ * listens, those recorded before V5__listening_stats.sql included:
+ *
+ * java -cp spotish.jar ch.heigvd.stats.StatsBackfill
+ *
+ * It reads the same environment variables as the backend, which can keep
+ * running: the listens it writes meanwhile wait until the backfill commits,
+ * then are queued and aggregated as usual. Running it again is harmless.
+ */
+public final class StatsBackfill {
+  private static final Logger LOG = LoggerFactory.getLogger(StatsBackfill.class);
+
+  private StatsBackfill() {
+  } // This class should not be instanciated
+
+  public static void main(String[] args) {
+    DataSource ds = Db.createUnpooledDataSource();
+    // The rollup tables may not exist yet
+    Migrations.migrate(ds);
+
+    long start = System.nanoTime();
+    try (Connection conn = ds.getConnection()) {
+      conn.setAutoCommit(false);
+      try {
+        new StatsRepository().backfill(conn);
+        conn.commit();
+      } catch (SQLException | RuntimeException e) {
+        conn.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+
+    LOG.info("Backfilled the listening statistics in {} ms", (System.nanoTime() - start) / 1_000_000);
+  }
+}
@@ -0,0 +1,41 @@
+package ch.heigvd.stats;
+
+import java.time.Year;
+
+import ch.heigvd.entities.ListeningStats;
+import io.javalin.http.Context;
+
+public class StatsController {
+  private final StatsService statsService;
+
+  // The rollups follow the listens within a few seconds, the statistics of a
+  // year change slowly
+  private final static int STATS_CACHE_MAX_AGE_SECONDS = 300;
+
+  public StatsController(StatsService statsService) {
+    this.statsService = statsService;
+  }
+
+  /**
+   * Handles the HTTP GET request to retrieve the listening statistics of the
+   * logged in user, with ?year the year counted, the current one by default.
+   *
+   * @param ctx the Javalin HTTP context containing request and response data
+   */
+  public void getWrapped(Context ctx) {
+    String username = ctx.cookie("userNameCookie");
+    int currentYear = Year.now().getValue();
+    Integer year = ctx.queryParamAsClass("year", Integer.class)
+        .check(y -> y >= 1900 && y <= currentYear, "year must be between 1900 and " + currentYear)
+        .getOrDefault(currentYear);
+
+    ListeningStats stats = statsService.getWrapped(username, year);
+
+    // Specific to the user: only the browser caches the response, for
+    // STATS_CACHE_MAX_AGE_SECONDS seconds
+    ctx.header("Cache-Control", "private, max-age=" + STATS_CACHE_MAX_AGE_SECONDS);
+    ctx.header("Vary", "Cookie");
+
+    ctx.json(stats);
+  }
+}
@@ -0,0 +1,300 @@
+package ch.heigvd.stats;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.heigvd.entities.ListeningStats;
+
+/**
+ * Reads and maintains the rollups of the listens of the users, see
+ * V5__listening_stats.sql, and of the listens per music, see
+ * V6__music_plays.sql.
+ */
+public class StatsRepository {
+  /**
+   * The listens waiting in the queue to be aggregated.
+   *
+   * @param listens the number of listens queued
+   * @param oldest  when the oldest of them was listened to, null when the
+   *                queue is empty
+   */
+  public record Pending(long listens, Instant oldest) {
+  }
+
+  // Takes a batch of queued listens, skipping those another instance is
+  // aggregating, and adds them to the four rollups in the same statement. The
+  // listens of a music or user deleted since are dropped.
+  private static final String AGGREGATE_PENDING_SQL = """
+      /* StatsRepository.aggregatePending */
+      WITH batch AS (
+        DELETE FROM spotish.stats_ecoute_attente a
+        WHERE a.ctid = ANY(ARRAY(
+          SELECT p.ctid FROM spotish.stats_ecoute_attente p LIMIT ? FOR UPDATE SKIP LOCKED))
+        RETURNING a.nomutilisateur, a.idchanson, a.dateheureecoute
+      ), listens AS (
+        SELECT b.nomutilisateur, b.idchanson, b.dateheureecoute, c.genre, c.duree
+        FROM batch b
+        JOIN spotish.chanson c     ON c.idchanson = b.idchanson
+        JOIN spotish.utilisateur u ON u.nomutilisateur = b.nomutilisateur
+      ), months AS (
+        INSERT INTO spotish.stats_ecoute_mois AS s (nomutilisateur, mois, ecoutes, duree)
+        SELECT l.nomutilisateur, date_trunc('month', l.dateheureecoute)::date, COUNT(*), SUM(l.duree)
+        FROM listens l
+        GROUP BY 1, 2
+        ON CONFLICT (nomutilisateur, mois)
+        DO UPDATE SET ecoutes = s.ecoutes + EXCLUDED.ecoutes, duree = s.duree + EXCLUDED.duree
+      ), genres AS (
+        INSERT INTO spotish.stats_ecoute_genre AS s (nomutilisateur, annee, genre, ecoutes, duree)
+        SELECT l.nomutilisateur, EXTRACT(YEAR FROM l.dateheureecoute)::int, l.genre, COUNT(*), SUM(l.duree)
+        FROM listens l
+        GROUP BY 1, 2, 3
+        ON CONFLICT (nomutilisateur, annee, genre)
+        DO UPDATE SET ecoutes = s.ecoutes + EXCLUDED.ecoutes, duree = s.duree + EXCLUDED.duree
+      ), creators AS (
+        INSERT INTO spotish.stats_ecoute_createur AS s (nomutilisateur, annee, nomcreateur, ecoutes, duree)
+        SELECT l.nomutilisateur, EXTRACT(YEAR FROM l.dateheureecoute)::int, cm.nomcreateur, COUNT(*), SUM(l.duree)
+        FROM listens l
+        JOIN spotish.createur_media cm ON cm.idmedia = l.idchanson
+        GROUP BY 1, 2, 3
+        ON CONFLICT (nomutilisateur, annee, nomcreateur)
+        DO UPDATE SET ecoutes = s.ecoutes + EXCLUDED.ecoutes, duree = s.duree + EXCLUDED.duree
+      ), musics AS (
+        INSERT INTO spotish.stats_ecoute_chanson AS s (idchanson, ecoutes)
+        SELECT l.idchanson, COUNT(*)
+        FROM listens l
+        GROUP BY 1
+        ON CONFLICT (idchanson)
+        DO UPDATE SET ecoutes = s.ecoutes + EXCLUDED.ecoutes
+      )
+      SELECT COUNT(*) AS aggregated FROM batch;
+      """;
+
+  // No listen can be inserted, and so queued, until the backfill commits: the
+  // rollups then match spotish.ecoute exactly
+  private static final String BACKFILL_LOCK_SQL = """
+      /* StatsRepository.backfill */
+      LOCK TABLE spotish.ecoute IN SHARE MODE;
+      """;
+
+  private static final String BACKFILL_CLEAR_SQL = """
+      /* StatsRepository.backfill */
+      DELETE FROM spotish.stats_ecoute_attente;
+      DELETE FROM spotish.stats_ecoute_mois;
+      DELETE FROM spotish.stats_ecoute_genre;
+      DELETE FROM spotish.stats_ecoute_createur;
+      DELETE FROM spotish.stats_ecoute_chanson;
+      """;
+
+  private static final String BACKFILL_MONTHS_SQL = """
+      /* StatsRepository.backfill */
+      INSERT INTO spotish.stats_ecoute_mois (nomutilisateur, mois, ecoutes, duree)
+      SELECT e.nomutilisateur, date_trunc('month', e.dateheureecoute)::date, COUNT(*), SUM(c.duree)
+      FROM spotish.ecoute e
+      JOIN spotish.chanson c ON c.idchanson = e.idchanson
+      GROUP BY 1, 2;
+      """;
+
+  private static final String BACKFILL_GENRES_SQL = """
+      /* StatsRepository.backfill */
+      INSERT INTO spotish.stats_ecoute_genre (nomutilisateur, annee, genre, ecoutes, duree)
+      SELECT e.nomutilisateur, EXTRACT(YEAR FROM e.dateheureecoute)::int, c.genre, COUNT(*), SUM(c.duree)
+      FROM spotish.ecoute e
+      JOIN spotish.chanson c ON c.idchanson = e.idchanson
+      GROUP BY 1, 2, 3;
+      """;
+
+  private static final String BACKFILL_CREATORS_SQL = """
+      /* StatsRepository.backfill */
+      INSERT INTO spotish.stats_ecoute_createur (nomutilisateur, annee, nomcreateur, ecoutes, duree)
+      SELECT e.nomutilisateur, EXTRACT(YEAR FROM e.dateheureecoute)::int, cm.nomcreateur, COUNT(*), SUM(c.duree)
+      FROM spotish.ecoute e
+      JOIN spotish.chanson c         ON c.idchanson = e.idchanson
+      JOIN spotish.createur_media cm ON cm.idmedia = e.idchanson
+      GROUP BY 1, 2, 3;
+      """;
+
+  private static final String BACKFILL_MUSICS_SQL = """
+      /* StatsRepository.backfill */
+      INSERT INTO spotish.stats_ecoute_chanson (idchanson, ecoutes)
+      SELECT e.idchanson, COUNT(*)
+      FROM spotish.ecoute e
+      GROUP BY 1;
+      """;
+
+  private static final String GET_PENDING_SQL = """
+      /* StatsRepository.getPending */
+      SELECT COUNT(*) AS listens, MIN(a.dateheureecoute) AS oldest
+      FROM spotish.stats_ecoute_attente a;
+      """;
+
+  private static final String GET_MONTHS_SQL = """
+      /* StatsRepository.getMonths */
+      SELECT EXTRACT(MONTH FROM s.mois)::int AS month, s.ecoutes AS listens, s.duree AS listeningTime
+      FROM spotish.stats_ecoute_mois s
+      WHERE s.nomutilisateur = ? AND s.mois >= make_date(?, 1, 1) AND s.mois < make_date(? + 1, 1, 1)
+      ORDER BY s.mois;
+      """;
+
+  private static final String GET_TOP_GENRES_SQL = """
+      /* StatsRepository.getTopGenres */
+      SELECT s.genre, s.ecoutes AS listens, s.duree AS listeningTime
+      FROM spotish.stats_ecoute_genre s
+      WHERE s.nomutilisateur = ? AND s.annee = ?
+      ORDER BY s.duree DESC, s.genre
+      LIMIT ?;
+      """;
+
+  private static final String GET_TOP_CREATORS_SQL = """
+      /* StatsRepository.getTopCreators */
+      SELECT s.nomcreateur AS creatorName, s.ecoutes AS listens, s.duree AS listeningTime
+      FROM spotish.stats_ecoute_createur s
+      WHERE s.nomutilisateur = ? AND s.annee = ?
+      ORDER BY s.duree DESC, s.nomcreateur
+      LIMIT ?;
+      """;
+
+  /**
+   * Adds a batch of queued listens to the rollups.
+   *
+   * @param conn      the database connection, to the primary
+   * @param batchSize the maximum number of listens aggregated
+   * @return the number of listens taken from the queue
+   * @throws SQLException if a database access error occurs
+   */
+  public int aggregatePending(Connection conn, int batchSize) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(AGGREGATE_PENDING_SQL)) {
+      ps.setInt(1, batchSize);
+      ResultSet rs = ps.executeQuery();
+      rs.next();
+      return rs.getInt("aggregated");
+    }
+  }
+
+  /**
+   * Computes the rollups again from all the listens, and empties the queue.
+   * The inserts of listens wait until the transaction commits.
+   *
+   * @param conn the database connection, to the primary and not in auto-commit
+   *             mode
+   * @throws SQLException if a database access error occurs
+   */
+  public void backfill(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.execute(BACKFILL_LOCK_SQL);
+      statement.execute(BACKFILL_CLEAR_SQL);
+      statement.execute(BACKFILL_MONTHS_SQL);
+      statement.execute(BACKFILL_GENRES_SQL);
+      statement.execute(BACKFILL_CREATORS_SQL);
+      statement.execute(BACKFILL_MUSICS_SQL);
+    }
+  }
+
+  /**
+   * Retrieves the listens waiting to be aggregated. The queue has no index, it
+   * is scanned entirely.
+   *
+   * @param conn the database connection, to the primary
+   * @return the listens queued
+   * @throws SQLException if a database access error occurs
+   */
+  public Pending getPending(Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_PENDING_SQL)) {
+      ResultSet rs = ps.executeQuery();
+      rs.next();
+      // The listens are stored in the local time of the backend
+      Timestamp oldest = rs.getTimestamp("oldest");
+      return new Pending(rs.getLong("listens"),
+          oldest == null ? null : oldest.toLocalDateTime().atZone(ZoneId.systemDefault()).toInstant());
+    }
+  }
+
+  /**
+   * Retrieves the listens of a user for each month of a year.
+   *
+   * @param conn     the database connection
+   * @param username the username of the user
+   * @param year     the year
+   * @return the months with listens, in chronological order
+   * @throws SQLException if a database access error occurs
+   */
+  public List<ListeningStats.MonthStats> getMonths(Connection conn, String username, int year) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_MONTHS_SQL)) {
+      ps.setString(1, username);
+      ps.setInt(2, year);
+      ps.setInt(3, year);
+      ResultSet rs = ps.executeQuery();
+      List<ListeningStats.MonthStats> months = new ArrayList<>();
+      while (rs.next()) {
+        months.add(new ListeningStats.MonthStats(
+            rs.getInt("month"),
+            rs.getLong("listens"),
+            rs.getLong("listeningTime")));
+      }
+      return months;
+    }
+  }
+
+  /**
+   * Retrieves the genres a user listened to the longest during a year.
+   *
+   * @param conn     the database connection
+   * @param username the username of the user
+   * @param year     the year
+   * @param limit    the maximum number of genres
+   * @return the genres, the longest listened first
+   * @throws SQLException if a database access error occurs
+   */
+  public List<ListeningStats.GenreStats> getTopGenres(Connection conn, String username, int year, int limit)
+      throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_TOP_GENRES_SQL)) {
+      ps.setString(1, username);
+      ps.setInt(2, year);
+      ps.setInt(3, limit);
+      ResultSet rs = ps.executeQuery();
+      List<ListeningStats.GenreStats> genres = new ArrayList<>();
+      while (rs.next()) {
+        genres.add(new ListeningStats.GenreStats(
+            rs.getString("genre"),
+            rs.getLong("listens"),
+            rs.getLong("listeningTime")));
+      }
+      return genres;
+    }
+  }
+
+  /**
+   * Retrieves the creators a user listened to the longest during a year.
+   *
+   * @param conn     the database connection
+   * @param username the username of the user
+   * @param year     the year
+   * @param limit    the maximum number of creators
+   * @return the creators, the longest listened first
+   * @throws SQLException if a database access error occurs
+   */
+  public List<ListeningStats.CreatorStats> getTopCreators(Connection conn, String username, int year, int limit)
+      throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(GET_TOP_CREATORS_SQL)) {
+      ps.setString(1, username);
+      ps.setInt(2, year);
+      ps.setInt(3, limit);
+      ResultSet rs = ps.executeQuery();
+      List<ListeningStats.CreatorStats> creators = new ArrayList<>();
+      while (rs.next()) {
+        creators.add(new ListeningStats.CreatorStats(
+            rs.getString("creatorName"),
+            rs.getLong("listens"),
+            rs.getLong("listeningTime")));
+      }
+      return creators;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package ch.heigvd.stats;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import ch.heigvd.entities.ListeningStats;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Reads the listening statistics of the users from the rollups maintained by
+ * the ListeningStatsAggregator. The listens of the last few seconds may not be
+ * counted yet.
+ */
+public class StatsService {
+  /**
+   * The number of genres and of creators of the statistics.
+   */
+  public static final int TOP_SIZE = 5;
+
+  private final DataSource ds;
+  private final StatsRepository statsRepo;
+
+  /**
+   * @param ds        the database the rollups are read from
+   * @param statsRepo the repository of the rollups
+   */
+  public StatsService(DataSource ds, StatsRepository statsRepo) {
+    this.ds = ds;
+    this.statsRepo = statsRepo;
+  }
+
+  /**
+   * Retrieves the listening statistics of a user over a year.
+   *
+   * @param username the username of the user
+   * @param year     the year
+   * @return the statistics
+   * @throws NotFoundResponse if the user listened to nothing during the year
+   */
+  public ListeningStats getWrapped(String username, int year) {
+    try (Connection conn = ds.getConnection()) {
+      List<ListeningStats.MonthStats> months = statsRepo.getMonths(conn, username, year);
+      if (months.isEmpty()) {
+        throw new NotFoundResponse("No listens of " + username + " in " + year);
+      }
+      long listens = 0;
+      long listeningTime = 0;
+      for (ListeningStats.MonthStats month : months) {
+        listens += month.listens();
+        listeningTime += month.listeningTime();
+      }
+      return new ListeningStats(username, year, listens, listeningTime,
+          statsRepo.getTopGenres(conn, username, year, TOP_SIZE),
+          statsRepo.getTopCreators(conn, username, year, TOP_SIZE),
+          months);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -11,6 +11,31 @@ import java.util.List;
 import ch.heigvd.entities.User;
 
 public class UserRepository {
+  private static final String GET_ALL_SQL = """
+      /* UserRepository.getAll */
+      select nomUtilisateur, nom, prenom, dateNaissance, email
+      from spotish.utilisateur;
+      """;
+
+  private static final String GET_ONE_SQL = """
+      /* UserRepository.getOne */
+      select nomUtilisateur, nom, prenom, dateNaissance, email
+      from spotish.utilisateur
+      where nomUtilisateur = ?;
+      """;
+
+  private static final String INSERT_ONE_SQL = """
+      /* UserRepository.insertOne [sensitive] */
+      insert into spotish.utilisateur (nomutilisateur, nom, prenom, datenaissance, email)
+      values (?,?,?,?,?);
+      """;
+
+  private static final String EXISTS_SQL = """
+      /* UserRepository.exists */
+      select 1
+      from spotish.utilisateur
+      where nomUtilisateur = ?;
+      """;
 
   /**
    * Get all users from the database.
@@ -20,11 +45,7 @@ public class UserRepository {
    * @throws SQLException if a database error occurs.
    */
   public List<User> getAll(Connection conn) throws SQLException {
-    String sql = """
-        select nomUtilisateur, nom, prenom, dateNaissance, email
-        from spotish.utilisateur;
-        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql);
+    try (PreparedStatement ps = conn.prepareStatement(GET_ALL_SQL);
         ResultSet rs = ps.executeQuery()) {
       List<User> users = new ArrayList<>();
       while (rs.next()) {
@@ -49,12 +70,7 @@ public class UserRepository {
    * @throws SQLException if a database error occurs.
    */
   public User getOne(Connection conn, String username) throws SQLException {
-    String sql = """
-        select nomUtilisateur, nom, prenom, dateNaissance, email
-        from spotish.utilisateur
-        where nomUtilisateur = ?;
-        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql);) {
+    try (PreparedStatement ps = conn.prepareStatement(GET_ONE_SQL);) {
       ps.setString(1, username);
       ResultSet rs = ps.executeQuery();
       User user = null;
@@ -79,11 +95,7 @@ public class UserRepository {
    * @throws SQLException if a database error occurs.
    */
   public int insertOne(Connection conn, User user) throws SQLException {
-    String sql = """
-        insert into spotish.utilisateur (nomutilisateur, nom, prenom, datenaissance, email)
-        values (?,?,?,?,?);
-        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql);) {
+    try (PreparedStatement ps = conn.prepareStatement(INSERT_ONE_SQL);) {
       ps.setString(1, user.username());
       ps.setString(2, user.lname());
       ps.setString(3, user.fname());
@@ -103,12 +115,7 @@ public class UserRepository {
    * @throws SQLException if a database error occurs.
    */
   public boolean exists(Connection conn, String username) throws SQLException {
-    String sql = """
-        select nomUtilisateur, nom, prenom, dateNaissance, email
-        from spotish.utilisateur
-        where nomUtilisateur = ?;
-        """;
-    try (PreparedStatement ps = conn.prepareStatement(sql);) {
+    try (PreparedStatement ps = conn.prepareStatement(EXISTS_SQL);) {
       ps.setString(1, username);
       ResultSet rs = ps.executeQuery();
       if (rs.next()) {
@@ -10,15 +10,35 @@ import io.javalin.http.NotFoundResponse;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ch.heigvd.cache.BoundedCache;
+import ch.heigvd.cache.ResourceVersions;
 import ch.heigvd.entities.User;
 
 public class UserService {
+  private static final int KNOWN_USERS_MAX_SIZE = 50_000;
+  // Users cannot be deleted through the API, the expiration only bounds how long
+  // a change made directly in the database can go unnoticed
+  private static final Duration KNOWN_USERS_TTL = Duration.ofMinutes(5);
+
   private final UserRepository userRepo;
   private final DataSource ds;
-
-  public UserService(DataSource ds, UserRepository userRepo) {
+  private final ResourceVersions versions;
+
+  // Whether a username exists, used to authenticate every request. Unknown
+  // usernames are cached too, so that a stale cookie does not cost a query on
+  // each request either.
+  private final BoundedCache<String, Boolean> knownUsers =
+      BoundedCache.expireAfterWrite(KNOWN_USERS_MAX_SIZE, KNOWN_USERS_TTL);
+  // Incremented by each insertion, before the username is removed from
+  // knownUsers
+  private final AtomicLong insertions = new AtomicLong();
+
+  public UserService(DataSource ds, ResourceVersions versions, UserRepository userRepo) {
     this.ds = ds;
+    this.versions = versions;
     this.userRepo = userRepo;
   }
 
@@ -64,6 +84,32 @@ public class UserService {
     }
   }
 
+  /**
+   * Check if a user exists. The answer is cached for a few minutes.
+   * 
+   * @param username The username of the user to check.
+   * @return true if the user exists, false otherwise.
+   */
+  public boolean isKnownUser(String username) {
+    Boolean known = knownUsers.get(username);
+    if (known != null) {
+      return known;
+    }
+
+    long insertionsBefore = insertions.get();
+    try (Connection conn = ds.getConnection()) {
+      known = userRepo.exists(conn, username);
+      // A user inserted meanwhile may have been missed by the query, and its
+      // removal from the cache may already have happened
+      if (known || insertions.get() == insertionsBefore) {
+        knownUsers.put(username, known);
+      }
+      return known;
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Insert a new user into the database.
    * 
@@ -79,6 +125,11 @@ public class UserService {
 
       userRepo.insertOne(conn, user);
 
+      // The username may have been cached as unknown
+      insertions.incrementAndGet();
+      knownUsers.remove(user.username());
+      versions.bump(ResourceVersions.USERS, ResourceVersions.userKey(user.username()));
+
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,26 @@
+-- Indexes for the lookups that do not start with the first column of a
+-- primary key, which otherwise scan the whole table.
+
+-- Playlists of a creator (PlaylistRepository.getUserPlaylists)
+CREATE INDEX IF NOT EXISTS playlist_nomcreateur_idx
+    ON spotish.playlist (nomcreateur);
+
+-- Musics of a set of playlists (PlaylistRepository.getMusicsOfPlaylists).
+-- The query only reads these two columns, so it is answered from the index.
+-- Also used by the trigger checking that a playlist has a music.
+CREATE INDEX IF NOT EXISTS chanson_playlist_idplaylist_idx
+    ON spotish.chanson_playlist (idplaylist, idchanson);
+
+-- Creators of musics and albums (MusicRepository, AlbumRepository), read from
+-- the index only. Also used by the triggers checking album creators.
+CREATE INDEX IF NOT EXISTS createur_media_idmedia_idx
+    ON spotish.createur_media (idmedia, nomcreateur);
+
+-- Albums containing a music, used when a music is deleted or updated
+CREATE INDEX IF NOT EXISTS album_chanson_idchanson_idx
+    ON spotish.album_chanson (idchanson);
+
+-- Artists of a group (GroupRepository.getArtistsOfGroup) and the triggers
+-- counting them
+CREATE INDEX IF NOT EXISTS artiste_nomgroupe_idx
+    ON spotish.artiste (nomgroupe);
@@ -0,0 +1,115 @@
+-- Denormalized projection of the musics, with the columns of media and
+-- chanson and the aggregated creator names, so that reading a music is a
+-- primary key lookup instead of a join of four tables and a STRING_AGG.
+--
+-- It is kept up to date by the triggers below, in the same transaction as the
+-- writes on media, chanson and createur_media. A music only appears once it
+-- has a creator, as with the previous inner join on createur_media.
+
+CREATE TABLE spotish.chanson_detail (
+   idChanson BIGINT,
+   titre VARCHAR(255) NOT NULL,
+   dateDeSortie DATE NOT NULL,
+   duree INT NOT NULL,
+   genre VARCHAR(255) NOT NULL,
+   nomsCreateurs TEXT NOT NULL,
+   PRIMARY KEY (idChanson),
+   FOREIGN KEY (idChanson) REFERENCES spotish.chanson(idChanson) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- Recomputes the projection of one music from the source tables
+CREATE OR REPLACE FUNCTION spotish.refresh_chanson_detail(music_id BIGINT)
+RETURNS VOID
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   INSERT INTO spotish.chanson_detail (idchanson, titre, datedesortie, duree, genre, nomscreateurs)
+   SELECT c.idchanson, m.titre, m.datedesortie, c.duree, c.genre,
+      STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur)
+   FROM spotish.chanson c
+   JOIN spotish.media m           ON m.idmedia = c.idchanson
+   JOIN spotish.createur_media cm ON cm.idmedia = c.idchanson
+   WHERE c.idchanson = music_id
+   GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre
+   ON CONFLICT (idchanson) DO UPDATE
+   SET titre = EXCLUDED.titre,
+       datedesortie = EXCLUDED.datedesortie,
+       duree = EXCLUDED.duree,
+       genre = EXCLUDED.genre,
+       nomscreateurs = EXCLUDED.nomscreateurs;
+
+   -- No row: the music does not exist or has no creator anymore
+   IF NOT FOUND THEN
+      DELETE FROM spotish.chanson_detail WHERE idchanson = music_id;
+   END IF;
+END;
+$$;
+
+-- Trigger on media: title and release date
+CREATE OR REPLACE FUNCTION spotish.chanson_detail_media()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   PERFORM spotish.refresh_chanson_detail(NEW.idmedia);
+   RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER chanson_detail_media
+AFTER UPDATE OF titre, dateDeSortie
+ON spotish.media
+FOR EACH ROW
+EXECUTE FUNCTION spotish.chanson_detail_media();
+
+-- Trigger on chanson: duration and genre. Deletions cascade through the
+-- foreign key.
+CREATE OR REPLACE FUNCTION spotish.chanson_detail_chanson()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   PERFORM spotish.refresh_chanson_detail(NEW.idchanson);
+   RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER chanson_detail_chanson
+AFTER INSERT OR UPDATE OF duree, genre
+ON spotish.chanson
+FOR EACH ROW
+EXECUTE FUNCTION spotish.chanson_detail_chanson();
+
+-- Trigger on createur_media: creator names, including when a creator is
+-- renamed (the update cascades to createur_media)
+CREATE OR REPLACE FUNCTION spotish.chanson_detail_createur_media()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      PERFORM spotish.refresh_chanson_detail(OLD.idmedia);
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') AND (TG_OP = 'INSERT' OR NEW.idmedia <> OLD.idmedia) THEN
+      PERFORM spotish.refresh_chanson_detail(NEW.idmedia);
+   END IF;
+   RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER chanson_detail_createur_media
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.createur_media
+FOR EACH ROW
+EXECUTE FUNCTION spotish.chanson_detail_createur_media();
+
+-- Initial content
+INSERT INTO spotish.chanson_detail (idchanson, titre, datedesortie, duree, genre, nomscreateurs)
+SELECT c.idchanson, m.titre, m.datedesortie, c.duree, c.genre,
+   STRING_AGG(DISTINCT cm.nomcreateur, ', ' ORDER BY cm.nomcreateur)
+FROM spotish.chanson c
+JOIN spotish.media m           ON m.idmedia = c.idchanson
+JOIN spotish.createur_media cm ON cm.idmedia = c.idchanson
+GROUP BY c.idchanson, m.titre, m.datedesortie, c.duree, c.genre;
+
+ANALYZE spotish.chanson_detail;
@@ -0,0 +1,59 @@
+-- Notifies the backend of the changes of the catalog, on the channel
+-- spotish_catalog, so that it updates its search index and its caches
+-- (CatalogIndexer). The payload is "media:<idMedia>" or
+-- "creator:<nomCreateur>". The notifications are only delivered once the
+-- transaction commits, and once each even if a row changes several times.
+
+-- TG_ARGV[0] is the prefix of the payload, TG_ARGV[1] the column holding the
+-- ID. An update notifies the old and the new ID, they differ when the ID is
+-- changed.
+CREATE OR REPLACE FUNCTION spotish.notify_catalog_change()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      PERFORM pg_notify('spotish_catalog', TG_ARGV[0] || ':' || (to_jsonb(OLD) ->> TG_ARGV[1]));
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      PERFORM pg_notify('spotish_catalog', TG_ARGV[0] || ':' || (to_jsonb(NEW) ->> TG_ARGV[1]));
+   END IF;
+   RETURN NULL;
+END;
+$$;
+
+-- Title and release date
+CREATE TRIGGER notify_catalog_media
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.media
+FOR EACH ROW
+EXECUTE FUNCTION spotish.notify_catalog_change('media', 'idmedia');
+
+-- A media becoming a music, its duration and genre
+CREATE TRIGGER notify_catalog_chanson
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.chanson
+FOR EACH ROW
+EXECUTE FUNCTION spotish.notify_catalog_change('media', 'idchanson');
+
+-- A media becoming an album
+CREATE TRIGGER notify_catalog_album
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.album
+FOR EACH ROW
+EXECUTE FUNCTION spotish.notify_catalog_change('media', 'idalbum');
+
+-- Creators of the media, including when a creator is renamed (the update
+-- cascades to createur_media)
+CREATE TRIGGER notify_catalog_createur_media
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.createur_media
+FOR EACH ROW
+EXECUTE FUNCTION spotish.notify_catalog_change('media', 'idmedia');
+
+-- The creators themselves
+CREATE TRIGGER notify_catalog_createur
+AFTER INSERT OR UPDATE OR DELETE
+ON spotish.createur
+FOR EACH ROW
+EXECUTE FUNCTION spotish.notify_catalog_change('creator', 'nomcreateur');
@@ -0,0 +1,12 @@
+-- no-transaction
+--
+-- Listens by time, for the plays of the last days loaded at startup to
+-- rebuild the trending charts (ChartRepository.getPlaysByMinute). Without it,
+-- the whole history is scanned to find the last week.
+--
+-- Built concurrently, so that the listens keep being written while it is
+-- built. Without IF NOT EXISTS: if the build fails, the INVALID index left
+-- behind must be dropped (DROP INDEX CONCURRENTLY
+-- spotish.ecoute_dateheureecoute_idx) instead of being taken as built.
+CREATE INDEX CONCURRENTLY ecoute_dateheureecoute_idx
+    ON spotish.ecoute (dateheureecoute);
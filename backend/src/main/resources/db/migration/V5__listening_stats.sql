@@ -0,0 +1,71 @@
+-- Rollups of the listens of each user, so that their listening statistics
+-- are read from a few rows instead of aggregating their whole history in
+-- spotish.ecoute joined with spotish.chanson.
+--
+-- Inserting a listen only queues it in stats_ecoute_attente, in the same
+-- transaction. The backend aggregates the queue in batches in the background
+-- (StatsRepository.aggregatePending). The listens recorded before this
+-- migration are counted by the backfill command (StatsBackfill). The
+-- listening time is the duration of the musics, in seconds.
+
+-- Listens per user and month
+CREATE TABLE spotish.stats_ecoute_mois (
+   nomUtilisateur VARCHAR(255),
+   mois DATE,
+   ecoutes BIGINT NOT NULL,
+   duree BIGINT NOT NULL,
+   PRIMARY KEY (nomUtilisateur, mois),
+   FOREIGN KEY (nomUtilisateur) REFERENCES spotish.utilisateur(nomUtilisateur) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- Listens per user, year and genre
+CREATE TABLE spotish.stats_ecoute_genre (
+   nomUtilisateur VARCHAR(255),
+   annee INT,
+   genre VARCHAR(255),
+   ecoutes BIGINT NOT NULL,
+   duree BIGINT NOT NULL,
+   PRIMARY KEY (nomUtilisateur, annee, genre),
+   FOREIGN KEY (nomUtilisateur) REFERENCES spotish.utilisateur(nomUtilisateur) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- Listens per user, year and creator. A music of several creators counts for
+-- each of them.
+CREATE TABLE spotish.stats_ecoute_createur (
+   nomUtilisateur VARCHAR(255),
+   annee INT,
+   nomCreateur VARCHAR(255),
+   ecoutes BIGINT NOT NULL,
+   duree BIGINT NOT NULL,
+   PRIMARY KEY (nomUtilisateur, annee, nomCreateur),
+   FOREIGN KEY (nomUtilisateur) REFERENCES spotish.utilisateur(nomUtilisateur) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- Listens not aggregated yet. Without keys nor indexes, so that queuing a
+-- listen is a plain append: the aggregator takes any rows of it.
+CREATE TABLE spotish.stats_ecoute_attente (
+   nomUtilisateur VARCHAR(255) NOT NULL,
+   idChanson BIGINT NOT NULL,
+   dateHeureEcoute TIMESTAMP NOT NULL
+);
+
+-- Once per INSERT statement, the listens of a batch being queued together.
+-- The transition table only holds the rows actually inserted, not those
+-- skipped by ON CONFLICT DO NOTHING.
+CREATE OR REPLACE FUNCTION spotish.queue_ecoute_stats()
+RETURNS TRIGGER
+LANGUAGE plpgsql AS
+$$
+BEGIN
+   INSERT INTO spotish.stats_ecoute_attente (nomutilisateur, idchanson, dateheureecoute)
+   SELECT i.nomutilisateur, i.idchanson, i.dateheureecoute
+   FROM inserted i;
+   RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER queue_ecoute_stats
+AFTER INSERT ON spotish.ecoute
+REFERENCING NEW TABLE AS inserted
+FOR EACH STATEMENT
+EXECUTE FUNCTION spotish.queue_ecoute_stats();
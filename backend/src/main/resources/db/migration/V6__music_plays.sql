@@ -0,0 +1,33 @@
+-- Listens per music, all users together: a rollup of the listening
+-- statistics next to those of V5__listening_stats.sql, for the readers of the
+-- play counts of the musics (e.g. the autocomplete) instead of grouping the
+-- whole spotish.ecoute.
+--
+-- Like the other rollups, it is fed by the queue of V5
+-- (StatsRepository.aggregatePending), lags behind the listens by that queue
+-- (see GET /admin/listening-stats) and is computed again by the backfill
+-- command (StatsBackfill).
+CREATE TABLE spotish.stats_ecoute_chanson (
+   idChanson BIGINT PRIMARY KEY,
+   ecoutes BIGINT NOT NULL,
+   FOREIGN KEY (idChanson) REFERENCES spotish.chanson(idChanson) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- The listens still queued are added by the aggregator. Neither the listens
+-- nor the queue may change until the migration commits, so that each listen
+-- is counted once.
+LOCK TABLE spotish.ecoute, spotish.stats_ecoute_attente IN SHARE MODE;
+
+INSERT INTO spotish.stats_ecoute_chanson (idchanson, ecoutes)
+SELECT p.idchanson, p.ecoutes
+FROM (
+   SELECT e.idchanson, COUNT(*) - COALESCE(MAX(q.attente), 0) AS ecoutes
+   FROM spotish.ecoute e
+   LEFT JOIN (
+      SELECT a.idchanson, COUNT(*) AS attente
+      FROM spotish.stats_ecoute_attente a
+      GROUP BY a.idchanson
+   ) q ON q.idchanson = e.idchanson
+   GROUP BY e.idchanson
+) p
+WHERE p.ecoutes > 0;
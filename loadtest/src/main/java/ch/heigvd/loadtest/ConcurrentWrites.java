@@ -0,0 +1,221 @@
+package ch.heigvd.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reproduces the race of concurrent likes and follows against a running
+ * backend.
+ *
+ * A new user is created for the run. Each round, the same like of a music and
+ * the same follow of a playlist are sent by many threads released together,
+ * as a double click or a retried request would. Every request must succeed
+ * with 201, and the database must end up with a single row for each. The
+ * user is deleted at the end, with its likes and follows.
+ *
+ * Run with --help for the options. The exit code is 1 if any round failed.
+ */
+public class ConcurrentWrites {
+  private static final String USAGE = """
+      Usage: java -cp spotish-loadtest.jar ch.heigvd.loadtest.ConcurrentWrites [--name=value ...]
+
+        --url=URL            API to test (env SPOTISH_URL, default http://localhost:8080)
+        --jdbc-url=URL       database the rows are checked in (env JDBC_URL,
+                             default jdbc:postgresql://localhost:5432/spotish)
+        --db-user=NAME       database user (env POSTGRES_USER_USERNAME, default postgres)
+        --db-password=PASS   database password (env POSTGRES_USER_PASSWORD)
+        --rounds=N           musics liked and playlists followed (default 20)
+        --parallel=N         identical requests sent at once each round (default 20)
+      """;
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+  private final String baseUrl;
+  private final Connection conn;
+  private final int parallel;
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(5))
+      .build();
+  private final String username = "race" + Long.toString(System.currentTimeMillis(), 36);
+  private String cookie;
+
+  private ConcurrentWrites(String baseUrl, Connection conn, int parallel) {
+    this.baseUrl = baseUrl;
+    this.conn = conn;
+    this.parallel = parallel;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    if (options.has("help")) {
+      System.out.print(USAGE);
+      return;
+    }
+
+    String baseUrl = options.getStringOrEnv("url", "SPOTISH_URL", "http://localhost:8080");
+    if (baseUrl.endsWith("/")) {
+      baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+    }
+
+    boolean passed;
+    try (Connection conn = DriverManager.getConnection(
+        options.getStringOrEnv("jdbc-url", "JDBC_URL", "jdbc:postgresql://localhost:5432/spotish"),
+        options.getStringOrEnv("db-user", "POSTGRES_USER_USERNAME", "postgres"),
+        options.getStringOrEnv("db-password", "POSTGRES_USER_PASSWORD", ""))) {
+      passed = new ConcurrentWrites(baseUrl, conn, options.getInt("parallel", 20))
+          .run(options.getInt("rounds", 20));
+    }
+    System.exit(passed ? 0 : 1);
+  }
+
+  private boolean run(int rounds) throws Exception {
+    List<Long> musicIds = sample("SELECT idchanson FROM spotish.chanson ORDER BY random() LIMIT ?", rounds);
+    List<Long> playlistIds = sample("SELECT idplaylist FROM spotish.playlist ORDER BY random() LIMIT ?", rounds);
+    if (musicIds.size() < rounds || playlistIds.size() < rounds) {
+      throw new IllegalStateException("The database must contain at least " + rounds
+          + " musics and playlists, seed it with sql_scripts/init first");
+    }
+
+    createUser();
+    ExecutorService executor = Executors.newFixedThreadPool(parallel);
+    try {
+      boolean likes = check("POST /musics/liked/{idMedia}", "/musics/liked/", musicIds, """
+          SELECT count(*) FROM spotish.utilisateur_aime_chanson WHERE nomutilisateur = ? AND idchanson = ?
+          """, executor);
+      boolean follows = check("POST /playlists/followed/{playlistId}", "/playlists/followed/", playlistIds, """
+          SELECT count(*) FROM spotish.utilisateur_playlist WHERE nomutilisateur = ? AND idplaylist = ?
+          """, executor);
+      return likes && follows;
+    } finally {
+      executor.shutdownNow();
+      deleteUser();
+    }
+  }
+
+  /**
+   * Sends each write from all the threads at once, then checks the statuses
+   * and the rows.
+   *
+   * @return whether every round passed
+   */
+  private boolean check(String route, String path, List<Long> ids, String countSql, ExecutorService executor)
+      throws Exception {
+    Map<Integer, Integer> statuses = new TreeMap<>();
+    int failedRounds = 0;
+
+    for (Long id : ids) {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Integer>> responses = new ArrayList<>(parallel);
+      for (int i = 0; i < parallel; i++) {
+        responses.add(executor.submit(() -> {
+          start.await();
+          return post(path + id).statusCode();
+        }));
+      }
+      start.countDown();
+
+      boolean failed = false;
+      for (Future<Integer> response : responses) {
+        int status = response.get();
+        statuses.merge(status, 1, Integer::sum);
+        failed |= status != 201;
+      }
+
+      long rows = count(countSql, id);
+      if (rows != 1) {
+        System.out.printf("%s with id %d left %d rows%n", route, id, rows);
+        failed = true;
+      }
+      if (failed) {
+        failedRounds++;
+      }
+    }
+
+    System.out.printf("%-40s %d rounds of %d requests, %d failed, statuses %s%n", route, ids.size(), parallel,
+        failedRounds, statuses);
+    return failedRounds == 0;
+  }
+
+  private void createUser() throws IOException, InterruptedException {
+    String body = "{\"username\":\"" + username + "\",\"lname\":\"Race\",\"fname\":\"Test\","
+        + "\"birthdate\":\"2000-01-01\",\"email\":\"" + username + "@example.com\"}";
+    HttpResponse<Void> created = client.send(request("/utilisateurs")
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build(), HttpResponse.BodyHandlers.discarding());
+    if (created.statusCode() != 201) {
+      throw new IllegalStateException("Creating the user " + username + " answered " + created.statusCode());
+    }
+
+    HttpResponse<Void> login = post("/login/" + username);
+    cookie = login.headers().allValues("Set-Cookie").stream()
+        .filter(header -> header.startsWith(Session.COOKIE_NAME + "="))
+        .map(header -> header.indexOf(';') < 0 ? header : header.substring(0, header.indexOf(';')))
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException("Logging in as " + username + " answered "
+            + login.statusCode() + " without a cookie"));
+  }
+
+  private void deleteUser() throws SQLException {
+    // The likes and follows are deleted by cascade
+    try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM spotish.utilisateur WHERE nomutilisateur = ?")) {
+      stmt.setString(1, username);
+      stmt.executeUpdate();
+    }
+  }
+
+  private HttpResponse<Void> post(String path) throws IOException, InterruptedException {
+    HttpRequest.Builder builder = request(path);
+    if (cookie != null) {
+      builder.header("Cookie", cookie);
+    }
+    return client.send(builder.POST(HttpRequest.BodyPublishers.noBody()).build(),
+        HttpResponse.BodyHandlers.discarding());
+  }
+
+  private HttpRequest.Builder request(String path) {
+    return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(REQUEST_TIMEOUT);
+  }
+
+  private List<Long> sample(String sql, int size) throws SQLException {
+    List<Long> ids = new ArrayList<>(size);
+    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+      stmt.setInt(1, size);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          ids.add(rs.getLong(1));
+        }
+      }
+    }
+    return ids;
+  }
+
+  private long count(String sql, Long id) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+      stmt.setString(1, username);
+      stmt.setLong(2, id);
+      try (ResultSet rs = stmt.executeQuery()) {
+        rs.next();
+        return rs.getLong(1);
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package ch.heigvd.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Writes rows into a table with COPY ... FROM STDIN, in PostgreSQL's text
+ * format, through the CopyManager of the JDBC driver.
+ *
+ * Rows are encoded into a buffer sent to the server whenever it is full, so
+ * any number of rows can be written with constant memory. Row triggers fire
+ * for COPY as for INSERT.
+ */
+final class CopyWriter implements AutoCloseable {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final CopyIn copy;
+  private final StringBuilder row = new StringBuilder();
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int length = 0;
+  private long rows = 0;
+
+  /**
+   * Starts a COPY.
+   *
+   * @param conn    the connection, in the transaction the rows belong to
+   * @param table   the qualified table name
+   * @param columns the columns given in each row
+   * @throws SQLException if the COPY cannot be started
+   */
+  CopyWriter(Connection conn, String table, String... columns) throws SQLException {
+    this.copy = conn.unwrap(PGConnection.class).getCopyAPI()
+        .copyIn("COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN");
+  }
+
+  /**
+   * Writes a row. Values are converted with toString(), null is written as
+   * NULL.
+   *
+   * @param values the values of the row, in the order of the columns
+   * @throws SQLException if the data cannot be sent
+   */
+  void row(Object... values) throws SQLException {
+    row.setLength(0);
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        row.append('\t');
+      }
+      if (values[i] == null) {
+        row.append("\\N");
+      } else {
+        escape(values[i].toString());
+      }
+    }
+    row.append('\n');
+
+    byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+    if (length + bytes.length > buffer.length) {
+      flush();
+      if (bytes.length > buffer.length) {
+        buffer = new byte[bytes.length];
+      }
+    }
+    System.arraycopy(bytes, 0, buffer, length, bytes.length);
+    length += bytes.length;
+    rows++;
+  }
+
+  /**
+   * @return the number of rows written so far
+   */
+  long rows() {
+    return rows;
+  }
+
+  /**
+   * Ends the COPY. The rows are only visible once the transaction commits.
+   */
+  @Override
+  public void close() throws SQLException {
+    if (!copy.isActive()) {
+      return;
+    }
+    flush();
+    copy.endCopy();
+  }
+
+  private void flush() throws SQLException {
+    if (length > 0) {
+      copy.writeToCopy(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  private void escape(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\' -> row.append("\\\\");
+        case '\t' -> row.append("\\t");
+        case '\n' -> row.append("\\n");
+        case '\r' -> row.append("\\r");
+        default -> row.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,602 @@
+package ch.heigvd.loadtest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the Spotish database with synthetic users, creators, musics, albums,
+ * playlists, likes, follows and listens, to get production-sized tables.
+ *
+ * Popularity is skewed with Zipf distributions: a few creators release most
+ * of the musics, a few musics get most of the listens and likes, a few users
+ * do most of the listening and a few playlists get most of the follows.
+ *
+ * Rows are loaded with COPY and the triggers of sql_scripts/init/02_triggers.sql
+ * stay enabled. The generated data satisfies them: every creator has a media,
+ * every group has at least two artists, every album has a single creator and
+ * only contains musics of that creator, every album and playlist has musics,
+ * and nobody follows their own playlist. Rows checked by deferred triggers are
+ * committed together, creator by creator chunk and playlist by playlist chunk,
+ * so that the pending checks never pile up for the whole dataset.
+ *
+ * The generated rows are added to the existing ones, under names starting with
+ * a prefix, so it can be run on top of the seed data.
+ */
+public class DataGenerator {
+  private static final String USAGE = """
+      Usage: java -cp spotish-loadtest.jar ch.heigvd.loadtest.DataGenerator [--name=value ...]
+
+        --jdbc-url=URL       database to fill (env JDBC_URL,
+                             default jdbc:postgresql://localhost:5432/spotish)
+        --db-user=NAME       database user (env POSTGRES_USER_USERNAME, default postgres)
+        --db-password=PASS   database password (env POSTGRES_USER_PASSWORD)
+        --scale=N            multiplies all the default sizes below (default 1)
+        --users=N            users (default 10000 x scale)
+        --creators=N         creators, a tenth of them are groups (default 1000 x scale)
+        --musics=N           musics (default 20000 x scale)
+        --albums=N           albums (default 2000 x scale)
+        --playlists=N        playlists (default 5000 x scale)
+        --listens=N          listens (default 1000000 x scale)
+        --likes=N            liked musics (default 100000 x scale)
+        --follows=N          followed playlists (default 20000 x scale)
+        --skew=S             Zipf exponent of the popularity distributions (default 1.0)
+        --prefix=NAME        prefix of the generated user and creator names (default gen)
+        --seed=N             seed of the random generator (default 42)
+      """;
+
+  // Rows checked by deferred triggers are committed by chunks of this many
+  // creators or playlists. A multiple of 10, so that a group and its members
+  // are in the same chunk.
+  private static final int CHUNK_SIZE = 10_000;
+
+  private static final int GROUP_EVERY = 10;
+  private static final int GROUP_MEMBERS = 3;
+  private static final double FEATURING_RATIO = 0.15;
+  private static final int MIN_ALBUM_MUSICS = 4;
+  private static final int MAX_ALBUM_MUSICS = 14;
+  private static final int MIN_PLAYLIST_MUSICS = 5;
+  private static final int MAX_PLAYLIST_MUSICS = 40;
+
+  private static final String[] FIRST_NAMES = { "Amélie", "Lucas", "Marie", "Nathan", "Léa", "Julien", "Claire",
+      "Adrien", "Julie", "Maxime", "Sarah", "Quentin", "Emma", "Victor", "Pauline", "Louis", "Inès", "Tom", "Manon",
+      "Hugo", "Sophie", "Chloé", "Thomas", "Camille" };
+  private static final String[] LAST_NAMES = { "Paris", "Durand", "Morin", "Girard", "Moreau", "Bernard", "Petit",
+      "Lefevre", "Robert", "Dubois", "Muller", "Roux", "Perrin", "Fontaine", "Blanc", "Martin", "Rey", "Fabre",
+      "Leroy", "Renaud", "Gautier", "Dupuis", "Collet", "Picard" };
+
+  private final Connection conn;
+  private final SplittableRandom random;
+  private final String prefix;
+  private final double skew;
+
+  private final int users;
+  private final int creators;
+  private final int musics;
+  private final long listens;
+  private final long likes;
+  private final long follows;
+  private int albums;
+  private final int playlists;
+
+  // IDs of the first generated media and playlist, the following ones are
+  // consecutive
+  private long firstMediaId;
+  private long firstPlaylistId;
+
+  // Main creator and featured creator (or -1) of each music
+  private int[] musicCreator;
+  private int[] musicFeaturing;
+  // Album of each music, or -1
+  private int[] musicAlbum;
+  private int[] albumCreator;
+  private int[] playlistCreator;
+  private List<String> genres;
+
+  private DataGenerator(Connection conn, Options options) {
+    this.conn = conn;
+    this.random = new SplittableRandom(options.getLong("seed", 42));
+    this.prefix = options.getString("prefix", "gen");
+    this.skew = options.getDouble("skew", 1.0);
+
+    int scale = options.getInt("scale", 1);
+    this.users = options.getInt("users", 10_000 * scale);
+    this.creators = options.getInt("creators", 1_000 * scale);
+    this.musics = options.getInt("musics", 20_000 * scale);
+    this.albums = options.getInt("albums", 2_000 * scale);
+    this.playlists = options.getInt("playlists", 5_000 * scale);
+    this.listens = options.getLong("listens", 1_000_000L * scale);
+    this.likes = options.getLong("likes", 100_000L * scale);
+    this.follows = options.getLong("follows", 20_000L * scale);
+
+    if (musics < creators) {
+      throw new IllegalArgumentException("There must be at least as many musics as creators, every creator needs one");
+    }
+    if (users < 2) {
+      throw new IllegalArgumentException("There must be at least two users");
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    if (options.has("help")) {
+      System.out.print(USAGE);
+      return;
+    }
+
+    try (Connection conn = DriverManager.getConnection(
+        options.getStringOrEnv("jdbc-url", "JDBC_URL", "jdbc:postgresql://localhost:5432/spotish"),
+        options.getStringOrEnv("db-user", "POSTGRES_USER_USERNAME", "postgres"),
+        options.getStringOrEnv("db-password", "POSTGRES_USER_PASSWORD", ""))) {
+      new DataGenerator(conn, options).generate();
+    }
+  }
+
+  private void generate() throws SQLException {
+    long start = System.nanoTime();
+
+    prepare();
+    planCatalog();
+
+    insertUsers();
+    insertMusics();
+    insertCreators();
+    insertPlaylists();
+    insertFollows();
+    insertLikes();
+    insertListens();
+
+    finish();
+    System.out.printf("Done in %d s%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+  }
+
+  /**
+   * Checks that the prefix is free, and reads what the generated rows build
+   * upon: the genres and the next free IDs.
+   */
+  private void prepare() throws SQLException {
+    conn.setAutoCommit(true);
+
+    try (PreparedStatement stmt = conn.prepareStatement("""
+        SELECT EXISTS (SELECT 1 FROM spotish.utilisateur WHERE nomutilisateur LIKE ?)
+        """)) {
+      stmt.setString(1, prefix + "-%");
+      try (ResultSet rs = stmt.executeQuery()) {
+        rs.next();
+        if (rs.getBoolean(1)) {
+          throw new IllegalStateException("Rows with the prefix \"" + prefix + "\" were already generated, "
+              + "choose another one with --prefix");
+        }
+      }
+    }
+
+    try (Statement stmt = conn.createStatement()) {
+      // Some triggers look rows up by columns that are not the first of a
+      // primary key. Without these indexes, each generated row would scan the
+      // whole table and the load would be quadratic. They are the same as in
+      // the backend's V1__lookup_indexes migration, in case the backend never
+      // ran on this database.
+      stmt.execute("CREATE INDEX IF NOT EXISTS createur_media_idmedia_idx "
+          + "ON spotish.createur_media (idmedia, nomcreateur)");
+      stmt.execute("CREATE INDEX IF NOT EXISTS artiste_nomgroupe_idx ON spotish.artiste (nomgroupe)");
+      stmt.execute("CREATE INDEX IF NOT EXISTS chanson_playlist_idplaylist_idx "
+          + "ON spotish.chanson_playlist (idplaylist, idchanson)");
+
+      stmt.execute("""
+          INSERT INTO spotish.genre (nom)
+          VALUES ('Rock'), ('Pop'), ('Electro'), ('Indie'), ('Hip-Hop')
+          ON CONFLICT DO NOTHING
+          """);
+
+      genres = new ArrayList<>();
+      try (ResultSet rs = stmt.executeQuery("SELECT nom FROM spotish.genre ORDER BY nom")) {
+        while (rs.next()) {
+          genres.add(rs.getString("nom"));
+        }
+      }
+
+      firstMediaId = nextId(stmt, "SELECT coalesce(max(idmedia), 0) + 1 FROM spotish.media");
+      firstPlaylistId = nextId(stmt, "SELECT coalesce(max(idplaylist), 0) + 1 FROM spotish.playlist");
+    }
+  }
+
+  /**
+   * Decides who created each music and which musics are in each album.
+   */
+  private void planCatalog() {
+    musicCreator = new int[musics];
+    musicFeaturing = new int[musics];
+    musicAlbum = new int[musics];
+
+    Zipf creatorProductivity = new Zipf(creators, skew);
+    for (int music = 0; music < musics; music++) {
+      // Every creator gets one music, the others go mostly to the prolific ones
+      musicCreator[music] = music < creators ? music : creatorProductivity.next(random);
+      musicFeaturing[music] = -1;
+      if (creators > 1 && random.nextDouble() < FEATURING_RATIO) {
+        int featuring = random.nextInt(creators - 1);
+        musicFeaturing[music] = featuring >= musicCreator[music] ? featuring + 1 : featuring;
+      }
+      musicAlbum[music] = -1;
+    }
+
+    // Musics of each creator, where creatorMusics[creatorStart[c]] is the first
+    // music of creator c
+    int[] creatorStart = new int[creators + 1];
+    for (int music = 0; music < musics; music++) {
+      creatorStart[musicCreator[music] + 1]++;
+    }
+    for (int creator = 0; creator < creators; creator++) {
+      creatorStart[creator + 1] += creatorStart[creator];
+    }
+    int[] creatorMusics = new int[musics];
+    int[] next = creatorStart.clone();
+    for (int music = 0; music < musics; music++) {
+      creatorMusics[next[musicCreator[music]]++] = music;
+    }
+
+    // An album only contains musics of its creator, so albums are taken from
+    // the musics of the creator of a random music, until there are none left
+    System.arraycopy(creatorStart, 0, next, 0, creators);
+    albumCreator = new int[albums];
+    int planned = 0;
+    for (int attempt = 0; planned < albums && attempt < albums * 10; attempt++) {
+      int creator = musicCreator[random.nextInt(musics)];
+      int available = creatorStart[creator + 1] - next[creator];
+      if (available == 0) {
+        continue;
+      }
+
+      int size = Math.min(available, MIN_ALBUM_MUSICS + random.nextInt(MAX_ALBUM_MUSICS - MIN_ALBUM_MUSICS + 1));
+      for (int i = 0; i < size; i++) {
+        musicAlbum[creatorMusics[next[creator]++]] = planned;
+      }
+      albumCreator[planned++] = creator;
+    }
+    if (planned < albums) {
+      System.out.printf("Only %d albums planned, the creators have no musics left%n", planned);
+      albums = planned;
+    }
+  }
+
+  private void insertUsers() throws SQLException {
+    Phase phase = new Phase("utilisateur");
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.utilisateur",
+        "nomutilisateur", "nom", "prenom", "datenaissance", "email")) {
+      for (int user = 0; user < users; user++) {
+        copy.row(username(user), LAST_NAMES[random.nextInt(LAST_NAMES.length)],
+            FIRST_NAMES[random.nextInt(FIRST_NAMES.length)], randomDate(1960, 2010), username(user) + "@example.com");
+      }
+      phase.rows(copy);
+    }
+    phase.commit();
+  }
+
+  private void insertMusics() throws SQLException {
+    Phase phase = new Phase("media, chanson");
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.media", "idmedia", "titre", "datedesortie")) {
+      for (int music = 0; music < musics; music++) {
+        copy.row(musicId(music), "Music " + music, randomDate(1970, 2025));
+      }
+      for (int album = 0; album < albums; album++) {
+        copy.row(albumId(album), "Album " + album, randomDate(1970, 2025));
+      }
+      phase.rows(copy);
+    }
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.chanson", "idchanson", "duree", "genre")) {
+      for (int music = 0; music < musics; music++) {
+        copy.row(musicId(music), 120 + random.nextInt(240), genres.get(random.nextInt(genres.size())));
+      }
+      phase.rows(copy);
+    }
+    phase.commit();
+  }
+
+  /**
+   * Inserts creators with everything their deferred triggers check, chunk by
+   * chunk: groups with their artists, and media links with the albums and
+   * their musics.
+   */
+  private void insertCreators() throws SQLException {
+    Phase phase = new Phase("createur, groupe, artiste, createur_media, album, album_chanson");
+
+    for (int from = 0; from < creators; from += CHUNK_SIZE) {
+      int to = Math.min(from + CHUNK_SIZE, creators);
+
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.createur", "nomcreateur", "nomgerant")) {
+        for (int creator = from; creator < to; creator++) {
+          copy.row(creatorName(creator), username(random.nextInt(users)));
+        }
+        phase.rows(copy);
+      }
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.groupe", "nomgroupe")) {
+        for (int creator = from; creator < to; creator++) {
+          if (isGroup(creator)) {
+            copy.row(creatorName(creator));
+          }
+        }
+        phase.rows(copy);
+      }
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.artiste", "nomartiste", "nomgroupe")) {
+        for (int creator = from; creator < to; creator++) {
+          if (!isGroup(creator)) {
+            int group = groupOf(creator);
+            copy.row(creatorName(creator), group < 0 ? null : creatorName(group));
+          }
+        }
+        phase.rows(copy);
+      }
+
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.createur_media", "nomcreateur", "idmedia")) {
+        for (int music = 0; music < musics; music++) {
+          if (musicCreator[music] >= from && musicCreator[music] < to) {
+            copy.row(creatorName(musicCreator[music]), musicId(music));
+          }
+          if (musicFeaturing[music] >= from && musicFeaturing[music] < to) {
+            copy.row(creatorName(musicFeaturing[music]), musicId(music));
+          }
+        }
+        for (int album = 0; album < albums; album++) {
+          if (albumCreator[album] >= from && albumCreator[album] < to) {
+            copy.row(creatorName(albumCreator[album]), albumId(album));
+          }
+        }
+        phase.rows(copy);
+      }
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.album", "idalbum")) {
+        for (int album = 0; album < albums; album++) {
+          if (albumCreator[album] >= from && albumCreator[album] < to) {
+            copy.row(albumId(album));
+          }
+        }
+        phase.rows(copy);
+      }
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.album_chanson", "idalbum", "idchanson")) {
+        for (int music = 0; music < musics; music++) {
+          int album = musicAlbum[music];
+          if (album >= 0 && albumCreator[album] >= from && albumCreator[album] < to) {
+            copy.row(albumId(album), musicId(music));
+          }
+        }
+        phase.rows(copy);
+      }
+
+      phase.commit();
+    }
+  }
+
+  /**
+   * Inserts playlists with their musics, chunk by chunk, as a playlist must
+   * have a music when its transaction commits.
+   */
+  private void insertPlaylists() throws SQLException {
+    Phase phase = new Phase("playlist, chanson_playlist");
+    Zipf musicPopularity = new Zipf(musics, skew);
+    int[] popularMusics = shuffledIndexes(musics);
+    playlistCreator = new int[playlists];
+
+    for (int from = 0; from < playlists; from += CHUNK_SIZE) {
+      int to = Math.min(from + CHUNK_SIZE, playlists);
+
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.playlist", "idplaylist", "nom", "description",
+          "nomcreateur")) {
+        for (int playlist = from; playlist < to; playlist++) {
+          playlistCreator[playlist] = random.nextInt(users);
+          copy.row(playlistId(playlist), "Playlist " + playlist, "Generated playlist",
+              username(playlistCreator[playlist]));
+        }
+        phase.rows(copy);
+      }
+      try (CopyWriter copy = new CopyWriter(conn, "spotish.chanson_playlist", "idchanson", "idplaylist")) {
+        for (int playlist = from; playlist < to; playlist++) {
+          int size = Math.min(musics,
+              MIN_PLAYLIST_MUSICS + random.nextInt(MAX_PLAYLIST_MUSICS - MIN_PLAYLIST_MUSICS + 1));
+          Set<Integer> added = new HashSet<>();
+          while (added.size() < size) {
+            int music = popularMusics[musicPopularity.next(random)];
+            if (added.add(music)) {
+              copy.row(musicId(music), playlistId(playlist));
+            }
+          }
+        }
+        phase.rows(copy);
+      }
+
+      phase.commit();
+    }
+  }
+
+  private void insertFollows() throws SQLException {
+    Phase phase = new Phase("utilisateur_playlist");
+    Zipf playlistPopularity = new Zipf(playlists, skew);
+    int[] popularPlaylists = shuffledIndexes(playlists);
+    long target = Math.min(follows, (long) users * playlists / 2);
+
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.utilisateur_playlist", "nomutilisateur", "idplaylist")) {
+      Set<Long> followed = new HashSet<>();
+      while (followed.size() < target) {
+        int user = random.nextInt(users);
+        int playlist = popularPlaylists[playlistPopularity.next(random)];
+        // Following one's own playlist is rejected by a trigger
+        if (playlistCreator[playlist] != user && followed.add((long) user * playlists + playlist)) {
+          copy.row(username(user), playlistId(playlist));
+        }
+      }
+      phase.rows(copy);
+    }
+    phase.commit();
+  }
+
+  private void insertLikes() throws SQLException {
+    Phase phase = new Phase("utilisateur_aime_chanson");
+    Zipf musicPopularity = new Zipf(musics, skew);
+    int[] popularMusics = shuffledIndexes(musics);
+    long target = Math.min(likes, (long) users * musics / 2);
+
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.utilisateur_aime_chanson", "nomutilisateur", "idchanson")) {
+      Set<Long> liked = new HashSet<>();
+      while (liked.size() < target) {
+        int user = random.nextInt(users);
+        int music = popularMusics[musicPopularity.next(random)];
+        if (liked.add((long) user * musics + music)) {
+          copy.row(username(user), musicId(music));
+        }
+      }
+      phase.rows(copy);
+    }
+    phase.commit();
+  }
+
+  /**
+   * Inserts the listens of the last year, most of them by the most active
+   * users and of the most popular musics.
+   */
+  private void insertListens() throws SQLException {
+    Phase phase = new Phase("ecoute");
+    Zipf musicPopularity = new Zipf(musics, skew);
+    int[] popularMusics = shuffledIndexes(musics);
+    Zipf userActivity = new Zipf(users, skew);
+    int[] activeUsers = shuffledIndexes(users);
+
+    // Listens are evenly spread over the year, each at its own microsecond,
+    // so that the primary key (user, music, time) is always unique
+    LocalDateTime end = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    LocalDateTime start = end.minusYears(1);
+    long stepMicros = Math.max(1, ChronoUnit.MICROS.between(start, end) / Math.max(1, listens));
+
+    try (CopyWriter copy = new CopyWriter(conn, "spotish.ecoute", "nomutilisateur", "idchanson", "dateheureecoute")) {
+      for (long listen = 0; listen < listens; listen++) {
+        copy.row(username(activeUsers[userActivity.next(random)]), musicId(popularMusics[musicPopularity.next(random)]),
+            start.plus(listen * stepMicros, ChronoUnit.MICROS));
+      }
+      phase.rows(copy);
+    }
+    phase.commit();
+  }
+
+  /**
+   * Moves the sequences past the generated IDs and refreshes the statistics
+   * of the planner.
+   */
+  private void finish() throws SQLException {
+    conn.setAutoCommit(true);
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("""
+          SELECT setval(pg_get_serial_sequence('spotish.media', 'idmedia'), (SELECT max(idmedia) FROM spotish.media))
+          """);
+      stmt.execute("""
+          SELECT setval(pg_get_serial_sequence('spotish.playlist', 'idplaylist'),
+                        (SELECT max(idplaylist) FROM spotish.playlist))
+          """);
+
+      long start = System.nanoTime();
+      stmt.execute("ANALYZE");
+      System.out.printf("ANALYZE done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+  }
+
+  private String username(int user) {
+    return prefix + "-user-" + user;
+  }
+
+  private String creatorName(int creator) {
+    return prefix + "-creator-" + creator;
+  }
+
+  private long musicId(int music) {
+    return firstMediaId + music;
+  }
+
+  private long albumId(int album) {
+    return firstMediaId + musics + album;
+  }
+
+  private long playlistId(int playlist) {
+    return firstPlaylistId + playlist;
+  }
+
+  /**
+   * One creator in ten is a group, of the artists that follow it.
+   */
+  private boolean isGroup(int creator) {
+    return creator % GROUP_EVERY == 0 && creator + GROUP_MEMBERS < creators;
+  }
+
+  /**
+   * @return the group of an artist, or -1 if it is not in a group
+   */
+  private int groupOf(int creator) {
+    int group = creator - creator % GROUP_EVERY;
+    return creator % GROUP_EVERY <= GROUP_MEMBERS && isGroup(group) ? group : -1;
+  }
+
+  private LocalDate randomDate(int fromYear, int toYear) {
+    LocalDate from = LocalDate.of(fromYear, 1, 1);
+    return from.plusDays(random.nextInt((int) ChronoUnit.DAYS.between(from, LocalDate.of(toYear, 1, 1))));
+  }
+
+  /**
+   * @return the indexes from 0 to size in random order, mapping popularity
+   *         ranks to rows so that the popular rows are not the first ones
+   */
+  private int[] shuffledIndexes(int size) {
+    int[] indexes = new int[size];
+    for (int i = 0; i < size; i++) {
+      indexes[i] = i;
+    }
+    for (int i = size - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int swap = indexes[i];
+      indexes[i] = indexes[j];
+      indexes[j] = swap;
+    }
+    return indexes;
+  }
+
+  private static long nextId(Statement stmt, String sql) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery(sql)) {
+      rs.next();
+      return rs.getLong(1);
+    }
+  }
+
+  /**
+   * Progress of the loading of some tables, committed in one or more
+   * transactions.
+   */
+  private final class Phase {
+    private final String tables;
+    private final long start = System.nanoTime();
+    private long rows = 0;
+
+    private Phase(String tables) throws SQLException {
+      this.tables = tables;
+      conn.setAutoCommit(false);
+    }
+
+    private void rows(CopyWriter copy) {
+      rows += copy.rows();
+    }
+
+    private void commit() throws SQLException {
+      if (!conn.getAutoCommit()) {
+        // The deferred triggers run now
+        conn.commit();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-64s %,12d rows %8.1f s %,12.0f rows/s%n", tables, rows, seconds, rows / seconds);
+    }
+  }
+}
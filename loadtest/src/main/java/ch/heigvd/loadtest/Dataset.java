@@ -0,0 +1,172 @@
+package ch.heigvd.loadtest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+/**
+ * Identifiers of existing users, musics, playlists, albums and creators, used
+ * to build the requests.
+ *
+ * A random sample of each table is read once before the test. Lookups are
+ * skewed with a Zipf distribution over the sample, so that a few musics and
+ * playlists are much more popular than the others, as in production, and the
+ * caches of the API see a realistic hit rate.
+ */
+final class Dataset {
+  private final List<String> usernames;
+  private final List<Long> musicIds;
+  private final List<Long> albumIds;
+  private final List<String> creatorNames;
+  private final List<Long> playlistIds;
+  private final Map<String, List<Long>> playlistIdsByCreator;
+  private final List<String> playlistCreators;
+
+  private final Zipf musicPopularity;
+  private final Zipf playlistPopularity;
+  private final Zipf albumPopularity;
+  private final Zipf creatorPopularity;
+
+  private Dataset(List<String> usernames, List<Long> musicIds, List<Long> albumIds, List<String> creatorNames,
+      Map<Long, String> playlistCreators, double skew) {
+    this.usernames = usernames;
+    this.musicIds = musicIds;
+    this.albumIds = albumIds;
+    this.creatorNames = creatorNames;
+    this.playlistIds = new ArrayList<>(playlistCreators.keySet());
+    this.playlistIdsByCreator = new HashMap<>();
+    for (Map.Entry<Long, String> playlist : playlistCreators.entrySet()) {
+      playlistIdsByCreator.computeIfAbsent(playlist.getValue(), creator -> new ArrayList<>()).add(playlist.getKey());
+    }
+    this.playlistCreators = new ArrayList<>(playlistIdsByCreator.keySet());
+
+    this.musicPopularity = new Zipf(musicIds.size(), skew);
+    this.playlistPopularity = new Zipf(playlistIds.size(), skew);
+    this.albumPopularity = new Zipf(albumIds.size(), skew);
+    this.creatorPopularity = new Zipf(creatorNames.size(), skew);
+  }
+
+  /**
+   * Samples the identifiers from the database.
+   *
+   * @param jdbcUrl    the JDBC URL of the database seeded for the test
+   * @param username   the database user
+   * @param password   the database password
+   * @param sampleSize the maximum number of identifiers read per table
+   * @param skew       the exponent of the Zipf distribution of the lookups
+   * @return the sampled identifiers
+   * @throws SQLException if a database access error occurs
+   */
+  static Dataset load(String jdbcUrl, String username, String password, int sampleSize, double skew)
+      throws SQLException {
+    try (Connection conn = DriverManager.getConnection(jdbcUrl, username, password)) {
+      // The sample is shuffled, so the most popular items are random ones
+      // rather than the first ones inserted
+      List<String> usernames = sample(conn, """
+          SELECT nomutilisateur FROM spotish.utilisateur ORDER BY random() LIMIT ?
+          """, sampleSize);
+      List<Long> musicIds = sample(conn, """
+          SELECT idchanson FROM spotish.chanson ORDER BY random() LIMIT ?
+          """, sampleSize);
+      List<Long> albumIds = sample(conn, """
+          SELECT idalbum FROM spotish.album ORDER BY random() LIMIT ?
+          """, sampleSize);
+      List<String> creatorNames = sample(conn, """
+          SELECT nomcreateur FROM spotish.createur ORDER BY random() LIMIT ?
+          """, sampleSize);
+
+      Map<Long, String> playlistCreators = new HashMap<>();
+      try (PreparedStatement stmt = conn.prepareStatement("""
+          SELECT idplaylist, nomcreateur FROM spotish.playlist ORDER BY random() LIMIT ?
+          """)) {
+        stmt.setInt(1, sampleSize);
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            playlistCreators.put(rs.getLong("idplaylist"), rs.getString("nomcreateur"));
+          }
+        }
+      }
+
+      if (usernames.isEmpty() || musicIds.isEmpty() || albumIds.isEmpty() || creatorNames.isEmpty()
+          || playlistCreators.isEmpty()) {
+        throw new IllegalStateException("The database must contain users, musics, albums, creators and playlists, "
+            + "seed it with sql_scripts/init first");
+      }
+
+      return new Dataset(usernames, musicIds, albumIds, creatorNames, playlistCreators, skew);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> List<T> sample(Connection conn, String sql, int sampleSize) throws SQLException {
+    List<T> values = new ArrayList<>();
+    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+      stmt.setInt(1, sampleSize);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          values.add((T) rs.getObject(1));
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Picks the user of a session. Every other session belongs to a playlist
+   * creator, so that playlist edits can be part of the traffic.
+   */
+  String sessionUser(int session, RandomGenerator random) {
+    if (session % 2 == 0) {
+      return playlistCreators.get(random.nextInt(playlistCreators.size()));
+    }
+    return usernames.get(random.nextInt(usernames.size()));
+  }
+
+  /**
+   * @return the sampled playlists created by a user, possibly empty
+   */
+  List<Long> playlistsOf(String username) {
+    return playlistIdsByCreator.getOrDefault(username, Collections.emptyList());
+  }
+
+  String user(RandomGenerator random) {
+    return usernames.get(random.nextInt(usernames.size()));
+  }
+
+  Long music(RandomGenerator random) {
+    return musicIds.get(musicPopularity.next(random));
+  }
+
+  /**
+   * @return a music ID drawn uniformly, e.g. to start a page of the catalog
+   */
+  Long anyMusic(RandomGenerator random) {
+    return musicIds.get(random.nextInt(musicIds.size()));
+  }
+
+  Long playlist(RandomGenerator random) {
+    return playlistIds.get(playlistPopularity.next(random));
+  }
+
+  Long album(RandomGenerator random) {
+    return albumIds.get(albumPopularity.next(random));
+  }
+
+  String creator(RandomGenerator random) {
+    return creatorNames.get(creatorPopularity.next(random));
+  }
+
+  @Override
+  public String toString() {
+    return usernames.size() + " users, " + musicIds.size() + " musics, " + albumIds.size() + " albums, "
+        + creatorNames.size() + " creators, " + playlistIds.size() + " playlists";
+  }
+}
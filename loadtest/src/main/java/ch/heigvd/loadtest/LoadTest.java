@@ -0,0 +1,261 @@
+package ch.heigvd.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Load generator for the Spotish API.
+ *
+ * Simulated users log in, then send requests drawn from the traffic mix
+ * without pause. The test runs in stages of increasing numbers of users, and
+ * the latency percentiles of every route are reported per stage, so that the
+ * point where the API saturates shows up as the stage where the throughput
+ * stops growing and the latencies climb.
+ *
+ * With --rate, the requests are sent at a fixed total rate instead, and the
+ * latencies are measured from when each request should have been sent, so
+ * that a slow server is not hidden by the load generator waiting for it
+ * (coordinated omission).
+ *
+ * Run with --help for the options.
+ */
+public class LoadTest {
+  private static final String USAGE = """
+      Usage: java -jar spotish-loadtest.jar [--name=value ...]
+
+        --url=URL            API to test (env SPOTISH_URL, default http://localhost:8080)
+        --jdbc-url=URL       database the IDs are sampled from (env JDBC_URL,
+                             default jdbc:postgresql://localhost:5432/spotish)
+        --db-user=NAME       database user (env POSTGRES_USER_USERNAME, default postgres)
+        --db-password=PASS   database password (env POSTGRES_USER_PASSWORD)
+        --users=N[,N...]     simulated users of each stage (default 8,16,32,64)
+        --duration=SECONDS   measured duration of each stage (default 60)
+        --warmup=SECONDS     unmeasured load before each stage (default 10)
+        --rate=REQ_PER_SEC   total request rate, 0 to send as fast as possible (default 0)
+        --write-ratio=R      proportion of writes, between 0 and 1 (default 0.1)
+        --skew=S             Zipf exponent of the popularity of musics, playlists,
+                             albums and creators (default 1.0)
+        --sample-size=N      IDs sampled per table (default 10000)
+        --seed=N             seed of the random generators (default 42)
+        --histograms=DIR     also write the latency distribution of every route
+                             and stage to DIR, in HdrHistogram's .hgrm format
+      """;
+
+  private final Options options;
+  private final HttpClient client;
+  private final TrafficMix mix;
+  private final Dataset dataset;
+
+  private LoadTest(Options options, Dataset dataset) {
+    this.options = options;
+    this.dataset = dataset;
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+
+    String baseUrl = options.getStringOrEnv("url", "SPOTISH_URL", "http://localhost:8080");
+    if (baseUrl.endsWith("/")) {
+      baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+    }
+    this.mix = new TrafficMix(baseUrl, dataset, options.getDouble("write-ratio", 0.1));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    if (options.has("help")) {
+      System.out.print(USAGE);
+      return;
+    }
+
+    Dataset dataset = Dataset.load(
+        options.getStringOrEnv("jdbc-url", "JDBC_URL", "jdbc:postgresql://localhost:5432/spotish"),
+        options.getStringOrEnv("db-user", "POSTGRES_USER_USERNAME", "postgres"),
+        options.getStringOrEnv("db-password", "POSTGRES_USER_PASSWORD", ""),
+        options.getInt("sample-size", 10_000),
+        options.getDouble("skew", 1.0));
+    System.out.println("Sampled " + dataset);
+
+    new LoadTest(options, dataset).run();
+  }
+
+  private void run() throws Exception {
+    List<Integer> stages = options.getInts("users", "8,16,32,64");
+    Duration duration = Duration.ofSeconds(options.getLong("duration", 60));
+    Duration warmup = Duration.ofSeconds(options.getLong("warmup", 10));
+    double rate = options.getDouble("rate", 0);
+    long seed = options.getLong("seed", 42);
+    String histogramDir = options.getString("histograms", null);
+
+    List<String> summary = new ArrayList<>();
+    summary.add(String.format("%6s %10s %8s %9s %9s %9s", "Users", "req/s", "Errors", "p50 ms", "p99 ms",
+        "p99.9 ms"));
+
+    for (int stage = 0; stage < stages.size(); stage++) {
+      int users = stages.get(stage);
+      System.out.printf("%nStage %d/%d: %d users for %d s (after %d s of warmup)%s%n", stage + 1, stages.size(),
+          users, duration.toSeconds(), warmup.toSeconds(), rate > 0 ? " at " + rate + " req/s" : "");
+
+      Map<String, RouteStats> stats = runStage(users, warmup, duration, rate, seed + stage);
+      Histogram all = report(stats, duration, histogramDir == null ? null
+          : Path.of(histogramDir, String.format("stage-%d-%d-users", stage + 1, users)));
+
+      long errors = stats.values().stream().mapToLong(RouteStats::errors).sum();
+      summary.add(String.format("%6d %10.1f %8d %9.2f %9.2f %9.2f", users,
+          all.getTotalCount() / (double) duration.toSeconds(), errors, millis(all, 50), millis(all, 99),
+          millis(all, 99.9)));
+    }
+
+    System.out.println();
+    System.out.println("Summary (all routes)");
+    summary.forEach(System.out::println);
+  }
+
+  /**
+   * Runs one stage: logs the users in, loads the API during the warmup, then
+   * records the latencies for the duration of the stage.
+   */
+  private Map<String, RouteStats> runStage(int users, Duration warmup, Duration duration, double rate, long seed)
+      throws InterruptedException {
+    Recording recording = new Recording(newStats());
+    SplittableRandom seeds = new SplittableRandom(seed);
+    // Each user sends a request every interval, so that all of them together
+    // send the requested rate
+    long intervalNanos = rate > 0 ? (long) (users * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      SplittableRandom random = seeds.split();
+      String username = dataset.sessionUser(i, random);
+      Session session = new Session(username, dataset.playlistsOf(username));
+
+      Thread thread = new Thread(() -> simulate(session, random, recording, intervalNanos), "user-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+    }
+    threads.forEach(Thread::start);
+
+    Thread.sleep(warmup.toMillis());
+    Map<String, RouteStats> measured = newStats();
+    recording.stats = measured;
+    Thread.sleep(duration.toMillis());
+    // Requests still running are not counted
+    recording.stats = newStats();
+    recording.running = false;
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return measured;
+  }
+
+  private void simulate(Session session, SplittableRandom random, Recording recording, long intervalNanos) {
+    send(mix.login(session), recording, System.nanoTime());
+
+    long intended = System.nanoTime();
+    while (recording.running) {
+      if (intervalNanos > 0) {
+        intended += intervalNanos;
+        long wait = intended - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      } else {
+        intended = System.nanoTime();
+      }
+      send(mix.next(session, random), recording, intended);
+    }
+  }
+
+  private void send(Operation.Call call, Recording recording, long startNanos) {
+    int status;
+    HttpResponse<Void> response = null;
+    try {
+      response = client.send(call.request(), HttpResponse.BodyHandlers.discarding());
+      status = response.statusCode();
+    } catch (IOException e) {
+      status = RouteStats.NO_RESPONSE;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    long latency = System.nanoTime() - startNanos;
+
+    recording.stats.get(call.route()).record(status, latency);
+    if (response != null) {
+      call.onResponse().accept(response);
+    }
+  }
+
+  private Map<String, RouteStats> newStats() {
+    Map<String, RouteStats> stats = new LinkedHashMap<>();
+    for (String route : mix.routes()) {
+      stats.put(route, new RouteStats(route));
+    }
+    return stats;
+  }
+
+  /**
+   * Prints the percentiles of every route of a stage.
+   *
+   * @return the latencies of all the routes together
+   */
+  private static Histogram report(Map<String, RouteStats> stats, Duration duration, Path histogramDir)
+      throws IOException {
+    Histogram all = new Histogram(3);
+    System.out.printf("%-48s %8s %8s %9s %9s %9s %9s  %s%n", "Route", "Count", "req/s", "p50 ms", "p99 ms",
+        "p99.9 ms", "max ms", "Statuses");
+
+    for (RouteStats route : stats.values()) {
+      Histogram latencies = route.latencies();
+      if (latencies.getTotalCount() == 0) {
+        continue;
+      }
+      all.add(latencies);
+
+      System.out.printf("%-48s %8d %8.1f %9.2f %9.2f %9.2f %9.2f  %s%n", route.route(), latencies.getTotalCount(),
+          latencies.getTotalCount() / (double) duration.toSeconds(), millis(latencies, 50), millis(latencies, 99),
+          millis(latencies, 99.9), latencies.getMaxValue() / 1000.0, route.statuses());
+
+      if (histogramDir != null) {
+        Files.createDirectories(histogramDir);
+        Path file = histogramDir.resolve(route.route().replaceAll("[^A-Za-z0-9-]+", "_").replaceAll("_$", "") + ".hgrm");
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+          latencies.outputPercentileDistribution(out, 1000.0);
+        }
+      }
+    }
+    return all;
+  }
+
+  private static double millis(Histogram histogram, double percentile) {
+    return histogram.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  /**
+   * Where the simulated users of a stage record their requests. The stats are
+   * swapped at the end of the warmup and of the measurement.
+   */
+  private static final class Recording {
+    private volatile Map<String, RouteStats> stats;
+    private volatile boolean running = true;
+
+    private Recording(Map<String, RouteStats> stats) {
+      this.stats = stats;
+    }
+  }
+}
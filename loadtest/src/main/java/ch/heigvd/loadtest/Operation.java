@@ -0,0 +1,39 @@
+package ch.heigvd.loadtest;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.function.Consumer;
+import java.util.random.RandomGenerator;
+
+/**
+ * One kind of request of the traffic mix, e.g. getting a playlist.
+ *
+ * @param route  the route as registered in the API, used to group the
+ *               latencies, e.g. "GET /playlists/{playlistId}"
+ * @param weight the relative frequency of the operation among the reads or
+ *               among the writes
+ * @param write  whether the operation modifies data
+ * @param build  builds a request for a session, or returns null when the
+ *               session cannot perform the operation (e.g. editing a playlist
+ *               without owning one)
+ */
+record Operation(String route, int weight, boolean write, Builder build) {
+
+  /**
+   * A request ready to be sent, with what to do with its response.
+   *
+   * @param route      the route of the operation, filled in by the traffic mix
+   * @param request    the HTTP request
+   * @param onResponse called with the response, whatever its status
+   */
+  record Call(String route, HttpRequest request, Consumer<HttpResponse<?>> onResponse) {
+    Call withRoute(String route) {
+      return new Call(route, request, onResponse);
+    }
+  }
+
+  @FunctionalInterface
+  interface Builder {
+    Call build(Session session, RandomGenerator random);
+  }
+}
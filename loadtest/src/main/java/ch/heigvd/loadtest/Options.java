@@ -0,0 +1,72 @@
+package ch.heigvd.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options, given as --name=value.
+ */
+final class Options {
+  private final Map<String, String> values = new HashMap<>();
+
+  Options(String[] args) {
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument \"" + arg + "\", options are given as --name=value");
+      }
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        values.put(arg.substring(2), "true");
+      } else {
+        values.put(arg.substring(2, separator), arg.substring(separator + 1));
+      }
+    }
+  }
+
+  boolean has(String name) {
+    return values.containsKey(name);
+  }
+
+  String getString(String name, String defaultValue) {
+    return values.getOrDefault(name, defaultValue);
+  }
+
+  int getInt(String name, int defaultValue) {
+    String value = values.get(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  long getLong(String name, long defaultValue) {
+    String value = values.get(name);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  double getDouble(String name, double defaultValue) {
+    String value = values.get(name);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * @return the comma separated integers of an option, e.g. --users=8,16,32
+   */
+  List<Integer> getInts(String name, String defaultValue) {
+    List<Integer> ints = new ArrayList<>();
+    for (String value : values.getOrDefault(name, defaultValue).split(",")) {
+      ints.add(Integer.parseInt(value.trim()));
+    }
+    return ints;
+  }
+
+  /**
+   * Returns the value of an option, falling back to an environment variable.
+   */
+  String getStringOrEnv(String name, String env, String defaultValue) {
+    String value = values.get(name);
+    if (value == null) {
+      value = System.getenv(env);
+    }
+    return value == null || value.isBlank() ? defaultValue : value;
+  }
+}
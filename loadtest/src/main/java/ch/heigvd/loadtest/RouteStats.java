@@ -0,0 +1,77 @@
+package ch.heigvd.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies and response statuses of one route, recorded concurrently by the
+ * simulated users.
+ */
+final class RouteStats {
+  // Status recorded when no response was received (timeout, connection reset)
+  static final int NO_RESPONSE = 0;
+
+  // Latencies are recorded in microseconds, up to one minute
+  private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final String route;
+  private final Recorder latencies = new Recorder(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+  private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+  RouteStats(String route) {
+    this.route = route;
+  }
+
+  String route() {
+    return route;
+  }
+
+  /**
+   * Records one request.
+   *
+   * @param status       the HTTP status, or NO_RESPONSE
+   * @param latencyNanos the time between the (intended) start of the request and
+   *                     the end of its response
+   */
+  void record(int status, long latencyNanos) {
+    latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), HIGHEST_LATENCY));
+    statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+  }
+
+  /**
+   * @return the latencies in microseconds recorded since the last call
+   */
+  Histogram latencies() {
+    return latencies.getIntervalHistogram();
+  }
+
+  /**
+   * @return the number of requests per status, in ascending status order
+   */
+  Map<Integer, Long> statuses() {
+    Map<Integer, Long> counts = new TreeMap<>();
+    statuses.forEach((status, count) -> counts.put(status, count.sum()));
+    return counts;
+  }
+
+  /**
+   * @return the number of requests that failed on the server side or got no
+   *         response at all
+   */
+  long errors() {
+    long errors = 0;
+    for (Map.Entry<Integer, Long> status : statuses().entrySet()) {
+      if (status.getKey() == NO_RESPONSE || status.getKey() >= 500) {
+        errors += status.getValue();
+      }
+    }
+    return errors;
+  }
+}
@@ -0,0 +1,61 @@
+package ch.heigvd.loadtest;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * State of one simulated user: who they are, their authentication cookie and
+ * the musics they added to their playlists during the test.
+ */
+final class Session {
+  static final String COOKIE_NAME = "userNameCookie";
+
+  private final String username;
+  private final List<Long> ownPlaylistIds;
+  // Musics added by the session, removed later so that the playlists keep
+  // their size over a long run
+  private final Deque<long[]> addedMusics = new ArrayDeque<>();
+  private String cookie;
+
+  Session(String username, List<Long> ownPlaylistIds) {
+    this.username = username;
+    this.ownPlaylistIds = ownPlaylistIds;
+  }
+
+  String username() {
+    return username;
+  }
+
+  List<Long> ownPlaylistIds() {
+    return ownPlaylistIds;
+  }
+
+  /**
+   * @return the Cookie header to send, null before the first login
+   */
+  String cookie() {
+    return cookie;
+  }
+
+  /**
+   * Keeps the authentication cookie from the Set-Cookie header of a login
+   * response.
+   */
+  void setCookie(String setCookieHeader) {
+    int end = setCookieHeader.indexOf(';');
+    cookie = end < 0 ? setCookieHeader : setCookieHeader.substring(0, end);
+  }
+
+  void musicAdded(long playlistId, long musicId) {
+    addedMusics.addLast(new long[] { playlistId, musicId });
+  }
+
+  /**
+   * @return the playlist ID and music ID of the oldest music added by the
+   *         session, or null if there is none left
+   */
+  long[] takeAddedMusic() {
+    return addedMusics.pollFirst();
+  }
+}
@@ -0,0 +1,227 @@
+package ch.heigvd.loadtest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.random.RandomGenerator;
+
+/**
+ * The requests sent by the simulated users, following the routes registered in
+ * App.main.
+ *
+ * Reads and writes are weighted separately and the proportion of writes is
+ * configurable. The default weights roughly follow the use of the frontend:
+ * most traffic is browsing musics and playlists, and listening is by far the
+ * most frequent write.
+ */
+final class TrafficMix {
+  static final String LOGIN_ROUTE = "POST /login/{nomUtilisateur}";
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+  private static final int PAGE_SIZE = 50;
+  private static final int PLAYLIST_SIZE = 3;
+
+  private final String baseUrl;
+  private final Dataset dataset;
+  private final double writeRatio;
+  private final List<Operation> reads = new ArrayList<>();
+  private final List<Operation> writes = new ArrayList<>();
+  private int readWeights;
+  private int writeWeights;
+
+  /**
+   * @param baseUrl    the URL of the API, without trailing slash
+   * @param dataset    the identifiers used in the requests
+   * @param writeRatio the proportion of writes, between 0 and 1
+   */
+  TrafficMix(String baseUrl, Dataset dataset, double writeRatio) {
+    this.baseUrl = baseUrl;
+    this.dataset = dataset;
+    this.writeRatio = writeRatio;
+
+    // Reads
+    add("GET /musics", 6, false,
+        (s, r) -> call(get(s, "/musics?after=" + dataset.anyMusic(r) + "&limit=" + PAGE_SIZE)));
+    add("GET /musics/{idMedia}", 20, false,
+        (s, r) -> call(get(s, "/musics/" + dataset.music(r))));
+    add("GET /musics/last-listened", 8, false,
+        (s, r) -> call(get(s, "/musics/last-listened")));
+    add("GET /musics/most-listened", 8, false,
+        (s, r) -> call(get(s, "/musics/most-listened")));
+    add("GET /musics/liked", 5, false,
+        (s, r) -> call(get(s, "/musics/liked")));
+    add("GET /playlists/{playlistId}", 15, false,
+        (s, r) -> call(get(s, "/playlists/" + dataset.playlist(r))));
+    add("GET /playlists/user/{creatorName}", 5, false,
+        (s, r) -> call(get(s, "/playlists/user/" + encode(dataset.user(r)))));
+    add("GET /playlists/followed", 8, false,
+        (s, r) -> call(get(s, "/playlists/followed")));
+    add("GET /albums/{idMedia}", 8, false,
+        (s, r) -> call(get(s, "/albums/" + dataset.album(r))));
+    add("GET /creators/{creatorName}", 5, false,
+        (s, r) -> call(get(s, "/creators/" + encode(dataset.creator(r)))));
+    add("GET /utilisateurs/{nomUtilisateur}", 3, false,
+        (s, r) -> call(get(s, "/utilisateurs/" + encode(dataset.user(r)))));
+
+    // Writes
+    add("POST /musics/{idMedia}/listen", 60, true,
+        (s, r) -> call(post(s, "/musics/" + dataset.music(r) + "/listen", null)));
+    add("POST /musics/liked/{idMedia}", 10, true,
+        (s, r) -> call(post(s, "/musics/liked/" + dataset.music(r), null)));
+    add("POST /playlists/followed/{playlistId}", 5, true,
+        (s, r) -> call(post(s, "/playlists/followed/" + dataset.playlist(r), null)));
+    add("POST /playlists/{playlistId}/musics/{idMedia}", 10, true, this::addMusicToPlaylist);
+    add("DELETE /playlists/{playlistId}/musics/{idMedia}", 10, true, this::removeMusicFromPlaylist);
+    add("POST /playlists", 2, true, this::createPlaylist);
+    add(LOGIN_ROUTE, 3, true,
+        (s, r) -> login(s));
+  }
+
+  /**
+   * Builds the request logging a session in. The cookie is taken from the
+   * response.
+   */
+  Operation.Call login(Session session) {
+    HttpRequest request = HttpRequest.newBuilder(uri("/login/" + encode(session.username())))
+        .timeout(REQUEST_TIMEOUT)
+        .POST(HttpRequest.BodyPublishers.noBody())
+        .build();
+
+    return new Operation.Call(LOGIN_ROUTE, request, response -> response.headers().allValues("Set-Cookie").stream()
+        .filter(cookie -> cookie.startsWith(Session.COOKIE_NAME + "="))
+        .findFirst()
+        .ifPresent(session::setCookie));
+  }
+
+  /**
+   * Draws the next operation of a session and builds its request.
+   */
+  Operation.Call next(Session session, RandomGenerator random) {
+    while (true) {
+      boolean write = random.nextDouble() < writeRatio;
+      Operation operation = write ? pick(writes, writeWeights, random) : pick(reads, readWeights, random);
+      Operation.Call call = operation.build().build(session, random);
+      if (call != null) {
+        return call.withRoute(operation.route());
+      }
+    }
+  }
+
+  /**
+   * @return the routes of all the operations, in the order they were declared
+   */
+  List<String> routes() {
+    List<String> routes = new ArrayList<>();
+    reads.forEach(operation -> routes.add(operation.route()));
+    writes.forEach(operation -> routes.add(operation.route()));
+    return routes;
+  }
+
+  private Operation.Call addMusicToPlaylist(Session session, RandomGenerator random) {
+    if (session.ownPlaylistIds().isEmpty()) {
+      return null;
+    }
+    long playlistId = session.ownPlaylistIds().get(random.nextInt(session.ownPlaylistIds().size()));
+    long musicId = dataset.music(random);
+
+    return new Operation.Call(null, post(session, "/playlists/" + playlistId + "/musics/" + musicId, null), response -> {
+      if (response.statusCode() / 100 == 2) {
+        session.musicAdded(playlistId, musicId);
+      }
+    });
+  }
+
+  private Operation.Call removeMusicFromPlaylist(Session session, RandomGenerator random) {
+    // Only musics added by the session are removed: removing the last music of
+    // a playlist deletes it, which would shrink the dataset during the test
+    long[] added = session.takeAddedMusic();
+    if (added == null) {
+      return null;
+    }
+
+    HttpRequest request = authenticated(session, "/playlists/" + added[0] + "/musics/" + added[1])
+        .DELETE()
+        .build();
+    return call(request);
+  }
+
+  private Operation.Call createPlaylist(Session session, RandomGenerator random) {
+    // A playlist cannot contain the same music twice
+    Set<Long> musicIds = new LinkedHashSet<>();
+    for (int i = 0; i < PLAYLIST_SIZE * 10 && musicIds.size() < PLAYLIST_SIZE; i++) {
+      musicIds.add(dataset.music(random));
+    }
+
+    StringJoiner musics = new StringJoiner(",");
+    musicIds.forEach(musicId -> musics.add("{\"musicId\":" + musicId + "}"));
+    String body = "{\"name\":\"Load test " + random.nextInt(1_000_000) + "\",\"description\":\"Created by the load test\","
+        + "\"musics\":[" + musics + "]}";
+
+    return call(post(session, "/playlists", body));
+  }
+
+  private void add(String route, int weight, boolean write, Operation.Builder build) {
+    Operation operation = new Operation(route, weight, write, build);
+    if (write) {
+      writes.add(operation);
+      writeWeights += weight;
+    } else {
+      reads.add(operation);
+      readWeights += weight;
+    }
+  }
+
+  private static Operation pick(List<Operation> operations, int totalWeight, RandomGenerator random) {
+    int drawn = random.nextInt(totalWeight);
+    for (Operation operation : operations) {
+      drawn -= operation.weight();
+      if (drawn < 0) {
+        return operation;
+      }
+    }
+    throw new IllegalStateException("Weights are inconsistent");
+  }
+
+  private HttpRequest get(Session session, String path) {
+    return authenticated(session, path).GET().build();
+  }
+
+  private HttpRequest post(Session session, String path, String json) {
+    HttpRequest.Builder builder = authenticated(session, path);
+    if (json == null) {
+      return builder.POST(HttpRequest.BodyPublishers.noBody()).build();
+    }
+    return builder.header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(json))
+        .build();
+  }
+
+  private HttpRequest.Builder authenticated(Session session, String path) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(uri(path)).timeout(REQUEST_TIMEOUT);
+    if (session.cookie() != null) {
+      builder.header("Cookie", session.cookie());
+    }
+    return builder;
+  }
+
+  private URI uri(String path) {
+    return URI.create(baseUrl + path);
+  }
+
+  private static Operation.Call call(HttpRequest request) {
+    return new Operation.Call(null, request, response -> {
+    });
+  }
+
+  private static String encode(String pathSegment) {
+    return URLEncoder.encode(pathSegment, StandardCharsets.UTF_8).replace("+", "%20");
+  }
+}
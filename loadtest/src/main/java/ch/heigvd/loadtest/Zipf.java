@@ -0,0 +1,55 @@
+package ch.heigvd.loadtest;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Draws ranks following a Zipf distribution: rank 0 is the most popular, and
+ * the probability of rank k is proportional to 1 / (k + 1)^exponent.
+ *
+ * The cumulative distribution is computed once, so that each draw is a binary
+ * search. It is immutable and can be shared between threads.
+ */
+public final class Zipf {
+  private final double[] cumulative;
+
+  /**
+   * @param size     the number of ranks
+   * @param exponent the skew, 0 for a uniform distribution and around 1 for the
+   *                 popularity of songs
+   */
+  public Zipf(int size, double exponent) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("A Zipf distribution needs at least one rank");
+    }
+
+    cumulative = new double[size];
+    double sum = 0;
+    for (int rank = 0; rank < size; rank++) {
+      sum += 1 / Math.pow(rank + 1, exponent);
+      cumulative[rank] = sum;
+    }
+    for (int rank = 0; rank < size; rank++) {
+      cumulative[rank] /= sum;
+    }
+  }
+
+  /**
+   * @return the number of ranks
+   */
+  public int size() {
+    return cumulative.length;
+  }
+
+  /**
+   * @param random the random generator of the calling thread
+   * @return a rank between 0 (included) and size (excluded)
+   */
+  public int next(RandomGenerator random) {
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    // Not found (almost always): the insertion point is the first rank whose
+    // cumulative probability is above the drawn value
+    int rank = index >= 0 ? index : -index - 1;
+    return Math.min(rank, cumulative.length - 1);
+  }
+}